@@ -765,7 +765,10 @@ public abstract class I2PTunnelClientBase extends I2PTunnelTask implements Runna
             }
 
             TunnelControllerGroup tcg = TunnelControllerGroup.getInstance();
-            if (tcg != null) {
+            if (VirtualThreads.isEnabled(getTunnel().getClientOptions(), _log)) {
+                // Never shut down, the threads don't outlive their connections
+                _executor = VirtualThreads.newExecutor("I2PTunnel Client Runner");
+            } else if (tcg != null) {
                 _executor = tcg.getClientExecutor();
             } else {
                 // Fallback in case TCG.getInstance() is null, never instantiated
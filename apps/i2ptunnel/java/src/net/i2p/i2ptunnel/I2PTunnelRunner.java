@@ -29,6 +29,10 @@ import net.i2p.util.Log;
 /**
  *  A thread that starts two more threads, one to forward traffic in each direction.
  *
+ *  As of 0.9.45, if started from, or run in, a virtual thread (Java 21+),
+ *  as when the tunnel has i2ptunnel.forwarder=virtual,
+ *  the other threads are virtual threads too.
+ *
  *  Warning - not maintained as a stable API for external use.
  */
 public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErrorListener {
@@ -46,6 +50,17 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
 
     static final int NETWORK_BUFFER_SIZE = MAX_PACKET_SIZE;
 
+    /**
+     *  Tunnel option for the threads that run the runners and forwarders,
+     *  FORWARDER_THREAD or FORWARDER_VIRTUAL.
+     *  @since 0.9.45
+     */
+    public static final String PROP_FORWARDER = "i2ptunnel.forwarder";
+    /** one platform thread per runner and per forwarder, the default @since 0.9.45 */
+    public static final String FORWARDER_THREAD = "thread";
+    /** virtual threads if the JVM supports them (Java 21+), otherwise FORWARDER_THREAD @since 0.9.45 */
+    public static final String FORWARDER_VIRTUAL = "virtual";
+
     private final Socket s;
     private final I2PSocket i2ps;
     private final Object slock, finishLock = new Object();
@@ -249,6 +264,31 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
         _onSuccess = sc;
     }
 
+    /**
+     *  Starts in a virtual thread if the caller is in one
+     *  @since 0.9.45
+     */
+    @Override
+    public void start() {
+        Thread t = startThread(this);
+        if (t == null)
+            super.start();
+    }
+
+    /**
+     *  Start a virtual thread for r if the current thread is virtual.
+     *  @return the started thread or null if not virtual
+     *  @since 0.9.45
+     */
+    private static Thread startThread(Thread r) {
+        if (!VirtualThreads.isVirtual(Thread.currentThread()))
+            return null;
+        Thread rv = VirtualThreads.newThread(r, r.getName());
+        if (rv != null)
+            rv.start();
+        return rv;
+    }
+
     protected InputStream getSocketIn() throws IOException { return s.getInputStream(); }
     protected OutputStream getSocketOut() throws IOException { return s.getOutputStream(); }
     
@@ -265,6 +305,8 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
         OutputStream i2pout = null;
         StreamForwarder toI2P = null;
         StreamForwarder fromI2P = null;
+        // toI2P or its virtual thread
+        Thread toI2PThread = null;
         try {
             in = getSocketIn();
             out = getSocketOut(); // = new BufferedOutputStream(s.getOutputStream(), NETWORK_BUFFER_SIZE);
@@ -307,7 +349,11 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
                 in = new BufferedInputStream(in, 2*NETWORK_BUFFER_SIZE);
             toI2P = new StreamForwarder(in, i2pout, true, null);
             fromI2P = new StreamForwarder(i2pin, out, false, _onSuccess);
-            toI2P.start();
+            toI2PThread = startThread(toI2P);
+            if (toI2PThread == null) {
+                toI2P.start();
+                toI2PThread = toI2P;
+            }
             // We are already a thread, so run the second one inline
             //fromI2P.start();
             fromI2P.run();
@@ -413,7 +459,7 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
             } else {
                 // now one connection is dead - kill the other as well, after making sure we flush
                 try {
-                    close(out, in, i2pout, i2pin, s, i2ps, toI2P, fromI2P);
+                    close(out, in, i2pout, i2pin, s, i2ps, toI2PThread, fromI2P);
                 } catch (InterruptedException ie) {}
             }
         }
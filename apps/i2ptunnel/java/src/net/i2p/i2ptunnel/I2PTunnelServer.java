@@ -582,7 +582,10 @@ public class I2PTunnelServer extends I2PTunnelTask implements Runnable {
             _executor = new CustomThreadPoolExecutor(getHandlerCount(), "ServerHandler pool " + remoteHost + ':' + remotePort);
         }
         TunnelControllerGroup tcg = TunnelControllerGroup.getInstance();
-        if (tcg != null) {
+        if (VirtualThreads.isEnabled(getTunnel().getClientOptions(), _log)) {
+            // Never shut down, the threads don't outlive their connections
+            _clientExecutor = VirtualThreads.newExecutor("I2PTunnel Server Runner");
+        } else if (tcg != null) {
             _clientExecutor = tcg.getClientExecutor();
         } else {
             // Fallback in case TCG.getInstance() is null, never instantiated
@@ -0,0 +1,137 @@
+package net.i2p.i2ptunnel;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Java 21 virtual threads, by reflection, as we compile for Java 7.
+ *
+ *  A virtual thread blocked in a read or write does not hold a
+ *  platform thread or its stack, so a tunnel with thousands of
+ *  connections, each with a runner and a forwarder blocked in
+ *  a read, needs only a few platform threads.
+ *
+ *  I2PTunnelRunner starts its forwarder in a virtual thread
+ *  if it is itself running in one, so using the executor
+ *  from newExecutor() for the runners is all a tunnel needs to do.
+ *
+ *  @since 0.9.45
+ */
+class VirtualThreads {
+    private static final Method _ofVirtual;
+    private static final Method _name;
+    private static final Method _unstarted;
+    private static final Method _isVirtual;
+    private static final AtomicLong _count = new AtomicLong();
+
+    static {
+        Method ofVirtual = null, name = null, unstarted = null, isVirtual = null;
+        if (SystemVersion.isJava(21)) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                isVirtual = Thread.class.getMethod("isVirtual");
+            } catch (Exception e) {
+                ofVirtual = null;
+            }
+        }
+        _ofVirtual = ofVirtual;
+        _name = name;
+        _unstarted = unstarted;
+        _isVirtual = isVirtual;
+    }
+
+    private VirtualThreads() {}
+
+    /**
+     *  @return true if the JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return _ofVirtual != null;
+    }
+
+    /**
+     *  @param opts the tunnel's client options
+     *  @return true if the options have i2ptunnel.forwarder=virtual and the JVM supports it
+     */
+    public static boolean isEnabled(Properties opts, Log log) {
+        if (!I2PTunnelRunner.FORWARDER_VIRTUAL.equals(opts.getProperty(I2PTunnelRunner.PROP_FORWARDER)))
+            return false;
+        if (_ofVirtual == null) {
+            log.logAlways(Log.WARN, "Virtual threads require Java 21, using regular threads");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  @return true if t is a virtual thread
+     */
+    public static boolean isVirtual(Thread t) {
+        if (_ofVirtual == null)
+            return false;
+        try {
+            return ((Boolean) _isVirtual.invoke(t)).booleanValue();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     *  @return an unstarted virtual thread, or null if unavailable
+     */
+    public static Thread newThread(Runnable r, String name) {
+        if (_ofVirtual == null)
+            return null;
+        try {
+            Object builder = _ofVirtual.invoke(null);
+            builder = _name.invoke(builder, name);
+            return (Thread) _unstarted.invoke(builder, r);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  An unlimited executor running every task in a new virtual thread,
+     *  like TunnelControllerGroup.CustomThreadPoolExecutor,
+     *  but the threads are not kept for reuse, there is no point.
+     *
+     *  Caller must check isAvailable() first, otherwise the threads
+     *  will be regular daemon threads.
+     *
+     *  @param name thread name prefix
+     */
+    public static ThreadPoolExecutor newExecutor(String name) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS,
+                                      new SynchronousQueue<Runnable>(), new VirtualThreadFactory(name));
+    }
+
+    private static class VirtualThreadFactory implements ThreadFactory {
+        private final String _prefix;
+
+        public VirtualThreadFactory(String name) {
+            _prefix = name + ' ';
+        }
+
+        public Thread newThread(Runnable r) {
+            String name = _prefix + _count.incrementAndGet();
+            Thread rv = VirtualThreads.newThread(r, name);
+            if (rv == null) {
+                rv = new Thread(r, name);
+                rv.setDaemon(true);
+            }
+            return rv;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.i2p.i2ptunnel;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PSocketOptions;
+import net.i2p.data.Destination;
+
+/**
+ *  Load test for the I2PTunnelRunner forwarding engines.
+ *  Not a unit test, run it by hand, one engine and stream count per JVM
+ *  so the memory high water mark is for that run only:
+ *
+ *  <pre>
+ *  java -cp ... net.i2p.i2ptunnel.ForwarderLoad thread|virtual streams [kbytes per stream]
+ *  </pre>
+ *
+ *  Each stream is a real loopback TCP connection, forwarded by a runner
+ *  to an in-memory I2PSocket that echoes everything back, as a server
+ *  tunnel does to a local web server. The other end of the TCP connections
+ *  is driven by a single selector thread here, so the platform thread count
+ *  is the runners' and forwarders'. The runners are started the way
+ *  I2PTunnelServer starts them.
+ *
+ *  Each stream sends its data, and is closed when all of it is echoed back.
+ *  Reported: peak platform threads, resident memory high water mark,
+ *  heap after GC with all the streams open, and echo throughput.
+ *
+ *  Note: Each stream takes two file descriptors and, for the thread engine,
+ *  two threads, so the ulimits for open files and processes must allow it.
+ *
+ *  @since 0.9.45
+ */
+public class ForwarderLoad {
+
+    private static final int CHUNK = 4096;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ForwarderLoad thread|virtual streams [kbytes per stream]");
+            System.exit(1);
+        }
+        String engine = args[0];
+        int count = Integer.parseInt(args[1]);
+        long perStream = 1024L * (args.length > 2 ? Integer.parseInt(args[2]) : 64);
+        Executor executor;
+        if (engine.equals(I2PTunnelRunner.FORWARDER_VIRTUAL)) {
+            if (!VirtualThreads.isAvailable()) {
+                System.err.println("Virtual threads require Java 21");
+                System.exit(1);
+            }
+            executor = VirtualThreads.newExecutor("Load");
+        } else {
+            executor = new TunnelControllerGroup.CustomThreadPoolExecutor();
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+        Destination dest = I2PClientFactory.createClient().createDestination(baos);
+        Object slock = new Object();
+        ServerSocket ss = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+        Selector selector = Selector.open();
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < count; i++) {
+                SocketChannel chan = SocketChannel.open(addr);
+                Socket s = ss.accept();
+                chan.configureBlocking(false);
+                chan.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, new Stream());
+                I2PTunnelRunner runner = new I2PTunnelRunner(s, new EchoSocket(dest), slock, null, null,
+                                                             null, (I2PTunnelRunner.FailCallback) null);
+                executor.execute(runner);
+            }
+        } catch (Throwable t) {
+            System.out.println(engine + " streams=" + count + " FAILED during setup: " + t);
+            System.exit(1);
+        }
+        long setup = System.currentTimeMillis() - start;
+        // let the forwarders start and block
+        Thread.sleep(2000);
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        ByteBuffer data = ByteBuffer.allocate(CHUNK);
+        ByteBuffer rcv = ByteBuffer.allocate(64*1024);
+        int done = 0;
+        long total = 0;
+        start = System.currentTimeMillis();
+        while (done < count) {
+            if (selector.select(30*1000) == 0) {
+                System.out.println(engine + " streams=" + count + " STALLED, done: " + done);
+                System.exit(1);
+            }
+            for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                SocketChannel chan = (SocketChannel) key.channel();
+                Stream st = (Stream) key.attachment();
+                if (key.isWritable()) {
+                    data.clear();
+                    data.limit((int) Math.min(CHUNK, perStream - st.sent));
+                    st.sent += chan.write(data);
+                    if (st.sent >= perStream)
+                        key.interestOps(SelectionKey.OP_READ);
+                }
+                if (key.isReadable()) {
+                    rcv.clear();
+                    int read = chan.read(rcv);
+                    if (read > 0) {
+                        st.received += read;
+                        total += read;
+                    }
+                    if (read < 0 || st.received >= perStream) {
+                        key.cancel();
+                        chan.close();
+                        done++;
+                    }
+                }
+            }
+        }
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(engine + " streams=" + count +
+                           " setup=" + setup + "ms" +
+                           " platformThreads=" + threads +
+                           " peakThreads=" + ManagementFactory.getThreadMXBean().getPeakThreadCount() +
+                           " heapAfterGC=" + (heap / (1024*1024)) + "MB" +
+                           " rssPeak=" + getStatus("VmHWM") +
+                           " echoed=" + (total / (1024*1024)) + "MB" +
+                           " time=" + time + "ms" +
+                           " throughput=" + ((total * 1000 / time) / 1024) + "KBps");
+        System.exit(0);
+    }
+
+    private static class Stream {
+        long sent, received;
+    }
+
+    /** Linux only */
+    private static String getStatus(String field) {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(field + ':'))
+                    return line.substring(field.length() + 1).trim().replace(" ", "");
+            }
+        } catch (IOException ioe) {
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return "unknown";
+    }
+
+    /**
+     *  Everything written is read back, through a bounded buffer,
+     *  blocking when full or empty, like the streaming window and
+     *  MessageInputStream.
+     */
+    private static class EchoSocket implements I2PSocket {
+        private final Destination _dest;
+        private final byte[] _buf = new byte[16*1024];
+        private int _off, _len;
+        private boolean _outClosed, _closed;
+        private final InputStream _in = new EchoIn();
+        private final OutputStream _out = new EchoOut();
+
+        public EchoSocket(Destination dest) { _dest = dest; }
+
+        public Destination getThisDestination() { return _dest; }
+        public Destination getPeerDestination() { return _dest; }
+        public InputStream getInputStream() { return _in; }
+        public OutputStream getOutputStream() { return _out; }
+        public SelectableChannel getChannel() { return null; }
+        public I2PSocketOptions getOptions() { return null; }
+        public void setOptions(I2PSocketOptions options) {}
+        public long getReadTimeout() { return -1; }
+        public void setReadTimeout(long ms) {}
+        public synchronized boolean isClosed() { return _closed; }
+        public void setSocketErrorListener(SocketErrorListener lsnr) {}
+        public int getPort() { return 0; }
+        public int getLocalPort() { return 0; }
+        public void reset() { close(); }
+
+        public synchronized void close() {
+            _closed = true;
+            _outClosed = true;
+            notifyAll();
+        }
+
+        private class EchoIn extends InputStream {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (EchoSocket.this) {
+                    while (_len == 0) {
+                        if (_outClosed)
+                            return -1;
+                        try {
+                            EchoSocket.this.wait();
+                        } catch (InterruptedException ie) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    int rv = Math.min(len, Math.min(_len, _buf.length - _off));
+                    System.arraycopy(_buf, _off, b, off, rv);
+                    _off = (_off + rv) % _buf.length;
+                    _len -= rv;
+                    EchoSocket.this.notifyAll();
+                    return rv;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (EchoSocket.this) {
+                    return _len;
+                }
+            }
+
+            @Override
+            public void close() {
+                EchoSocket.this.close();
+            }
+        }
+
+        private class EchoOut extends OutputStream {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (EchoSocket.this) {
+                    while (len > 0) {
+                        if (_outClosed)
+                            throw new IOException("closed");
+                        int free = _buf.length - _len;
+                        if (free == 0) {
+                            try {
+                                EchoSocket.this.wait();
+                            } catch (InterruptedException ie) {
+                                throw new InterruptedIOException();
+                            }
+                            continue;
+                        }
+                        int end = (_off + _len) % _buf.length;
+                        int n = Math.min(len, Math.min(free, _buf.length - end));
+                        System.arraycopy(b, off, _buf, end, n);
+                        _len += n;
+                        off += n;
+                        len -= n;
+                        EchoSocket.this.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (EchoSocket.this) {
+                    _outClosed = true;
+                    EchoSocket.this.notifyAll();
+                }
+            }
+        }
+    }
+}
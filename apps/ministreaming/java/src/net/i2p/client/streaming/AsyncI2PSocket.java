@@ -0,0 +1,85 @@
+package net.i2p.client.streaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *  Nonblocking I/O on an I2PSocket, as an alternative to the blocking
+ *  streams, so that one or a few threads can serve many sockets.
+ *  The sockets returned by the full streaming library implement this;
+ *  check with instanceof.
+ *<p>
+ *  Reads and writes never block. Instead, a {@link Listener} is told
+ *  when there may be something to read, or room to write.
+ *  The notifications are edge-triggered and may be spurious:
+ *  after one, read or write until 0 is returned, and after setting
+ *  the listener, try once, as there may already be data waiting.
+ *<p>
+ *  Don't mix these methods with blocking reads and writes on the streams
+ *  from getInputStream() and getOutputStream() of the same socket.
+ *
+ *  @since 0.9.45
+ */
+public interface AsyncI2PSocket extends I2PSocket {
+
+    /**
+     *  Nonblocking read of the data available.
+     *
+     *  @param dst where to put the data
+     *  @return the number of bytes read, 0 if none are available, or -1 at end of stream
+     *  @throws IOException if closed or on a stream error, e.g. a reset
+     */
+    public int read(ByteBuffer dst) throws IOException;
+
+    /**
+     *  Nonblocking write of as much as the outbound buffer and
+     *  the sending window will take. The data is sent
+     *  as it fills a packet, or after a short delay, or on flush().
+     *
+     *  @param src the data to write
+     *  @return the number of bytes accepted, 0 if none.
+     *          If less than src.remaining(), the listener will be notified
+     *          when there may be room.
+     *  @throws IOException if closed or on a stream error, e.g. a reset
+     */
+    public int write(ByteBuffer src) throws IOException;
+
+    /**
+     *  Nonblocking. Send any buffered data now.
+     *
+     *  @throws IOException if closed
+     */
+    public void flush() throws IOException;
+
+    /**
+     *  Nonblocking. Send any buffered data and then a CLOSE,
+     *  without waiting for it to be acked. The input side remains open
+     *  until end of stream is read, after which close() should be called.
+     *
+     *  @throws IOException if closed
+     */
+    public void shutdownOutput() throws IOException;
+
+    /**
+     *  @param lsnr null to remove
+     */
+    public void setListener(Listener lsnr);
+
+    /**
+     *  The listener methods are called from the streaming library's threads,
+     *  and must not block.
+     */
+    public interface Listener {
+
+        /**
+         *  There may be data, end of stream, or an error to read.
+         */
+        public void readable(AsyncI2PSocket socket);
+
+        /**
+         *  There may be room to write, or an error to write,
+         *  after a write accepted less than all the data.
+         */
+        public void writable(AsyncI2PSocket socket);
+    }
+}
@@ -0,0 +1,109 @@
+package net.i2p.client.streaming.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.ByteArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The payload of outbound data packets, as in ConnectionDataReceiver,
+ * PacketQueue, and PacketLocal: copied from the MessageOutputStream buffer,
+ * written out, and held until acked, a window later.
+ *
+ * "new" allocates the payload for each packet, as before,
+ * "pooled" uses PayloadBuffer.
+ * Run with -prof gc for the allocation rate, gc.alloc.rate.norm is bytes per packet.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadBench {
+
+    @Param({"new", "pooled"})
+    public String impl;
+
+    @Param({"64"})
+    public int window;
+
+    private static final int SIZE = ConnectionOptions.DEFAULT_MAX_MESSAGE_SIZE;
+
+    private boolean pooled;
+    private byte[] data;
+    private byte[] buf;
+    private Packet[] inFlight;
+    private int next;
+    private long seq;
+
+    @Setup
+    public void prepare() {
+        pooled = impl.equals("pooled");
+        data = new byte[SIZE];
+        buf = new byte[36*1024];
+        inFlight = new Packet[window];
+        for (int i = 0; i < window; i++) {
+            inFlight[i] = newPacket();
+        }
+    }
+
+    private Packet newPacket() {
+        Packet packet = new Packet(null);
+        ByteArray payload;
+        if (pooled) {
+            payload = PayloadBuffer.acquire(SIZE, SIZE);
+        } else {
+            payload = new ByteArray(new byte[SIZE]);
+            payload.setValid(SIZE);
+            payload.setOffset(0);
+        }
+        System.arraycopy(data, 0, payload.getData(), 0, SIZE);
+        packet.setPayload(payload);
+        packet.setSequenceNum(++seq);
+        packet.setSendStreamId(1);
+        packet.setReceiveStreamId(2);
+        return packet;
+    }
+
+    @Benchmark
+    public int sendAndAck() {
+        Packet packet = newPacket();
+        int rv = 0;
+        if (packet.retainPayload()) {
+            rv = packet.writePacket(buf, 0);
+            PayloadBuffer.release(packet.getPayload());
+        }
+        // ack the oldest
+        int i = next++ % window;
+        inFlight[i].releasePayload();
+        inFlight[i] = packet;
+        return rv;
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(PayloadBench.class.getSimpleName())
+                .addProfiler("gc")
+                .build();
+
+        new Runner(opt).run();
+    }
+}
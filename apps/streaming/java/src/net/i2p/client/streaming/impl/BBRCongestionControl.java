@@ -0,0 +1,221 @@
+package net.i2p.client.streaming.impl;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ * Sets the window from a model of the path, after BBR
+ * (Cardwell et al., "BBR: Congestion-Based Congestion Control", 2016),
+ * instead of reacting to loss.
+ *<p>
+ * The bandwidth is the most delivered per round trip over the last 10 rounds,
+ * and the window is that times the lowest RTT seen in the last 10 seconds,
+ * the bandwidth-delay product. I2P tunnels drop messages at random,
+ * and long tunnels have a high RTT, so halving the window
+ * for every loss, as Reno does, and taking many RTTs to grow it back,
+ * leaves the path mostly idle for bulk transfers.
+ *<p>
+ * Simplified, as we have no pacing, only the window:
+ *<ul>
+ *<li>STARTUP: The window grows by the number acked, doubling every round,
+ *    until the bandwidth stops growing by 25% for 3 rounds, or
+ *    the lowest RTT in a round is 25% over the lowest RTT,
+ *    as we're building a queue (as in HyStart), or there is a loss.
+ *    Then it's set to the BDP, which drains any queue we built.
+ *<li>PROBE_BW: The window is the BDP times a gain cycling through
+ *    1.25, 0.75, then 1 for 6 rounds, to find more bandwidth, then
+ *    drain the queue it built, times 1.25 for bursts.
+ *<li>PROBE_RTT: If the lowest RTT hasn't been seen for 10 seconds,
+ *    the window is 4 for 200 ms plus an RTT, so any queue drains and
+ *    the lowest RTT can be measured again.
+ *</ul>
+ * On loss, the window is reduced to the BDP, not below.
+ *
+ * @since 0.9.45
+ */
+class BBRCongestionControl implements CongestionControl {
+    private final I2PAppContext _context;
+    private final Log _log;
+
+    private enum Mode { STARTUP, PROBE_BW, PROBE_RTT }
+
+    /** rounds */
+    private static final int BW_WINDOW = 10;
+    private static final long MIN_RTT_WINDOW = 10*1000;
+    private static final long PROBE_RTT_TIME = 200;
+    /** messages */
+    private static final int MIN_WINDOW = 4;
+    private static final float[] PROBE_GAIN = { 1.25f, 0.75f, 1, 1, 1, 1, 1, 1 };
+    private static final float FULL_BW_GROWTH = 1.25f;
+    private static final int FULL_BW_ROUNDS = 3;
+    private static final float QUEUE_RTT_GROWTH = 1.25f;
+    /**
+     * Headroom over the BDP, as the receiver delays acks and acks several at once,
+     * so we send in bursts, and the RTT grows with the window.
+     * BBR uses 2, but it paces. Without pacing, more than this
+     * overflows queues with the bursts, and is worse with random loss.
+     */
+    private static final float WINDOW_GAIN = 1.25f;
+
+    // all the below are locked by this, but read without locking in toString()
+    private Mode _mode = Mode.STARTUP;
+    /** messages per second, for the rounds that weren't app-limited */
+    private final float[] _bwSamples = new float[BW_WINDOW];
+    private int _bwCount;
+    private float _maxBw;
+    private int _minRtt = -1;
+    private long _minRttStamp;
+    /** messages acked, total */
+    private long _delivered;
+    /** a round ends when the highest sent at its start is acked */
+    private long _roundEnd = -1;
+    private long _roundStart;
+    private long _roundDelivered;
+    private int _roundWindow;
+    private int _roundMinRtt = -1;
+    private float _fullBw;
+    private int _fullBwRounds;
+    private int _cycle;
+    private long _probeRttDone;
+    private int _savedWindow;
+
+    public BBRCongestionControl(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(BBRCongestionControl.class);
+    }
+
+    public synchronized int acked(Connection con, int windowSize, int acked, int numResends, int rtt, boolean congested) {
+        long now = _context.clock().now();
+        _delivered += acked;
+        boolean expired = _minRtt > 0 && now - _minRttStamp > MIN_RTT_WINDOW;
+        if (rtt > 0 && (_minRtt <= 0 || rtt <= _minRtt || expired)) {
+            _minRtt = rtt;
+            _minRttStamp = now;
+        }
+        if (rtt > 0 && (_roundMinRtt <= 0 || rtt < _roundMinRtt))
+            _roundMinRtt = rtt;
+
+        if (con.getHighestAckedThrough() > _roundEnd) {
+            // end of a round
+            long elapsed = now - _roundStart;
+            if (_roundEnd >= 0 && elapsed > 0 && !congested) {
+                long delivered = _delivered - _roundDelivered;
+                float bw = delivered * 1000f / elapsed;
+                // If we didn't have a window's worth in flight, the sample
+                // is of the application's rate, not the path's,
+                // so only use it if it's higher
+                boolean appLimited = delivered < _roundWindow / 2;
+                if (!appLimited || bw > _maxBw) {
+                    updateBw(bw);
+                    if (_mode == Mode.STARTUP && !appLimited)
+                        checkFullBw(con);
+                }
+                if (_mode == Mode.STARTUP && _maxBw > 0 &&
+                    _roundMinRtt > _minRtt * QUEUE_RTT_GROWTH) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("RTT " + _roundMinRtt + " rising in STARTUP for " + con);
+                    enterProbeBw(con);
+                }
+            }
+            _roundEnd = con.getLastSendId();
+            _roundStart = now;
+            _roundDelivered = _delivered;
+            _roundWindow = windowSize;
+            _roundMinRtt = -1;
+            if (_mode == Mode.PROBE_BW)
+                _cycle = (_cycle + 1) % PROBE_GAIN.length;
+        }
+
+        if (_mode == Mode.PROBE_RTT) {
+            if (now < _probeRttDone)
+                return MIN_WINDOW;
+            // done, restore
+            _minRttStamp = now;
+            _mode = _fullBw > 0 ? Mode.PROBE_BW : Mode.STARTUP;
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Exit PROBE_RTT, window " + _savedWindow + " for " + con);
+            return _savedWindow;
+        }
+        if (expired && _maxBw > 0) {
+            _savedWindow = windowSize;
+            _mode = Mode.PROBE_RTT;
+            _probeRttDone = now + PROBE_RTT_TIME + _minRtt;
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Enter PROBE_RTT for " + con);
+            return MIN_WINDOW;
+        }
+
+        if (congested || acked <= 0)
+            return windowSize;
+        if (_mode == Mode.STARTUP)
+            return windowSize + acked;
+        int target = Math.max(MIN_WINDOW, (int) Math.ceil(PROBE_GAIN[_cycle] * WINDOW_GAIN * bdp()));
+        if (windowSize < target)
+            return Math.min(target, windowSize + acked);
+        return target;
+    }
+
+    /**
+     * Reduce to the BDP, no lower.
+     * Leaves STARTUP, as the path is full.
+     */
+    public synchronized int lost(Connection con, int windowSize) {
+        if (_mode == Mode.PROBE_RTT)
+            return windowSize;
+        if (_maxBw <= 0 || _minRtt <= 0) {
+            // no model yet
+            return Math.max(1, windowSize / 2);
+        }
+        if (_mode == Mode.STARTUP)
+            enterProbeBw(con);
+        return Math.max(MIN_WINDOW, Math.min(windowSize, bdp()));
+    }
+
+    /**
+     * Keep the most recent BW_WINDOW samples, and their max
+     */
+    private void updateBw(float bw) {
+        _bwSamples[_bwCount++ % BW_WINDOW] = bw;
+        float max = 0;
+        for (int i = 0; i < BW_WINDOW; i++) {
+            if (_bwSamples[i] > max)
+                max = _bwSamples[i];
+        }
+        _maxBw = max;
+    }
+
+    private void checkFullBw(Connection con) {
+        if (_maxBw >= _fullBw * FULL_BW_GROWTH) {
+            _fullBw = _maxBw;
+            _fullBwRounds = 0;
+        } else if (++_fullBwRounds >= FULL_BW_ROUNDS) {
+            enterProbeBw(con);
+        }
+    }
+
+    /**
+     * Start at a random point in the cycle, but not the draining phase,
+     * so that connections sharing a path don't probe together.
+     */
+    private void enterProbeBw(Connection con) {
+        _mode = Mode.PROBE_BW;
+        _fullBw = _maxBw;
+        _cycle = _context.random().nextInt(PROBE_GAIN.length - 1);
+        if (_cycle >= 1)
+            _cycle++;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Enter PROBE_BW, bdp " + bdp() + " for " + con);
+    }
+
+    /**
+     * @return the bandwidth-delay product, in messages, from the model
+     */
+    private int bdp() {
+        return (int) Math.ceil(_maxBw * _minRtt / 1000f);
+    }
+
+    @Override
+    public String toString() {
+        return "bbr " + _mode + " bw " + ((int) _maxBw) + "/s minRtt " + _minRtt;
+    }
+}
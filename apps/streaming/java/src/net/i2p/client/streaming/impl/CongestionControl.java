@@ -0,0 +1,42 @@
+package net.i2p.client.streaming.impl;
+
+/**
+ * Sets the send window size of a connection, in messages,
+ * as acks come in and as packets are lost.
+ * One of these per-Connection, so implementations may keep state.
+ *<p>
+ * The window is still set to 1 by Connection when we are choked,
+ * and the RTO is backed off by Connection on loss, regardless
+ * of the implementation.
+ *<p>
+ * Selected with the option i2p.streaming.congestionControl,
+ * see ConnectionOptions.
+ *
+ * @since 0.9.45
+ */
+interface CongestionControl {
+
+    /**
+     * Called by ConnectionPacketHandler for every packet with an ack.
+     * This should not decrease the window, except to
+     * restore the model after probing.
+     *
+     * @param windowSize the current window size
+     * @param acked how many of our packets were newly acked, may be 0
+     * @param numResends how many of those had been resent
+     * @param rtt the lowest RTT of those that had not been resent, or -1 if none
+     * @param congested did the packet have a choke, or was it a dup?
+     * @return the new window size
+     */
+    public int acked(Connection con, int windowSize, int acked, int numResends, int rtt, boolean congested);
+
+    /**
+     * Called by Connection when a packet is retransmitted,
+     * either by timeout or fast retransmit, at most once per window.
+     * Not called when we are choked.
+     *
+     * @param windowSize the current window size
+     * @return the new window size
+     */
+    public int lost(Connection con, int windowSize);
+}
@@ -2,6 +2,7 @@ package net.i2p.client.streaming.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -95,9 +96,20 @@ class Connection {
     private final AtomicLong _lifetimeBytesReceived = new AtomicLong();
     private final AtomicLong _lifetimeDupMessageSent = new AtomicLong();
     private final AtomicLong _lifetimeDupMessageReceived = new AtomicLong();
+    private final CongestionControl _congestionControl;
+    /** @since 0.9.45 */
+    private final AtomicInteger _lifetimeTimeoutResends = new AtomicInteger();
+    /** @since 0.9.45 */
+    private final AtomicInteger _lifetimeFastResends = new AtomicInteger();
+    /** @since 0.9.45 */
+    private final AtomicInteger _lifetimeCongestionEvents = new AtomicInteger();
+    /** latest send time of a packet acked on its first send, locked by _outboundPackets, @since 0.9.45 */
+    private long _lastAckedSendTime;
     
     public static final long MAX_RESEND_DELAY = 45*1000;
     public static final long MIN_RESEND_DELAY = 100;
+    /** @since 0.9.45 */
+    private static final long MIN_REORDER_WINDOW = 20;
 
     /**
      *  Wait up to 5 minutes after disconnection so we can ack/close packets.
@@ -166,6 +178,7 @@ class Connection {
         _nextSendLock = new Object();
         _connectionEvent = new ConEvent();
         _randomWait = _context.random().nextInt(10*1000); // just do this once to reduce usage
+        _congestionControl = _options.newCongestionControl(_context);
         // all createRateStats in ConnectionManager
         if (_log.shouldLog(Log.INFO))
             _log.info("New connection created with options: " + _options);
@@ -210,15 +223,9 @@ class Connection {
                 if (_outputStream.getClosed())
                     throw new IOException("Output stream closed");
                 started = true;
-                // Try to keep things moving even during NACKs and retransmissions...
-                // Limit unacked packets to the window
-                // Limit active resends to half the window
-                // Limit (highest-lowest) to twice the window (if far end doesn't like it, it can send a choke)
                 int unacked = _outboundPackets.size();
                 int wsz = _options.getWindowSize();
-                if (_isChoked || unacked >= wsz ||
-                    _activeResends.get() >= (wsz + 1) / 2 ||
-                    _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz)) {
+                if (locked_isWindowFull()) {
                     if (timeoutMs > 0) {
                         if (timeLeft <= 0) {
                             if (_log.shouldLog(Log.INFO))
@@ -259,12 +266,43 @@ class Connection {
     }
 
     /**
-     *  Notify all threads waiting in packetSendChoke()
+     *  Caller must synch on _outboundPackets
+     *  @since 0.9.45 split out of packetSendChoke()
+     */
+    private boolean locked_isWindowFull() {
+        // Try to keep things moving even during NACKs and retransmissions...
+        // Limit unacked packets to the window
+        // Limit active resends to half the window
+        // Limit (highest-lowest) to twice the window (if far end doesn't like it, it can send a choke)
+        int wsz = _options.getWindowSize();
+        return _isChoked || _outboundPackets.size() >= wsz ||
+               _activeResends.get() >= (wsz + 1) / 2 ||
+               _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz);
+    }
+
+    /**
+     *  Nonblocking version of packetSendChoke().
+     *
+     *  @return true if a data packet may be sent now
+     *  @since 0.9.45
+     */
+    boolean isWindowOpen() {
+        synchronized (_outboundPackets) {
+            return !locked_isWindowFull();
+        }
+    }
+
+    /**
+     *  Notify all threads waiting in packetSendChoke(),
+     *  and the socket's nonblocking writer, if any.
      */
     void windowAdjusted() {
         synchronized (_outboundPackets) {
             _outboundPackets.notifyAll();
         }
+        I2PSocketFull s = _socket;
+        if (s != null)
+            s.windowAdjusted();
     }
     
     void ackImmediately() {
@@ -492,53 +530,74 @@ class Connection {
         }
         
         List<PacketLocal> acked = null;
+        // sorted, as the other side doesn't have to send them in order
+        long[] sortedNacks = null;
+        if (nacks != null && nacks.length > 0) {
+            sortedNacks = Arrays.copyOf(nacks, nacks.length);
+            Arrays.sort(sortedNacks);
+        }
         synchronized (_outboundPackets) {
             if (!_outboundPackets.isEmpty()) {  // short circuit iterator
+              // as in RFC 5827, fewer if there aren't enough in flight
+              int dupThresh = Math.max(2, Math.min(FAST_RETRANSMIT_THRESHOLD, _outboundPackets.size() - 1));
+              List<PacketLocal> nacked = null;
+              boolean rack = _options.getRACK();
               for (Iterator<Map.Entry<Long, PacketLocal>> iter = _outboundPackets.entrySet().iterator(); iter.hasNext(); ) {
                 Map.Entry<Long, PacketLocal> e = iter.next();
                 long id = e.getKey().longValue();
                 if (id <= ackThrough) {
-                    boolean nacked = false;
-                    if (nacks != null) {
-                        // linear search since its probably really tiny
-                        for (int i = 0; i < nacks.length; i++) {
-                            if (nacks[i] == id) {
-                                nacked = true;
-                                PacketLocal nackedPacket = e.getValue();
-                                // this will do a fast retransmit if appropriate
-                                nackedPacket.incrementNACKs();
-                                break; // NACKed
-                            }
+                    int nackIndex = sortedNacks != null ? Arrays.binarySearch(sortedNacks, id) : -1;
+                    if (nackIndex >= 0) {
+                        PacketLocal nackedPacket = e.getValue();
+                        nackedPacket.incrementNACKs();
+                        // The NACKs are all the holes below ackThrough,
+                        // so everything else above this one was received
+                        int sackedAbove = (int) (ackThrough - id) - (sortedNacks.length - 1 - nackIndex);
+                        if (nackedPacket.getNumSends() == 1 &&
+                            (sackedAbove >= dupThresh || nackedPacket.getNACKs() >= FAST_RETRANSMIT_THRESHOLD)) {
+                            // as in RFC 6675 IsLost()
+                            if (_log.shouldLog(Log.INFO))
+                                _log.info("Lost " + id + ", " + sackedAbove + " above it acked, nacks: " + nackedPacket.getNACKs());
+                            nackedPacket.fastRetransmit();
+                        } else if (rack && nackedPacket.getNumSends() > 1) {
+                            // the resend may be lost too, decide after the acks are done
+                            if (nacked == null)
+                                nacked = new ArrayList<PacketLocal>(4);
+                            nacked.add(nackedPacket);
                         }
-                    }
-                    if (!nacked) { // aka ACKed
+                    } else { // aka ACKed
                         if (acked == null) 
                             acked = new ArrayList<PacketLocal>(8);
                         PacketLocal ackedPacket = e.getValue();
                         ackedPacket.ackReceived();
                         acked.add(ackedPacket);
                         iter.remove();
+                        // only first sends, as we don't know which send of a resent packet was acked
+                        if (ackedPacket.getNumSends() == 1 && ackedPacket.getLastSend() > _lastAckedSendTime)
+                            _lastAckedSendTime = ackedPacket.getLastSend();
                     }
                 } else {
-                    // TODO
-                    // we do not currently do an "implicit nack" of the packets higher
-                    // than ackThrough, so those will not be fast retransmitted
-                    // we could incrementNACK them here... but we may need to set the fastRettransmit
-                    // threshold back to 3 for that.
-                    // this will do a fast retransmit if appropriate
-                    // This doesn't work because every packet has an ACK in it, so we hit the
-                    // FAST_TRANSMIT threshold in a heartbeat and retransmit everything,
-                    // even with the threshold at 3. (we never set the NO_ACK field in the header)
-                    // Also, we may need to track that we
-                    // have the same ackThrough for 3 or 4 consecutive times.
-                    // See https://secure.wikimedia.org/wikipedia/en/wiki/Fast_retransmit
-                    //if (_log.shouldLog(Log.INFO))
-                    //    _log.info("ACK thru " + ackThrough + " implicitly NACKs " + id);
-                    //PacketLocal nackedPacket = e.getValue();
-                    //nackedPacket.incrementNACKs();
+                    // Packets above ackThrough are not "implicitly NACKed".
+                    // Every packet has an ACK in it, so counting the same
+                    // ackThrough would retransmit everything in a heartbeat.
+                    // The NACKs below tell us everything the other side has received.
                     break; // _outboundPackets is ordered
                 }
               }   // for
+              if (nacked != null) {
+                  // As in RACK (RFC 8985), a resent packet is lost again if something
+                  // sent after it, allowing for some reordering, was acked.
+                  // Otherwise we would wait for the timeout, doubled for each resend.
+                  long reorderWindow = Math.max(MIN_REORDER_WINDOW, _options.getRTT() / 4);
+                  for (int i = 0; i < nacked.size(); i++) {
+                      PacketLocal p = nacked.get(i);
+                      if (_lastAckedSendTime > p.getLastSend() + reorderWindow) {
+                          if (_log.shouldLog(Log.INFO))
+                              _log.info("Resent packet lost again: " + p);
+                          p.fastRetransmit();
+                      }
+                  }
+              }
             }   // !isEmpty()
             if (acked != null) {
                 _ackedPackets.addAndGet(acked.size());
@@ -1006,6 +1065,32 @@ class Connection {
     public void incrementDupMessagesSent(int msgs) { _lifetimeDupMessageSent.addAndGet(msgs); }
     public void incrementBytesReceived(int bytes) { _lifetimeBytesReceived.addAndGet(bytes); }
     public void incrementDupMessagesReceived(int msgs) { _lifetimeDupMessageReceived.addAndGet(msgs); }
+
+    /**
+     *  Set from the options when created, not changed by setOptions().
+     *  @since 0.9.45
+     */
+    CongestionControl getCongestionControl() { return _congestionControl; }
+
+    /**
+     *  Packets resent after the RTO expired.
+     *  With getLifetimeFastResends(), the same as getLifetimeDupMessagesSent(),
+     *  unless the router rejected some.
+     *  @since 0.9.45
+     */
+    public int getLifetimeTimeoutResends() { return _lifetimeTimeoutResends.get(); }
+
+    /**
+     *  Packets resent after being NACKed.
+     *  @since 0.9.45
+     */
+    public int getLifetimeFastResends() { return _lifetimeFastResends.get(); }
+
+    /**
+     *  How many times the window was reduced on loss, not counting chokes.
+     *  @since 0.9.45
+     */
+    public int getLifetimeCongestionEvents() { return _lifetimeCongestionEvents.get(); }
     
     /** 
      * Time when the scheduler next want to send a packet, or -1 if 
@@ -1347,6 +1432,7 @@ class Connection {
             buf.append("unknown");
         buf.append(" up ").append(DataHelper.formatDuration(_context.clock().now() - _createdOn));
         buf.append(" wsize: ").append(_options.getWindowSize());
+        buf.append(" cc: ").append(_congestionControl);
         buf.append(" cwin: ").append(_congestionWindowEnd - _highestAckedThrough);
         buf.append(" rtt: ").append(_options.getRTT());
         buf.append(" rto: ").append(_options.getRTO());
@@ -1385,6 +1471,8 @@ class Connection {
         buf.append(" sent: ").append(1 + _lastSendId.get());
         buf.append(" rcvd: ").append(1 + _inputStream.getHighestBlockId() - missing);
         buf.append(" ackThru ").append(_highestAckedThrough);
+        buf.append(" resent ").append(_lifetimeTimeoutResends).append('/').append(_lifetimeFastResends);
+        buf.append(" congestion ").append(_lifetimeCongestionEvents);
         
         buf.append(" maxWin ").append(getOptions().getMaxWindowSize());
         buf.append(" MTU ").append(getOptions().getMaxMessageSize());
@@ -1410,8 +1498,9 @@ class Connection {
     }
     
     /**
-     * If we have been explicitly NACKed three times, retransmit the packet even if
-     * there are other packets in flight. 3 takes forever, let's try 2.
+     * If we have been explicitly NACKed three times, or three packets above it
+     * have been acked, retransmit the packet even if
+     * there are other packets in flight. See ackPackets().
      *
      */
     static final int FAST_RETRANSMIT_THRESHOLD = 3;
@@ -1471,7 +1560,7 @@ class Connection {
                     resend = true;
             }
             if ( (resend) && (_packet.getAckTime() <= 0) ) {
-                boolean fastRetransmit = ( (_packet.getNACKs() >= FAST_RETRANSMIT_THRESHOLD) && (_packet.getNumSends() == 1));
+                boolean fastRetransmit = _packet.isFastRetransmit();
                 if ( (!isLowest) && (!fastRetransmit) ) {
                     // we want to resend this packet, but there are already active
                     // resends in the air and we dont want to make a bad situation 
@@ -1525,8 +1614,9 @@ class Connection {
                     // only shrink the window once per window
                     if (_packet.getSequenceNum() > _lastCongestionHighestUnacked) {
                         congestionOccurred();
+                        _lifetimeCongestionEvents.incrementAndGet();
                         _context.statManager().addRateData("stream.con.windowSizeAtCongestion", newWindowSize, _packet.getLifetime());
-                        newWindowSize /= 2;
+                        newWindowSize = _congestionControl.lost(Connection.this, newWindowSize);
                         if (newWindowSize <= 0)
                             newWindowSize = 1;
                         
@@ -1535,7 +1625,9 @@ class Connection {
                         // See RFC 6298 section 5 item 5.5
                         // This prevents being stuck at a window size of 1, retransmitting every packet,
                         // never updating the RTT or RTO.
-                        getOptions().doubleRTO();
+                        // Not for a fast retransmit, the acks are still coming (RFC 6675 fast recovery)
+                        if (!fastRetransmit)
+                            getOptions().doubleRTO();
                         getOptions().setWindowSize(newWindowSize);
 
                         if (_log.shouldLog(Log.INFO))
@@ -1581,7 +1673,8 @@ class Connection {
                     long rto = _options.getRTO();
                     if (rto < MIN_RESEND_DELAY)
                         rto = MIN_RESEND_DELAY;
-                    long timeout = rto << (numSends-1);
+                    // back off for timeouts only
+                    long timeout = fastRetransmit ? rto : rto << (numSends-1);
                     if ( (timeout > MAX_RESEND_DELAY) || (timeout <= 0) )
                         timeout = MAX_RESEND_DELAY;
                     // set this before enqueue() as it passes it on to the router
@@ -1591,6 +1684,10 @@ class Connection {
                         // first resend for this packet ?
                         if (numSends == 2)
                             _activeResends.incrementAndGet();
+                        if (fastRetransmit)
+                            _lifetimeFastResends.incrementAndGet();
+                        else
+                            _lifetimeTimeoutResends.incrementAndGet();
                         if (_log.shouldLog(Log.INFO))
                             _log.info("Resent packet " +
                                   (fastRetransmit ? "(fast) " : "(timeout) ") +
@@ -174,12 +174,10 @@ class ConnectionDataReceiver implements MessageOutputStream.DataReceiver {
         boolean isFirst = (_connection.getAckedPackets() <= 0) && (_connection.getUnackedPacketsSent() <= 0);
         
         PacketLocal packet = new PacketLocal(_context, _connection.getRemotePeer(), _connection);
-        //ByteArray data = packet.acquirePayload();
-        ByteArray data = new ByteArray(new byte[size]);
+        // held until acked or cancelled, see PacketLocal
+        ByteArray data = PayloadBuffer.acquire(size, _connection.getOptions().getMaxMessageSize());
         if (size > 0)
             System.arraycopy(buf, off, data.getData(), 0, size);
-        data.setValid(size);
-        data.setOffset(0);
         packet.setPayload(data);
         if ( (ackOnly && !forceIncrement) && (!isFirst) )
             packet.setSequenceNum(0);
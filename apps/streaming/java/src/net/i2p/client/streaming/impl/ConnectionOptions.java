@@ -4,6 +4,7 @@ import net.i2p.client.streaming.I2PSocketOptions;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
@@ -40,6 +41,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     private int _maxWindowSize;
     private int _congestionAvoidanceGrowthRateFactor;
     private int _slowStartGrowthRateFactor;
+    private String _congestionControl;
+    private boolean _rack;
     private boolean _accessListEnabled;
     private boolean _blackListEnabled;
     private Set<Hash> _accessList;
@@ -131,6 +134,14 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     public static final String PROP_TAGS_TO_SEND = "crypto.tagsToSend";
     /** @since 0.9.34 */
     public static final String PROP_TAG_THRESHOLD = "crypto.lowTagThreshold";
+    /** @since 0.9.45 reno or bbr, default reno */
+    public static final String PROP_CONGESTION_CONTROL = "i2p.streaming.congestionControl";
+    /** @since 0.9.45 */
+    public static final String CONGESTION_CONTROL_RENO = "reno";
+    /** @since 0.9.45 */
+    public static final String CONGESTION_CONTROL_BBR = "bbr";
+    /** @since 0.9.45 RACK resends and fast out-of-order acks, default false */
+    public static final String PROP_RACK = "i2p.streaming.rack";
     
     
     private static final int TREND_COUNT = 3;
@@ -145,6 +156,10 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     private static final int DEFAULT_INACTIVITY_ACTION = INACTIVITY_ACTION_SEND;
     private static final int DEFAULT_CONGESTION_AVOIDANCE_GROWTH_RATE_FACTOR = 1;
     private static final int DEFAULT_SLOW_START_GROWTH_RATE_FACTOR = 1;
+    /** @since 0.9.45 */
+    private static final String DEFAULT_CONGESTION_CONTROL = CONGESTION_CONTROL_RENO;
+    /** @since 0.9.45 */
+    private static final boolean DEFAULT_RACK = false;
     /** @since 0.9.34 */
     private static final String DEFAULT_LIMIT_ACTION = "reset";
     /** @since 0.9.34 */
@@ -348,6 +363,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
             setInboundBufferSize(opts.getInboundBufferSize());
             setCongestionAvoidanceGrowthRateFactor(opts.getCongestionAvoidanceGrowthRateFactor());
             setSlowStartGrowthRateFactor(opts.getSlowStartGrowthRateFactor());
+            setCongestionControl(opts.getCongestionControl());
+            setRACK(opts.getRACK());
             // handled in super()
             // not clear why added by jr 12/22/2005
             //setWriteTimeout(opts.getWriteTimeout());
@@ -390,6 +407,11 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
                                                       DEFAULT_CONGESTION_AVOIDANCE_GROWTH_RATE_FACTOR));
         setSlowStartGrowthRateFactor(getInt(opts, PROP_SLOW_START_GROWTH_RATE_FACTOR,
                                             DEFAULT_SLOW_START_GROWTH_RATE_FACTOR));
+        if (opts != null)
+            setCongestionControl(opts.getProperty(PROP_CONGESTION_CONTROL, DEFAULT_CONGESTION_CONTROL));
+        else
+            setCongestionControl(DEFAULT_CONGESTION_CONTROL);
+        setRACK(getBool(opts, PROP_RACK, DEFAULT_RACK));
         // overrides default in super()... why?
         //setConnectTimeout(getInt(opts, PROP_CONNECT_TIMEOUT, Connection.DISCONNECT_TIMEOUT));
         setAnswerPings(getBool(opts, PROP_ANSWER_PINGS, DEFAULT_ANSWER_PINGS));
@@ -454,6 +476,10 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         if (opts.getProperty(PROP_SLOW_START_GROWTH_RATE_FACTOR) != null)
             setSlowStartGrowthRateFactor(getInt(opts, PROP_SLOW_START_GROWTH_RATE_FACTOR,
                                                 DEFAULT_SLOW_START_GROWTH_RATE_FACTOR));
+        if (opts.getProperty(PROP_CONGESTION_CONTROL) != null)
+            setCongestionControl(opts.getProperty(PROP_CONGESTION_CONTROL));
+        if (opts.getProperty(PROP_RACK) != null)
+            setRACK(getBool(opts, PROP_RACK, DEFAULT_RACK));
         if (opts.getProperty(PROP_CONNECT_TIMEOUT) != null)
             // overrides default in super()
             setConnectTimeout(getInt(opts, PROP_CONNECT_TIMEOUT, Connection.DEFAULT_CONNECT_TIMEOUT));
@@ -787,6 +813,60 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
      */
     public int getSlowStartGrowthRateFactor() { return _slowStartGrowthRateFactor; }
     public void setSlowStartGrowthRateFactor(int factor) { _slowStartGrowthRateFactor = factor; }
+
+    /**
+     * The congestion control for new connections.
+     * "reno", the default, grows the window in slow start and congestion avoidance,
+     * and halves it on loss.
+     * "bbr" sets the window from a model of the path's bandwidth and minimum RTT,
+     * and doesn't back off on random loss. For bulk transfers over
+     * high-latency, high-bandwidth tunnels.
+     * The window is still limited by the max window size.
+     *
+     * @return "reno" or "bbr"
+     * @since 0.9.45
+     */
+    public String getCongestionControl() { return _congestionControl; }
+
+    /**
+     * Unknown values are logged, and the default is used.
+     *
+     * @param cc "reno" or "bbr", case-insensitive
+     * @since 0.9.45
+     */
+    public void setCongestionControl(String cc) {
+        if (cc != null)
+            cc = cc.toLowerCase(Locale.US);
+        if (CONGESTION_CONTROL_RENO.equals(cc) || CONGESTION_CONTROL_BBR.equals(cc)) {
+            _congestionControl = cc;
+        } else {
+            error("Unknown congestion control " + cc);
+            _congestionControl = DEFAULT_CONGESTION_CONTROL;
+        }
+    }
+
+    /**
+     * If true, a resent packet is resent again as soon as a packet
+     * sent after it is acked (RACK, RFC 8985), instead of waiting for the timeout,
+     * and out-of-order packets are acked right away, so the sender gets the NACKs quickly.
+     * Off by default, as with Reno it didn't improve goodput under random loss.
+     *
+     * @since 0.9.45
+     */
+    public boolean getRACK() { return _rack; }
+
+    /** @since 0.9.45 */
+    public void setRACK(boolean yes) { _rack = yes; }
+
+    /**
+     * @return a new one as configured, for a new connection
+     * @since 0.9.45
+     */
+    CongestionControl newCongestionControl(I2PAppContext ctx) {
+        if (CONGESTION_CONTROL_BBR.equals(_congestionControl))
+            return new BBRCongestionControl(ctx);
+        return new RenoCongestionControl(ctx);
+    }
     
     /** all of these are @since 0.7.14; no public setters */
     public int getMaxConnsPerMinute() { return _maxConnsPerMinute; }
@@ -899,6 +979,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         buf.append(" inactivityTimeout=").append(_inactivityTimeout);
         buf.append(" inboundBuffer=").append(_inboundBufferSize);
         buf.append(" maxWindowSize=").append(_maxWindowSize);
+        buf.append(" congestionControl=").append(_congestionControl);
+        buf.append(" rack=").append(_rack);
         buf.append(" blacklistSize=").append(_blackList != null ? _blackList.size() : 0);
         buf.append(" whitelistSize=").append(_accessList != null ? _accessList.size() : 0);
         buf.append(" maxConns=").append(_maxConnsPerMinute).append('/')
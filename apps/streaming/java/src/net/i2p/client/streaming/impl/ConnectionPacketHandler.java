@@ -193,6 +193,7 @@ class ConnectionPacketHandler {
             con.incrementUnackedPacketsReceived();
             con.incrementBytesReceived(packet.getPayloadSize());
             
+            MessageInputStream in = con.getInputStream();
             if (packet.isFlagSet(Packet.FLAG_DELAY_REQUESTED) && (packet.getOptionalDelay() <= 0) ) {
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Scheduling immediate ack for " + packet);
@@ -203,6 +204,15 @@ class ConnectionPacketHandler {
                 // frequent stalls anyway.
                 // see tickets 1939 and 2584
                 con.setNextSendTime(_context.clock().now() + IMMEDIATE_ACK_DELAY);
+            } else if (con.getOptions().getRACK() &&
+                       (in.getHighestBlockId() > in.getHighestReadyBlockId() ||
+                        seqNum < in.getHighestBlockId())) {
+                // Out of order, or filled a hole.
+                // Send the NACKs soon, so he can fast retransmit,
+                // as TCP sends a dup ack for every segment (RFC 5681 sec. 4.2)
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Scheduling fast ack for out-of-order " + packet);
+                con.setNextSendTime(_context.clock().now() + IMMEDIATE_ACK_DELAY);
             } else {
                 int delay = con.getOptions().getSendAckDelay();
                 if (packet.isFlagSet(Packet.FLAG_DELAY_REQUESTED)) // delayed ACK requested
@@ -312,6 +322,8 @@ class ConnectionPacketHandler {
         boolean firstAck = isNew && con.getHighestAckedThrough() < 0;
 
         int numResends = 0;
+        // for the congestion control, the lowest is closest to the path's delay
+        int lowestRTT = -1;
         List<PacketLocal> acked = null;
         // if we don't know the streamIds for both sides of the connection, there's no way we
         // could actually be acking data (this fixes the buggered up ack of packet 0 problem).
@@ -342,10 +354,14 @@ class ConnectionPacketHandler {
                 final int numSends = p.getNumSends();
                 final int ackTime = p.getAckTime();
                 
-                if (numSends > 1 && receivedAck)
+                if (numSends > 1 && receivedAck) {
                     numResends++;
-                else if (ackTime > highestRTT) 
-                    highestRTT = ackTime;
+                } else {
+                    if (ackTime > highestRTT) 
+                        highestRTT = ackTime;
+                    if (ackTime > 0 && (lowestRTT < 0 || ackTime < lowestRTT))
+                        lowestRTT = ackTime;
+                }
                 
                 _context.statManager().addRateData("stream.sendsBeforeAck", numSends, ackTime);
                 
@@ -384,22 +400,27 @@ class ConnectionPacketHandler {
                 lastPacketAcked = true;
         }
 
-        boolean rv = adjustWindow(con, isNew, packet.getSequenceNum(), numResends, (acked != null ? acked.size() : 0), choke);
+        boolean rv = adjustWindow(con, isNew, packet.getSequenceNum(), numResends, (acked != null ? acked.size() : 0),
+                                  lowestRTT, choke);
         if (lastPacketAcked)
             con.notifyLastPacketAcked();
         return rv;
     }
     
     /**
-     * This either does nothing or increases the window, it never decreases it.
+     * This either does nothing or increases the window, it never decreases it,
+     * as decided by the connection's CongestionControl.
      * Decreasing is done in Connection.ResendPacketEvent.retransmit()
      *
      * @param isNew was it a new packet? false for ack-only
      * @param sequenceNum 0 for ack-only
+     * @param acked how many were newly acked
+     * @param rtt lowest RTT of those acked and not resent, or -1
      * @param choke did we get a choke in the packet?
      * @return are we congested?
      */
-    private boolean adjustWindow(Connection con, boolean isNew, long sequenceNum, int numResends, int acked, boolean choke) {
+    private boolean adjustWindow(Connection con, boolean isNew, long sequenceNum, int numResends, int acked,
+                                 int rtt, boolean choke) {
         boolean congested;
         if (choke || (!isNew && sequenceNum > 0) || con.isChoked()) {
             if (_log.shouldLog(Log.DEBUG))
@@ -409,89 +430,10 @@ class ConnectionPacketHandler {
             congested = false;
         }
 
-        long lowest = con.getHighestAckedThrough();
-        // RFC 2581
-        // Why wait until we get a whole cwin to start updating the window?
-        // That means we don't start increasing the window until after 1 RTT.
-        // And whether we increase the window or not (probably not since 1/N),
-        // we reset the CongestionWindowEnd and have to wait another RTT.
-        // So we add the acked > 1 and UnackedPacketsSent > 0 cases,
-        // so we almost always go through the window adjustment code,
-        // unless we're just sending a single packet now and then.
-        // This keeps the window size from going sky-high from  ping traffic alone.
-        // Since we don't adjust the window down after idle? (RFC 2581 sec. 4.1)
-        if (lowest >= con.getCongestionWindowEnd() ||
-            acked > 1 ||
-            con.getUnackedPacketsSent() > 0) {
-            // new packet that ack'ed uncongested data, or an empty ack
-            int oldWindow = con.getOptions().getWindowSize();
-            int newWindowSize = oldWindow;
-
-            int trend = con.getOptions().getRTTTrend();
-
-            _context.statManager().addRateData("stream.trend", trend, newWindowSize);
-            
-            if ( (!congested) && (acked > 0) && (numResends <= 0) ) {
-                if (newWindowSize < con.getLastCongestionSeenAt() / 2) {
-                    // Don't make this <= LastCongestion/2 or we'll jump right back to where we were
-                    // slow start - exponential growth
-                    // grow acked/N times (where N = the slow start factor)
-                    // always grow at least 1
-                    int factor = con.getOptions().getSlowStartGrowthRateFactor();
-                    if (factor <= 1) {
-                        // above a certain point, don't grow exponentially
-                        // as it often leads to a big packet loss (30-50) all at once that
-                        // takes quite a while (a minute or more) to recover from,
-                        // especially if crypto tags are lost
-                        if (newWindowSize >= MAX_SLOW_START_WINDOW)
-                            newWindowSize++;
-                        else
-                            newWindowSize = Math.min(MAX_SLOW_START_WINDOW, newWindowSize + acked);
-                    } else if (acked < factor)
-                        newWindowSize++;
-                    else
-                        newWindowSize += acked / factor;
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("slow start acks = " + acked + " for " + con);
-                // this is too fast since we mostly disabled the CongestionWindowEnd test above
-                //} else if (trend < 0) {
-                //    // rtt is shrinking, so lets increment the cwin
-                //    newWindowSize++;
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("trend < 0 for " + con);
-                } else {
-                    // congestion avoidance
-                    // linear growth - increase window 1/N per RTT
-                    // we can't use newWindowSize += acked/(oldWindow*N) (where N = the cong. avoid. factor), since we're
-                    // integers, so lets use a random distribution instead
-                    int shouldIncrement = _context.random().nextInt(con.getOptions().getCongestionAvoidanceGrowthRateFactor()*newWindowSize);
-                    if (shouldIncrement < acked)
-                        newWindowSize++;
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("cong. avoid acks = " + acked + " for " + con);
-                }
-            } else {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("No change to window: " + con.getOptions().getWindowSize() +
-                               " congested? " + congested + " acked: " + acked + " resends: " + numResends);
-            }
-            
-            if (newWindowSize <= 0)
-                newWindowSize = 1;
-
+        int oldWindow = con.getOptions().getWindowSize();
+        int newWindowSize = con.getCongestionControl().acked(con, oldWindow, acked, numResends, rtt, congested);
+        if (newWindowSize != oldWindow)
             con.getOptions().setWindowSize(newWindowSize);
-            con.setCongestionWindowEnd(newWindowSize + lowest);
-                                
-            if (_log.shouldLog(Log.INFO))
-                _log.info("New window size " + newWindowSize + "/" + oldWindow + "/" + con.getOptions().getWindowSize() + " congestionSeenAt: "
-                           + con.getLastCongestionSeenAt() + " (#resends: " + numResends 
-                           + ") for " + con);
-        } else {
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("No change to window: " + con.getOptions().getWindowSize() +
-                           " highestAckedThrough: " + lowest + " congestionWindowEnd: " + con.getCongestionWindowEnd() +
-                           " acked: " + acked + " unacked: " + con.getUnackedPacketsSent());
-        }
         
         con.windowAdjusted();
         return congested;
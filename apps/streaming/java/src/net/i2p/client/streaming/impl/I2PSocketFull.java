@@ -3,11 +3,13 @@ package net.i2p.client.streaming.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.i2p.I2PAppContext;
 import net.i2p.client.I2PSession;
+import net.i2p.client.streaming.AsyncI2PSocket;
 import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.I2PSocketOptions;
 import net.i2p.data.Destination;
@@ -16,13 +18,17 @@ import net.i2p.util.Log;
 /**
  * Bridge between the full streaming lib and the I2PSocket API
  *
+ * As of 0.9.45, also implements the nonblocking AsyncI2PSocket API.
  */
-class I2PSocketFull implements I2PSocket {
+class I2PSocketFull implements AsyncI2PSocket, MessageInputStream.ReadListener {
     private final Log log;
     private volatile Connection _connection;
     private final Destination _remotePeer;
     private final Destination _localPeer;
     private final AtomicBoolean _closed = new AtomicBoolean();
+    private volatile AsyncI2PSocket.Listener _listener;
+    /** a nonblocking write was short, tell the listener when the window opens */
+    private final AtomicBoolean _wantWrite = new AtomicBoolean();
     
     public I2PSocketFull(Connection con, I2PAppContext context) {
         log = context.logManager().getLog(I2PSocketFull.class);
@@ -176,6 +182,107 @@ class I2PSocketFull implements I2PSocket {
      */
     public void setSocketErrorListener(I2PSocket.SocketErrorListener lsnr) {
     }
+
+    /**
+     *  Nonblocking read.
+     *
+     *  @return the number of bytes read, 0 if none are available, or -1 at end of stream
+     *  @since 0.9.45
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        Connection c = _connection;
+        if (c == null)
+            throw new IOException("Socket closed");
+        return c.getInputStream().read(dst);
+    }
+
+    /**
+     *  Nonblocking write.
+     *  Sends a full buffer only while the window is open,
+     *  checking it again before each packet.
+     *
+     *  @return the number of bytes accepted, 0 if none
+     *  @since 0.9.45
+     */
+    public int write(ByteBuffer src) throws IOException {
+        Connection c = _connection;
+        if (c == null)
+            throw new IOException("Socket closed");
+        MessageOutputStream out = c.getOutputStream();
+        int rv = 0;
+        while (src.hasRemaining()) {
+            // set before checking the window, so we don't miss an ack in between
+            _wantWrite.set(true);
+            boolean canSend = c.isWindowOpen();
+            rv += out.write(src, canSend);
+            if (!canSend)
+                break;
+        }
+        if (!src.hasRemaining())
+            _wantWrite.set(false);
+        return rv;
+    }
+
+    /**
+     *  Nonblocking flush, the window is not checked.
+     *
+     *  @since 0.9.45
+     */
+    public void flush() throws IOException {
+        Connection c = _connection;
+        if (c == null)
+            throw new IOException("Socket closed");
+        if (c.getOutputStream().getClosed())
+            throw new IOException("Output stream closed");
+        c.sendAvailable();
+    }
+
+    /**
+     *  Nonblocking half-close.
+     *
+     *  @since 0.9.45
+     */
+    public void shutdownOutput() throws IOException {
+        Connection c = _connection;
+        if (c == null)
+            throw new IOException("Socket closed");
+        c.getOutputStream().closeNonBlocking();
+    }
+
+    /**
+     *  @param lsnr null to remove
+     *  @since 0.9.45
+     */
+    public void setListener(AsyncI2PSocket.Listener lsnr) {
+        _listener = lsnr;
+        Connection c = _connection;
+        if (c != null)
+            c.getInputStream().setReadListener(lsnr != null ? this : null);
+    }
+
+    /**
+     *  From MessageInputStream
+     *  @since 0.9.45
+     */
+    public void readable() {
+        AsyncI2PSocket.Listener lsnr = _listener;
+        if (lsnr != null)
+            lsnr.readable(this);
+    }
+
+    /**
+     *  From Connection, after an ack, a window change, or a close.
+     *  @since 0.9.45
+     */
+    void windowAdjusted() {
+        AsyncI2PSocket.Listener lsnr = _listener;
+        if (lsnr == null || !_wantWrite.get())
+            return;
+        Connection c = _connection;
+        if ((c == null || !c.getIsConnected() || c.isWindowOpen()) &&
+            _wantWrite.compareAndSet(true, false))
+            lsnr.writable(this);
+    }
     
     public boolean isClosed() { 
         Connection c = _connection;
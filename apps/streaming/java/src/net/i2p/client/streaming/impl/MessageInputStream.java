@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -62,6 +63,7 @@ class MessageInputStream extends InputStream {
     private final int _maxBufferSize;
     private final byte[] _oneByte = new byte[1];
     private final Object _dataLock;
+    private volatile ReadListener _readListener;
 
     /** only in _notYetReadyBlocks, never in _readyDataBlocks */
     private static final ByteArray DUMMY_BA = new ByteArray(null);
@@ -304,9 +306,34 @@ class MessageInputStream extends InputStream {
             _closeReceived = true;
             _dataLock.notifyAll();
         }
+        notifyReadable();
     }
     
     public void notifyActivity() { synchronized (_dataLock) { _dataLock.notifyAll(); } }
+
+    /**
+     *  Notified when data, EOF, or an error may be available to read.
+     *  @since 0.9.45
+     */
+    interface ReadListener {
+        /** Called without holding any lock. Must not block. */
+        public void readable();
+    }
+
+    /**
+     *  @param lsnr null to remove
+     *  @since 0.9.45
+     */
+    void setReadListener(ReadListener lsnr) {
+        _readListener = lsnr;
+    }
+
+    /** @since 0.9.45 */
+    private void notifyReadable() {
+        ReadListener lsnr = _readListener;
+        if (lsnr != null)
+            lsnr.readable();
+    }
     
     /**
      * A new message has arrived - toss it on the appropriate queue (moving 
@@ -323,6 +350,7 @@ class MessageInputStream extends InputStream {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("received msg ID " + messageId + " with " +
                        (payload != null ? payload.getValid() + " bytes" : "no payload"));
+        boolean ready = false;
         synchronized (_dataLock) {
             if (messageId <= _highestReadyBlockId) {
                 if (_log.shouldLog(Log.INFO))
@@ -353,6 +381,7 @@ class MessageInputStream extends InputStream {
                     cur++;
                     _highestReadyBlockId++;
                 }
+                ready = !_readyDataBlocks.isEmpty();
             } else {
                 // _notYetReadyBlocks size is limited in canAccept()
                 if (_locallyClosed) {
@@ -368,6 +397,8 @@ class MessageInputStream extends InputStream {
             }
             _dataLock.notifyAll();
         }
+        if (ready)
+            notifyReadable();
         return true;
     }
     
@@ -511,6 +542,38 @@ class MessageInputStream extends InputStream {
         return length;
     }
     
+    /**
+     *  Nonblocking read, ignoring the read timeout.
+     *
+     *  @return number of bytes read, 0 if none are ready, or -1 on EOF
+     *  @since 0.9.45
+     */
+    public int read(ByteBuffer target) throws IOException {
+        synchronized (_dataLock) {
+            if (_locallyClosed) throw new IOException("Input stream closed");
+            throwAnyError();
+            if (_readyDataBlocks.isEmpty()) {
+                if (_notYetReadyBlocks.isEmpty() && _closeReceived)
+                    return -1;
+                return 0;
+            }
+            int rv = 0;
+            while (target.hasRemaining() && !_readyDataBlocks.isEmpty()) {
+                ByteArray cur = _readyDataBlocks.get(0);
+                int toRead = Math.min(cur.getValid() - _readyDataBlockIndex, target.remaining());
+                target.put(cur.getData(), cur.getOffset() + _readyDataBlockIndex, toRead);
+                _readyDataBlockIndex += toRead;
+                if (cur.getValid() <= _readyDataBlockIndex) {
+                    _readyDataBlockIndex = 0;
+                    _readyDataBlocks.remove(0);
+                }
+                rv += toRead;
+            }
+            _readTotal += rv;
+            return rv;
+        }
+    }
+    
     @Override
     public int available() throws IOException {
         int numBytes = 0;
@@ -625,6 +688,7 @@ class MessageInputStream extends InputStream {
             _locallyClosed = true;
             _dataLock.notifyAll();
         }
+        notifyReadable();
     }
     
     /** Caller must lock _dataLock */
@@ -3,6 +3,7 @@ package net.i2p.client.streaming.impl;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -196,6 +197,52 @@ class MessageOutputStream extends OutputStream {
         //updateBps(len);
     }
     
+    /**
+     *  Nonblocking write, ignoring the write timeout.
+     *  Buffers as much as will fit. A full buffer is sent,
+     *  making room for more, only if canSend is true, and then only once,
+     *  so that the caller may check the window again before sending another.
+     *
+     *  @param canSend may we send one packet now, i.e. is the window open
+     *  @return the number of bytes accepted, may be 0
+     *  @since 0.9.45
+     */
+    int write(ByteBuffer src, boolean canSend) throws IOException {
+        if (_closed.get()) throw new IOException("Output stream closed");
+        int rv = 0;
+        synchronized (_dataLock) {
+            if (_buf == null) throw new IOException("Output stream closed");
+            throwAnyError();
+            int maxBuffer = (_valid == 0) ? locked_updateBufferSize() : _currentBufferSize;
+            while (true) {
+                if (_valid >= maxBuffer) {
+                    if (!canSend)
+                        break;
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("write() nonblocking valid = " + _valid);
+                    _dataReceiver.writeData(_buf, 0, _valid);
+                    _written += _valid;
+                    _valid = 0;
+                    canSend = false;
+                    maxBuffer = locked_updateBufferSize();
+                    throwAnyError();
+                }
+                int toWrite = Math.min(src.remaining(), maxBuffer - _valid);
+                if (toWrite <= 0)
+                    break;
+                src.get(_buf, _valid, toWrite);
+                _valid += toWrite;
+                rv += toWrite;
+            }
+            if (rv > 0 && _valid > 0) {
+                _lastBuffered = _context.clock().now();
+                if (_passiveFlushDelay > 0)
+                    _flusher.enqueue();
+            }
+        }
+        return rv;
+    }
+    
 /****
     private void updateBps(int len) {
         long now = _context.clock().now();
@@ -447,6 +494,36 @@ class MessageOutputStream extends OutputStream {
         clearData(true);
     }
     
+    /**
+     *  Nonblocking close. Sends the buffered data, if any, and a CLOSE,
+     *  without waiting for the window or the ack.
+     *  Does not set a stream error, unlike closeInternal().
+     *
+     *  @since 0.9.45
+     */
+    void closeNonBlocking() {
+        if (!_closed.compareAndSet(false,true)) {
+            _log.logCloseLoop("close nonblocking");
+            return;
+        }
+        _flusher.cancel();
+        ByteArray ba = null;
+        synchronized (_dataLock) {
+            // this sends the CLOSE even if there's no data
+            _dataReceiver.writeData(_buf, 0, _valid);
+            _written += _valid;
+            _valid = 0;
+            if (_buf != null) {
+                ba = new ByteArray(_buf);
+                _buf = null;
+            }
+            _dataLock.notifyAll();
+        }
+        if (ba != null) {
+            _dataCache.release(ba);
+        }
+    }
+
     private void clearData(boolean shouldFlush) {
         ByteArray ba = null;
         if (_log.shouldLog(Log.INFO) && _valid > 0)
@@ -79,6 +79,8 @@ class Packet {
     private int _resendDelay;
     private int _flags;
     private ByteArray _payload;
+    /** for a PayloadBuffer, locked by this */
+    private boolean _payloadReleased;
     // the next four are set only if the flags say so
     protected Signature _optionSignature;
     protected Destination _optionFrom;
@@ -304,9 +306,32 @@ class Packet {
         return (_payload == null ? 0 : _payload.getValid());
     }
 
-    /** does nothing right now */
-    public void releasePayload() {
-        //_payload = null;
+    /**
+     *  Drop this packet's reference to a pooled payload, at most once.
+     *  Does nothing for other payloads.
+     *  The payload may be reused after this, so only its size
+     *  may be looked at, e.g. for logging.
+     */
+    public synchronized void releasePayload() {
+        if (!_payloadReleased && _payload instanceof PayloadBuffer) {
+            _payloadReleased = true;
+            ((PayloadBuffer) _payload).release();
+        }
+    }
+
+    /**
+     *  Take a reference to a pooled payload, so it isn't reused
+     *  while it's being written out. Release it with PayloadBuffer.release(ByteArray)
+     *  when done. A no-op for other payloads.
+     *
+     *  @return false if releasePayload() was already called and it may have been reused,
+     *          so the packet must not be written
+     *  @since 0.9.45
+     */
+    public synchronized boolean retainPayload() {
+        if (_payload instanceof PayloadBuffer)
+            return !_payloadReleased && ((PayloadBuffer) _payload).retain();
+        return true;
     }
 
     public ByteArray acquirePayload() {
@@ -35,7 +35,8 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     private long _ackOn; 
     private long _cancelledOn;
     private final AtomicInteger _nackCount = new AtomicInteger();
-    private volatile boolean _retransmitted;
+    /** lost since the last send, resend now */
+    private volatile boolean _fastRetransmit;
     private volatile SimpleTimer2.TimedEvent _resendEvent;
     
     /** not bound to a connection */
@@ -136,6 +137,7 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     public void incrementSends() { 
         _numSends.incrementAndGet();
         _lastSend = _context.clock().now();
+        _fastRetransmit = false;
     }
     
     private void cancelResend() {
@@ -184,31 +186,38 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     public Connection getConnection() { return _connection; }
 
     /**
-     *  Will force a fast restransmit on the 3rd call (FAST_RETRANSMIT_THRESHOLD)
-     *  but only if it's the lowest unacked (see Connection.ResendPacketEvent)
+     *  Count a NACK. Whether it's lost, and should be fast retransmitted,
+     *  is decided in Connection.ackPackets(), see fastRetransmit().
      */
     public void incrementNACKs() { 
-        final int cnt = _nackCount.incrementAndGet();
+        _nackCount.incrementAndGet();
+    }
+
+    /**
+     *  It was lost since the last send, as packets above it,
+     *  or sent after it, were acked. Resend now, even if
+     *  it's not the lowest unacked (see Connection.ResendPacketEvent).
+     *  Only once per send.
+     *
+     *  @since 0.9.45
+     */
+    public void fastRetransmit() {
         SimpleTimer2.TimedEvent evt = _resendEvent;
-        if (cnt >= Connection.FAST_RETRANSMIT_THRESHOLD && evt != null && (!_retransmitted) &&
-            (_numSends.get() == 1 || _lastSend < _context.clock().now() - 4*1000)) {  // Don't fast retx if we recently resent it
-            _retransmitted = true;
-            evt.reschedule(0);
-            // the predicate used to be '+', changing to '-' --zab
-            
-            if (_log.shouldLog(Log.DEBUG)) {
-                final String log = String.format("%s nacks and retransmits. Criteria: nacks=%d, retransmitted=%b,"+
-                    " numSends=%d, lastSend=%d, now=%d",
-                    toString(), cnt, _retransmitted, _numSends.get(), _lastSend, _context.clock().now());
-                    _log.debug(log);
-            }
-        } else if (_log.shouldLog(Log.DEBUG)) {
-            final String log = String.format("%s nack but no retransmit.  Criteria: nacks=%d, retransmitted=%b,"+
-                    " numSends=%d, lastSend=%d, now=%d",
-                    toString(), cnt, _retransmitted, _numSends.get(), _lastSend, _context.clock().now());
-                    _log.debug(log);
-        }
+        if (evt == null || _fastRetransmit)
+            return;
+        _fastRetransmit = true;
+        evt.reschedule(0);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug(toString() + " lost, fast retransmit, nacks=" + _nackCount.get() +
+                       " numSends=" + _numSends.get() + " lastSend=" + _lastSend);
     }
+
+    /**
+     *  @return true if fastRetransmit() was called since the last send
+     *  @since 0.9.45
+     */
+    public boolean isFastRetransmit() { return _fastRetransmit; }
+
     public int getNACKs() { return _nackCount.get(); }
     
     public void setResendPacketEvent(SimpleTimer2.TimedEvent evt) { _resendEvent = evt; }
@@ -325,8 +334,9 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
             if (accepted) {
                 _acceptedOn = _context.clock().now();
             } else {
+                // Don't release the payload, it's still in the connection's
+                // outbound packets, to be resent until acked or cancelled
                 _acceptedOn = -1;
-                releasePayload();
             }
             if ( (_acceptedOn - before > 1000) && (_log.shouldLog(Log.DEBUG)) )  {
                 int queued = _connection.getUnackedPacketsSent();
@@ -345,29 +355,25 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     /** block until the packet is acked from the far end */
     public void waitForCompletion(int maxWaitMs) throws IOException, InterruptedException {
         long expiration = _context.clock().now()+maxWaitMs;
-        try {
-            while (true) {
-                long timeRemaining = expiration - _context.clock().now();
-                if ( (timeRemaining <= 0) && (maxWaitMs > 0) ) break;
-                synchronized (this) {
-                    if (_ackOn > 0) break;
-                    if (!_connection.getIsConnected()) {
-                        if (_connection.getResetReceived())
-                            throw new I2PSocketException(I2PSocketException.STATUS_CONNECTION_RESET);
-                        throw new IOException("disconnected");
-                    }
-                    if (_cancelledOn > 0)
-                        throw new IOException("cancelled");
-                    if (timeRemaining > 60*1000)
-                        timeRemaining = 60*1000;
-                    else if (timeRemaining <= 0)
-                        timeRemaining = 10*1000;
-                    wait(timeRemaining);
+        // Don't release the payload if not successful, as in waitForAccept()
+        while (true) {
+            long timeRemaining = expiration - _context.clock().now();
+            if ( (timeRemaining <= 0) && (maxWaitMs > 0) ) break;
+            synchronized (this) {
+                if (_ackOn > 0) break;
+                if (!_connection.getIsConnected()) {
+                    if (_connection.getResetReceived())
+                        throw new I2PSocketException(I2PSocketException.STATUS_CONNECTION_RESET);
+                    throw new IOException("disconnected");
                 }
+                if (_cancelledOn > 0)
+                    throw new IOException("cancelled");
+                if (timeRemaining > 60*1000)
+                    timeRemaining = 60*1000;
+                else if (timeRemaining <= 0)
+                    timeRemaining = 10*1000;
+                wait(timeRemaining);
             }
-        } finally {
-            if (!writeSuccessful())
-                releasePayload();
         }
     }
     
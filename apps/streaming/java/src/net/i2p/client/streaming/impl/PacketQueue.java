@@ -93,7 +93,31 @@ class PacketQueue implements SendMessageStatusListener, Closeable {
             // this updates the ack/nack fields
             con.getInputStream().updateAcks(packet);
         }
-    
+
+        // so it isn't returned to the pool by an ack while we're writing it
+        if (!packet.retainPayload()) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Not resending, payload released " + packet);
+            return false;
+        }
+        ByteArray payload = packet.getPayload();
+        try {
+            return send(packet, con);
+        } finally {
+            // after the pcap write, which reads the payload
+            PayloadBuffer.release(payload);
+        }
+    }
+
+    /**
+     * Write the packet and send it.
+     * Caller must retain the payload and release it after.
+     *
+     * @param con may be null
+     * @return true if sent
+     * @since 0.9.45 split out of enqueue()
+     */
+    private boolean send(PacketLocal packet, Connection con) {
         ByteArray ba = _cache.acquire();
         byte buf[] = ba.getData();
 
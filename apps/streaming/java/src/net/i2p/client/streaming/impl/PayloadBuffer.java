@@ -0,0 +1,148 @@
+package net.i2p.client.streaming.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.ByteArray;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+import net.i2p.util.TryCache;
+
+/**
+ * A reference-counted packet payload from a pool,
+ * returned to the pool when the last reference is released.
+ *<p>
+ * The payload of an outbound data packet is held until it is acked,
+ * for retransmission, while PacketQueue may be writing it out at any time.
+ * The packet holds one reference, from acquire() until Packet.releasePayload(),
+ * and anything writing it takes another with Packet.retainPayload().
+ *<p>
+ * There is a pool per buffer size, as the max message size is per-connection.
+ * These are not in the ByteCache, as that is shared with others,
+ * which would release ByteArrays without knowing about the references.
+ *
+ * @since 0.9.45
+ */
+class PayloadBuffer extends ByteArray {
+    private final TryCache<PayloadBuffer> _cache;
+    private final AtomicInteger _refs = new AtomicInteger();
+
+    private static final Map<Integer, TryCache<PayloadBuffer>> _caches =
+        new ConcurrentHashMap<Integer, TryCache<PayloadBuffer>>(4);
+
+    /**
+     *  Max bytes in each pool, as in ByteCache,
+     *  max memory / 128, with a min of 128KB and a max of 4MB
+     */
+    private static final int MAX_CACHE;
+    static {
+        long maxMemory = SystemVersion.getMaxMemory();
+        MAX_CACHE = (int) Math.min(4*1024*1024l, Math.max(128*1024l, maxMemory / 128));
+    }
+    private static final int MIN_ENTRIES = 32;
+    private static final int MAX_ENTRIES = 512;
+
+    private PayloadBuffer(TryCache<PayloadBuffer> cache, int size) {
+        super(new byte[size]);
+        _cache = cache;
+    }
+
+    private static class Factory implements TryCache.ObjectFactory<PayloadBuffer> {
+        private final int _size;
+        private TryCache<PayloadBuffer> _cache;
+
+        public Factory(int size) { _size = size; }
+
+        public PayloadBuffer newInstance() {
+            return new PayloadBuffer(_cache, _size);
+        }
+    }
+
+    /**
+     *  Get a buffer with one reference, to be released by the caller.
+     *  Valid is set to size and offset to 0.
+     *  If size is over bufSize, it's a new unpooled ByteArray.
+     *
+     *  @param size the data to be written, 0 to bufSize
+     *  @param bufSize the pool to get it from, generally the connection's max message size
+     *  @return a PayloadBuffer, or a new ByteArray if size is over bufSize
+     */
+    public static ByteArray acquire(int size, int bufSize) {
+        if (size > bufSize)
+            return new ByteArray(new byte[size], 0, size);
+        PayloadBuffer rv = getCache(bufSize).acquire();
+        rv._refs.set(1);
+        rv.setOffset(0);
+        rv.setValid(size);
+        return rv;
+    }
+
+    private static TryCache<PayloadBuffer> getCache(int bufSize) {
+        Integer sz = Integer.valueOf(bufSize);
+        TryCache<PayloadBuffer> cache = _caches.get(sz);
+        if (cache == null) {
+            synchronized(_caches) {
+                cache = _caches.get(sz);
+                if (cache == null) {
+                    Factory f = new Factory(bufSize);
+                    int entries = Math.max(MIN_ENTRIES, Math.min(MAX_ENTRIES, MAX_CACHE / bufSize));
+                    cache = new TryCache<PayloadBuffer>(f, entries);
+                    f._cache = cache;
+                    _caches.put(sz, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     *  Take another reference.
+     *
+     *  @return false if already released to the pool, do not use it
+     */
+    public boolean retain() {
+        while (true) {
+            int refs = _refs.get();
+            if (refs <= 0)
+                return false;
+            if (_refs.compareAndSet(refs, refs + 1))
+                return true;
+        }
+    }
+
+    /**
+     *  Drop a reference. After the last one, it's back in the pool,
+     *  and may be reused at any time.
+     */
+    public void release() {
+        int refs = _refs.decrementAndGet();
+        if (refs == 0) {
+            _cache.release(this);
+        } else if (refs < 0) {
+            _refs.set(0);
+            Log log = I2PAppContext.getGlobalContext().logManager().getLog(PayloadBuffer.class);
+            log.log(Log.CRIT, "Dup release of payload", new Exception("released by"));
+        }
+    }
+
+    /**
+     *  For testing
+     *
+     *  @return the current number of references
+     */
+    int getRefs() {
+        return _refs.get();
+    }
+
+    /**
+     *  Release it if it's a PayloadBuffer, else do nothing.
+     *
+     *  @param payload may be null
+     */
+    public static void release(ByteArray payload) {
+        if (payload instanceof PayloadBuffer)
+            ((PayloadBuffer) payload).release();
+    }
+}
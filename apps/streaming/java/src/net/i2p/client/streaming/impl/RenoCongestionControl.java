@@ -0,0 +1,125 @@
+package net.i2p.client.streaming.impl;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ * The default. Slow start and congestion avoidance, as in RFC 2581,
+ * with the window in messages, halved on loss.
+ * Formerly in ConnectionPacketHandler.adjustWindow() and
+ * Connection.ResendPacketEvent.
+ *<p>
+ * Doesn't store any state, other than in the Connection.
+ *
+ * @since 0.9.45
+ */
+class RenoCongestionControl implements CongestionControl {
+    private final I2PAppContext _context;
+    private final Log _log;
+
+    public RenoCongestionControl(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(RenoCongestionControl.class);
+    }
+
+    /**
+     * This either does nothing or increases the window, it never decreases it.
+     */
+    public int acked(Connection con, int windowSize, int acked, int numResends, int rtt, boolean congested) {
+        long lowest = con.getHighestAckedThrough();
+        // RFC 2581
+        // Why wait until we get a whole cwin to start updating the window?
+        // That means we don't start increasing the window until after 1 RTT.
+        // And whether we increase the window or not (probably not since 1/N),
+        // we reset the CongestionWindowEnd and have to wait another RTT.
+        // So we add the acked > 1 and UnackedPacketsSent > 0 cases,
+        // so we almost always go through the window adjustment code,
+        // unless we're just sending a single packet now and then.
+        // This keeps the window size from going sky-high from  ping traffic alone.
+        // Since we don't adjust the window down after idle? (RFC 2581 sec. 4.1)
+        if (lowest >= con.getCongestionWindowEnd() ||
+            acked > 1 ||
+            con.getUnackedPacketsSent() > 0) {
+            // new packet that ack'ed uncongested data, or an empty ack
+            int newWindowSize = windowSize;
+
+            int trend = con.getOptions().getRTTTrend();
+
+            _context.statManager().addRateData("stream.trend", trend, newWindowSize);
+
+            if ( (!congested) && (acked > 0) && (numResends <= 0) ) {
+                if (newWindowSize < con.getLastCongestionSeenAt() / 2) {
+                    // Don't make this <= LastCongestion/2 or we'll jump right back to where we were
+                    // slow start - exponential growth
+                    // grow acked/N times (where N = the slow start factor)
+                    // always grow at least 1
+                    int factor = con.getOptions().getSlowStartGrowthRateFactor();
+                    if (factor <= 1) {
+                        // above a certain point, don't grow exponentially
+                        // as it often leads to a big packet loss (30-50) all at once that
+                        // takes quite a while (a minute or more) to recover from,
+                        // especially if crypto tags are lost
+                        if (newWindowSize >= ConnectionPacketHandler.MAX_SLOW_START_WINDOW)
+                            newWindowSize++;
+                        else
+                            newWindowSize = Math.min(ConnectionPacketHandler.MAX_SLOW_START_WINDOW, newWindowSize + acked);
+                    } else if (acked < factor)
+                        newWindowSize++;
+                    else
+                        newWindowSize += acked / factor;
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("slow start acks = " + acked + " for " + con);
+                // this is too fast since we mostly disabled the CongestionWindowEnd test above
+                //} else if (trend < 0) {
+                //    // rtt is shrinking, so lets increment the cwin
+                //    newWindowSize++;
+                //    if (_log.shouldLog(Log.DEBUG))
+                //        _log.debug("trend < 0 for " + con);
+                } else {
+                    // congestion avoidance
+                    // linear growth - increase window 1/N per RTT
+                    // we can't use newWindowSize += acked/(oldWindow*N) (where N = the cong. avoid. factor), since we're
+                    // integers, so lets use a random distribution instead
+                    int shouldIncrement = _context.random().nextInt(con.getOptions().getCongestionAvoidanceGrowthRateFactor()*newWindowSize);
+                    if (shouldIncrement < acked)
+                        newWindowSize++;
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("cong. avoid acks = " + acked + " for " + con);
+                }
+            } else {
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("No change to window: " + windowSize +
+                               " congested? " + congested + " acked: " + acked + " resends: " + numResends);
+            }
+
+            if (newWindowSize <= 0)
+                newWindowSize = 1;
+
+            con.setCongestionWindowEnd(newWindowSize + lowest);
+
+            if (_log.shouldLog(Log.INFO))
+                _log.info("New window size " + newWindowSize + "/" + windowSize + " congestionSeenAt: "
+                           + con.getLastCongestionSeenAt() + " (#resends: " + numResends
+                           + ") for " + con);
+            return newWindowSize;
+        } else {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("No change to window: " + windowSize +
+                           " highestAckedThrough: " + lowest + " congestionWindowEnd: " + con.getCongestionWindowEnd() +
+                           " acked: " + acked + " unacked: " + con.getUnackedPacketsSent());
+            return windowSize;
+        }
+    }
+
+    /**
+     * Halve it
+     */
+    public int lost(Connection con, int windowSize) {
+        return Math.max(1, windowSize / 2);
+    }
+
+    @Override
+    public String toString() {
+        return "reno";
+    }
+}
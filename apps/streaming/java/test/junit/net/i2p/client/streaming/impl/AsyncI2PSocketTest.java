@@ -0,0 +1,232 @@
+package net.i2p.client.streaming.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.streaming.AsyncI2PSocket;
+import net.i2p.client.streaming.I2PServerSocket;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.IncomingConnectionFilter;
+import net.i2p.data.DataHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Many streams, echoed by one thread and driven by another,
+ *  using only the nonblocking API, over a LoopbackSession.
+ *
+ *  @since 0.9.45
+ */
+public class AsyncI2PSocketTest {
+    private static final int STREAMS = 16;
+    private static final int SIZE = 128*1024;
+
+    private I2PAppContext _context;
+    private LoopbackSession _clientSession, _serverSession;
+    private I2PSocketManagerFull _clientMgr, _serverMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        _context = I2PAppContext.getGlobalContext();
+        _clientSession = new LoopbackSession();
+        _serverSession = new LoopbackSession();
+        LoopbackSession.link(_clientSession, _serverSession);
+        _clientSession.setDelay(10);
+        _serverSession.setDelay(10);
+        Properties opts = new Properties();
+        // don't block in connect(), send the SYN with the first data
+        opts.setProperty(ConnectionOptions.PROP_CONNECT_DELAY, "1");
+        _clientMgr = new I2PSocketManagerFull(_context, _clientSession, opts, "client", IncomingConnectionFilter.ALLOW);
+        _serverMgr = new I2PSocketManagerFull(_context, _serverSession, new Properties(), "server", IncomingConnectionFilter.ALLOW);
+    }
+
+    @After
+    public void tearDown() {
+        _clientMgr.destroySocketManager();
+        _serverMgr.destroySocketManager();
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        final I2PServerSocket ss = _serverMgr.getServerSocket();
+        final Loop server = new Loop();
+        Thread acceptor = new Thread("acceptor") {
+            public void run() {
+                try {
+                    for (int i = 0; i < STREAMS; i++) {
+                        server.add(new Echo((AsyncI2PSocket) ss.accept()));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        new Thread(server, "server").start();
+
+        Loop client = new Loop();
+        CountDownLatch done = new CountDownLatch(STREAMS);
+        List<Sender> senders = new ArrayList<Sender>(STREAMS);
+        for (int i = 0; i < STREAMS; i++) {
+            I2PSocket s = _clientMgr.connect(_serverSession.getMyDestination());
+            Sender sender = new Sender((AsyncI2PSocket) s, done);
+            senders.add(sender);
+            client.add(sender);
+        }
+        new Thread(client, "client").start();
+        assertTrue("timeout", done.await(60, TimeUnit.SECONDS));
+        client.stop();
+        server.stop();
+        for (Sender sender : senders) {
+            assertNull(sender.error);
+            assertTrue(DataHelper.eq(sender.src.array(), sender.dst.array()));
+        }
+    }
+
+    /** the application's side of a stream, run by a Loop */
+    private static abstract class Handler implements AsyncI2PSocket.Listener {
+        protected final AsyncI2PSocket sock;
+        protected Loop loop;
+        public IOException error;
+        public boolean finished;
+
+        public Handler(AsyncI2PSocket s) {
+            sock = s;
+        }
+
+        public void readable(AsyncI2PSocket s) { loop.wakeup(this); }
+        public void writable(AsyncI2PSocket s) { loop.wakeup(this); }
+
+        /** @return false when done */
+        public abstract boolean process() throws IOException;
+    }
+
+    /**
+     *  A single thread serving all the streams, woken up by the listeners
+     */
+    private static class Loop implements Runnable {
+        private final BlockingQueue<Handler> _ready = new LinkedBlockingQueue<Handler>();
+        private volatile boolean _stop;
+
+        public void add(Handler h) {
+            h.loop = this;
+            h.sock.setListener(h);
+            // there may already be something to read
+            wakeup(h);
+        }
+
+        public void wakeup(Handler h) {
+            _ready.offer(h);
+        }
+
+        public void stop() {
+            _stop = true;
+        }
+
+        public void run() {
+            while (!_stop) {
+                Handler h;
+                try {
+                    h = _ready.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                // a stale wakeup
+                if (h == null || h.finished)
+                    continue;
+                try {
+                    if (!h.process()) {
+                        h.finished = true;
+                        h.sock.setListener(null);
+                        h.sock.close();
+                    }
+                } catch (IOException ioe) {
+                    h.finished = true;
+                    h.error = ioe;
+                    try { h.sock.close(); } catch (IOException e) {}
+                }
+            }
+        }
+    }
+
+    /** echoes everything back, then half-closes */
+    private static class Echo extends Handler {
+        private final ByteBuffer buf = ByteBuffer.allocate(8*1024);
+        private boolean eof, shut;
+
+        public Echo(AsyncI2PSocket s) {
+            super(s);
+        }
+
+        public boolean process() throws IOException {
+            boolean progress = true;
+            boolean wrote = false;
+            while (progress) {
+                progress = false;
+                if (!eof && buf.hasRemaining()) {
+                    int n = sock.read(buf);
+                    if (n < 0)
+                        eof = true;
+                    progress = n != 0;
+                }
+                if (buf.position() > 0) {
+                    buf.flip();
+                    if (sock.write(buf) > 0)
+                        progress = wrote = true;
+                    buf.compact();
+                }
+            }
+            if (wrote)
+                sock.flush();
+            if (eof && buf.position() == 0 && !shut) {
+                sock.shutdownOutput();
+                shut = true;
+            }
+            return !shut;
+        }
+    }
+
+    /** sends random data, checks it comes back */
+    private class Sender extends Handler {
+        public final ByteBuffer src = ByteBuffer.allocate(SIZE);
+        public final ByteBuffer dst = ByteBuffer.allocate(SIZE);
+        private final CountDownLatch done;
+        private boolean shut;
+
+        public Sender(AsyncI2PSocket s, CountDownLatch latch) {
+            super(s);
+            _context.random().nextBytes(src.array());
+            done = latch;
+        }
+
+        public boolean process() throws IOException {
+            if (src.hasRemaining()) {
+                if (sock.write(src) > 0)
+                    sock.flush();
+            } else if (!shut) {
+                sock.shutdownOutput();
+                shut = true;
+            }
+            int n;
+            while ((n = sock.read(dst)) > 0) {}
+            if (n < 0 || !dst.hasRemaining()) {
+                done.countDown();
+                return false;
+            }
+            return true;
+        }
+    }
+}
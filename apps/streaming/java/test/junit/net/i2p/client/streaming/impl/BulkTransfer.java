@@ -0,0 +1,109 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.streaming.I2PServerSocket;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.IncomingConnectionFilter;
+
+/**
+ *  One bulk transfer from a client to a server, over a pair of
+ *  linked LoopbackSessions set up by the caller, with the blocking API.
+ *  For measuring goodput and what the sending Connection did.
+ *
+ *  @since 0.9.45
+ */
+class BulkTransfer {
+    String cc;
+    long time, size, received;
+    int window, rtt, timeoutResends, fastResends, congestionEvents, dropped;
+
+    private BulkTransfer() {}
+
+    /**
+     *  @param opts for the client and server, connectDelay is set here for the client
+     *  @param size bytes to send
+     *  @return when the server has read it all, or after 2 minutes
+     */
+    public static BulkTransfer run(LoopbackSession clientSession, LoopbackSession serverSession,
+                                   Properties opts, int size) throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        Properties serverOpts = new Properties();
+        serverOpts.putAll(opts);
+        Properties p = new Properties();
+        p.putAll(opts);
+        opts = p;
+        // don't block in connect(), send the SYN with the first data
+        opts.setProperty(ConnectionOptions.PROP_CONNECT_DELAY, "1");
+        I2PSocketManagerFull clientMgr = new I2PSocketManagerFull(ctx, clientSession, opts, "client", IncomingConnectionFilter.ALLOW);
+        I2PSocketManagerFull serverMgr = new I2PSocketManagerFull(ctx, serverSession, serverOpts, "server", IncomingConnectionFilter.ALLOW);
+        try {
+            final I2PServerSocket ss = serverMgr.getServerSocket();
+            final AtomicLong received = new AtomicLong();
+            Thread server = new Thread("server") {
+                public void run() {
+                    try {
+                        I2PSocket s = ss.accept();
+                        InputStream in = s.getInputStream();
+                        byte[] buf = new byte[16*1024];
+                        int read;
+                        while ((read = in.read(buf)) >= 0) {
+                            received.addAndGet(read);
+                        }
+                        s.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            server.start();
+
+            long start = System.currentTimeMillis();
+            I2PSocket s = clientMgr.connect(serverSession.getMyDestination());
+            Connection con = ((I2PSocketFull) s).getConnection();
+            OutputStream out = s.getOutputStream();
+            byte[] data = new byte[16*1024];
+            ctx.random().nextBytes(data);
+            for (int sent = 0; sent < size; sent += data.length) {
+                out.write(data, 0, Math.min(data.length, size - sent));
+            }
+            out.close();
+            server.join(120*1000);
+            BulkTransfer rv = new BulkTransfer();
+            rv.time = System.currentTimeMillis() - start;
+            rv.size = size;
+            rv.received = received.get();
+            rv.cc = con.getCongestionControl().toString();
+            rv.window = con.getOptions().getWindowSize();
+            rv.rtt = con.getOptions().getRTT();
+            rv.timeoutResends = con.getLifetimeTimeoutResends();
+            rv.fastResends = con.getLifetimeFastResends();
+            rv.congestionEvents = con.getLifetimeCongestionEvents();
+            rv.dropped = clientSession.getDropped();
+            s.close();
+            return rv;
+        } finally {
+            clientMgr.destroySocketManager();
+            serverMgr.destroySocketManager();
+        }
+    }
+
+    /** @return KBps */
+    public long goodput() {
+        return received * 1000 / Math.max(1, time) / 1024;
+    }
+
+    @Override
+    public String toString() {
+        return cc + ": " + received + '/' + size + " bytes in " + time + "ms" +
+               " goodput " + goodput() + "KBps" +
+               " final window " + window + " rtt " + rtt +
+               " dropped " + dropped +
+               " resent " + timeoutResends + '/' + fastResends +
+               " congestion events " + congestionEvents;
+    }
+}
@@ -0,0 +1,107 @@
+package net.i2p.client.streaming.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import net.i2p.I2PAppContext;
+
+import org.junit.Test;
+
+/**
+ *  Bulk transfers over a LoopbackSession with a bottleneck,
+ *  with each congestion control.
+ *
+ *  Run main() to compare their goodput:
+ *
+ *  <pre>
+ *  java -cp ... net.i2p.client.streaming.impl.CongestionControlTest [kbytes]
+ *  </pre>
+ *
+ *  @since 0.9.45
+ */
+public class CongestionControlTest {
+
+    @Test
+    public void testOptions() {
+        Properties p = new Properties();
+        ConnectionOptions opts = new ConnectionOptions(p);
+        assertEquals(ConnectionOptions.CONGESTION_CONTROL_RENO, opts.getCongestionControl());
+        assertTrue(opts.newCongestionControl(I2PAppContext.getGlobalContext()) instanceof RenoCongestionControl);
+        p.setProperty(ConnectionOptions.PROP_CONGESTION_CONTROL, "BBR");
+        opts = new ConnectionOptions(p);
+        assertEquals(ConnectionOptions.CONGESTION_CONTROL_BBR, opts.getCongestionControl());
+        assertTrue(opts.newCongestionControl(I2PAppContext.getGlobalContext()) instanceof BBRCongestionControl);
+        assertEquals(ConnectionOptions.CONGESTION_CONTROL_BBR, new ConnectionOptions(opts).getCongestionControl());
+        p.setProperty(ConnectionOptions.PROP_CONGESTION_CONTROL, "foo");
+        opts.setProperties(p);
+        assertEquals(ConnectionOptions.CONGESTION_CONTROL_RENO, opts.getCongestionControl());
+    }
+
+    @Test
+    public void testReno() throws Exception {
+        BulkTransfer r = transfer(ConnectionOptions.CONGESTION_CONTROL_RENO, 10, 512*1024, 32*1024, 0.01f, 256*1024);
+        check(r);
+    }
+
+    @Test
+    public void testBBR() throws Exception {
+        BulkTransfer r = transfer(ConnectionOptions.CONGESTION_CONTROL_BBR, 10, 512*1024, 32*1024, 0.01f, 256*1024);
+        check(r);
+        assertTrue(r.cc, r.cc.startsWith("bbr"));
+    }
+
+    private static void check(BulkTransfer r) {
+        assertEquals(r.toString(), r.size, r.received);
+        assertTrue(r.toString(), r.rtt > 0);
+        assertTrue(r.toString(), r.window >= 1);
+        // what the link dropped was resent
+        if (r.dropped > 0)
+            assertTrue(r.toString(), r.timeoutResends + r.fastResends > 0);
+        assertTrue(r.toString(), r.congestionEvents <= r.timeoutResends + r.fastResends);
+    }
+
+    /**
+     *  @param delay one-way, ms
+     *  @param bw bytes per second, both ways
+     *  @param queue bytes
+     *  @param loss fraction, from the sender only
+     *  @param size bytes to send
+     */
+    private static BulkTransfer transfer(String cc, int delay, int bw, int queue, float loss, int size) throws Exception {
+        LoopbackSession clientSession = new LoopbackSession();
+        LoopbackSession serverSession = new LoopbackSession();
+        LoopbackSession.link(clientSession, serverSession);
+        clientSession.setDelay(delay);
+        serverSession.setDelay(delay);
+        clientSession.setBandwidth(bw, queue);
+        serverSession.setBandwidth(bw, queue);
+        clientSession.setLoss(loss);
+        Properties opts = new Properties();
+        opts.setProperty(ConnectionOptions.PROP_CONGESTION_CONTROL, cc);
+        return BulkTransfer.run(clientSession, serverSession, opts, size);
+    }
+
+    /**
+     *  Goodput of each, over a long fat path, as I2P tunnels,
+     *  with and without random loss, and over a short one.
+     */
+    public static void main(String[] args) throws Exception {
+        int size = 1024 * (args.length > 0 ? Integer.parseInt(args[0]) : 2048);
+        String[] ccs = { ConnectionOptions.CONGESTION_CONTROL_RENO, ConnectionOptions.CONGESTION_CONTROL_BBR };
+        // one-way delay, bandwidth, queue, loss
+        // queue is one BDP for the long path
+        int[][] paths = { { 250, 256*1024, 128*1024, 0 },
+                          { 250, 256*1024, 128*1024, 1 },
+                          { 250, 256*1024, 128*1024, 3 },
+                          { 25, 1024*1024, 64*1024, 1 } };
+        for (int[] path : paths) {
+            System.out.println("delay " + path[0] + "ms bw " + (path[1] / 1024) + "KBps queue " +
+                               (path[2] / 1024) + "KB loss " + path[3] + '%');
+            for (String cc : ccs) {
+                System.out.println("    " + transfer(cc, path[0], path[1], path[2], path[3] / 100f, size));
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,351 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.client.I2PSessionListener;
+import net.i2p.client.I2PSessionMuxedListener;
+import net.i2p.client.LookupResult;
+import net.i2p.client.SendMessageOptions;
+import net.i2p.client.SendMessageStatusListener;
+import net.i2p.crypto.SigType;
+import net.i2p.data.BlindData;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
+import net.i2p.data.Signature;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+
+/**
+ *  An I2PSession without a router, for testing the streaming library
+ *  in one JVM. Two of these are linked, and whatever one sends,
+ *  the other receives, after an optional delay, in one thread per pair.
+ *  Optionally, what's sent goes through a bottleneck link of limited
+ *  bandwidth with a tail-drop queue, and is dropped at random,
+ *  or by sequence number.
+ *  No compression, no encryption, no lookups, no subsessions.
+ *
+ *  @since 0.9.45
+ */
+class LoopbackSession implements I2PSession {
+    private final Destination _dest;
+    private final PrivateKey _privKey;
+    private final SigningPrivateKey _signingKey;
+    private final Map<Integer, byte[]> _messages = new ConcurrentHashMap<Integer, byte[]>();
+    private final AtomicInteger _msgId = new AtomicInteger();
+    private volatile I2PSessionMuxedListener _listener;
+    private volatile LoopbackSession _peer;
+    private volatile ScheduledThreadPoolExecutor _network;
+    private volatile int _delay;
+    private volatile float _loss;
+    /** bytes per second, 0 for unlimited */
+    private int _bandwidth;
+    private int _queueSize;
+    /** ms, when the link will have sent everything queued */
+    private double _linkFree;
+    private final AtomicInteger _dropped = new AtomicInteger();
+    /** sequence number to times left to drop it */
+    private final Map<Long, AtomicInteger> _drops = new ConcurrentHashMap<Long, AtomicInteger>();
+    private volatile boolean _closed;
+
+    public LoopbackSession() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        I2PClientFactory.createClient().createDestination(baos, SigType.EdDSA_SHA512_Ed25519);
+        InputStream in = new ByteArrayInputStream(baos.toByteArray());
+        _dest = new Destination();
+        _dest.readBytes(in);
+        _privKey = new PrivateKey();
+        _privKey.readBytes(in);
+        _signingKey = new SigningPrivateKey(_dest.getSigningPublicKey().getType());
+        _signingKey.readBytes(in);
+    }
+
+    /**
+     *  Link a and b, sharing one delivery thread.
+     */
+    public static void link(LoopbackSession a, LoopbackSession b) {
+        ScheduledThreadPoolExecutor network = new ScheduledThreadPoolExecutor(1);
+        a._peer = b;
+        b._peer = a;
+        a._network = network;
+        b._network = network;
+    }
+
+    /**
+     *  @param ms one-way delay for everything sent from here
+     */
+    public void setDelay(int ms) {
+        _delay = ms;
+    }
+
+    /**
+     *  @param fraction of everything sent from here to drop at random, 0 to 1
+     */
+    public void setLoss(float fraction) {
+        _loss = fraction;
+    }
+
+    /**
+     *  Everything sent from here is sent one message at a time at this rate,
+     *  and waits in a queue, then the delay is added.
+     *  If the queue is full, it's dropped.
+     *
+     *  @param bytesPerSecond 0 for unlimited
+     *  @param queueBytes max bytes waiting
+     */
+    public synchronized void setBandwidth(int bytesPerSecond, int queueBytes) {
+        _bandwidth = bytesPerSecond;
+        _queueSize = queueBytes;
+    }
+
+    /**
+     *  Drop the first count messages from here with this streaming sequence number,
+     *  i.e. the first send and count - 1 resends.
+     *
+     *  @param sequenceNum greater than zero
+     */
+    public void setDrop(long sequenceNum, int count) {
+        _drops.put(Long.valueOf(sequenceNum), new AtomicInteger(count));
+    }
+
+    /**
+     *  @return how many messages from here were dropped, at random or by the queue
+     */
+    public int getDropped() {
+        return _dropped.get();
+    }
+
+    private boolean send(byte[] payload, int offset, int size, final int proto, final int fromPort, final int toPort)
+                         throws I2PSessionException {
+        if (_closed)
+            throw new I2PSessionException("closed");
+        final LoopbackSession peer = _peer;
+        if (peer == null)
+            return false;
+        // the router accepted it, and it was lost after
+        if (_loss > 0 && ThreadLocalRandom.current().nextFloat() < _loss) {
+            _dropped.incrementAndGet();
+            return true;
+        }
+        if (!_drops.isEmpty() && size >= 12) {
+            // the packet isn't compressed, see Packet.writePacket()
+            AtomicInteger left = _drops.get(Long.valueOf(DataHelper.fromLong(payload, offset + 8, 4)));
+            if (left != null && left.getAndDecrement() > 0) {
+                _dropped.incrementAndGet();
+                return true;
+            }
+        }
+        double delay = _delay;
+        synchronized (this) {
+            if (_bandwidth > 0) {
+                double now = System.nanoTime() / 1000000d;
+                if (_linkFree < now)
+                    _linkFree = now;
+                double queued = (_linkFree - now) * _bandwidth / 1000;
+                if (queued + size > _queueSize) {
+                    _dropped.incrementAndGet();
+                    return true;
+                }
+                _linkFree += size * 1000d / _bandwidth;
+                delay += _linkFree - now;
+            }
+        }
+        final byte[] data = new byte[size];
+        System.arraycopy(payload, offset, data, 0, size);
+        Runnable r = new Runnable() {
+            public void run() {
+                peer.deliver(data, proto, fromPort, toPort);
+            }
+        };
+        try {
+            if (delay > 0)
+                _network.schedule(r, (long) (delay * 1000), TimeUnit.MICROSECONDS);
+            else
+                _network.execute(r);
+        } catch (RejectedExecutionException ree) {
+            // shut down
+            return false;
+        }
+        return true;
+    }
+
+    private void deliver(byte[] data, int proto, int fromPort, int toPort) {
+        I2PSessionMuxedListener lsnr = _listener;
+        if (lsnr == null || _closed)
+            return;
+        int id = _msgId.incrementAndGet();
+        _messages.put(Integer.valueOf(id), data);
+        lsnr.messageAvailable(this, id, data.length, proto, fromPort, toPort);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload) throws I2PSessionException {
+        return sendMessage(dest, payload, 0, payload.length);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size) throws I2PSessionException {
+        return send(payload, offset, size, PROTO_UNSPECIFIED, PORT_UNSPECIFIED, PORT_UNSPECIFIED);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int proto, int fromport, int toport) throws I2PSessionException {
+        return send(payload, 0, payload.length, proto, fromport, toport);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, SessionKey keyUsed, Set<SessionTag> tagsSent) throws I2PSessionException {
+        return sendMessage(dest, payload);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size, SessionKey keyUsed, Set<SessionTag> tagsSent) throws I2PSessionException {
+        return sendMessage(dest, payload, offset, size);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size, SessionKey keyUsed, Set<SessionTag> tagsSent, long expire) throws I2PSessionException {
+        return sendMessage(dest, payload, offset, size);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size, SessionKey keyUsed, Set<SessionTag> tagsSent,
+                               int proto, int fromPort, int toPort) throws I2PSessionException {
+        return send(payload, offset, size, proto, fromPort, toPort);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size, SessionKey keyUsed, Set<SessionTag> tagsSent, long expire,
+                               int proto, int fromPort, int toPort) throws I2PSessionException {
+        return send(payload, offset, size, proto, fromPort, toPort);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size, SessionKey keyUsed, Set<SessionTag> tagsSent, long expire,
+                               int proto, int fromPort, int toPort, int flags) throws I2PSessionException {
+        return send(payload, offset, size, proto, fromPort, toPort);
+    }
+
+    public boolean sendMessage(Destination dest, byte[] payload, int offset, int size,
+                               int proto, int fromPort, int toPort, SendMessageOptions options) throws I2PSessionException {
+        return send(payload, offset, size, proto, fromPort, toPort);
+    }
+
+    /** the listener is never called */
+    public long sendMessage(Destination dest, byte[] payload, int offset, int size,
+                            int proto, int fromport, int toport,
+                            SendMessageOptions options, SendMessageStatusListener listener) throws I2PSessionException {
+        send(payload, offset, size, proto, fromport, toport);
+        return _msgId.incrementAndGet();
+    }
+
+    public byte[] receiveMessage(int msgId) throws I2PSessionException {
+        return _messages.remove(Integer.valueOf(msgId));
+    }
+
+    public void reportAbuse(int msgId, int severity) {}
+
+    public void setSessionListener(I2PSessionListener lsnr) {}
+
+    public void destroySession() {
+        _closed = true;
+        ScheduledThreadPoolExecutor network = _network;
+        if (network != null)
+            network.shutdownNow();
+    }
+
+    public I2PSession addSubsession(InputStream privateKeyStream, Properties opts) throws I2PSessionException {
+        throw new I2PSessionException("unsupported");
+    }
+
+    public void removeSubsession(I2PSession session) {}
+
+    public List<I2PSession> getSubsessions() {
+        return Collections.emptyList();
+    }
+
+    public void connect() {}
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    public Destination getMyDestination() {
+        return _dest;
+    }
+
+    public PrivateKey getDecryptionKey() {
+        return _privKey;
+    }
+
+    public SigningPrivateKey getPrivateKey() {
+        return _signingKey;
+    }
+
+    public boolean isOffline() {
+        return false;
+    }
+
+    public long getOfflineExpiration() {
+        return 0;
+    }
+
+    public Signature getOfflineSignature() {
+        return null;
+    }
+
+    public SigningPublicKey getTransientSigningPublicKey() {
+        return null;
+    }
+
+    public Destination lookupDest(Hash h) {
+        return lookupDest(h, 0);
+    }
+
+    public Destination lookupDest(Hash h, long maxWait) {
+        LoopbackSession peer = _peer;
+        if (peer != null && peer._dest.calculateHash().equals(h))
+            return peer._dest;
+        return null;
+    }
+
+    public Destination lookupDest(String name) {
+        return null;
+    }
+
+    public Destination lookupDest(String name, long maxWait) {
+        return null;
+    }
+
+    public LookupResult lookupDest2(String name, long maxWait) {
+        return null;
+    }
+
+    public void updateOptions(Properties options) {}
+
+    public int[] bandwidthLimits() {
+        return null;
+    }
+
+    public void sendBlindingInfo(BlindData bd) {}
+
+    public void addSessionListener(I2PSessionListener lsnr, int proto, int port) {}
+
+    public void addMuxedSessionListener(I2PSessionMuxedListener l, int proto, int port) {
+        _listener = l;
+    }
+
+    public void removeListener(int proto, int port) {
+        _listener = null;
+    }
+}
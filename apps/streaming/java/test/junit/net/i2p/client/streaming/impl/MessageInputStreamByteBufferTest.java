@@ -0,0 +1,88 @@
+package net.i2p.client.streaming.impl;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.ByteArray;
+import net.i2p.data.DataHelper;
+
+/**
+ * The nonblocking ByteBuffer reads of the MessageInputStream.
+ * Separate from MessageInputStreamTest so it doesn't need Mockito.
+ *
+ * @since 0.9.45
+ */
+public class MessageInputStreamByteBufferTest {
+
+    private I2PAppContext _context;
+    private MessageInputStream in;
+
+    @Before
+    public void setUp() {
+        _context = I2PAppContext.getGlobalContext();
+        ConnectionOptions options = new ConnectionOptions();
+        in = new MessageInputStream(_context, options.getMaxMessageSize(),
+                options.getMaxWindowSize(), options.getInboundBufferSize());
+    }
+
+    @After
+    public void tearDown() {
+        in.close();
+    }
+
+    @Test
+    public void testReadByteBuffer() throws IOException {
+        final AtomicInteger notified = new AtomicInteger();
+        in.setReadListener(new MessageInputStream.ReadListener() {
+            public void readable() { notified.incrementAndGet(); }
+        });
+        ByteBuffer buf = ByteBuffer.allocate(1500);
+        assertThat(in.read(buf), is(0));
+
+        byte orig[] = new byte[4*1024];
+        _context.random().nextBytes(orig);
+        byte msg[] = new byte[1024];
+        System.arraycopy(orig, 1024, msg, 0, 1024);
+        in.messageReceived(1, new ByteArray(msg));
+        // out of order, nothing ready
+        assertThat(notified.get(), is(0));
+        assertThat(in.read(buf), is(0));
+        msg = new byte[1024];
+        System.arraycopy(orig, 0, msg, 0, 1024);
+        in.messageReceived(0, new ByteArray(msg));
+        assertThat(notified.get(), is(1));
+
+        ByteBuffer read = ByteBuffer.allocate(orig.length);
+        assertThat(in.read(buf), is(1500));
+        buf.flip();
+        read.put(buf);
+        buf.clear();
+        assertThat(in.read(buf), is(2048 - 1500));
+        buf.flip();
+        read.put(buf);
+        buf.clear();
+        assertThat(in.read(buf), is(0));
+
+        for (int i = 2; i < 4; i++) {
+            msg = new byte[1024];
+            System.arraycopy(orig, i*1024, msg, 0, 1024);
+            in.messageReceived(i, new ByteArray(msg));
+        }
+        in.messageReceived(4, new ByteArray());
+        in.closeReceived();
+        assertThat(in.read(read), is(2048));
+        assertThat(in.read(buf), is(-1));
+        assertTrue(DataHelper.eq(orig, read.array()));
+        // once per message with ready data, and once for the close
+        assertThat(notified.get(), is(5));
+    }
+}
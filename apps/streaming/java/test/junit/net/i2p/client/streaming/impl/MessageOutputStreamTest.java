@@ -1,6 +1,9 @@
 package net.i2p.client.streaming.impl;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -45,6 +48,33 @@ public class MessageOutputStreamTest extends TestCase {
                         firstOff < 0);
     }
 
+    @Test
+    public void testNonBlocking() throws Exception {
+        Receiver receiver = new Receiver();
+        MessageOutputStream out = new MessageOutputStream(_context, _st2, receiver, 100, 0);
+        byte buf[] = new byte[1024];
+        _context.random().nextBytes(buf);
+        ByteBuffer src = ByteBuffer.wrap(buf);
+        // fills the buffer, can't send
+        assertEquals(100, out.write(src, false));
+        assertEquals(0, out.write(src, false));
+        assertEquals(0, receiver.getData().length);
+        // sends one packet only
+        assertEquals(100, out.write(src, true));
+        assertEquals(100, receiver.getData().length);
+        while (src.hasRemaining()) {
+            out.write(src, true);
+        }
+        out.flush();
+        assertTrue(Arrays.equals(buf, receiver.getData()));
+        out.closeNonBlocking();
+        assertTrue(out.getClosed());
+        try {
+            out.write(ByteBuffer.wrap(buf), true);
+            fail("closed");
+        } catch (IOException ioe) {}
+    }
+
     private class Receiver implements MessageOutputStream.DataReceiver {
         private ByteArrayOutputStream _data;
         public Receiver() {
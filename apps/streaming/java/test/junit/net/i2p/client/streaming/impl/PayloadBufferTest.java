@@ -0,0 +1,94 @@
+package net.i2p.client.streaming.impl;
+
+import static org.junit.Assert.*;
+
+import net.i2p.data.ByteArray;
+
+import org.junit.Test;
+
+/**
+ *  @since 0.9.45
+ */
+public class PayloadBufferTest {
+
+    // not the default max message size, so other tests don't share the pool
+    private static final int SIZE = 1000;
+
+    @Test
+    public void testAcquireRelease() {
+        ByteArray ba = PayloadBuffer.acquire(100, SIZE);
+        assertTrue(ba instanceof PayloadBuffer);
+        PayloadBuffer buf = (PayloadBuffer) ba;
+        assertEquals(SIZE, buf.getData().length);
+        assertEquals(100, buf.getValid());
+        assertEquals(0, buf.getOffset());
+        assertEquals(1, buf.getRefs());
+        buf.release();
+        assertEquals(0, buf.getRefs());
+        // back in the pool
+        assertFalse(buf.retain());
+        ByteArray ba2 = PayloadBuffer.acquire(SIZE, SIZE);
+        assertSame(buf, ba2);
+        assertEquals(SIZE, ba2.getValid());
+        assertEquals(1, buf.getRefs());
+        buf.release();
+    }
+
+    @Test
+    public void testRetain() {
+        PayloadBuffer buf = (PayloadBuffer) PayloadBuffer.acquire(100, SIZE);
+        assertTrue(buf.retain());
+        assertEquals(2, buf.getRefs());
+        buf.release();
+        assertEquals(1, buf.getRefs());
+        assertTrue(buf.retain());
+        buf.release();
+        buf.release();
+        assertEquals(0, buf.getRefs());
+        // dup release is logged and ignored
+        buf.release();
+        assertEquals(0, buf.getRefs());
+        assertFalse(buf.retain());
+    }
+
+    @Test
+    public void testTooBig() {
+        ByteArray ba = PayloadBuffer.acquire(SIZE + 1, SIZE);
+        assertFalse(ba instanceof PayloadBuffer);
+        assertEquals(SIZE + 1, ba.getValid());
+        assertEquals(SIZE + 1, ba.getData().length);
+        // no-op
+        PayloadBuffer.release(ba);
+        PayloadBuffer.release(null);
+    }
+
+    @Test
+    public void testPacket() {
+        Packet packet = new Packet(null);
+        PayloadBuffer buf = (PayloadBuffer) PayloadBuffer.acquire(100, SIZE);
+        packet.setPayload(buf);
+        // writing it
+        assertTrue(packet.retainPayload());
+        assertEquals(2, buf.getRefs());
+        // acked while writing
+        packet.releasePayload();
+        assertEquals(1, buf.getRefs());
+        // only once
+        packet.releasePayload();
+        assertEquals(1, buf.getRefs());
+        // done writing
+        PayloadBuffer.release(packet.getPayload());
+        assertEquals(0, buf.getRefs());
+        // can't write it again
+        assertFalse(packet.retainPayload());
+    }
+
+    @Test
+    public void testUnpooledPacket() {
+        Packet packet = new Packet(null);
+        packet.setPayload(new ByteArray(new byte[100]));
+        packet.releasePayload();
+        assertTrue(packet.retainPayload());
+        assertEquals(100, packet.getPayloadSize());
+    }
+}
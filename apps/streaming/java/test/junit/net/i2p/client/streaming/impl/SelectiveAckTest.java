@@ -0,0 +1,129 @@
+package net.i2p.client.streaming.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ *  Bulk transfers over a LoopbackSession that drops messages.
+ *  Losses should be repaired by fast retransmits from the NACKs,
+ *  without waiting for the timeout.
+ *  The tests enable i2p.streaming.rack, which is off by default.
+ *
+ *  Run main() to measure the goodput at 1 - 10% loss at random
+ *  in both directions, as I2P tunnels do:
+ *
+ *  <pre>
+ *  java -cp ... net.i2p.client.streaming.impl.SelectiveAckTest [kbytes] [runs]
+ *  </pre>
+ *
+ *  @since 0.9.45
+ */
+public class SelectiveAckTest {
+
+    private static final int SIZE = 256*1024;
+
+    @Test
+    public void testFastRetransmit() throws Exception {
+        LoopbackSession clientSession = session();
+        LoopbackSession serverSession = session();
+        LoopbackSession.link(clientSession, serverSession);
+        clientSession.setDrop(40, 1);
+        BulkTransfer r = run(clientSession, serverSession, ConnectionOptions.CONGESTION_CONTROL_RENO, true);
+        assertEquals(r.toString(), r.size, r.received);
+        assertEquals(r.toString(), 1, r.dropped);
+        // The timer may still resend it before the NACKs arrive,
+        // so don't check for no timeouts.
+        // More if the first few arrived before the SYN.
+        assertTrue(r.toString(), r.fastResends >= 1);
+    }
+
+    /**
+     *  The fast resend is lost too. It's resent again when packets sent
+     *  after it are acked, or at the timeout if none were acked yet,
+     *  as after the window is cut there may be none sent for a while.
+     *  Which of those happens first depends on timing,
+     *  so only check that the first loss was found from the NACKs,
+     *  and that both were repaired.
+     */
+    @Test
+    public void testResendLost() throws Exception {
+        LoopbackSession clientSession = session();
+        LoopbackSession serverSession = session();
+        LoopbackSession.link(clientSession, serverSession);
+        clientSession.setDrop(40, 2);
+        BulkTransfer r = run(clientSession, serverSession, ConnectionOptions.CONGESTION_CONTROL_RENO, true);
+        assertEquals(r.toString(), r.size, r.received);
+        assertEquals(r.toString(), 2, r.dropped);
+        assertTrue(r.toString(), r.fastResends >= 1);
+        assertTrue(r.toString(), r.timeoutResends + r.fastResends >= 2);
+    }
+
+    private static LoopbackSession session() throws Exception {
+        LoopbackSession rv = new LoopbackSession();
+        rv.setDelay(50);
+        return rv;
+    }
+
+    /**
+     *  @param rack enable RACK and fast out-of-order acks on both sides
+     */
+    private static BulkTransfer run(LoopbackSession clientSession, LoopbackSession serverSession,
+                                    String cc, boolean rack) throws Exception {
+        Properties opts = new Properties();
+        opts.setProperty(ConnectionOptions.PROP_CONGESTION_CONTROL, cc);
+        opts.setProperty(ConnectionOptions.PROP_RACK, Boolean.toString(rack));
+        return BulkTransfer.run(clientSession, serverSession, opts, SIZE);
+    }
+
+    /**
+     *  @param delay one-way, ms
+     *  @param loss fraction, each way
+     *  @param size bytes to send
+     */
+    private static BulkTransfer transfer(String cc, boolean rack, int delay, float loss, int size) throws Exception {
+        LoopbackSession clientSession = new LoopbackSession();
+        LoopbackSession serverSession = new LoopbackSession();
+        LoopbackSession.link(clientSession, serverSession);
+        clientSession.setDelay(delay);
+        serverSession.setDelay(delay);
+        clientSession.setBandwidth(256*1024, 64*1024);
+        serverSession.setBandwidth(256*1024, 64*1024);
+        clientSession.setLoss(loss);
+        serverSession.setLoss(loss);
+        return run(clientSession, serverSession, cc, rack);
+    }
+
+    /**
+     *  Median goodput of each, with and without RACK, over a path as a pair of I2P tunnels
+     */
+    public static void main(String[] args) throws Exception {
+        int size = 1024 * (args.length > 0 ? Integer.parseInt(args[0]) : 512);
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String[] ccs = { ConnectionOptions.CONGESTION_CONTROL_RENO, ConnectionOptions.CONGESTION_CONTROL_BBR };
+        int[] losses = { 1, 2, 5, 10 };
+        for (int loss : losses) {
+            System.out.println("delay 100ms bw 256KBps queue 64KB loss " + loss + "% each way");
+            for (int j = 0; j < ccs.length * 2; j++) {
+                String cc = ccs[j / 2];
+                boolean rack = (j & 1) != 0;
+                long[] goodput = new long[runs];
+                int timeoutResends = 0, fastResends = 0;
+                for (int i = 0; i < runs; i++) {
+                    BulkTransfer r = transfer(cc, rack, 100, loss / 100f, size);
+                    goodput[i] = r.goodput();
+                    timeoutResends += r.timeoutResends;
+                    fastResends += r.fastResends;
+                }
+                Arrays.sort(goodput);
+                System.out.println("    " + cc + (rack ? " rack" : "") + ": median goodput " + goodput[runs / 2] + "KBps" +
+                                   " min " + goodput[0] + " max " + goodput[runs - 1] +
+                                   " resent " + timeoutResends + '/' + fastResends);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,113 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.eddsa.EdDSABatchVerifier;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SimpleDataStructure;
+
+/**
+ * Ed25519 verification, one at a time and with EdDSABatchVerifier,
+ * in signatures per millisecond.
+ *
+ * Each key is decoded for each verification, as for RouterInfos
+ * and LeaseSets from the netDb.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EdDSABatchBench {
+    private static final int COUNT = 64;
+    private static final EdDSAParameterSpec SPEC = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
+
+    @Param({"8", "32", "64"})
+    public int batch;
+
+    I2PAppContext ctx = I2PAppContext.getGlobalContext();
+    byte[][] pubkeys = new byte[COUNT][];
+    byte[][] data = new byte[COUNT][];
+    byte[][] sigs = new byte[COUNT][];
+
+    @Setup
+    public void prepare() throws GeneralSecurityException {
+        for (int i = 0; i < COUNT; i++) {
+            SimpleDataStructure[] keys = KeyGenerator.getInstance().generateSigningKeys(SigType.EdDSA_SHA512_Ed25519);
+            pubkeys[i] = keys[0].getData();
+            // about the size of a RouterInfo
+            data[i] = new byte[800];
+            ctx.random().nextBytes(data[i]);
+            sigs[i] = ctx.dsa().sign(data[i], (SigningPrivateKey) keys[1]).getData();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public int single() throws GeneralSecurityException {
+        int rv = 0;
+        MessageDigest md = MessageDigest.getInstance(SPEC.getHashAlgorithm());
+        for (int i = 0; i < COUNT; i++) {
+            EdDSAEngine engine = new EdDSAEngine(md);
+            engine.initVerify(new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkeys[i], SPEC)));
+            if (engine.verifyOneShot(data[i], sigs[i]))
+                rv++;
+        }
+        return rv;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public int batched() {
+        int rv = 0;
+        EdDSABatchVerifier bv = new EdDSABatchVerifier();
+        for (int i = 0; i < COUNT; i += batch) {
+            bv.clear();
+            for (int j = i; j < i + batch; j++) {
+                bv.add(new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkeys[j], SPEC)), data[j], sigs[j]);
+            }
+            boolean[] results = bv.verify();
+            for (int j = 0; j < batch; j++) {
+                if (results[j])
+                    rv++;
+            }
+        }
+        return rv;
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(EdDSABatchBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
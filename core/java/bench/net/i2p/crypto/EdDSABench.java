@@ -0,0 +1,139 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.math.Field;
+import net.i2p.crypto.eddsa.math.FieldElement;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+
+/**
+ * Ed25519 field arithmetic, signing, and verification,
+ * with the int (2^25.5) and long (2^51) field implementations.
+ *
+ * The field is selected with the i2p.eddsa.field system property,
+ * set before EdDSANamedCurveTable is loaded. Each parameter value
+ * runs in a separate fork.
+ *
+ * verifyCachedKey is the netDb case where the key is in the SigUtil cache
+ * with its precomputed table; verifyNewKey decodes the key
+ * and builds the table each time.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EdDSABench {
+
+    @Param({"int", "long"})
+    public String field;
+
+    EdDSAParameterSpec spec;
+    FieldElement a, b;
+    byte[] data;
+    byte[] pubkey;
+    byte[] sig;
+    EdDSAPrivateKey privkey;
+    EdDSAPublicKey cachedKey;
+    MessageDigest md;
+
+    @Setup
+    public void prepare() throws GeneralSecurityException {
+        System.setProperty(EdDSANamedCurveTable.PROP_FIELD, field);
+        spec = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        Field f = spec.getCurve().getField();
+        byte[] tmp = new byte[32];
+        ctx.random().nextBytes(tmp);
+        a = f.fromByteArray(tmp);
+        ctx.random().nextBytes(tmp);
+        b = f.fromByteArray(tmp);
+        SimpleDataStructure[] keys = KeyGenerator.getInstance().generateSigningKeys(SigType.EdDSA_SHA512_Ed25519);
+        pubkey = keys[0].getData();
+        privkey = SigUtil.toJavaEdDSAKey((SigningPrivateKey) keys[1]);
+        cachedKey = SigUtil.toJavaEdDSAKey((SigningPublicKey) keys[0]);
+        // about the size of a RouterInfo
+        data = new byte[800];
+        ctx.random().nextBytes(data);
+        md = MessageDigest.getInstance(spec.getHashAlgorithm());
+        EdDSAEngine engine = new EdDSAEngine(md);
+        engine.initSign(privkey);
+        sig = engine.signOneShot(data);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public FieldElement multiply() {
+        return a.multiply(b);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public FieldElement square() {
+        return a.square();
+    }
+
+    @Benchmark
+    public FieldElement invert() {
+        return a.invert();
+    }
+
+    @Benchmark
+    public byte[] sign() throws GeneralSecurityException {
+        EdDSAEngine engine = new EdDSAEngine(md);
+        engine.initSign(privkey);
+        return engine.signOneShot(data);
+    }
+
+    @Benchmark
+    public boolean verifyCachedKey() throws GeneralSecurityException {
+        EdDSAEngine engine = new EdDSAEngine(md);
+        engine.initVerify(cachedKey);
+        return engine.verifyOneShot(data, sig);
+    }
+
+    @Benchmark
+    public boolean verifyNewKey() throws GeneralSecurityException {
+        EdDSAEngine engine = new EdDSAEngine(md);
+        engine.initVerify(new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkey, spec)));
+        return engine.verifyOneShot(data, sig);
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(EdDSABench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,111 @@
+package net.i2p.kademlia;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * KBucketSet lookups with the router's netDb parameters (K=24, B=4),
+ * alone and while another thread adds and removes keys,
+ * which also causes splits.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Group)
+public class KBucketSetBench {
+    private static final int TARGETS = 1024;
+
+    @Param({"5000"})
+    public int count;
+
+    private KBucketSet<Hash> set;
+    private Hash[] targets;
+    private Hash[] churn;
+    private int idx;
+    private int churnIdx;
+
+    @Setup
+    public void prepare() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        Random rand = new Random(1234);
+        set = new KBucketSet<Hash>(ctx, randomHash(rand), 24, 4, new RejectTrimmer<Hash>());
+        for (int i = 0; i < count; i++) {
+            set.add(randomHash(rand));
+        }
+        targets = new Hash[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            targets[i] = randomHash(rand);
+        }
+        churn = new Hash[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            churn[i] = randomHash(rand);
+        }
+    }
+
+    private static Hash randomHash(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+
+    /** racy index, doesn't matter */
+    private Hash nextTarget() {
+        return targets[(idx++) & (TARGETS - 1)];
+    }
+
+    @Benchmark
+    @Group("closest")
+    @GroupThreads(4)
+    public Object closest() {
+        return set.getClosest(nextTarget(), 8);
+    }
+
+    @Benchmark
+    @Group("closestDuringChurn")
+    @GroupThreads(3)
+    public Object closestWithChurn() {
+        return set.getClosest(nextTarget(), 8);
+    }
+
+    @Benchmark
+    @Group("closestDuringChurn")
+    @GroupThreads(1)
+    public boolean churn() {
+        Hash h = churn[(churnIdx++) & (TARGETS - 1)];
+        set.add(h);
+        return set.remove(h);
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(KBucketSetBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
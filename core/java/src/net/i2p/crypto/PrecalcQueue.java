@@ -0,0 +1,268 @@
+package net.i2p.crypto;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  A queue of precalculated values, such as ElGamal YK pairs or DH keys,
+ *  filled in the background by a thread pool shared by all the queues.
+ *
+ *  Previously, each precalc had its own thread, which filled its queue
+ *  one value at a time with a delay after each, so during tunnel build
+ *  bursts and at startup the queue ran empty and the values were
+ *  generated inline in the tunnel or transport threads.
+ *
+ *  Here, a fill is started as soon as a queue drops below its minimum,
+ *  and if it is empty, up to all the pool threads work on it.
+ *  Each fill task generates one value and then resubmits itself,
+ *  so the queues share the threads fairly.
+ *  There is no delay while below the minimum. Above the minimum,
+ *  the queue is filled to the maximum with the given delay between values.
+ *
+ *  The pool has one thread per core, less one, up to 4 by default,
+ *  set with crypto.precalc.threads. Threads exit after a minute idle,
+ *  so there are no threads when all the queues are full.
+ *
+ *  The stats crypto.(name)Used and crypto.(name)Empty are the requests
+ *  and the misses.
+ *
+ *  @since 0.9.45
+ */
+public class PrecalcQueue<T> {
+
+    /**
+     *  Generates one value, may be called from any thread
+     */
+    public interface Generator<T> {
+        public T generate();
+    }
+
+    /** max threads for the shared pool, default cores - 1, max 4 */
+    public static final String PROP_THREADS = "crypto.precalc.threads";
+    private static final int MAX_THREADS = 16;
+    private static ThreadPoolExecutor _executor;
+    private static int _threads;
+    private static final AtomicInteger _count = new AtomicInteger();
+
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final String _name;
+    private final Generator<T> _gen;
+    private final int _minSize;
+    private final int _maxSize;
+    private final int _delay;
+    private final LinkedBlockingQueue<T> _values;
+    /** fill tasks queued, running, or waiting on the timer */
+    private final AtomicInteger _pending = new AtomicInteger();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final String _usedStat, _emptyStat;
+    private volatile boolean _isRunning;
+
+    /**
+     *  Caller must call start() to start filling in the background.
+     *  Values are generated inline until then.
+     *
+     *  @param name for stats and logging, e.g. "YK"
+     *  @param minSize fill when below this, 0 to disable precalculation
+     *  @param maxSize fill to this
+     *  @param delay ms between values when above minSize
+     */
+    public PrecalcQueue(I2PAppContext ctx, String name, Generator<T> gen,
+                        int minSize, int maxSize, int delay) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(PrecalcQueue.class);
+        _name = name;
+        _gen = gen;
+        _minSize = minSize;
+        _maxSize = Math.max(1, maxSize);
+        _delay = delay;
+        _values = new LinkedBlockingQueue<T>(_maxSize);
+        _usedStat = "crypto." + name + "Used";
+        _emptyStat = "crypto." + name + "Empty";
+        ctx.statManager().createRateStat(_usedStat, "Need a " + name + " from the queue", "Encryption", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat(_emptyStat, name + " queue empty", "Encryption", new long[] { 60*60*1000 });
+        initExecutor(ctx);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug(name + " Precalc (minimum: " + minSize + " max: " + maxSize + ", delay: "
+                       + delay + ")");
+    }
+
+    private static synchronized void initExecutor(I2PAppContext ctx) {
+        if (_executor != null)
+            return;
+        int def = Math.max(1, Math.min(4, SystemVersion.getCores() - 1));
+        _threads = Math.max(1, Math.min(MAX_THREADS, ctx.getProperty(PROP_THREADS, def)));
+        _executor = new ThreadPoolExecutor(_threads, _threads, 60*1000, TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory());
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static class CustomThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("Precalc " + _count.incrementAndGet() + '/' + _threads);
+            rv.setDaemon(true);
+            if (!SystemVersion.isWindows())
+                rv.setPriority(Thread.NORM_PRIORITY - 1);
+            return rv;
+        }
+    }
+
+    /**
+     *  Start filling in the background.
+     *  May be called again after shutdown().
+     */
+    public void start() {
+        _isRunning = true;
+        if (_values.size() < _minSize)
+            fill(1);
+    }
+
+    /**
+     *  Stop filling and discard the values.
+     *  Generation is inline until start() is called again.
+     *  The shared threads exit when idle.
+     */
+    public void shutdown() {
+        _isRunning = false;
+        _values.clear();
+    }
+
+    /**
+     *  Does not block.
+     *  If the queue is below the minimum, more will be made in the background.
+     *
+     *  @return a precalculated value, or null if the queue is empty
+     */
+    public T poll() {
+        _context.statManager().addRateData(_usedStat, 1);
+        T rv = _values.poll();
+        if (rv == null) {
+            _misses.incrementAndGet();
+            _context.statManager().addRateData(_emptyStat, 1);
+            fill(_threads);
+        } else {
+            _hits.incrementAndGet();
+            if (_values.size() < _minSize)
+                fill(1);
+        }
+        return rv;
+    }
+
+    /**
+     *  Does not block on the queue.
+     *  If it is empty, the value is generated in the calling thread.
+     *
+     *  @return non-null
+     */
+    public T get() {
+        T rv = poll();
+        if (rv == null)
+            rv = _gen.generate();
+        return rv;
+    }
+
+    /**
+     *  Put back an unused value
+     *
+     *  @return true if successful, false if full
+     */
+    public boolean offer(T value) {
+        return _values.offer(value);
+    }
+
+    public int size() {
+        return _values.size();
+    }
+
+    /** requests that got a precalculated value */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /** requests that found the queue empty */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     *  Start fill tasks until there are this many
+     */
+    private void fill(int tasks) {
+        if (!_isRunning || _minSize <= 0)
+            return;
+        while (true) {
+            int p = _pending.get();
+            if (p >= tasks)
+                return;
+            if (_pending.compareAndSet(p, p + 1))
+                break;
+        }
+        execute(new Filler());
+    }
+
+    private void execute(Runnable r) {
+        try {
+            _executor.execute(r);
+        } catch (RejectedExecutionException ree) {
+            _pending.decrementAndGet();
+        }
+    }
+
+    /**
+     *  Make one value, then resubmit, or finish when full.
+     */
+    private class Filler implements Runnable, SimpleTimer.TimedEvent {
+        public void run() {
+            boolean more = false;
+            try {
+                if (_isRunning && _values.size() < _maxSize) {
+                    long start = System.currentTimeMillis();
+                    more = _values.offer(_gen.generate()) && _values.size() < _maxSize;
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Precalced " + _name + " in " + (System.currentTimeMillis() - start) +
+                                   "ms, now " + _values.size());
+                }
+            } catch (IllegalStateException ise) {
+                // PRNG gets stopped first on Android and throws ISE
+                if (_isRunning)
+                    _log.error("Precalc " + _name, ise);
+            } finally {
+                if (more && _isRunning) {
+                    if (_delay > 0 && _values.size() >= _minSize)
+                        _context.simpleTimer2().addEvent(this, _delay);
+                    else
+                        execute(this);
+                } else {
+                    _pending.decrementAndGet();
+                }
+            }
+        }
+
+        /** back from the timer */
+        public void timeReached() {
+            if (_isRunning)
+                execute(this);
+            else
+                _pending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return _name + " precalc: " + _values.size() + '/' + _maxSize +
+               " hits: " + _hits + " misses: " + _misses;
+    }
+}
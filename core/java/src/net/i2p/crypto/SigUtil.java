@@ -44,6 +44,7 @@ import net.i2p.data.SigningPrivateKey;
 import net.i2p.data.SigningPublicKey;
 import net.i2p.util.LHMCache;
 import net.i2p.util.NativeBigInteger;
+import net.i2p.util.SystemVersion;
 
 
 /**
@@ -55,7 +56,21 @@ public final class SigUtil {
 
     private static final Map<SigningPublicKey, ECPublicKey> _ECPubkeyCache = new LHMCache<SigningPublicKey, ECPublicKey>(64);
     private static final Map<SigningPrivateKey, ECPrivateKey> _ECPrivkeyCache = new LHMCache<SigningPrivateKey, ECPrivateKey>(16);
-    private static final Map<SigningPublicKey, EdDSAPublicKey> _EdPubkeyCache = new LHMCache<SigningPublicKey, EdDSAPublicKey>(64);
+    /**
+     *  The cached EdDSAPublicKeys keep their precomputed tables for verification
+     *  (about 3 KB each), so the netDb RouterInfos and LeaseSets verified
+     *  over and over don't have to rebuild them.
+     *  @since 0.9.45, was 64
+     */
+    private static final int ED_PUBKEY_CACHE_SIZE;
+    private static final int MIN_ED_PUBKEY_CACHE_SIZE = 64;
+    private static final int MAX_ED_PUBKEY_CACHE_SIZE = 1024;
+    static {
+        long maxMemory = SystemVersion.getMaxMemory();
+        ED_PUBKEY_CACHE_SIZE = (int) Math.min(MAX_ED_PUBKEY_CACHE_SIZE,
+                                              Math.max(MIN_ED_PUBKEY_CACHE_SIZE, maxMemory / (256*1024)));
+    }
+    private static final Map<SigningPublicKey, EdDSAPublicKey> _EdPubkeyCache = new LHMCache<SigningPublicKey, EdDSAPublicKey>(ED_PUBKEY_CACHE_SIZE);
     private static final Map<SigningPrivateKey, EdDSAPrivateKey> _EdPrivkeyCache = new LHMCache<SigningPrivateKey, EdDSAPrivateKey>(16);
 
     private SigUtil() {}
@@ -10,21 +10,19 @@ package net.i2p.crypto;
  */
 
 import java.math.BigInteger;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import net.i2p.I2PAppContext;
-import net.i2p.util.I2PThread;
 import net.i2p.util.NativeBigInteger;
 import net.i2p.util.SystemVersion;
 
 /**
  * Precalculate the Y and K for ElGamal encryption operations.
  *
- * This class precalcs a set of values on its own thread, using those transparently
+ * This class precalcs a set of values in the background, using those transparently
  * when a new instance is created.  By default, the minimum threshold for creating 
  * new values for the pool is 20, and the max pool size is 50.  Whenever the pool has
- * less than the minimum, it fills it up again to the max.  There is a delay after 
- * each precalculation so that the CPU isn't hosed during startup.
+ * less than the minimum, it fills it up again to the max.  Above the minimum,
+ * there is a delay after each precalculation so that the CPU isn't hosed during startup.
  * These three parameters are controlled by java environmental variables and 
  * can be adjusted via:
  *  -Dcrypto.yk.precalc.min=40 -Dcrypto.yk.precalc.max=100 -Dcrypto.yk.precalc.delay=60000
@@ -33,17 +31,14 @@ import net.i2p.util.SystemVersion;
  *
  * To disable precalculation, set min to 0
  *
+ * As of 0.9.45, the values are made in the PrecalcQueue thread pool.
+ *
  * @author jrandom
  */
 final class YKGenerator {
     //private final static Log _log = new Log(YKGenerator.class);
-    private final int MIN_NUM_BUILDERS;
-    private final int MAX_NUM_BUILDERS;
-    private final int CALC_DELAY;
-    private final LinkedBlockingQueue<BigInteger[]> _values;
-    private Thread _precalcThread;
+    private final PrecalcQueue<BigInteger[]> _values;
     private final I2PAppContext ctx;
-    private volatile boolean _isRunning;
 
     public final static String PROP_YK_PRECALC_MIN = "crypto.yk.precalc.min";
     public final static String PROP_YK_PRECALC_MAX = "crypto.yk.precalc.max";
@@ -53,7 +48,7 @@ final class YKGenerator {
     public final static int DEFAULT_YK_PRECALC_DELAY = 200;
 
     /**
-     *  Caller must also call start() to start the background precalc thread.
+     *  Caller must also call start() to start the background precalc.
      *  Unit tests will still work without calling start().
      */
     public YKGenerator(I2PAppContext context) {
@@ -64,69 +59,45 @@ final class YKGenerator {
         int factor = (int) Math.max(1l, Math.min(8l, 1 + (maxMemory / (128*1024*1024l))));
         int defaultMin = DEFAULT_YK_PRECALC_MIN * factor;
         int defaultMax = DEFAULT_YK_PRECALC_MAX * factor;
-        MIN_NUM_BUILDERS = ctx.getProperty(PROP_YK_PRECALC_MIN, defaultMin);
-        MAX_NUM_BUILDERS = ctx.getProperty(PROP_YK_PRECALC_MAX, defaultMax);
-
-        CALC_DELAY = ctx.getProperty(PROP_YK_PRECALC_DELAY, DEFAULT_YK_PRECALC_DELAY);
-        _values = new LinkedBlockingQueue<BigInteger[]>(MAX_NUM_BUILDERS);
-
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("ElGamal YK Precalc (minimum: " + MIN_NUM_BUILDERS + " max: " + MAX_NUM_BUILDERS + ", delay: "
-        //               + CALC_DELAY + ")");
-
-        ctx.statManager().createRateStat("crypto.YKUsed", "Need a YK from the queue", "Encryption", new long[] { 60*60*1000 });
-        ctx.statManager().createRateStat("crypto.YKEmpty", "YK queue empty", "Encryption", new long[] { 60*60*1000 });
+        int min = ctx.getProperty(PROP_YK_PRECALC_MIN, defaultMin);
+        int max = ctx.getProperty(PROP_YK_PRECALC_MAX, defaultMax);
+        int delay = ctx.getProperty(PROP_YK_PRECALC_DELAY, DEFAULT_YK_PRECALC_DELAY);
+        _values = new PrecalcQueue<BigInteger[]>(ctx, "YK", new YKPrecalc(), min, max, delay);
     }
 
     /**
-     *  Start the background precalc thread.
+     *  Start the background precalc.
      *  Must be called for normal operation.
      *  If not called, all generation happens in the foreground.
      *  Not required for unit tests.
      *
      *  @since 0.9.14
      */
-    public synchronized void start() {
-        if (_isRunning)
-            return;
-        _precalcThread = new I2PThread(new YKPrecalcRunner(MIN_NUM_BUILDERS, MAX_NUM_BUILDERS),
-                                       "YK Precalc", true);
-        _precalcThread.setPriority(Thread.NORM_PRIORITY - 2);
-        _isRunning = true;
-        _precalcThread.start();
+    public void start() {
+        _values.start();
     }
 
     /**
-     *  Stop the background precalc thread.
+     *  Stop the background precalc.
      *  Can be restarted.
      *  Not required for unit tests.
      *
      *  @since 0.8.8
      */
-    public synchronized void shutdown() {
-        _isRunning = false;
-        if (_precalcThread != null)
-            _precalcThread.interrupt();
-        _values.clear();
-    }
-
-    private final int getSize() {
-        return _values.size();
-    }
-
-    /** @return true if successful, false if full */
-    private final boolean addValues(BigInteger yk[]) {
-        return _values.offer(yk);
+    public void shutdown() {
+        _values.shutdown();
     }
 
     /** @return rv[0] = Y; rv[1] = K */
     public BigInteger[] getNextYK() {
-        ctx.statManager().addRateData("crypto.YKUsed", 1);
-        BigInteger[] rv = _values.poll();
-        if (rv != null)
-            return rv;
-        ctx.statManager().addRateData("crypto.YKEmpty", 1);
-        return generateYK();
+        return _values.get();
+    }
+
+    /** @since 0.9.45 */
+    private class YKPrecalc implements PrecalcQueue.Generator<BigInteger[]> {
+        public BigInteger[] generate() {
+            return generateYK();
+        }
     }
 
     private final static BigInteger _two = new NativeBigInteger(1, new byte[] { 0x02});
@@ -180,60 +151,4 @@ final class YKGenerator {
         System.out.println("YK fetch time for " + RUNS + " runs: " + negTime + " @ " + (negTime / RUNS) + "ms each");
     }
 ****/
-
-    /** the thread */
-    private class YKPrecalcRunner implements Runnable {
-        private final int _minSize;
-        private final int _maxSize;
-
-        /** check every 30 seconds whether we have less than the minimum */
-        private long _checkDelay = 30 * 1000;
-
-        private YKPrecalcRunner(int minSize, int maxSize) {
-            _minSize = minSize;
-            _maxSize = maxSize;
-        }
-
-        public void run() {
-            while (_isRunning) {
-                //long start = Clock.getInstance().now();
-                int startSize = getSize();
-                // Adjust delay
-                if (startSize <= (_minSize * 2 / 3) && _checkDelay > 1000)
-                    _checkDelay -= 1000;
-                else if (startSize > (_minSize * 3 / 2) && _checkDelay < 60*1000)
-                    _checkDelay += 1000;
-                if (startSize < _minSize) {
-                    // fill all the way up, do the check here so we don't
-                    // throw away one when full in addValues()
-                    while (getSize() < _maxSize && _isRunning) {
-                        //long begin = Clock.getInstance().now();
-                        if (!addValues(generateYK()))
-                            break;
-                        //long end = Clock.getInstance().now();
-                        //if (_log.shouldLog(Log.DEBUG)) _log.debug("Precalculated YK value in " + (end - begin) + "ms");
-                        // for some relief...
-                        try {
-                            Thread.sleep(CALC_DELAY);
-                        } catch (InterruptedException ie) { // nop
-                        }
-                    }
-                }
-                //long end = Clock.getInstance().now();
-                //int numCalc = curSize - startSize;
-                //if (numCalc > 0) {
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("Precalced " + numCalc + " to " + curSize + " in "
-                //                   + (end - start - CALC_DELAY * numCalc) + "ms (not counting "
-                //                   + (CALC_DELAY * numCalc) + "ms relief).  now sleeping");
-                //}
-                if (!_isRunning)
-                    break;
-                try {
-                    Thread.sleep(_checkDelay);
-                } catch (InterruptedException ie) { // nop
-                }
-            }
-        }
-    }
 }
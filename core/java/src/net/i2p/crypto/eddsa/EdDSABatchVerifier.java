@@ -0,0 +1,290 @@
+package net.i2p.crypto.eddsa;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.crypto.eddsa.math.Curve;
+import net.i2p.crypto.eddsa.math.GroupElement;
+import net.i2p.crypto.eddsa.math.ScalarOps;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.util.RandomSource;
+
+/**
+ * Batch verification of Ed25519 signatures.
+ *<p>
+ * Each signature (R, S) by key A on message M is valid if
+ * [8](S B - h A - R) = 0, where h = H(R,A,M).
+ * For a batch, with random 128-bit z_i, we check
+ * [8]((-sum(z_i S_i)) B + sum(z_i R_i) + sum(z_i h_i) A_i) = 0
+ * with one multi-scalar multiplication, which shares the doublings
+ * for all the points. An invalid signature makes the check fail
+ * with probability 1 - 2^-128.
+ *</p><p>
+ * If the check fails, the batch is split in half and each half is
+ * checked again, down to single verification with EdDSAEngine,
+ * so the results are for each signature.
+ *</p><p>
+ * Results differ from single verification only for signatures
+ * deliberately made with a small-order component in R or A.
+ * Single verification checks S B - h A = R exactly, batch verification
+ * checks it only up to the small-order subgroup.
+ * Such a signature can only be made by the holder of the private key,
+ * so this does not allow forgeries, but an entry with one may be accepted
+ * by a router that batch verifies and rejected by one that doesn't.
+ * Non-canonical R and S are rejected as in single verification.
+ *</p><p>
+ * Ed25519 only. Not thread-safe.
+ *</p>
+ *
+ * @since 0.9.45
+ */
+public class EdDSABatchVerifier {
+
+    private final EdDSAParameterSpec _spec;
+    private final Curve _curve;
+    private final ScalarOps _sc;
+    private final MessageDigest _digest;
+    private final List<Item> _items;
+
+    /** below this, verify one at a time */
+    private static final int MIN_BATCH = 4;
+    /** max per multi-scalar multiplication */
+    private static final int MAX_BATCH = 64;
+    private static final int ZLEN = 16;
+
+    /** l, little endian */
+    private static final byte[] ORDER = Utils.hexToBytes("edd3f55c1a631258d69cf7a2def9de1400000000000000000000000000000010");
+    /** l - 1, little endian, multiply by this to negate mod l */
+    private static final byte[] ORDER_MINUS_ONE = Utils.hexToBytes("ecd3f55c1a631258d69cf7a2def9de1400000000000000000000000000000010");
+    private static final byte[] ZERO = new byte[32];
+
+    private static class Item {
+        final EdDSAPublicKey key;
+        final byte[] data;
+        final int off, len;
+        final byte[] sig;
+        GroupElement R;
+        byte[] h, S;
+
+        Item(EdDSAPublicKey key, byte[] data, int off, int len, byte[] sig) {
+            this.key = key;
+            this.data = data;
+            this.off = off;
+            this.len = len;
+            this.sig = sig;
+        }
+    }
+
+    public EdDSABatchVerifier() {
+        this(EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519));
+    }
+
+    /**
+     * @param spec all keys must have these parameters
+     * @throws IllegalArgumentException if the hash algorithm is unavailable
+     */
+    public EdDSABatchVerifier(EdDSAParameterSpec spec) {
+        _spec = spec;
+        _curve = spec.getCurve();
+        _sc = spec.getScalarOps();
+        try {
+            _digest = MessageDigest.getInstance(spec.getHashAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported hash algorithm");
+        }
+        _items = new ArrayList<Item>();
+    }
+
+    /**
+     * @param key must have the parameters given in the constructor
+     * @param sig 64 bytes, R and S
+     * @throws IllegalArgumentException if the parameters don't match
+     */
+    public void add(EdDSAPublicKey key, byte[] data, byte[] sig) {
+        add(key, data, 0, data.length, sig);
+    }
+
+    /**
+     * The data and sig are not copied, do not change them until verify() returns.
+     *
+     * @param key must have the parameters given in the constructor
+     * @param sig 64 bytes, R and S
+     * @throws IllegalArgumentException if the parameters don't match
+     */
+    public void add(EdDSAPublicKey key, byte[] data, int off, int len, byte[] sig) {
+        if (!_spec.equals(key.getParams()))
+            throw new IllegalArgumentException("params mismatch");
+        _items.add(new Item(key, data, off, len, sig));
+    }
+
+    /**
+     * @return number added since the last clear()
+     */
+    public int size() {
+        return _items.size();
+    }
+
+    public void clear() {
+        _items.clear();
+    }
+
+    /**
+     * Verify everything added since the last clear().
+     * Does not clear.
+     *
+     * @return the result for each signature, in the order added
+     */
+    public boolean[] verify() {
+        int sz = _items.size();
+        boolean[] rv = new boolean[sz];
+        List<Item> pending = new ArrayList<Item>(sz);
+        List<Integer> indexes = new ArrayList<Integer>(sz);
+        for (int i = 0; i < sz; i++) {
+            Item item = _items.get(i);
+            if (prepare(item)) {
+                pending.add(item);
+                indexes.add(Integer.valueOf(i));
+            }
+        }
+        int count = pending.size();
+        boolean[] ok = new boolean[count];
+        for (int lo = 0; lo < count; lo += MAX_BATCH) {
+            check(pending, ok, lo, Math.min(count, lo + MAX_BATCH));
+        }
+        for (int i = 0; i < count; i++) {
+            rv[indexes.get(i).intValue()] = ok[i];
+        }
+        for (Item item : pending) {
+            item.R = null;
+        }
+        return rv;
+    }
+
+    /**
+     * Decode R and S and calculate h.
+     *
+     * @return false if the signature is invalid
+     */
+    private boolean prepare(Item item) {
+        byte[] sig = item.sig;
+        int b = _curve.getField().getb();
+        if (sig.length != b/4)
+            return false;
+        byte[] Rbyte = new byte[b/8];
+        byte[] Sbyte = new byte[b/8];
+        System.arraycopy(sig, 0, Rbyte, 0, b/8);
+        System.arraycopy(sig, b/8, Sbyte, 0, b/8);
+        // RFC 8032
+        if (!lessThan(Sbyte, ORDER))
+            return false;
+        // single verification compares the encoding of the calculated R,
+        // which is always canonical
+        if (!isCanonicalY(Rbyte))
+            return false;
+        GroupElement R;
+        try {
+            R = new GroupElement(_curve, Rbyte);
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+        // x = 0 with the sign bit set
+        if (!R.getX().isNonZero() && (Rbyte[b/8 - 1] & 0x80) != 0)
+            return false;
+        _digest.update(Rbyte);
+        _digest.update(item.key.getAbyte());
+        _digest.update(item.data, item.off, item.len);
+        item.h = _sc.reduce(_digest.digest());
+        item.S = Sbyte;
+        item.R = R;
+        return true;
+    }
+
+    /**
+     * Verify items lo to hi-1, splitting on failure.
+     */
+    private void check(List<Item> items, boolean[] ok, int lo, int hi) {
+        if (hi - lo < MIN_BATCH) {
+            for (int i = lo; i < hi; i++) {
+                ok[i] = verifyOne(items.get(i));
+            }
+        } else if (batch(items, lo, hi)) {
+            for (int i = lo; i < hi; i++) {
+                ok[i] = true;
+            }
+        } else {
+            int mid = (lo + hi) >>> 1;
+            check(items, ok, lo, mid);
+            check(items, ok, mid, hi);
+        }
+    }
+
+    /**
+     * @return true if all of items lo to hi-1 are valid
+     */
+    private boolean batch(List<Item> items, int lo, int hi) {
+        int n = hi - lo;
+        GroupElement[] P = new GroupElement[2 * n];
+        byte[][] a = new byte[2 * n][];
+        byte[] s = ZERO;
+        RandomSource rand = RandomSource.getInstance();
+        for (int i = 0; i < n; i++) {
+            Item item = items.get(lo + i);
+            byte[] z = new byte[32];
+            rand.nextBytes(z, 0, ZLEN);
+            s = _sc.multiplyAndAdd(z, item.S, s);
+            P[2*i] = item.R;
+            a[2*i] = z;
+            P[2*i + 1] = item.key.getA();
+            a[2*i + 1] = _sc.multiplyAndAdd(z, item.h, ZERO);
+        }
+        byte[] b = _sc.multiplyAndAdd(s, ORDER_MINUS_ONE, ZERO);
+        GroupElement r = _spec.getB().multiScalarMultiplyVariableTime(P, a, b);
+        // cofactor
+        r = r.dbl().toP2().dbl().toP2().dbl().toP2();
+        return r.isIdentity();
+    }
+
+    private boolean verifyOne(Item item) {
+        try {
+            EdDSAEngine engine = new EdDSAEngine(_digest);
+            engine.initVerify(item.key);
+            return engine.verifyOneShot(item.data, item.off, item.len, item.sig);
+        } catch (GeneralSecurityException gse) {
+            return false;
+        }
+    }
+
+    /**
+     * @param a little endian
+     * @param b little endian, same length
+     * @return a &lt; b
+     */
+    private static boolean lessThan(byte[] a, byte[] b) {
+        for (int i = a.length - 1; i >= 0; i--) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y)
+                return x < y;
+        }
+        return false;
+    }
+
+    /**
+     * Ed25519 only.
+     *
+     * @return y &lt; p = 2^255 - 19, ignoring the sign bit
+     */
+    private static boolean isCanonicalY(byte[] y) {
+        if ((y[31] & 0x7f) != 0x7f)
+            return true;
+        for (int i = 30; i > 0; i--) {
+            if (y[i] != (byte) 0xff)
+                return true;
+        }
+        return (y[0] & 0xff) < 0xed;
+    }
+}
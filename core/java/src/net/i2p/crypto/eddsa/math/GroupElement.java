@@ -571,14 +571,31 @@ public class GroupElement implements Serializable {
         // Precomputation for double scalar multiplication.
         // P,3P,5P,7P,9P,11P,13P,15P
         GroupElement[] dblPrecmp = new GroupElement[8];
-        GroupElement Bi = this;
-        for (int i = 0; i < 8; i++) {
-            final FieldElement recip = Bi.Z.invert();
-            final FieldElement x = Bi.X.multiply(recip);
-            final FieldElement y = Bi.Y.multiply(recip);
+        GroupElement[] Bi = new GroupElement[8];
+        Bi[0] = this;
+        final GroupElement twoB = this.dbl().toP3().toCached();
+        for (int i = 1; i < 8; i++) {
+            Bi[i] = Bi[i - 1].add(twoB).toP3();
+        }
+        // Montgomery's trick, one inversion instead of eight
+        // acc[i] = Z_0 * ... * Z_i
+        final FieldElement[] acc = new FieldElement[8];
+        acc[0] = Bi[0].Z;
+        for (int i = 1; i < 8; i++) {
+            acc[i] = acc[i - 1].multiply(Bi[i].Z);
+        }
+        FieldElement inv = acc[7].invert();
+        for (int i = 7; i >= 0; i--) {
+            final FieldElement recip;
+            if (i > 0) {
+                recip = inv.multiply(acc[i - 1]);
+                inv = inv.multiply(Bi[i].Z);
+            } else {
+                recip = inv;
+            }
+            final FieldElement x = Bi[i].X.multiply(recip);
+            final FieldElement y = Bi[i].Y.multiply(recip);
             dblPrecmp[i] = precomp(this.curve, y.add(x), y.subtract(x), x.multiply(y).multiply(this.curve.get2D()));
-            // Bi = edwards(B,edwards(B,Bi))
-            Bi = this.add(this.add(Bi.toCached()).toP3().toCached()).toP3();
         }
         return dblPrecmp;
     }
@@ -1069,6 +1086,103 @@ public class GroupElement implements Serializable {
         return r;
     }
 
+    /**
+     * $r = b * B + \sum a_i * P_i$ where $B$ is this point.
+     * <p>
+     * Straus's method, sharing one chain of doublings for all the points,
+     * with the same sliding windows as {@link #doubleScalarMultiplyVariableTime}.
+     * A table of odd multiples is calculated for each $P_i$, in CACHED representation
+     * so no inversions are required.
+     * <p>
+     * Variable time. Only for public values, e.g. batch signature verification.
+     * <p>
+     * This point must have been previously precomputed.
+     *
+     * @param P points in P3 representation
+     * @param a scalars for P, each $a[31] \le 127$
+     * @param b scalar for this point, $b[31] \le 127$
+     * @return the GroupElement in P2 representation
+     * @since 0.9.45
+     */
+    public GroupElement multiScalarMultiplyVariableTime(final GroupElement[] P, final byte[][] a, final byte[] b) {
+        final int n = P.length;
+        final byte[] bslide = slide(b);
+        final byte[][] aslide = new byte[n][];
+        final GroupElement[][] tables = new GroupElement[n][];
+        int i;
+        for (i = 255; i >= 0; --i) {
+            if (bslide[i] != 0) break;
+        }
+        int top = i;
+        for (int j = 0; j < n; j++) {
+            aslide[j] = slide(a[j]);
+            tables[j] = precomputeCached(P[j]);
+            for (i = 255; i > top; --i) {
+                if (aslide[j][i] != 0) {
+                    top = i;
+                    break;
+                }
+            }
+        }
+
+        GroupElement r = this.curve.getZero(Representation.P2);
+        for (i = top; i >= 0; --i) {
+            GroupElement t = r.dbl();
+
+            for (int j = 0; j < n; j++) {
+                final int d = aslide[j][i];
+                if (d > 0) {
+                    t = t.toP3().add(tables[j][d/2]);
+                } else if (d < 0) {
+                    t = t.toP3().sub(tables[j][(-d)/2]);
+                }
+            }
+
+            if (bslide[i] > 0) {
+                t = t.toP3().madd(this.dblPrecmp[bslide[i]/2]);
+            } else if (bslide[i] < 0) {
+                t = t.toP3().msub(this.dblPrecmp[(-bslide[i])/2]);
+            }
+
+            r = t.toP2();
+        }
+
+        return r;
+    }
+
+    /**
+     * P,3P,5P,7P,9P,11P,13P,15P in CACHED representation,
+     * for {@link #multiScalarMultiplyVariableTime(GroupElement[], byte[][], byte[])}.
+     *
+     * @param p in P3 representation
+     * @since 0.9.45
+     */
+    private static GroupElement[] precomputeCached(final GroupElement p) {
+        final GroupElement[] rv = new GroupElement[8];
+        final GroupElement p2 = p.dbl().toP3().toCached();
+        GroupElement pi = p;
+        rv[0] = p.toCached();
+        for (int i = 1; i < 8; i++) {
+            pi = pi.add(p2).toP3();
+            rv[i] = pi.toCached();
+        }
+        return rv;
+    }
+
+    /**
+     * Is this the neutral element?
+     * Variable time.
+     *
+     * @return true if $X = 0$ and $Y = Z$
+     * @throws UnsupportedOperationException if not in P2 or P3 representation
+     * @since 0.9.45
+     */
+    public boolean isIdentity() {
+        if (this.repr != Representation.P2 && this.repr != Representation.P3)
+            throw new UnsupportedOperationException();
+        return !this.X.isNonZero() && !this.Y.subtract(this.Z).isNonZero();
+    }
+
     /**
      * Verify that a point is on its curve.
      * @return true if the point lies on its curve.
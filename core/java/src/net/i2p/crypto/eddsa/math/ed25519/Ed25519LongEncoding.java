@@ -0,0 +1,101 @@
+package net.i2p.crypto.eddsa.math.ed25519;
+
+import net.i2p.crypto.eddsa.math.*;
+
+/**
+ * Helper class for encoding/decoding Ed25519LongFieldElements
+ * from/to the 32 byte little endian representation.
+ *
+ * @since 0.9.45
+ */
+public class Ed25519LongEncoding extends Encoding {
+
+    private static final long MASK51 = Ed25519LongFieldElement.MASK51;
+
+    /**
+     * Encodes a given field element in its 32 byte representation.
+     * <p>
+     * As each limb is at most $2^{51}$, the value $h$ is less than $2p$,
+     * and $q = [2^{-255} * (h + 19)]$ is 0 or 1.
+     * The result is $h - q * p = h + 19 * q - 2^{255} * q$.
+     */
+    public byte[] encode(FieldElement x) {
+        long[] h = ((Ed25519LongFieldElement)x).t;
+        long h0 = h[0];
+        long h1 = h[1];
+        long h2 = h[2];
+        long h3 = h[3];
+        long h4 = h[4];
+
+        long q = (h0 + 19) >> 51;
+        q = (h1 + q) >> 51;
+        q = (h2 + q) >> 51;
+        q = (h3 + q) >> 51;
+        q = (h4 + q) >> 51;
+
+        h0 += 19 * q;
+        h1 += h0 >> 51; h0 &= MASK51;
+        h2 += h1 >> 51; h1 &= MASK51;
+        h3 += h2 >> 51; h2 &= MASK51;
+        h4 += h3 >> 51; h3 &= MASK51;
+        // discard bit 255
+        h4 &= MASK51;
+
+        byte[] s = new byte[32];
+        store(s, 0, h0 | (h1 << 51));
+        store(s, 8, (h1 >>> 13) | (h2 << 38));
+        store(s, 16, (h2 >>> 26) | (h3 << 25));
+        store(s, 24, (h3 >>> 39) | (h4 << 12));
+        return s;
+    }
+
+    private static void store(byte[] s, int off, long v) {
+        for (int i = 0; i < 8; i++) {
+            s[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long load(byte[] in, int off) {
+        long rv = 0;
+        for (int i = 7; i >= 0; i--) {
+            rv <<= 8;
+            rv |= in[off + i] & 0xff;
+        }
+        return rv;
+    }
+
+    /**
+     * Decodes a given field element in its 5 limb $2^{51}$ representation.
+     * Bit 255 is ignored.
+     *
+     * @param in The 32 byte representation.
+     * @return The field element in its $2^{51}$ bit representation.
+     */
+    public FieldElement decode(byte[] in) {
+        long w0 = load(in, 0);
+        long w1 = load(in, 8);
+        long w2 = load(in, 16);
+        long w3 = load(in, 24);
+        long[] h = new long[5];
+        h[0] = w0 & MASK51;
+        h[1] = ((w0 >>> 51) | (w1 << 13)) & MASK51;
+        h[2] = ((w1 >>> 38) | (w2 << 26)) & MASK51;
+        h[3] = ((w2 >>> 25) | (w3 << 39)) & MASK51;
+        h[4] = (w3 >>> 12) & MASK51;
+        return new Ed25519LongFieldElement(f, h);
+    }
+
+    /**
+     * Is the FieldElement negative in this encoding?
+     * <p>
+     * Return true if $x$ is in $\{1,3,5,\dots,q-2\}$<br>
+     * Return false if $x$ is in $\{0,2,4,\dots,q-1\}$
+     *
+     * @return true if $x$ is in $\{1,3,5,\dots,q-2\}$, false otherwise.
+     */
+    public boolean isNegative(FieldElement x) {
+        byte[] s = encode(x);
+        return (s[0] & 1) != 0;
+    }
+}
@@ -0,0 +1,320 @@
+package net.i2p.crypto.eddsa.math.ed25519;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import net.i2p.crypto.eddsa.Utils;
+import net.i2p.crypto.eddsa.math.Field;
+import net.i2p.crypto.eddsa.math.FieldElement;
+
+/**
+ * Field element of the finite field $p = 2^{255} - 19$, with five 64-bit limbs.
+ * <p>
+ * An element $t$, entries $t[0] \dots t[4]$, represents the integer
+ * $t[0]+2^{51} t[1]+2^{102} t[2]+2^{153} t[3]+2^{204} t[4]$.
+ * After every operation, each $t[i]$ is non-negative and at most $2^{51}$.
+ * <p>
+ * Each 51 x 56 bit product is split into its low 53 bits, with an ordinary
+ * multiply, and the rest, with a multiply-high of one operand shifted left 11 bits.
+ * The sums of the parts fit in a long, so no 128-bit additions are needed.
+ * The multiply-high is Math.multiplyHigh() on Java 9+, which is an intrinsic,
+ * or an emulation on Java 7 and 8, which is slower than Ed25519FieldElement.
+ * <p>
+ * Used by default when Math.multiplyHigh() is available (Java 9+),
+ * otherwise Ed25519FieldElement is used.
+ * Set the system property i2p.eddsa.field to "long" or "int" to override,
+ * see EdDSANamedCurveTable.
+ *
+ * @since 0.9.45
+ */
+public class Ed25519LongFieldElement extends FieldElement {
+    private static final long serialVersionUID = 1L;
+
+    static final long MASK51 = (1L << 51) - 1;
+    private static final long MASK53 = (1L << 53) - 1;
+    /** 2p, for subtract */
+    private static final long P2_0 = 2 * (MASK51 - 18);
+    private static final long P2_N = 2 * MASK51;
+
+    private static final MethodHandle MULHI;
+    static {
+        MethodHandle mh;
+        try {
+            mh = MethodHandles.lookup().findStatic(Math.class, "multiplyHigh",
+                                                   MethodType.methodType(long.class, long.class, long.class));
+        } catch (Exception e) {
+            // Java 7 and 8
+            mh = null;
+        }
+        MULHI = mh;
+    }
+
+    /**
+     * Variable is package private for encoding.
+     */
+    final long[] t;
+
+    /**
+     * @param f The underlying field, must be the finite field with $p = 2^{255} - 19$ elements
+     * @param t 5 limbs, each $0 \le t[i] \le 2^{51}$, not copied
+     */
+    public Ed25519LongFieldElement(Field f, long[] t) {
+        super(f);
+        if (t.length != 5)
+            throw new IllegalArgumentException("Invalid radix-2^51 representation");
+        this.t = t;
+    }
+
+    /**
+     * @return true if Math.multiplyHigh() is available
+     */
+    public static boolean hasMultiplyHigh() {
+        return MULHI != null;
+    }
+
+    /**
+     * The high 64 bits of the 128 bit product.
+     */
+    static long multiplyHigh(long x, long y) {
+        if (MULHI != null) {
+            try {
+                return (long) MULHI.invokeExact(x, y);
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+        // Same as the Java 9 implementation
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    public boolean isNonZero() {
+        byte[] s = toByteArray();
+        int rv = 0;
+        for (int i = 0; i < 32; i++) {
+            rv |= s[i];
+        }
+        return rv != 0;
+    }
+
+    public FieldElement add(FieldElement val) {
+        long[] g = ((Ed25519LongFieldElement) val).t;
+        return carry(t[0] + g[0], t[1] + g[1], t[2] + g[2], t[3] + g[3], t[4] + g[4]);
+    }
+
+    public FieldElement subtract(FieldElement val) {
+        long[] g = ((Ed25519LongFieldElement) val).t;
+        return carry(t[0] + P2_0 - g[0], t[1] + P2_N - g[1], t[2] + P2_N - g[2],
+                     t[3] + P2_N - g[3], t[4] + P2_N - g[4]);
+    }
+
+    public FieldElement negate() {
+        return carry(P2_0 - t[0], P2_N - t[1], P2_N - t[2], P2_N - t[3], P2_N - t[4]);
+    }
+
+    /**
+     * Carry so that each limb is at most $2^{51}$.
+     * Inputs must be non-negative and less than $2^{63}$.
+     */
+    private FieldElement carry(long h0, long h1, long h2, long h3, long h4) {
+        long c;
+        c = h0 >>> 51; h1 += c; h0 &= MASK51;
+        c = h1 >>> 51; h2 += c; h1 &= MASK51;
+        c = h2 >>> 51; h3 += c; h2 &= MASK51;
+        c = h3 >>> 51; h4 += c; h3 &= MASK51;
+        c = h4 >>> 51; h0 += c * 19; h4 &= MASK51;
+        c = h0 >>> 51; h1 += c; h0 &= MASK51;
+        return new Ed25519LongFieldElement(f, new long[] { h0, h1, h2, h3, h4 });
+    }
+
+    /**
+     * $h = f * g$
+     */
+    public FieldElement multiply(FieldElement val) {
+        long[] g = ((Ed25519LongFieldElement) val).t;
+        long f0 = t[0], f1 = t[1], f2 = t[2], f3 = t[3], f4 = t[4];
+        // shifted for the high part
+        long s0 = f0 << 11, s1 = f1 << 11, s2 = f2 << 11, s3 = f3 << 11, s4 = f4 << 11;
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4;
+
+        // low 53 bits of each product go in limb k, the high part in limb k+1
+        long l0 = ((f0 * g0) & MASK53) + ((f1 * g4_19) & MASK53) + ((f2 * g3_19) & MASK53) +
+                  ((f3 * g2_19) & MASK53) + ((f4 * g1_19) & MASK53);
+        long h0 = multiplyHigh(s0, g0) + multiplyHigh(s1, g4_19) + multiplyHigh(s2, g3_19) +
+                  multiplyHigh(s3, g2_19) + multiplyHigh(s4, g1_19);
+        long l1 = ((f0 * g1) & MASK53) + ((f1 * g0) & MASK53) + ((f2 * g4_19) & MASK53) +
+                  ((f3 * g3_19) & MASK53) + ((f4 * g2_19) & MASK53);
+        long h1 = multiplyHigh(s0, g1) + multiplyHigh(s1, g0) + multiplyHigh(s2, g4_19) +
+                  multiplyHigh(s3, g3_19) + multiplyHigh(s4, g2_19);
+        long l2 = ((f0 * g2) & MASK53) + ((f1 * g1) & MASK53) + ((f2 * g0) & MASK53) +
+                  ((f3 * g4_19) & MASK53) + ((f4 * g3_19) & MASK53);
+        long h2 = multiplyHigh(s0, g2) + multiplyHigh(s1, g1) + multiplyHigh(s2, g0) +
+                  multiplyHigh(s3, g4_19) + multiplyHigh(s4, g3_19);
+        long l3 = ((f0 * g3) & MASK53) + ((f1 * g2) & MASK53) + ((f2 * g1) & MASK53) +
+                  ((f3 * g0) & MASK53) + ((f4 * g4_19) & MASK53);
+        long h3 = multiplyHigh(s0, g3) + multiplyHigh(s1, g2) + multiplyHigh(s2, g1) +
+                  multiplyHigh(s3, g0) + multiplyHigh(s4, g4_19);
+        long l4 = ((f0 * g4) & MASK53) + ((f1 * g3) & MASK53) + ((f2 * g2) & MASK53) +
+                  ((f3 * g1) & MASK53) + ((f4 * g0) & MASK53);
+        long h4 = multiplyHigh(s0, g4) + multiplyHigh(s1, g3) + multiplyHigh(s2, g2) +
+                  multiplyHigh(s3, g1) + multiplyHigh(s4, g0);
+
+        // 2^53 = 4 * 2^51, 2^255 = 19
+        return carry(l0 + 76 * h4, l1 + 4 * h0, l2 + 4 * h1, l3 + 4 * h2, l4 + 4 * h3);
+    }
+
+    /**
+     * $h = f * f$
+     */
+    public FieldElement square() {
+        return sq(false);
+    }
+
+    /**
+     * $h = 2 * f * f$
+     */
+    public FieldElement squareAndDouble() {
+        return sq(true);
+    }
+
+    private FieldElement sq(boolean dbl) {
+        long f0 = t[0], f1 = t[1], f2 = t[2], f3 = t[3], f4 = t[4];
+        long s0 = f0 << 11, s1 = f1 << 11, s2 = f2 << 11, s3 = f3 << 11;
+        long f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f4_2 = 2 * f4;
+        long f3_19 = 19 * f3, f4_19 = 19 * f4;
+        long f3_38 = 38 * f3, f4_38 = 38 * f4;
+
+        long l0 = ((f0 * f0) & MASK53) + ((f1 * f4_38) & MASK53) + ((f2 * f3_38) & MASK53);
+        long h0 = multiplyHigh(s0, f0) + multiplyHigh(s1, f4_38) + multiplyHigh(s2, f3_38);
+        long l1 = ((f0 * f1_2) & MASK53) + ((f2 * f4_38) & MASK53) + ((f3 * f3_19) & MASK53);
+        long h1 = multiplyHigh(s0, f1_2) + multiplyHigh(s2, f4_38) + multiplyHigh(s3, f3_19);
+        long l2 = ((f0 * f2_2) & MASK53) + ((f1 * f1) & MASK53) + ((f3 * f4_38) & MASK53);
+        long h2 = multiplyHigh(s0, f2_2) + multiplyHigh(s1, f1) + multiplyHigh(s3, f4_38);
+        long l3 = ((f0 * f3_2) & MASK53) + ((f1 * f2_2) & MASK53) + ((f4 * f4_19) & MASK53);
+        long h3 = multiplyHigh(s0, f3_2) + multiplyHigh(s1, f2_2) + multiplyHigh(f4 << 11, f4_19);
+        long l4 = ((f0 * f4_2) & MASK53) + ((f1 * f3_2) & MASK53) + ((f2 * f2) & MASK53);
+        long h4 = multiplyHigh(s0, f4_2) + multiplyHigh(s1, f3_2) + multiplyHigh(s2, f2);
+
+        long r0 = l0 + 76 * h4;
+        long r1 = l1 + 4 * h0;
+        long r2 = l2 + 4 * h1;
+        long r3 = l3 + 4 * h2;
+        long r4 = l4 + 4 * h3;
+        if (dbl) {
+            r0 += r0;
+            r1 += r1;
+            r2 += r2;
+            r3 += r3;
+            r4 += r4;
+        }
+        return carry(r0, r1, r2, r3, r4);
+    }
+
+    /**
+     * $f^{n}$ squarings
+     */
+    private FieldElement squareN(FieldElement x, int n) {
+        for (int i = 0; i < n; i++) {
+            x = x.square();
+        }
+        return x;
+    }
+
+    /**
+     * $h = f^{p-2} = f^{-1}$, same chain as Ed25519FieldElement
+     */
+    public FieldElement invert() {
+        FieldElement t0, t1, t2, t3;
+        t0 = square();                          // 2
+        t1 = squareN(t0, 2);                    // 8
+        t1 = multiply(t1);                      // 9
+        t0 = t0.multiply(t1);                   // 11
+        t2 = t0.square();                       // 22
+        t1 = t1.multiply(t2);                   // 31 = 2^5 - 2^0
+        t2 = squareN(t1, 5);                    // 2^10 - 2^5
+        t1 = t2.multiply(t1);                   // 2^10 - 2^0
+        t2 = squareN(t1, 10);                   // 2^20 - 2^10
+        t2 = t2.multiply(t1);                   // 2^20 - 2^0
+        t3 = squareN(t2, 20);                   // 2^40 - 2^20
+        t2 = t3.multiply(t2);                   // 2^40 - 2^0
+        t2 = squareN(t2, 10);                   // 2^50 - 2^10
+        t1 = t2.multiply(t1);                   // 2^50 - 2^0
+        t2 = squareN(t1, 50);                   // 2^100 - 2^50
+        t2 = t2.multiply(t1);                   // 2^100 - 2^0
+        t3 = squareN(t2, 100);                  // 2^200 - 2^100
+        t2 = t3.multiply(t2);                   // 2^200 - 2^0
+        t2 = squareN(t2, 50);                   // 2^250 - 2^50
+        t1 = t2.multiply(t1);                   // 2^250 - 2^0
+        t1 = squareN(t1, 5);                    // 2^255 - 2^5
+        return t1.multiply(t0);                 // 2^255 - 21
+    }
+
+    /**
+     * $h = f^{(p-5)/8} = f^{2^{252} - 3}$, same chain as Ed25519FieldElement
+     */
+    public FieldElement pow22523() {
+        FieldElement t0, t1, t2;
+        t0 = square();                          // 2
+        t1 = squareN(t0, 2);                    // 8
+        t1 = multiply(t1);                      // 9
+        t0 = t0.multiply(t1);                   // 11
+        t0 = t0.square();                       // 22
+        t0 = t1.multiply(t0);                   // 31 = 2^5 - 2^0
+        t1 = squareN(t0, 5);                    // 2^10 - 2^5
+        t0 = t1.multiply(t0);                   // 2^10 - 2^0
+        t1 = squareN(t0, 10);                   // 2^20 - 2^10
+        t1 = t1.multiply(t0);                   // 2^20 - 2^0
+        t2 = squareN(t1, 20);                   // 2^40 - 2^20
+        t1 = t2.multiply(t1);                   // 2^40 - 2^0
+        t1 = squareN(t1, 10);                   // 2^50 - 2^10
+        t0 = t1.multiply(t0);                   // 2^50 - 2^0
+        t1 = squareN(t0, 50);                   // 2^100 - 2^50
+        t1 = t1.multiply(t0);                   // 2^100 - 2^0
+        t2 = squareN(t1, 100);                  // 2^200 - 2^100
+        t1 = t2.multiply(t1);                   // 2^200 - 2^0
+        t1 = squareN(t1, 50);                   // 2^250 - 2^50
+        t0 = t1.multiply(t0);                   // 2^250 - 2^0
+        t0 = squareN(t0, 2);                    // 2^252 - 2^2
+        return multiply(t0);                    // 2^252 - 3
+    }
+
+    @Override
+    public FieldElement cmov(FieldElement val, int b) {
+        Ed25519LongFieldElement that = (Ed25519LongFieldElement) val;
+        long mask = -b;
+        long[] result = new long[5];
+        for (int i = 0; i < 5; i++) {
+            result[i] = this.t[i] ^ ((this.t[i] ^ that.t[i]) & mask);
+        }
+        return new Ed25519LongFieldElement(this.f, result);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toByteArray());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Ed25519LongFieldElement))
+            return false;
+        Ed25519LongFieldElement fe = (Ed25519LongFieldElement) obj;
+        return 1 == Utils.equal(toByteArray(), fe.toByteArray());
+    }
+
+    @Override
+    public String toString() {
+        return "[Ed25519LongFieldElement val=" + Utils.bytesToHex(toByteArray()) + "]";
+    }
+}
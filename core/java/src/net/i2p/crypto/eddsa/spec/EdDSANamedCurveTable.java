@@ -17,7 +17,10 @@ import java.util.Locale;
 import net.i2p.crypto.eddsa.Utils;
 import net.i2p.crypto.eddsa.math.Curve;
 import net.i2p.crypto.eddsa.math.Field;
+import net.i2p.crypto.eddsa.math.Encoding;
 import net.i2p.crypto.eddsa.math.ed25519.Ed25519LittleEndianEncoding;
+import net.i2p.crypto.eddsa.math.ed25519.Ed25519LongEncoding;
+import net.i2p.crypto.eddsa.math.ed25519.Ed25519LongFieldElement;
 import net.i2p.crypto.eddsa.math.ed25519.Ed25519ScalarOps;
 
 /**
@@ -33,10 +36,37 @@ public class EdDSANamedCurveTable {
     /** old name */
     public static final String CURVE_ED25519_SHA512 = "ed25519-sha-512";
 
+    /**
+     *  System property to select the field implementation,
+     *  "int" for Ed25519FieldElement, "long" for Ed25519LongFieldElement,
+     *  or "auto".
+     *  Read once, when this class is loaded.
+     *
+     *  @since 0.9.45
+     */
+    public static final String PROP_FIELD = "i2p.eddsa.field";
+
     private static final Field ed25519field = new Field(
                     256, // b
                     Utils.hexToBytes("edffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f"), // q
-                    new Ed25519LittleEndianEncoding());
+                    createEncoding());
+
+    /**
+     *  Ed25519LongFieldElement is only faster with Math.multiplyHigh() (Java 9+)
+     *
+     *  @since 0.9.45
+     */
+    private static Encoding createEncoding() {
+        String impl = System.getProperty(PROP_FIELD, "auto");
+        boolean useLong;
+        if (impl.equals("long"))
+            useLong = true;
+        else if (impl.equals("int"))
+            useLong = false;
+        else
+            useLong = Ed25519LongFieldElement.hasMultiplyHigh();
+        return useLong ? new Ed25519LongEncoding() : new Ed25519LittleEndianEncoding();
+    }
 
     private static final Curve ed25519curve = new Curve(ed25519field,
             Utils.hexToBytes("a3785913ca4deb75abd841414d0a700098e879777940c78c73fe6f2bee6c0352"), // d
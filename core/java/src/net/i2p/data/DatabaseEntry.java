@@ -9,12 +9,18 @@ package net.i2p.data;
  *
  */
 
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 import net.i2p.I2PAppContext;
 import net.i2p.crypto.DSAEngine;
 import net.i2p.crypto.SigAlgo;
 import net.i2p.crypto.SigType;
+import net.i2p.crypto.SigUtil;
+import net.i2p.crypto.eddsa.EdDSABatchVerifier;
 
 /**
  *<p>
@@ -252,4 +258,82 @@ public abstract class DatabaseEntry extends DataStructureImpl {
             return false;
         return DSAEngine.getInstance().verifySignature(_signature, data, spk);
     }
+
+    /**
+     * The data covered by the signature, for preverifySignatures().
+     * Same as getBytes() unless overridden.
+     *
+     * @return null on error
+     * @since 0.9.45
+     */
+    protected byte[] getSignedData() {
+        try {
+            return getBytes();
+        } catch (DataFormatException dfe) {
+            return null;
+        }
+    }
+
+    /**
+     * The key for preverifySignatures().
+     * Same as getSigningPublicKey() unless overridden.
+     *
+     * @return null if the signature must be checked by verifySignature() only
+     * @since 0.9.45
+     */
+    protected SigningPublicKey getPreverifyKey() {
+        return getSigningPublicKey();
+    }
+
+    /**
+     * The result from preverifySignatures().
+     * Subclasses that cache the result of verifySignature() should override.
+     * This implementation does nothing.
+     *
+     * @since 0.9.45
+     */
+    protected void setPreverified(boolean valid) {}
+
+    /**
+     * Verify the Ed25519 signatures of many entries at once,
+     * with EdDSABatchVerifier, and give each entry its result,
+     * so that the following verifySignature() is fast.
+     * Other signature types, and entries that don't cache the result,
+     * are skipped, and checked by verifySignature() as usual.
+     *
+     * @return the number verified
+     * @since 0.9.45
+     */
+    public static int preverifySignatures(Collection<? extends DatabaseEntry> entries) {
+        List<DatabaseEntry> batched = new ArrayList<DatabaseEntry>(entries.size());
+        EdDSABatchVerifier bv = null;
+        for (DatabaseEntry entry : entries) {
+            Signature sig = entry._signature;
+            if (sig == null || sig.getType() != SigType.EdDSA_SHA512_Ed25519)
+                continue;
+            SigningPublicKey spk = entry.getPreverifyKey();
+            if (spk == null || spk.getType() != SigType.EdDSA_SHA512_Ed25519)
+                continue;
+            byte[] data = entry.getSignedData();
+            if (data == null)
+                continue;
+            try {
+                if (bv == null)
+                    bv = new EdDSABatchVerifier();
+                bv.add(SigUtil.toJavaEdDSAKey(spk), data, sig.getData());
+            } catch (GeneralSecurityException gse) {
+                continue;
+            } catch (IllegalArgumentException iae) {
+                continue;
+            }
+            batched.add(entry);
+        }
+        if (bv == null)
+            return 0;
+        boolean[] results = bv.verify();
+        for (int i = 0; i < results.length; i++) {
+            batched.get(i).setPreverified(results[i]);
+        }
+        return results.length;
+    }
 }
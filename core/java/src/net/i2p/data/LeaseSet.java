@@ -75,6 +75,8 @@ public class LeaseSet extends DatabaseEntry {
     private List<Lease> _decryptedLeases;
     private boolean _decrypted;
     protected boolean _checked;
+    // set by preverifySignatures(), true only
+    protected volatile boolean _preverified;
     // cached byte version
     protected volatile byte _byteified[];
 
@@ -270,6 +272,8 @@ public class LeaseSet extends DatabaseEntry {
      */
     @Override
     public boolean verifySignature() {
+        if (_preverified)
+            return true;
         if (super.verifySignature())
             return true;
 
@@ -278,6 +282,19 @@ public class LeaseSet extends DatabaseEntry {
         return signedByRevoker;
     }
 
+    /**
+     * The result from DatabaseEntry.preverifySignatures().
+     * Only a valid result is kept, an invalid one is checked again
+     * by verifySignature(), which also tries the revocation key.
+     *
+     * @since 0.9.45
+     */
+    @Override
+    protected void setPreverified(boolean valid) {
+        if (valid)
+            _preverified = true;
+    }
+
     /**
      * Verify that the signature matches the lease set's destination's signing public key.
      * OR the specified revocation key.
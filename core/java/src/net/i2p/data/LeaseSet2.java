@@ -588,6 +588,8 @@ public class LeaseSet2 extends LeaseSet {
      */
     @Override
     public boolean verifySignature() {
+        if (_preverified)
+            return true;
         if (_signature == null)
             return false;
         // Disallow RSA as it's so slow it could be used as a DoS
@@ -607,21 +609,48 @@ public class LeaseSet2 extends LeaseSet {
         } else {
             spk = getSigningPublicKey();
         }
+        byte data[] = getSignedData();
+        if (data == null)
+            return false;
+        return DSAEngine.getInstance().verifySignature(_signature, data, spk);
+    }
+
+    /**
+     * Unlike LS1, the sig covers the type
+     *
+     * @return null on error
+     * @since 0.9.45
+     */
+    @Override
+    protected byte[] getSignedData() {
         int len = size();
         ByteArrayOutputStream out = new ByteArrayOutputStream(1 + len);
         try {
-            // unlike LS1, sig covers type
             out.write(getType());
             writeBytesWithoutSig(out);
         } catch (IOException ioe) {
             ioe.printStackTrace();
-            return false;
+            return null;
         } catch (DataFormatException dfe) {
             dfe.printStackTrace();
-            return false;
+            return null;
         }
-        byte data[] = out.toByteArray();
-        return DSAEngine.getInstance().verifySignature(_signature, data, spk);
+        return out.toByteArray();
+    }
+
+    /**
+     * Offline signed and encrypted LS2s are not preverified,
+     * as they require more than one signature check.
+     *
+     * @return null if offline or encrypted
+     * @since 0.9.45
+     */
+    @Override
+    protected SigningPublicKey getPreverifyKey() {
+        int type = getType();
+        if (isOffline() || (type != KEY_TYPE_LS2 && type != KEY_TYPE_META_LS2))
+            return null;
+        return getSigningPublicKey();
     }
     
     @Override
@@ -0,0 +1,157 @@
+package net.i2p.kademlia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.i2p.data.SimpleDataStructure;
+
+/**
+ *  Keeps the max keys closest to a target by the XOR metric,
+ *  in a bounded heap with the farthest kept key at the root,
+ *  so each offered key costs O(log max) instead of a sort of all of them.
+ *
+ *  The XOR distance of the first 8 bytes is computed once per key
+ *  and compared as an unsigned long; the remaining bytes are only
+ *  compared on a tie, as in XORComparator.
+ *
+ *  Not thread safe. One-shot: toList() empties the heap.
+ *
+ *  @since 0.9.45
+ */
+class ClosestHeap<T extends SimpleDataStructure> {
+    private final byte[] _base;
+    private final long _basePrefix;
+    private final int _max;
+    private long[] _dist;
+    private Object[] _keys;
+    private int _size;
+
+    /**
+     *  @param target key to compare distances with
+     *  @param max the number of keys to keep, &gt;= 0
+     */
+    public ClosestHeap(T target, int max) {
+        _base = target.getData();
+        _basePrefix = prefix(_base);
+        _max = max;
+        int sz = Math.min(max, 32);
+        _dist = new long[sz];
+        _keys = new Object[sz];
+    }
+
+    /**
+     *  Big-endian first 8 bytes, zero padded if shorter.
+     */
+    private static long prefix(byte[] data) {
+        long rv = 0;
+        int len = Math.min(8, data.length);
+        for (int i = 0; i < len; i++) {
+            rv = (rv << 8) | (data[i] & 0xff);
+        }
+        return rv << (8 * (8 - len));
+    }
+
+    /**
+     *  @return true if kept (for now)
+     */
+    public boolean add(T key) {
+        if (_max <= 0)
+            return false;
+        // flip the sign bit so a signed compare is an unsigned compare
+        long d = (prefix(key.getData()) ^ _basePrefix) ^ Long.MIN_VALUE;
+        if (_size < _max) {
+            if (_size == _dist.length) {
+                int sz = Math.min(_max, _size * 2);
+                _dist = Arrays.copyOf(_dist, sz);
+                _keys = Arrays.copyOf(_keys, sz);
+            }
+            siftUp(_size++, d, key);
+            return true;
+        }
+        // full, replace the root if closer
+        if (compare(d, key, _dist[0], _keys[0]) >= 0)
+            return false;
+        siftDown(0, d, key);
+        return true;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *  Empties the heap.
+     *  @return closest first
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> toList() {
+        Object[] rv = new Object[_size];
+        while (_size > 0) {
+            rv[_size - 1] = _keys[0];
+            int last = --_size;
+            if (last > 0)
+                siftDown(0, _dist[last], _keys[last]);
+            _keys[last] = null;
+        }
+        List<T> list = new ArrayList<T>(rv.length);
+        for (int i = 0; i < rv.length; i++) {
+            list.add((T) rv[i]);
+        }
+        return list;
+    }
+
+    /**
+     *  XOR distance order, farthest is greater.
+     */
+    private int compare(long ld, Object lhs, long rd, Object rhs) {
+        if (ld < rd)
+            return -1;
+        if (ld > rd)
+            return 1;
+        byte lhsb[] = ((SimpleDataStructure) lhs).getData();
+        byte rhsb[] = ((SimpleDataStructure) rhs).getData();
+        for (int i = 8; i < _base.length; i++) {
+            int l = (lhsb[i] ^ _base[i]) & 0xff;
+            int r = (rhsb[i] ^ _base[i]) & 0xff;
+            if (l < r)
+                return -1;
+            if (l > r)
+                return 1;
+        }
+        return 0;
+    }
+
+    private void siftUp(int i, long d, Object key) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(d, key, _dist[parent], _keys[parent]) <= 0)
+                break;
+            _dist[i] = _dist[parent];
+            _keys[i] = _keys[parent];
+            i = parent;
+        }
+        _dist[i] = d;
+        _keys[i] = key;
+    }
+
+    /**
+     *  Put the key at i or below, using _size as the heap size
+     */
+    private void siftDown(int i, long d, Object key) {
+        int half = _size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if (right < _size && compare(_dist[right], _keys[right], _dist[child], _keys[child]) > 0)
+                child = right;
+            if (compare(d, key, _dist[child], _keys[child]) >= 0)
+                break;
+            _dist[i] = _dist[child];
+            _keys[i] = _keys[child];
+            i = child;
+        }
+        _dist[i] = d;
+        _keys[i] = key;
+    }
+}
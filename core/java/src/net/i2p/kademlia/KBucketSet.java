@@ -11,20 +11,17 @@ package net.i2p.kademlia;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
 import net.i2p.data.SimpleDataStructure;
-import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 
 /**
@@ -35,6 +32,11 @@ import net.i2p.util.Log;
  * (160 for SHA1Hash or 256 for Hash),
  * times 2**(B-1) for Kademlia value B.
  *
+ * As of 0.9.45, reads do not lock. The buckets are in an array
+ * that is never modified; a split publishes a new array.
+ * getClosest() keeps the closest keys in a bounded heap
+ * instead of sorting all the candidates.
+ *
  * Refactored from net.i2p.router.networkdb.kademlia
  * @since 0.9.2 in i2psnark, moved to core in 0.9.10
  */
@@ -44,23 +46,19 @@ public class KBucketSet<T extends SimpleDataStructure> {
     private final T _us;
 
     /**
-     * The bucket list is locked by _bucketsLock, however the individual
+     * Copy-on-write. The array is never modified after it is published,
+     * splits replace it under _splitLock. The individual
      * buckets are not locked. Users may see buckets that have more than
-     * the maximum k entries, or may have adds and removes silently fail
-     * when they appear to succeed.
+     * the maximum k entries, or may have a remove silently fail
+     * when it appears to succeed, if it races with a split.
      *
      * Closest values are in bucket 0, furthest are in the last bucket.
      */
-    private final List<KBucket<T>> _buckets;
-    private final Range<T> _rangeCalc;
+    private volatile KBucket<T>[] _buckets;
     private final KBucketTrimmer<T> _trimmer;
-    
-    /**
-     *  Locked for reading only when traversing all the buckets.
-     *  Locked for writing only when splitting a bucket.
-     *  Adds/removes/gets from individual buckets are not locked.
-     */
-    private final ReentrantReadWriteLock _bucketsLock = new ReentrantReadWriteLock(false);
+
+    /** only for splits */
+    private final Object _splitLock = new Object();
 
     private final int KEYSIZE_BITS;
     private final int NUM_BUCKETS;
@@ -96,55 +94,31 @@ public class KBucketSet<T extends SimpleDataStructure> {
         NUM_BUCKETS = KEYSIZE_BITS * B_FACTOR;
         BUCKET_SIZE = max;
         _buckets = createBuckets();
-        _rangeCalc = new Range<T>(us, B_VALUE);
         // this verifies the zero-argument constructor
         makeKey(new byte[us.length()]);
     }
     
-    private void getReadLock() {
-        _bucketsLock.readLock().lock();
-    }
-
-    /**
-     *  Get the lock if we can. Non-blocking.
-     *  @return true if the lock was acquired
-     */
-    private boolean tryReadLock() {
-        return _bucketsLock.readLock().tryLock();
-    }
-
-    private void releaseReadLock() {
-        _bucketsLock.readLock().unlock();
-    }
-
-    /** @return true if the lock was acquired */
-    private boolean getWriteLock() {
-        try {
-            boolean rv = _bucketsLock.writeLock().tryLock(3000, TimeUnit.MILLISECONDS);
-            if ((!rv) && _log.shouldLog(Log.WARN))
-                _log.warn("no lock, size is: " + _bucketsLock.getQueueLength(), new Exception("rats"));
-            return rv;
-        } catch (InterruptedException ie) {}
-        return false;
-    }
-
-    private void releaseWriteLock() {
-        _bucketsLock.writeLock().unlock();
-    }
-
     /**
      * @return true if the peer is new to the bucket it goes in, or false if it was
      *  already in it. Always returns false on an attempt to add ourselves.
      *
      */
     public boolean add(T peer) {
-        KBucket<T> bucket;
-        getReadLock();
-        try {
-            bucket = getBucket(peer);
-        } finally { releaseReadLock(); }
+        KBucket<T>[] buckets = _buckets;
+        KBucket<T> bucket = getBucket(buckets, peer);
         if (bucket != null) {
             if (bucket.add(peer)) {
+                // If a split published new buckets after we picked ours,
+                // the split may have copied the old bucket before our add.
+                // Adds to the old bucket before the new array was published
+                // are picked up by the split itself.
+                if (buckets != _buckets) {
+                    KBucket<T> nb = getBucket(_buckets, peer);
+                    if (nb != bucket) {
+                        nb.add(peer);
+                        bucket = nb;
+                    }
+                }
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Peer " + peer + " added to bucket " + bucket);
                 if (shouldSplit(bucket)) {
@@ -178,30 +152,29 @@ public class KBucketSet<T extends SimpleDataStructure> {
     }
 
     /**
-     *  Grabs the write lock.
-     *  Caller must NOT have the read lock.
+     *  Grabs the split lock.
      *  The bucket should be splittable (range start != range end).
      *  @param r the range start of the bucket to be split
      */
     private void split(int r) {
-        if (!getWriteLock())
-            return;
-        try {
+        synchronized (_splitLock) {
             locked_split(r);
-        } finally { releaseWriteLock(); }
+        }
     }
 
     /**
      *  Creates two or more new buckets. The old bucket is replaced and discarded.
+     *  Publishes a new bucket array after each split.
      *
-     *  Caller must hold write lock
+     *  Caller must hold split lock
      *  The bucket should be splittable (range start != range end).
      *  @param r the range start of the bucket to be split
      */
     private void locked_split(int r) {
-        int b = pickBucket(r);
-        while (shouldSplit(_buckets.get(b))) {
-            KBucket<T> b0 = _buckets.get(b);
+        int b = pickBucket(_buckets, r);
+        while (shouldSplit(_buckets[b])) {
+            KBucket<T>[] old = _buckets;
+            KBucket<T> b0 = old[b];
             // Each bucket gets half the keyspace.
             // When B_VALUE = 1, or the bucket is larger than B_FACTOR, then
             // e.g. 0-159 => 0-158, 159-159
@@ -237,8 +210,19 @@ public class KBucketSet<T extends SimpleDataStructure> {
                 else
                     b2.add(key);
             }
-            _buckets.set(b, b1);
-            _buckets.add(b + 1, b2);
+            KBucket<T>[] buckets = newArray(old.length + 1);
+            System.arraycopy(old, 0, buckets, 0, b);
+            buckets[b] = b1;
+            buckets[b + 1] = b2;
+            System.arraycopy(old, b + 1, buckets, b + 2, old.length - (b + 1));
+            _buckets = buckets;
+            // catch adds to b0 after the copy above, before the new array was published
+            for (T key : b0.getEntries()) {
+                if (getRange(key) < s2)
+                    b1.add(key);
+                else
+                    b2.add(key);
+            }
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Split bucket at idx " + b +
                            ":\n" + b0 +
@@ -262,36 +246,32 @@ public class KBucketSet<T extends SimpleDataStructure> {
      */
     public int size() {
         int rv = 0;
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                rv += b.getKeyCount();
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : _buckets) {
+            rv += b.getKeyCount();
+        }
         return rv;
     }
     
     public boolean remove(T entry) {
-        KBucket<T> kbucket;
-        getReadLock();
-        try {
-            kbucket = getBucket(entry);
-        } finally { releaseReadLock(); }
+        KBucket<T>[] buckets = _buckets;
+        KBucket<T> kbucket = getBucket(buckets, entry);
         if (kbucket == null)  // us
             return false;
         boolean removed = kbucket.remove(entry);
+        if (buckets != _buckets) {
+            // split in progress, remove from the new bucket too
+            KBucket<T> nb = getBucket(_buckets, entry);
+            if (nb != kbucket && nb.remove(entry))
+                removed = true;
+        }
         return removed;
     }
     
     /** @since 0.8.8 */
     public void clear() {
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                b.clear();
-            }
-        } finally { releaseReadLock(); }
-        _rangeCalc.clear();
+        for (KBucket<T> b : _buckets) {
+            b.clear();
+        }
     }
     
     /**
@@ -299,12 +279,9 @@ public class KBucketSet<T extends SimpleDataStructure> {
      */
     public Set<T> getAll() {
         Set<T> all = new HashSet<T>(256);
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                all.addAll(b.getEntries());
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : _buckets) {
+            all.addAll(b.getEntries());
+        }
         return all;
     }
 
@@ -318,12 +295,9 @@ public class KBucketSet<T extends SimpleDataStructure> {
     }
     
     public void getAll(SelectionCollector<T> collector) {
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                b.getEntries(collector);
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : _buckets) {
+            b.getEntries(collector);
+        }
     }
     
     /**
@@ -341,30 +315,14 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return non-null, closest first
      */
     public List<T> getClosest(int max, Collection<T> toIgnore) {
-        List<T> rv = new ArrayList<T>(max);
+        ClosestHeap<T> heap = new ClosestHeap<T>(_us, max);
+        KBucket<T>[] buckets = _buckets;
         int count = 0;
-        getReadLock();
-        try {
-            // start at first (closest) bucket
-            for (int i = 0; i < _buckets.size() && count < max; i++) {
-                Set<T> entries = _buckets.get(i).getEntries();
-                // add the whole bucket except for ignores,
-                // extras will be trimmed after sorting
-                for (T e : entries) {
-                    if (!toIgnore.contains(e)) {
-                        rv.add(e);
-                        count++;
-                    }
-                }
-            }
-        } finally { releaseReadLock(); }
-        Comparator<T> comp = new XORComparator<T>(_us);
-        Collections.sort(rv, comp);
-        int sz = rv.size();
-        for (int i = sz - 1; i >= max; i--) {
-            rv.remove(i);
+        // start at first (closest) bucket
+        for (int i = 0; i < buckets.length && count < max; i++) {
+            count += addEntries(buckets[i], toIgnore, heap);
         }
-        return rv;
+        return heap.toList();
     }
     
     /**
@@ -384,51 +342,49 @@ public class KBucketSet<T extends SimpleDataStructure> {
     public List<T> getClosest(T key, int max, Collection<T> toIgnore) {
         if (key.equals(_us))
             return getClosest(max, toIgnore);
-        List<T> rv = new ArrayList<T>(max);
+        ClosestHeap<T> heap = new ClosestHeap<T>(key, max);
+        KBucket<T>[] buckets = _buckets;
         int count = 0;
-        getReadLock();
-        try {
-            int start = pickBucket(key);
-            // start at closest bucket, then to the smaller (closer to us) buckets
-            for (int i = start; i >= 0 && count < max; i--) {
-                Set<T> entries = _buckets.get(i).getEntries();
-                for (T e : entries) {
-                    if (!toIgnore.contains(e)) {
-                        rv.add(e);
-                        count++;
-                    }
-                }
-            }
-            // then the farther from us buckets if necessary
-            for (int i = start + 1; i < _buckets.size() && count < max; i++) {
-                Set<T> entries = _buckets.get(i).getEntries();
-                for (T e : entries) {
-                    if (!toIgnore.contains(e)) {
-                        rv.add(e);
-                        count++;
-                    }
-                }
+        int start = pickBucket(buckets, key);
+        // start at closest bucket, then to the smaller (closer to us) buckets
+        for (int i = start; i >= 0 && count < max; i--) {
+            count += addEntries(buckets[i], toIgnore, heap);
+        }
+        // then the farther from us buckets if necessary
+        for (int i = start + 1; i < buckets.length && count < max; i++) {
+            count += addEntries(buckets[i], toIgnore, heap);
+        }
+        return heap.toList();
+    }
+
+    /**
+     *  Add the whole bucket except for ignores,
+     *  the heap keeps the closest.
+     *  @return the number offered to the heap
+     *  @since 0.9.45
+     */
+    private static <T extends SimpleDataStructure> int addEntries(KBucket<T> bucket, Collection<T> toIgnore,
+                                                                  ClosestHeap<T> heap) {
+        int rv = 0;
+        for (T e : bucket.getEntries()) {
+            if (!toIgnore.contains(e)) {
+                heap.add(e);
+                rv++;
             }
-        } finally { releaseReadLock(); }
-        Comparator<T> comp = new XORComparator<T>(key);
-        Collections.sort(rv, comp);
-        int sz = rv.size();
-        for (int i = sz - 1; i >= max; i--) {
-            rv.remove(i);
         }
         return rv;
     }
 
     /**
      *  The bucket number (NOT the range number) that the xor of the key goes in
-     *  Caller must hold read lock
+     *  @param buckets the current or a previous _buckets
      *  @return 0 to max-1 or -1 for us
      */
-    private int pickBucket(T key) {
+    private int pickBucket(KBucket<T>[] buckets, T key) {
         int range = getRange(key);
         if (range < 0)
             return -1;
-        int rv = pickBucket(range);
+        int rv = pickBucket(buckets, range);
         if (rv >= 0) {
              return rv;
         }
@@ -453,53 +409,55 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return non-null
      */
     List<KBucket<T>> getBuckets() {
-        getReadLock();
-        try {
-            return new ArrayList<KBucket<T>>(_buckets);
-        } finally { releaseReadLock(); }
+        return new ArrayList<KBucket<T>>(Arrays.asList(_buckets));
     }
 
     /**
      *  The bucket that the xor of the key goes in
-     *  Caller must hold read lock
+     *  @param buckets the current or a previous _buckets
      *  @return null if key is us
      */
-    private KBucket<T> getBucket(T key) {
-       int bucket = pickBucket(key);
+    private KBucket<T> getBucket(KBucket<T>[] buckets, T key) {
+       int bucket = pickBucket(buckets, key);
        if (bucket < 0)
            return null;
-       return _buckets.get(bucket);
+       return buckets[bucket];
     }
     
     /**
      *  The bucket number that contains this range number
-     *  Caller must hold read lock or write lock
+     *  @param buckets the current or a previous _buckets
      *  @return 0 to max-1 or -1 for us
      */
-    private int pickBucket(int range) {
+    private int pickBucket(KBucket<T>[] buckets, int range) {
         // If B is small, a linear search from back to front
         // is most efficient since most of the keys are at the end...
         // If B is larger, there's a lot of sub-buckets
         // of equal size to be checked so a binary search is better
         if (B_VALUE <= 3) {
-            for (int i = _buckets.size() - 1; i >= 0; i--) {
-                KBucket<T> b = _buckets.get(i);
+            for (int i = buckets.length - 1; i >= 0; i--) {
+                KBucket<T> b = buckets[i];
                 if (range >= b.getRangeBegin() && range <= b.getRangeEnd())
                     return i;
             }
             return -1;
         } else {
             KBucket<T> dummy = new DummyBucket<T>(range);
-            return Collections.binarySearch(_buckets, dummy, new BucketComparator<T>());
+            return Arrays.binarySearch(buckets, dummy, new BucketComparator<T>());
         }
     }
 
-    private List<KBucket<T>> createBuckets() {
-        // just an initial size
-        List<KBucket<T>> buckets = new ArrayList<KBucket<T>>(4 * B_FACTOR);
-        buckets.add(createBucket(0, NUM_BUCKETS -1));
+    private KBucket<T>[] createBuckets() {
+        KBucket<T>[] buckets = newArray(1);
+        buckets[0] = createBucket(0, NUM_BUCKETS -1);
         return buckets;
     }
+
+    /** @since 0.9.45 */
+    @SuppressWarnings("unchecked")
+    private static <T extends SimpleDataStructure> KBucket<T>[] newArray(int len) {
+        return (KBucket<T>[]) new KBucket<?>[len];
+    }
     
     private KBucket<T> createBucket(int start, int end) {
         if (end - start >= B_FACTOR &&
@@ -516,7 +474,40 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return 0 to max-1 or -1 for us
      */
     int getRange(T key) {
-        return _rangeCalc.getRange(key);
+        return getRange(_us.getData(), key.getData(), B_VALUE);
+    }
+
+    /**
+     *  The range number, computed directly from the bytes,
+     *  no BigIntegers and no cache to lock.
+     *
+     *  @return 0 to max-1 or -1 for us
+     *  @since 0.9.45 replaces Range
+     */
+    static int getRange(byte[] us, byte[] key, int bValue) {
+        int len = us.length;
+        int i = 0;
+        while (i < len && us[i] == key[i]) {
+            i++;
+        }
+        if (i == len)
+            return -1;
+        int x = (us[i] ^ key[i]) & 0xff;
+        // bit number of the highest one bit in the xor, from the right
+        int highbit = (8 * (len - 1 - i)) + (31 - Integer.numberOfLeadingZeros(x));
+        if (bValue == 1)
+            return highbit;
+        int range = highbit << (bValue - 1);
+        if (highbit + 1 - bValue >= 0) {
+            // the next bValue - 1 bits below the high bit
+            int extra = 0;
+            for (int bit = highbit - 1; bit > highbit - bValue; bit--) {
+                int idx = len - 1 - (bit >> 3);
+                extra = (extra << 1) | ((((us[idx] ^ key[idx]) & 0xff) >> (bit & 7)) & 1);
+            }
+            range += extra;
+        }
+        return range;
     }
     
     /**
@@ -527,18 +518,16 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return non-null, closest first
      */
     public List<T> getExploreKeys(long age) {
-        List<T> rv = new ArrayList<T>(_buckets.size());
+        KBucket<T>[] buckets = _buckets;
+        List<T> rv = new ArrayList<T>(buckets.length);
         long old = _context.clock().now() - age;
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                int curSize = b.getKeyCount();
-                // Always explore the closest bucket
-                if ((b.getRangeBegin() == 0) ||
-                    (b.getLastChanged() < old || curSize < BUCKET_SIZE * 3 / 4))
-                    rv.add(generateRandomKey(b));
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : buckets) {
+            int curSize = b.getKeyCount();
+            // Always explore the closest bucket
+            if ((b.getRangeBegin() == 0) ||
+                (b.getLastChanged() < old || curSize < BUCKET_SIZE * 3 / 4))
+                rv.add(generateRandomKey(b));
+        }
         return rv;
     }
     
@@ -658,55 +647,8 @@ public class KBucketSet<T extends SimpleDataStructure> {
         return rv;
     }
 
-    private static class Range<T extends SimpleDataStructure> {
-        private final int _bValue;
-        private final BigInteger _bigUs;
-        private final Map<T, Integer> _distanceCache;
-
-        public Range(T us, int bValue) {
-            _bValue = bValue;
-            _bigUs = new BigInteger(1, us.getData());
-            _distanceCache = new LHMCache<T, Integer>(256);
-        }
-
-        /** @return 0 to max-1 or -1 for us */
-        public int getRange(T key) {
-            Integer rv;
-            synchronized (_distanceCache) {
-                rv = _distanceCache.get(key);
-                if (rv == null) {
-                    // easy way when _bValue == 1
-                    //rv = Integer.valueOf(_bigUs.xor(new BigInteger(1, key.getData())).bitLength() - 1);
-                    BigInteger xor = _bigUs.xor(new BigInteger(1, key.getData()));
-                    int range = xor.bitLength() - 1;
-                    if (_bValue > 1) {
-                        int toShift = range + 1 - _bValue;
-                        int highbit = range;
-                        range <<= _bValue - 1;
-                        if (toShift >= 0) {
-                            int extra = xor.clearBit(highbit).shiftRight(toShift).intValue();
-                            range += extra;
-                            //Log log = I2PAppContext.getGlobalContext().logManager().getLog(KBucketSet.class);
-                            //if (log.shouldLog(Log.DEBUG))
-                            //    log.debug("highbit " + highbit + " toshift " + toShift + " extra " + extra + " new " + range);
-                        }
-                    }
-                    rv = Integer.valueOf(range);
-                    _distanceCache.put(key, rv);
-                }
-            }
-            return rv.intValue();
-        }
-
-        public void clear() {
-            synchronized (_distanceCache) {
-                _distanceCache.clear();
-            }
-        }
-    }
-
     /**
-     *  For Collections.binarySearch.
+     *  For Arrays.binarySearch.
      *  getRangeBegin == getRangeEnd.
      */
     private static class DummyBucket<T extends SimpleDataStructure> implements KBucket<T> {
@@ -749,7 +691,7 @@ public class KBucketSet<T extends SimpleDataStructure> {
     }
 
     /**
-     *  For Collections.binarySearch.
+     *  For Arrays.binarySearch.
      *  Returns equal for any overlap.
      */
     private static class BucketComparator<T extends SimpleDataStructure> implements Comparator<KBucket<T>>, Serializable {
@@ -764,22 +706,20 @@ public class KBucketSet<T extends SimpleDataStructure> {
 
     @Override
     public String toString() {
+        KBucket<T>[] buckets = _buckets;
         StringBuilder buf = new StringBuilder(1024);
         buf.append("<div class=\"debug_container buckets\">");
         buf.append("<hr><b>Bucket set rooted on:</b> ").append(_us.toString())
            .append(" K=").append(BUCKET_SIZE)
            .append(" B=").append(B_VALUE)
            .append(" with ").append(size())
-           .append(" keys in ").append(_buckets.size()).append(" buckets:<br>\n");
-        getReadLock();
-        try {
-            int len = _buckets.size();
-            for (int i = 0; i < len; i++) {
-                KBucket<T> b = _buckets.get(i);
-                buf.append("<b>Bucket ").append(i).append("/").append(len).append(":</b> ");
-                buf.append(b.toString()).append("<br>\n");
-            }
-        } finally { releaseReadLock(); }
+           .append(" keys in ").append(buckets.length).append(" buckets:<br>\n");
+        int len = buckets.length;
+        for (int i = 0; i < len; i++) {
+            KBucket<T> b = buckets[i];
+            buf.append("<b>Bucket ").append(i).append("/").append(len).append(":</b> ");
+            buf.append(b.toString()).append("<br>\n");
+        }
         buf.append("</div>");
         return buf.toString();
     }
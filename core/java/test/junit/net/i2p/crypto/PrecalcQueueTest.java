@@ -0,0 +1,72 @@
+package net.i2p.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+
+import org.junit.Test;
+
+/**
+ * Check that the queue fills in the background, and counts hits and misses.
+ */
+public class PrecalcQueueTest {
+
+    private static class Counter implements PrecalcQueue.Generator<Integer> {
+        final AtomicInteger count = new AtomicInteger();
+
+        public Integer generate() {
+            return Integer.valueOf(count.incrementAndGet());
+        }
+    }
+
+    private static void waitForSize(PrecalcQueue<?> q, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && q.size() < size; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testNotStarted() {
+        Counter c = new Counter();
+        PrecalcQueue<Integer> q = new PrecalcQueue<Integer>(I2PAppContext.getGlobalContext(), "test1", c, 5, 10, 0);
+        assertNull(q.poll());
+        assertEquals(1, q.get().intValue());
+        assertEquals(0, q.size());
+        assertEquals(0, q.getHits());
+        assertEquals(2, q.getMisses());
+    }
+
+    @Test
+    public void testFill() throws Exception {
+        Counter c = new Counter();
+        PrecalcQueue<Integer> q = new PrecalcQueue<Integer>(I2PAppContext.getGlobalContext(), "test2", c, 5, 10, 0);
+        q.start();
+        waitForSize(q, 10);
+        assertEquals(10, q.size());
+        for (int i = 0; i < 6; i++) {
+            assertNotNull(q.poll());
+        }
+        assertEquals(6, q.getHits());
+        // below the minimum, refills to the max
+        waitForSize(q, 10);
+        assertEquals(10, q.size());
+        assertEquals(16, c.count.get());
+        q.shutdown();
+        assertEquals(0, q.size());
+        assertEquals(17, q.get().intValue());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Counter c = new Counter();
+        PrecalcQueue<Integer> q = new PrecalcQueue<Integer>(I2PAppContext.getGlobalContext(), "test3", c, 0, 10, 0);
+        q.start();
+        Thread.sleep(200);
+        assertEquals(0, q.size());
+        assertNotNull(q.get());
+        Thread.sleep(200);
+        assertEquals(0, q.size());
+    }
+}
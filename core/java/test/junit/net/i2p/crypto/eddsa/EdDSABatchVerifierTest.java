@@ -0,0 +1,134 @@
+package net.i2p.crypto.eddsa;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import net.i2p.crypto.eddsa.math.GroupElement;
+import net.i2p.crypto.eddsa.math.ScalarOps;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Check the batch results against single verification.
+ *
+ * @since 0.9.45
+ */
+public class EdDSABatchVerifierTest {
+
+    private static final EdDSAParameterSpec SPEC = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
+    private static final int COUNT = 40;
+
+    private final Random _rand = new Random(1234);
+    private final EdDSAPrivateKey[] _priv = new EdDSAPrivateKey[COUNT];
+    private final EdDSAPublicKey[] _pub = new EdDSAPublicKey[COUNT];
+    private final byte[][] _data = new byte[COUNT][];
+    private final byte[][] _sig = new byte[COUNT][];
+
+    public EdDSABatchVerifierTest() throws Exception {
+        EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance(SPEC.getHashAlgorithm()));
+        for (int i = 0; i < COUNT; i++) {
+            byte[] seed = new byte[32];
+            _rand.nextBytes(seed);
+            EdDSAPrivateKeySpec spec = new EdDSAPrivateKeySpec(seed, SPEC);
+            _priv[i] = new EdDSAPrivateKey(spec);
+            _pub[i] = new EdDSAPublicKey(new EdDSAPublicKeySpec(spec.getA(), SPEC));
+            _data[i] = new byte[_rand.nextInt(1000)];
+            _rand.nextBytes(_data[i]);
+            engine.initSign(_priv[i]);
+            _sig[i] = engine.signOneShot(_data[i]);
+        }
+    }
+
+    private boolean[] verify() {
+        EdDSABatchVerifier bv = new EdDSABatchVerifier();
+        for (int i = 0; i < COUNT; i++) {
+            bv.add(_pub[i], _data[i], _sig[i]);
+        }
+        assertEquals(COUNT, bv.size());
+        return bv.verify();
+    }
+
+    @Test
+    public void testValid() {
+        boolean[] results = verify();
+        for (int i = 0; i < COUNT; i++) {
+            assertTrue(results[i]);
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        _data[3][0] ^= 1;
+        _sig[17][5] ^= 1;
+        _sig[18][40] ^= 1;
+        _sig[39] = new byte[63];
+        // wrong key
+        _pub[25] = _pub[26];
+        boolean[] results = verify();
+        for (int i = 0; i < COUNT; i++) {
+            boolean bad = i == 3 || i == 17 || i == 18 || i == 25 || i == 39;
+            assertEquals("sig " + i, !bad, results[i]);
+        }
+    }
+
+    /**
+     * S + l is rejected, as in single verification
+     */
+    @Test
+    public void testNonCanonicalS() {
+        byte[] s = new byte[32];
+        System.arraycopy(_sig[7], 32, s, 0, 32);
+        int carry = 0;
+        byte[] l = Utils.hexToBytes("edd3f55c1a631258d69cf7a2def9de1400000000000000000000000000000010");
+        for (int i = 0; i < 32; i++) {
+            int sum = (s[i] & 0xff) + (l[i] & 0xff) + carry;
+            _sig[7][32 + i] = (byte) sum;
+            carry = sum >> 8;
+        }
+        boolean[] results = verify();
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals("sig " + i, i != 7, results[i]);
+        }
+    }
+
+    /**
+     * A signature with a small-order component in R, made by the holder
+     * of the private key, passes the cofactored batch check but not
+     * single verification. See the class javadoc.
+     */
+    @Test
+    public void testSmallOrder() throws Exception {
+        int i = 11;
+        ScalarOps sc = SPEC.getScalarOps();
+        MessageDigest md = MessageDigest.getInstance(SPEC.getHashAlgorithm());
+        byte[] r = new byte[64];
+        _rand.nextBytes(r);
+        r = sc.reduce(r);
+        // (0, -1), order 2
+        byte[] tbytes = Utils.hexToBytes("ecffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f");
+        GroupElement t = new GroupElement(SPEC.getCurve(), tbytes);
+        GroupElement rr = SPEC.getB().scalarMultiply(r).add(t.toCached()).toP3();
+        byte[] rbytes = rr.toByteArray();
+        md.update(rbytes);
+        md.update(_pub[i].getAbyte());
+        md.update(_data[i]);
+        byte[] h = sc.reduce(md.digest());
+        byte[] s = sc.multiplyAndAdd(h, _priv[i].geta(), r);
+        System.arraycopy(rbytes, 0, _sig[i], 0, 32);
+        System.arraycopy(s, 0, _sig[i], 32, 32);
+
+        EdDSAEngine engine = new EdDSAEngine(md);
+        engine.initVerify(_pub[i]);
+        assertFalse(engine.verifyOneShot(_data[i], _sig[i]));
+        boolean[] results = verify();
+        for (int j = 0; j < COUNT; j++) {
+            assertTrue(results[j]);
+        }
+    }
+}
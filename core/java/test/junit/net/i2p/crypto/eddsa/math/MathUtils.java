@@ -110,7 +110,7 @@ public class MathUtils {
      * @return The field element.
      */
     public static FieldElement toFieldElement(final BigInteger b) {
-        return getField().getEncoding().decode(toByteArray(b));
+        return curve.getField().getEncoding().decode(toByteArray(b));
     }
 
     /**
@@ -237,7 +237,7 @@ public class MathUtils {
             x = x.negate().mod(getQ());
         }
 
-        return GroupElement.p3(curve, toFieldElement(x), toFieldElement(y), getField().ONE, toFieldElement(x.multiply(y).mod(getQ())));
+        return GroupElement.p3(curve, toFieldElement(x), toFieldElement(y), curve.getField().ONE, toFieldElement(x.multiply(y).mod(getQ())));
     }
 
     /**
@@ -287,34 +287,34 @@ public class MathUtils {
                         curve,
                         toFieldElement(x),
                         toFieldElement(y),
-                        getField().ONE);
+                        curve.getField().ONE);
             case P3:
                 return GroupElement.p3(
                         curve,
                         toFieldElement(x),
                         toFieldElement(y),
-                        getField().ONE,
+                        curve.getField().ONE,
                         toFieldElement(x.multiply(y).mod(getQ())), false);
             case P3PrecomputedDouble:
                 return GroupElement.p3(
                         curve,
                         toFieldElement(x),
                         toFieldElement(y),
-                        getField().ONE,
+                        curve.getField().ONE,
                         toFieldElement(x.multiply(y).mod(getQ())), true);
             case P1P1:
                 return GroupElement.p1p1(
                         curve,
                         toFieldElement(x),
                         toFieldElement(y),
-                        getField().ONE,
-                        getField().ONE);
+                        curve.getField().ONE,
+                        curve.getField().ONE);
             case CACHED:
                 return GroupElement.cached(
                         curve,
                         toFieldElement(y.add(x).mod(getQ())),
                         toFieldElement(y.subtract(x).mod(getQ())),
-                        getField().ONE,
+                        curve.getField().ONE,
                         toFieldElement(d.multiply(new BigInteger("2")).multiply(x).multiply(y).mod(getQ())));
             case PRECOMP:
                 return GroupElement.precomp(
@@ -371,7 +371,7 @@ public class MathUtils {
                 .multiply(BigInteger.ONE.subtract(dx1x2y1y2).modInverse(getQ())).mod(getQ());
         BigInteger t3 = x3.multiply(y3).mod(getQ());
 
-        return GroupElement.p3(g1.getCurve(), toFieldElement(x3), toFieldElement(y3), getField().ONE, toFieldElement(t3));
+        return GroupElement.p3(g1.getCurve(), toFieldElement(x3), toFieldElement(y3), curve.getField().ONE, toFieldElement(t3));
     }
 
     /**
@@ -0,0 +1,132 @@
+package net.i2p.crypto.eddsa.math.ed25519;
+
+import net.i2p.crypto.eddsa.Utils;
+import net.i2p.crypto.eddsa.math.*;
+import org.hamcrest.core.*;
+import org.junit.*;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Tests rely on the BigInteger class,
+ * and compare against Ed25519FieldElement.
+ *
+ * @since 0.9.45
+ */
+public class Ed25519LongFieldElementTest extends AbstractFieldElementTest {
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final long MAX_LIMB = 1L << 51;
+    private static final Field LONG_FIELD = new Field(
+                256, // b
+                Utils.hexToBytes("edffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f"), // q
+                new Ed25519LongEncoding());
+
+    /**
+     * Random limbs, some of them at the maximum.
+     */
+    protected FieldElement getRandomFieldElement() {
+        final long[] t = new long[5];
+        for (int j = 0; j < 5; j++) {
+            t[j] = random.nextInt(8) == 0 ? MAX_LIMB : random.nextLong() & (MAX_LIMB - 1);
+        }
+        return new Ed25519LongFieldElement(getField(), t);
+    }
+
+    protected BigInteger toBigInteger(FieldElement f) {
+        return MathUtils.toBigInteger(f);
+    }
+
+    protected BigInteger getQ() {
+        return MathUtils.getQ();
+    }
+
+    protected Field getField() {
+        return LONG_FIELD;
+    }
+
+    protected FieldElement getZeroFieldElement() {
+        return new Ed25519LongFieldElement(getField(), new long[5]);
+    }
+
+    protected FieldElement getNonZeroFieldElement() {
+        final long[] t = new long[5];
+        t[0] = 5;
+        return new Ed25519LongFieldElement(getField(), t);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void cannotConstructFieldElementFromArrayWithIncorrectLength() {
+        new Ed25519LongFieldElement(getField(), new long[4]);
+    }
+
+    @Test
+    public void multiplyHighReturnsCorrectResult() {
+        for (int i = 0; i < 1000; i++) {
+            long x = random.nextLong();
+            long y = random.nextLong();
+            BigInteger expected = BigInteger.valueOf(x).multiply(BigInteger.valueOf(y)).shiftRight(64);
+            Assert.assertThat(Ed25519LongFieldElement.multiplyHigh(x, y), IsEqual.equalTo(expected.longValue()));
+        }
+    }
+
+    @Test
+    public void encodeReducesValuesNearQ() {
+        final BigInteger q = getQ();
+        final BigInteger[] vals = {
+            q.subtract(BigInteger.ONE), q, q.add(BigInteger.ONE),
+            BigInteger.ONE.shiftLeft(255).subtract(BigInteger.ONE)
+        };
+        for (BigInteger v : vals) {
+            final FieldElement f = getField().getEncoding().decode(MathUtils.toByteArray(v));
+            Assert.assertThat(toBigInteger(f), IsEqual.equalTo(v.mod(q)));
+        }
+    }
+
+    @Test
+    public void operationsMatchEd25519FieldElement() {
+        final Field intField = MathUtils.getField();
+        for (int i = 0; i < 1000; i++) {
+            final FieldElement f = getRandomFieldElement();
+            final FieldElement g = getRandomFieldElement();
+            final FieldElement fi = intField.getEncoding().decode(f.toByteArray());
+            final FieldElement gi = intField.getEncoding().decode(g.toByteArray());
+            assertSame(f.add(g), fi.add(gi));
+            assertSame(f.subtract(g), fi.subtract(gi));
+            assertSame(f.negate(), fi.negate());
+            assertSame(f.multiply(g), fi.multiply(gi));
+            assertSame(f.square(), fi.square());
+            assertSame(f.squareAndDouble(), fi.squareAndDouble());
+            // chained, to check the limb bounds are kept
+            assertSame(f.multiply(g).square().subtract(g).multiply(f.add(g)),
+                       fi.multiply(gi).square().subtract(gi).multiply(fi.add(gi)));
+            Assert.assertThat(getField().getEncoding().isNegative(f),
+                              IsEqual.equalTo(intField.getEncoding().isNegative(fi)));
+        }
+        final FieldElement f = getRandomFieldElement();
+        final FieldElement fi = intField.getEncoding().decode(f.toByteArray());
+        assertSame(f.invert(), fi.invert());
+        assertSame(f.pow22523(), fi.pow22523());
+    }
+
+    private static void assertSame(FieldElement f, FieldElement g) {
+        Assert.assertArrayEquals(g.toByteArray(), f.toByteArray());
+    }
+
+    @Test
+    public void toStringReturnsCorrectRepresentation() {
+        final byte[] bytes = new byte[32];
+        for (int i=0; i<32; i++) {
+            bytes[i] = (byte)(i+1);
+        }
+        final FieldElement f = getField().getEncoding().decode(bytes);
+        final StringBuilder builder = new StringBuilder();
+        builder.append("[Ed25519LongFieldElement val=");
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        builder.append("]");
+        Assert.assertThat(f.toString(), IsEqual.equalTo(builder.toString()));
+    }
+}
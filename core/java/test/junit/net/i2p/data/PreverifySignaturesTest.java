@@ -0,0 +1,73 @@
+package net.i2p.data;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import net.i2p.crypto.KeyGenerator;
+import net.i2p.crypto.SigType;
+import net.i2p.util.RandomSource;
+
+import org.junit.Test;
+
+/**
+ * DatabaseEntry.preverifySignatures() with LeaseSet2s
+ *
+ * @since 0.9.45
+ */
+public class PreverifySignaturesTest {
+
+    private static LeaseSet2 createLS2() throws Exception {
+        RandomSource rand = RandomSource.getInstance();
+        SimpleDataStructure[] skeys = KeyGenerator.getInstance().generateSigningKeys(SigType.EdDSA_SHA512_Ed25519);
+        SigningPublicKey spub = (SigningPublicKey) skeys[0];
+        SigningPrivateKey spriv = (SigningPrivateKey) skeys[1];
+        SimpleDataStructure[] ekeys = KeyGenerator.getInstance().generatePKIKeys();
+        Destination dest = new Destination();
+        dest.setPublicKey((PublicKey) ekeys[0]);
+        dest.setSigningPublicKey(spub);
+        byte[] pad = new byte[128 - spub.length()];
+        rand.nextBytes(pad);
+        dest.setPadding(pad);
+        dest.setCertificate(new KeyCertificate(SigType.EdDSA_SHA512_Ed25519));
+
+        LeaseSet2 ls2 = new LeaseSet2();
+        Lease2 l2 = new Lease2();
+        l2.setEndDate(new Date(System.currentTimeMillis() + 10*60*1000));
+        byte[] gw = new byte[32];
+        rand.nextBytes(gw);
+        l2.setGateway(new Hash(gw));
+        l2.setTunnelId(new TunnelId(1 + rand.nextLong(TunnelId.MAX_ID_VALUE)));
+        ls2.addLease(l2);
+        ls2.setDestination(dest);
+        ls2.addEncryptionKey((PublicKey) ekeys[0]);
+        ls2.sign(spriv);
+        return ls2;
+    }
+
+    /** @return a copy with one bit of the signature changed */
+    private static LeaseSet2 corrupt(LeaseSet2 ls2) throws Exception {
+        byte[] b = ls2.toByteArray();
+        b[b.length - 1] ^= 1;
+        LeaseSet2 rv = new LeaseSet2();
+        rv.readBytes(new ByteArrayInputStream(b));
+        return rv;
+    }
+
+    @Test
+    public void testLS2() throws Exception {
+        List<LeaseSet2> list = new ArrayList<LeaseSet2>();
+        for (int i = 0; i < 8; i++) {
+            list.add(createLS2());
+        }
+        list.set(5, corrupt(list.get(5)));
+        assertEquals(8, DatabaseEntry.preverifySignatures(list));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i != 5, list.get(i)._preverified);
+            assertEquals(i != 5, list.get(i).verifySignature());
+        }
+    }
+}
@@ -8,6 +8,9 @@ package net.i2p.kademlia;
  *
  */
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import junit.framework.TestCase;
 import net.i2p.I2PAppContext;
@@ -158,4 +161,84 @@ public class KBucketSetTest extends TestCase{
             assertTrue(c.size() == i);
         }
     }
+
+    /** @since 0.9.45 */
+    public void testClosestOrder() {
+        byte val[] = new byte[Hash.HASH_LENGTH];
+        for (int i = 0; i < 50; i++) {
+            context.random().nextBytes(val);
+            Hash h = new Hash(val);
+            List<Hash> c = set.getClosest(h, 10);
+            assertEquals(10, c.size());
+            List<Hash> sorted = new ArrayList<Hash>(c);
+            Collections.sort(sorted, new XORComparator<Hash>(h));
+            assertEquals(sorted, c);
+        }
+        List<Hash> c = set.getClosest(20);
+        List<Hash> sorted = new ArrayList<Hash>(c);
+        Collections.sort(sorted, new XORComparator<Hash>(usHash));
+        assertEquals(sorted, c);
+        assertFalse(c.contains(usHash));
+    }
+
+    /** @since 0.9.45 */
+    public void testClosestHeap() {
+        List<Hash> all = new ArrayList<Hash>(set.getAll());
+        byte val[] = new byte[Hash.HASH_LENGTH];
+        context.random().nextBytes(val);
+        // same first 8 bytes as the target, to test the tie-break
+        for (int i = 0; i < 20; i++) {
+            byte[] b = new byte[Hash.HASH_LENGTH];
+            context.random().nextBytes(b);
+            System.arraycopy(val, 0, b, 0, 8);
+            all.add(new Hash(b));
+        }
+        Hash target = new Hash(val);
+        for (int max : new int[] { 0, 1, 7, 64, all.size() + 5 }) {
+            ClosestHeap<Hash> heap = new ClosestHeap<Hash>(target, max);
+            for (Hash h : all) {
+                heap.add(h);
+            }
+            List<Hash> sorted = new ArrayList<Hash>(all);
+            Collections.sort(sorted, new XORComparator<Hash>(target));
+            if (max < sorted.size())
+                sorted = sorted.subList(0, max);
+            assertEquals(sorted, heap.toList());
+        }
+    }
+
+    /** @since 0.9.45 */
+    public void testRange() {
+        byte[] us = usHash.getData();
+        BigInteger bigUs = new BigInteger(1, us);
+        for (int b = 1; b <= 8; b++) {
+            assertEquals(-1, KBucketSet.getRange(us, us.clone(), b));
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = new byte[Hash.HASH_LENGTH];
+                context.random().nextBytes(key);
+                // vary the distance
+                int same = context.random().nextInt(Hash.HASH_LENGTH);
+                System.arraycopy(us, 0, key, 0, same);
+                if (key[same] == us[same])
+                    key[same] ^= 1 << context.random().nextInt(8);
+                assertEquals(referenceRange(bigUs, key, b), KBucketSet.getRange(us, key, b));
+            }
+        }
+    }
+
+    /** the pre-0.9.45 BigInteger range calculation */
+    private static int referenceRange(BigInteger bigUs, byte[] key, int bValue) {
+        BigInteger xor = bigUs.xor(new BigInteger(1, key));
+        int range = xor.bitLength() - 1;
+        if (bValue > 1) {
+            int toShift = range + 1 - bValue;
+            int highbit = range;
+            range <<= bValue - 1;
+            if (toShift >= 0) {
+                int extra = xor.clearBit(highbit).shiftRight(toShift).intValue();
+                range += extra;
+            }
+        }
+        return range;
+    }
 }
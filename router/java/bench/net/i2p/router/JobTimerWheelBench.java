@@ -0,0 +1,128 @@
+package net.i2p.router;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare the JobQueue timed job stores, TreeSet vs. JobTimerWheel,
+ * for the requeue operation (remove and re-add with a new time),
+ * and for a pumper cycle (add a short-delay job and expire due jobs).
+ *
+ * As in JobQueue, operations are done while holding a lock.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JobTimerWheelBench {
+    private static final long BASE = 1500000000000L;
+
+    @Param({"1000", "10000", "100000"})
+    public int queued;
+
+    @Param({"treeset", "wheel"})
+    public String store;
+
+    private final Object _lock = new Object();
+    private RouterContext ctx;
+    private Set<Job> timedJobs;
+    private JobTimerWheel wheel;
+    private Job[] jobs;
+    private Random rand;
+    private long now;
+    private List<Job> ready;
+
+    private static class BenchJob extends JobImpl {
+        public BenchJob(RouterContext ctx, long start) {
+            super(ctx);
+            getTiming().setStartAfter(start);
+        }
+        public String getName() { return "Bench job"; }
+        public void runJob() {}
+    }
+
+    @Setup
+    public void prepare() {
+        ctx = new RouterContext(null);
+        rand = new Random(1234);
+        now = BASE;
+        ready = new ArrayList<Job>();
+        if (store.equals("wheel")) {
+            wheel = new JobTimerWheel(now);
+            timedJobs = wheel;
+        } else {
+            timedJobs = new TreeSet<Job>(new JobQueue.JobComparator());
+        }
+        jobs = new Job[queued];
+        for (int i = 0; i < queued; i++) {
+            // delays from a second to an hour, far enough out that none expire
+            jobs[i] = new BenchJob(ctx, BASE + 24*60*60*1000L + 1000 + rand.nextInt(60*60*1000));
+            timedJobs.add(jobs[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean requeue() {
+        Job j = jobs[rand.nextInt(queued)];
+        synchronized (_lock) {
+            timedJobs.remove(j);
+            j.getTiming().setStartAfter(BASE + 24*60*60*1000L + 1000 + rand.nextInt(60*60*1000));
+            return timedJobs.add(j);
+        }
+    }
+
+    @Benchmark
+    public int addAndPump() {
+        now += 1;
+        Job j = new BenchJob(ctx, now + rand.nextInt(2000));
+        synchronized (_lock) {
+            timedJobs.add(j);
+            ready.clear();
+            if (wheel != null)
+                return wheel.expire(now, ready);
+            int rv = 0;
+            for (Iterator<Job> iter = timedJobs.iterator(); iter.hasNext(); ) {
+                Job next = iter.next();
+                if (next.getTiming().getStartAfter() > now)
+                    break;
+                iter.remove();
+                ready.add(next);
+                rv++;
+            }
+            return rv;
+        }
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JobTimerWheelBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,159 @@
+package net.i2p.router.crypto;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Inbound tags in the TransientSessionKeyManager, with the original
+ * HashMap store and with router.compactSessionTags=true.
+ *
+ * consumeMiss looks up unknown tags, as for every new ElGamal session.
+ * receiveConsume receives a TagSet of 40 tags and consumes them all.
+ *
+ * Run main() with "memory" as the argument for the approximate
+ * heap bytes per tag instead.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionTagStoreBench {
+
+    @Param({"map", "compact"})
+    public String impl;
+
+    @Param({"100000"})
+    public int size;
+
+    private static final int TAGS = TransientSessionKeyManager.DEFAULT_TAGS;
+
+    private TransientSessionKeyManager skm;
+    private SessionKey key;
+    private SessionTag[] unknown;
+    private int nextUnknown;
+    private long counter;
+
+    @Setup
+    public void prepare() {
+        skm = newSKM(impl.equals("compact"));
+        key = new SessionKey(new byte[SessionKey.KEYSIZE_BYTES]);
+        fill(skm, key, size, 1234);
+        unknown = new SessionTag[1024];
+        for (int i = 0; i < unknown.length; i++) {
+            unknown[i] = new SessionTag();
+        }
+        counter = size;
+    }
+
+    @TearDown
+    public void shutdown() {
+        skm.shutdown();
+    }
+
+    private static TransientSessionKeyManager newSKM(boolean compact) {
+        System.setProperty(TransientSessionKeyManager.PROP_COMPACT_TAGS, Boolean.toString(compact));
+        return new TransientSessionKeyManager(I2PAppContext.getGlobalContext());
+    }
+
+    private static void fill(TransientSessionKeyManager skm, SessionKey key, int size, long seed) {
+        Random rnd = new Random(seed);
+        for (int i = 0; i < size; i += TAGS) {
+            Set<SessionTag> tags = new HashSet<SessionTag>(TAGS);
+            for (int j = 0; j < TAGS; j++) {
+                byte[] data = new byte[SessionTag.BYTE_LENGTH];
+                rnd.nextBytes(data);
+                tags.add(new SessionTag(data));
+            }
+            skm.tagsReceived(key, tags);
+        }
+    }
+
+    @Benchmark
+    public SessionKey consumeMiss() {
+        return skm.consumeTag(unknown[nextUnknown++ & (unknown.length - 1)]);
+    }
+
+    @Benchmark
+    public int receiveConsume() {
+        SessionTag[] tags = new SessionTag[TAGS];
+        Set<SessionTag> set = new HashSet<SessionTag>(TAGS);
+        for (int i = 0; i < TAGS; i++) {
+            byte[] data = new byte[SessionTag.BYTE_LENGTH];
+            DataHelper.toLong(data, 0, 8, counter++);
+            tags[i] = new SessionTag(data);
+            set.add(tags[i]);
+        }
+        skm.tagsReceived(key, set);
+        int rv = 0;
+        for (int i = 0; i < TAGS; i++) {
+            if (skm.consumeTag(tags[i]) != null)
+                rv++;
+        }
+        return rv;
+    }
+
+    /**
+     *  Approximate, from the used heap after GC
+     */
+    private static void memory(int size) {
+        SessionKey key = new SessionKey(new byte[SessionKey.KEYSIZE_BYTES]);
+        for (int i = 0; i < 2; i++) {
+            boolean compact = i == 1;
+            long base = used();
+            TransientSessionKeyManager skm = newSKM(compact);
+            fill(skm, key, size, 1234);
+            long bytes = used() - base;
+            System.out.println((compact ? "compact: " : "map:     ") + (bytes / size) + " bytes per tag");
+            skm.shutdown();
+        }
+    }
+
+    private static long used() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        if (args.length > 0 && args[0].equals("memory")) {
+            memory(args.length > 1 ? Integer.parseInt(args[1]) : 500000);
+            return;
+        }
+        Options opt = new OptionsBuilder()
+                .include(SessionTagStoreBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
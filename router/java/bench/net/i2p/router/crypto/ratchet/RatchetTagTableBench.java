@@ -0,0 +1,173 @@
+package net.i2p.router.crypto.ratchet;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.HKDF;
+import net.i2p.data.SessionKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Inbound tag lookups, and a remove and re-add as in consumeTag() and
+ * a tagset extension, in the old ConcurrentHashMap and the RatchetTagTable.
+ *
+ * Run main() with "memory" as the argument for the approximate
+ * heap bytes per tag instead.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RatchetTagTableBench {
+
+    @Param({"map", "table"})
+    public String impl;
+
+    @Param({"10000", "500000"})
+    public int size;
+
+    private ConcurrentHashMap<RatchetSessionTag, RatchetTagSet> map;
+    private RatchetTagTable table;
+    private long[] tags;
+    private RatchetTagSet ts;
+
+    @State(Scope.Thread)
+    public static class Index {
+        final Random rnd = new Random();
+    }
+
+    @Setup
+    public void prepare() {
+        ts = newTagSet();
+        tags = new long[size];
+        Random rnd = new Random(1234);
+        for (int i = 0; i < size; i++) {
+            tags[i] = rnd.nextLong();
+        }
+        if (impl.equals("map")) {
+            map = new ConcurrentHashMap<RatchetSessionTag, RatchetTagSet>(128);
+            for (int i = 0; i < size; i++) {
+                map.put(new RatchetSessionTag(tags[i]), ts);
+            }
+        } else {
+            table = new RatchetTagTable();
+            table.putAll(tags, 0, size, ts);
+        }
+    }
+
+    private static RatchetTagSet newTagSet() {
+        HKDF hkdf = new HKDF(I2PAppContext.getGlobalContext());
+        SessionKey k = new SessionKey(new byte[32]);
+        return new RatchetTagSet(hkdf, k, k, 0, 0);
+    }
+
+    /** as received, a new tag object each time */
+    private RatchetTagSet get(long tag) {
+        if (map != null)
+            return map.get(new RatchetSessionTag(tag));
+        return table.get(tag);
+    }
+
+    private RatchetTagSet removeAndAdd(long tag) {
+        if (map != null) {
+            RatchetTagSet rv = map.remove(new RatchetSessionTag(tag));
+            map.putIfAbsent(new RatchetSessionTag(tag), ts);
+            return rv;
+        }
+        RatchetTagSet rv = table.remove(tag);
+        table.putIfAbsent(tag, ts);
+        return rv;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public RatchetTagSet lookup1(Index idx) {
+        return get(tags[idx.rnd.nextInt(size)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public RatchetTagSet lookup4(Index idx) {
+        return get(tags[idx.rnd.nextInt(size)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public RatchetTagSet consume1(Index idx) {
+        return removeAndAdd(tags[idx.rnd.nextInt(size)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public RatchetTagSet consume4(Index idx) {
+        return removeAndAdd(tags[idx.rnd.nextInt(size)]);
+    }
+
+    /**
+     *  Approximate, from the used heap after GC
+     */
+    private static void memory(int size) {
+        RatchetTagSet ts = newTagSet();
+        Random rnd = new Random(1234);
+        long[] tags = new long[size];
+        for (int i = 0; i < size; i++) {
+            tags[i] = rnd.nextLong();
+        }
+        long base = used();
+        ConcurrentHashMap<RatchetSessionTag, RatchetTagSet> map = new ConcurrentHashMap<RatchetSessionTag, RatchetTagSet>(128);
+        for (int i = 0; i < size; i++) {
+            map.put(new RatchetSessionTag(tags[i]), ts);
+        }
+        long mapBytes = used() - base;
+        System.out.println("ConcurrentHashMap: " + (mapBytes / size) + " bytes per tag (" + map.size() + " tags)");
+        map = null;
+        base = used();
+        RatchetTagTable table = new RatchetTagTable();
+        table.putAll(tags, 0, size, ts);
+        long tableBytes = used() - base;
+        System.out.println("RatchetTagTable:   " + (tableBytes / size) + " bytes per tag (" + table.size() + " tags)");
+    }
+
+    private static long used() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        if (args.length > 0 && args[0].equals("memory")) {
+            memory(args.length > 1 ? Integer.parseInt(args[1]) : 500000);
+            return;
+        }
+        Options opt = new OptionsBuilder()
+                .include(RatchetTagTableBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,118 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+import net.i2p.util.ConcurrentHashSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The distance part of FloodfillPeerSelector.selectFloodfillParticipants(key, ...):
+ * finding the 5 floodfills closest to a routing key,
+ * by sorting all of them as before 0.9.45 or with the FloodfillIndex,
+ * plus the cost of rebuilding the index.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FloodfillIndexBench {
+    private static final int KEYS = 1024;
+    private static final int WANTED = 5;
+
+    @Param({"2500", "10000"})
+    public int count;
+
+    private Set<Hash> ffs;
+    private Set<Hash> toIgnore;
+    private FloodfillIndex index;
+    private Hash[] keys;
+    private int idx;
+
+    @Setup
+    public void prepare() {
+        Random rand = new Random(1234);
+        ffs = new ConcurrentHashSet<Hash>(count);
+        for (int i = 0; i < count; i++) {
+            ffs.add(randomHash(rand));
+        }
+        toIgnore = Collections.singleton(randomHash(rand));
+        index = new FloodfillIndex(ffs, 0);
+        keys = new Hash[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = randomHash(rand);
+        }
+    }
+
+    private static Hash randomHash(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+
+    @Benchmark
+    public List<Hash> sortAll() {
+        Hash key = keys[(idx++) & (KEYS - 1)];
+        List<Hash> all = new ArrayList<Hash>(ffs.size());
+        for (Hash h : ffs) {
+            if (!toIgnore.contains(h))
+                all.add(h);
+        }
+        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
+        sorted.addAll(all);
+        List<Hash> rv = new ArrayList<Hash>(WANTED);
+        for (int i = 0; i < WANTED && !sorted.isEmpty(); i++) {
+            rv.add(sorted.pollFirst());
+        }
+        return rv;
+    }
+
+    @Benchmark
+    public List<Hash> index() {
+        Hash key = keys[(idx++) & (KEYS - 1)];
+        return index.getClosest(key, WANTED, new FloodfillIndex.Filter() {
+            public boolean accept(Hash h) {
+                return ffs.contains(h) && !toIgnore.contains(h);
+            }
+        });
+    }
+
+    @Benchmark
+    public FloodfillIndex rebuild() {
+        return new FloodfillIndex(ffs, 0);
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(FloodfillIndexBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,193 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.KeyGenerator;
+import net.i2p.crypto.SigType;
+import net.i2p.data.Base64;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Hash;
+import net.i2p.data.KeyCertificate;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+import net.i2p.data.router.RouterAddress;
+import net.i2p.data.router.RouterIdentity;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.util.FileUtil;
+import net.i2p.util.OrderedProperties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Startup netDb read, the part PersistentDataStore.ReadJob does before
+ * verifying signatures: find, read, and parse all the RouterInfos,
+ * from one file each in the r? subdirectories,
+ * or from a SegmentedRouterInfoStore.
+ *
+ * The files are in the OS cache after the first iteration,
+ * so this is the warm startup case; a cold start, where each
+ * file open is a disk seek, favors the segments much more.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NetDbStartupBench {
+    /** distinct RouterInfos, reused under different hashes */
+    private static final int DISTINCT = 64;
+
+    @Param({"2000", "10000"})
+    public int count;
+
+    private I2PAppContext ctx;
+    private File dbDir;
+    private File segDir;
+
+    @Setup
+    public void prepare() throws Exception {
+        ctx = I2PAppContext.getGlobalContext();
+        dbDir = new File(System.getProperty("java.io.tmpdir"), "netdbbench-" + ctx.random().nextLong(Long.MAX_VALUE));
+        segDir = new File(dbDir, SegmentedRouterInfoStore.DIR_NAME);
+        byte[][] ris = new byte[DISTINCT][];
+        for (int i = 0; i < DISTINCT; i++) {
+            ris[i] = createRouterInfo(i).toByteArray();
+        }
+        String b64 = Base64.ALPHABET_I2P;
+        for (int j = 0; j < b64.length(); j++) {
+            new File(dbDir, PersistentDataStore.DIR_PREFIX + b64.charAt(j)).mkdirs();
+        }
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(ctx, segDir);
+        byte[] h = new byte[Hash.HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            ctx.random().nextBytes(h);
+            Hash key = new Hash(h);
+            byte[] ri = ris[i % DISTINCT];
+            String name = key.toBase64();
+            File f = new File(new File(dbDir, PersistentDataStore.DIR_PREFIX + name.charAt(0)),
+                              PersistentDataStore.ROUTERINFO_PREFIX + name + PersistentDataStore.ROUTERINFO_SUFFIX);
+            OutputStream out = new FileOutputStream(f);
+            out.write(ri);
+            out.close();
+            store.put(key, i + 1, ri);
+        }
+        store.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtil.rmdir(dbDir, false);
+    }
+
+    private static RouterInfo createRouterInfo(int num) throws Exception {
+        SimpleDataStructure[] skeys = KeyGenerator.getInstance().generateSigningKeys(SigType.EdDSA_SHA512_Ed25519);
+        RouterIdentity ident = new RouterIdentity();
+        byte[] pk = new byte[PublicKey.KEYSIZE_BYTES];
+        I2PAppContext.getGlobalContext().random().nextBytes(pk);
+        ident.setPublicKey(new PublicKey(pk));
+        SigningPublicKey spub = (SigningPublicKey) skeys[0];
+        byte[] pad = new byte[128 - spub.length()];
+        I2PAppContext.getGlobalContext().random().nextBytes(pad);
+        ident.setSigningPublicKey(spub);
+        ident.setPadding(pad);
+        ident.setCertificate(new KeyCertificate(SigType.EdDSA_SHA512_Ed25519));
+        RouterInfo ri = new RouterInfo();
+        ri.setIdentity(ident);
+        ri.setPublished(System.currentTimeMillis());
+        OrderedProperties props = new OrderedProperties();
+        props.setProperty("host", "192.168.1." + (num % 250));
+        props.setProperty("port", Integer.toString(10000 + num));
+        props.setProperty("s", Base64.encode(pk, 0, 32));
+        props.setProperty("i", Base64.encode(pk, 32, 16));
+        props.setProperty("v", "2");
+        ri.setAddresses(Collections.singletonList(new RouterAddress("NTCP", props, 10)));
+        OrderedProperties opts = new OrderedProperties();
+        opts.setProperty("caps", "LR");
+        opts.setProperty("netId", "2");
+        opts.setProperty("router.version", "0.9.45");
+        ri.setOptions(opts);
+        ri.sign((SigningPrivateKey) skeys[1]);
+        return ri;
+    }
+
+    @Benchmark
+    public int directory() throws IOException, DataFormatException {
+        int rv = 0;
+        String b64 = Base64.ALPHABET_I2P;
+        for (int j = 0; j < b64.length(); j++) {
+            File subdir = new File(dbDir, PersistentDataStore.DIR_PREFIX + b64.charAt(j));
+            File[] files = subdir.listFiles(PersistentDataStore.RI_FILTER);
+            if (files == null)
+                continue;
+            for (File f : files) {
+                Hash key = PersistentDataStore.getRouterInfoHash(f.getName());
+                if (key == null)
+                    continue;
+                InputStream in = new BufferedInputStream(new FileInputStream(f));
+                try {
+                    RouterInfo ri = new RouterInfo();
+                    ri.readBytes(in, false);
+                    rv++;
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return rv;
+    }
+
+    @Benchmark
+    public int segments() throws IOException, DataFormatException {
+        int rv = 0;
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(ctx, segDir);
+        try {
+            for (Hash key : store.getKeys()) {
+                byte[] data = store.get(key);
+                RouterInfo ri = new RouterInfo();
+                ri.readBytes(new ByteArrayInputStream(data), false);
+                rv++;
+            }
+        } finally {
+            store.close();
+        }
+        return rv;
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(NetDbStartupBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
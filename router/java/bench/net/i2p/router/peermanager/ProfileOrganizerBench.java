@@ -0,0 +1,152 @@
+package net.i2p.router.peermanager;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Hash;
+import net.i2p.router.ClientManagerFacade;
+import net.i2p.router.CommSystemFacade;
+import net.i2p.router.NetworkDatabaseFacade;
+import net.i2p.router.RouterContext;
+import net.i2p.router.dummy.DummyClientManagerFacade;
+import net.i2p.router.dummy.DummyNetworkDatabaseFacade;
+import net.i2p.router.dummy.VMCommSystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Tunnel peer selection from the ProfileOrganizer tiers,
+ * alone and with another thread continuously reorganizing,
+ * which is much more often than the router does, to show
+ * the effect of the reorganization on selection.
+ *
+ * The netDb is empty and there is no router, so every peer is selectable,
+ * and every peer is connected.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Group)
+public class ProfileOrganizerBench {
+
+    @Param({"2000"})
+    public int count;
+
+    private ProfileOrganizer organizer;
+    private Hash randomKey;
+
+    @Setup
+    public void prepare() {
+        RouterContext ctx = new RouterContext(null) {
+            private final CommSystemFacade comm = new ConnectedCommSystem(this);
+            private final ClientManagerFacade clients = new DummyClientManagerFacade(this);
+            private final NetworkDatabaseFacade netDb = new DummyNetworkDatabaseFacade(this);
+            @Override
+            public CommSystemFacade commSystem() { return comm; }
+            @Override
+            public ClientManagerFacade clientManager() { return clients; }
+            @Override
+            public NetworkDatabaseFacade netDb() { return netDb; }
+        };
+        organizer = new ProfileOrganizer(ctx);
+        Random rand = new Random(1234);
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        organizer.setUs(new Hash(b));
+        b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        randomKey = new Hash(b);
+        long now = ctx.clock().now();
+        for (int i = 0; i < count; i++) {
+            b = new byte[Hash.HASH_LENGTH];
+            rand.nextBytes(b);
+            PeerProfile p = new PeerProfile(ctx, new Hash(b));
+            p.setLastHeardFrom(now);
+            p.setLastSendSuccessful(now);
+            int agreed = rand.nextInt(50);
+            for (int j = 0; j < agreed; j++) {
+                p.getTunnelHistory().incrementAgreedTo();
+                p.getTunnelCreateResponseTime().addData(rand.nextInt(2000), 0);
+            }
+            p.setPeakThroughputKBps(rand.nextInt(500));
+            organizer.addProfile(p);
+        }
+        organizer.reorganize();
+    }
+
+    private static class ConnectedCommSystem extends VMCommSystem {
+        public ConnectedCommSystem(RouterContext ctx) { super(ctx); }
+        @Override
+        public boolean isEstablished(Hash peer) { return true; }
+        @Override
+        public Set<Hash> getEstablished() { return Collections.emptySet(); }
+    }
+
+    private void selectFast(Set<Hash> matches) {
+        organizer.selectFastPeers(3, null, matches, randomKey, ProfileOrganizer.Slice.SLICE_0_1);
+    }
+
+    private void selectHighCap(Set<Hash> matches) {
+        organizer.selectHighCapacityPeers(3, null, matches);
+    }
+
+    @Benchmark
+    @Group("select")
+    @GroupThreads(4)
+    public Set<Hash> select() {
+        Set<Hash> rv = new HashSet<Hash>(4);
+        selectFast(rv);
+        rv.clear();
+        selectHighCap(rv);
+        return rv;
+    }
+
+    @Benchmark
+    @Group("selectDuringReorganize")
+    @GroupThreads(3)
+    public Set<Hash> selectWithReorg() {
+        Set<Hash> rv = new HashSet<Hash>(4);
+        selectFast(rv);
+        rv.clear();
+        selectHighCap(rv);
+        return rv;
+    }
+
+    @Benchmark
+    @Group("selectDuringReorganize")
+    @GroupThreads(1)
+    public void reorganize() {
+        organizer.reorganize();
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ProfileOrganizerBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,153 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.FileUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Peer profile persistence, with one gzipped text file per profile
+ * or with the ProfileDatabase (router.profileDatabase=true).
+ *
+ * load is the startup readProfiles().
+ * saveAll is PeerManager.storeProfiles() when every profile changed,
+ * and saveSome when a tenth of them changed since the last store,
+ * which is all the database writes.
+ *
+ * The files are in the OS cache after the first iteration,
+ * so this is the warm startup case.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfileStoreBench {
+
+    @Param({"text", "database"})
+    public String store;
+
+    @Param({"1000", "4000"})
+    public int count;
+
+    private RouterContext ctx;
+    private File dir;
+    private List<PeerProfile> profiles;
+    private ProfilePersistenceHelper helper;
+    private Random rand;
+
+    @Setup
+    public void prepare() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "profilebench-" + System.nanoTime());
+        dir.mkdirs();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        props.setProperty("i2p.dir.config", dir.getAbsolutePath());
+        props.setProperty(ProfilePersistenceHelper.PROP_PROFILE_DB, Boolean.toString(store.equals("database")));
+        ctx = new RouterContext(null, props);
+        rand = new Random(1234);
+        profiles = new ArrayList<PeerProfile>(count);
+        long now = ctx.clock().now();
+        for (int i = 0; i < count; i++) {
+            byte[] h = new byte[Hash.HASH_LENGTH];
+            rand.nextBytes(h);
+            PeerProfile p = new PeerProfile(ctx, new Hash(h));
+            p.setFirstHeardAbout(now - 10*24*60*60*1000L);
+            p.setLastHeardAbout(now - rand.nextInt(1000000));
+            p.setLastSendSuccessful(now - rand.nextInt(1000000));
+            p.setLastHeardFrom(now - rand.nextInt(1000000));
+            for (int j = 0; j < 10; j++) {
+                p.getTunnelHistory().incrementAgreedTo();
+                p.getTunnelCreateResponseTime().addData(rand.nextInt(2000), 0);
+                p.getTunnelTestResponseTime().addData(rand.nextInt(2000), 0);
+            }
+            if (i % 4 == 0) {
+                p.expandDBProfile();
+                p.getDBHistory().lookupSuccessful();
+                p.getDbResponseTime().addData(rand.nextInt(2000), 0);
+                p.getDbResponseTime().coalesceStats();
+            }
+            p.getTunnelCreateResponseTime().coalesceStats();
+            p.getTunnelTestResponseTime().coalesceStats();
+            profiles.add(p);
+        }
+        helper = new ProfilePersistenceHelper(ctx);
+        save(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.close();
+        FileUtil.rmdir(dir, false);
+    }
+
+    /**
+     *  Mark all or a tenth of the profiles as changed, and store all of them
+     */
+    private int save(boolean all) {
+        long later = ctx.clock().now() + 1;
+        int num = all ? count : count / 10;
+        for (int i = 0; i < num; i++) {
+            PeerProfile p = all ? profiles.get(i) : profiles.get(rand.nextInt(count));
+            p.setLastHeardFrom(later);
+        }
+        for (PeerProfile p : profiles) {
+            helper.writeProfile(p);
+        }
+        helper.flush();
+        return num;
+    }
+
+    @Benchmark
+    public int load() {
+        ProfilePersistenceHelper h = new ProfilePersistenceHelper(ctx);
+        Set<PeerProfile> rv = h.readProfiles();
+        h.close();
+        return rv.size();
+    }
+
+    @Benchmark
+    public int saveAll() {
+        return save(true);
+    }
+
+    @Benchmark
+    public int saveSome() {
+        return save(false);
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ProfileStoreBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
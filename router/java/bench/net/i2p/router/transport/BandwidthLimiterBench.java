@@ -0,0 +1,102 @@
+package net.i2p.router.transport;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Contended requests to the FIFOBandwidthLimiter with the refiller running,
+ * as the transport reader and writer threads would make them.
+ *
+ * The limit is high enough that nearly every request is satisfied
+ * by the shortcut, so this measures the fast path. Requests
+ * that are not satisfied immediately are aborted, as a transport would
+ * when it closes, so the FIFO queue does not grow without bound.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BandwidthLimiterBench {
+
+    /** bytes per request */
+    @Param({"64", "1024"})
+    public int size;
+
+    private FIFOBandwidthLimiter limiter;
+
+    @Setup
+    public void prepare() {
+        Properties props = new Properties();
+        // as high as they go without overflowing
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH, "1000000");
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BURST_BANDWIDTH, "1000000");
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH_PEAK, "1000000");
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH, "16384");
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BURST_BANDWIDTH, "1000000");
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH_PEAK, "1000000");
+        limiter = new FIFOBandwidthLimiter(new I2PAppContext(props));
+    }
+
+    @TearDown
+    public void shutdown() {
+        limiter.shutdown();
+    }
+
+    private int request() {
+        FIFOBandwidthLimiter.Request req = limiter.requestInbound(size, "bench");
+        int rv = req.getPendingRequested();
+        if (rv > 0)
+            req.abort();
+        return rv;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int threads8() {
+        return request();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int threads16() {
+        return request();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public int threads32() {
+        return request();
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(BandwidthLimiterBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
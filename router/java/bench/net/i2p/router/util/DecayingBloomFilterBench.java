@@ -0,0 +1,123 @@
+package net.i2p.router.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Concurrent adds of 16-byte tunnel IVs, as the BloomFilterIVValidator
+ * makes them, to the DecayingBloomFilter and the LockFreeDecayingBloomFilter.
+ *
+ * The filters are cleared at the start of each iteration,
+ * so the false positive rate stays low.
+ *
+ * @since 0.9.45
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecayingBloomFilterBench {
+
+    @Param({"locked", "lockfree"})
+    public String impl;
+
+    private DecayingBloomFilter filter;
+
+    /** unique per thread: a counter, then random bytes */
+    @State(Scope.Thread)
+    public static class Entries {
+        final byte[] iv = new byte[16];
+        long next;
+
+        @Setup
+        public void prepare() {
+            new Random().nextBytes(iv);
+        }
+
+        byte[] next() {
+            DataHelper.toLong(iv, 0, 8, next++);
+            return iv;
+        }
+    }
+
+    @Setup
+    public void prepare() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        if (impl.equals("locked"))
+            filter = new DecayingBloomFilter(ctx, 10*60*1000, 16, "bench", 25);
+        else
+            filter = new LockFreeDecayingBloomFilter(ctx, 10*60*1000, 16, "bench", 25);
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        filter.clear();
+    }
+
+    @TearDown
+    public void shutdown() {
+        filter.stopDecaying();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads1(Entries e) {
+        return filter.add(e.next());
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean threads2(Entries e) {
+        return filter.add(e.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads4(Entries e) {
+        return filter.add(e.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean threads8(Entries e) {
+        return filter.add(e.next());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean threads16(Entries e) {
+        return filter.add(e.next());
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(DecayingBloomFilterBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
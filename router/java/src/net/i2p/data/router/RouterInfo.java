@@ -520,6 +520,25 @@ public class RouterInfo extends DatabaseEntry {
         }
     }
     
+    /**
+     * The result from DatabaseEntry.preverifySignatures(),
+     * ignored if already validated.
+     *
+     * @since 0.9.45
+     */
+    @Override
+    protected void setPreverified(boolean valid) {
+        if (_validated)
+            return;
+        _isValid = valid;
+        _validated = true;
+        if (!valid) {
+            Log log = I2PAppContext.getGlobalContext().logManager().getLog(RouterInfo.class);
+            if (log.shouldWarn())
+                log.warn("Sig verify fail: " + toString());
+        }
+    }
+    
     /**
      *  This does NOT validate the signature
      *
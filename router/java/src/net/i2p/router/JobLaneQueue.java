@@ -0,0 +1,264 @@
+package net.i2p.router;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.router.message.HandleGarlicMessageJob;
+
+/**
+ * The ready queue for the JobQueue, split into priority lanes,
+ * so that a burst of netDb jobs (e.g. floodfill lookups) does not
+ * delay client and tunnel jobs behind it.
+ *
+ * Each lane is a FIFO. Runners take from the highest-priority lane
+ * that has a job, except that every STARVATION_INTERVAL takes,
+ * the lanes are checked lowest-priority first, so the bulk lane
+ * always gets at least a share of the runners.
+ * Any idle runner takes from any lane, there are no per-lane threads.
+ *
+ * The lanes are separately locked, and the total count is a Semaphore,
+ * so offer() and take() don't contend on a single lock.
+ *
+ * Iteration is by lane, and is not ordered by time.
+ *
+ * For use by the router only.
+ *
+ * @since 0.9.45
+ */
+class JobLaneQueue extends AbstractQueue<Job> implements BlockingQueue<Job> {
+
+    /**
+     *  Highest priority first
+     */
+    public enum Lane {
+        /** client messages, tunnel building and testing */
+        CLIENT("client"),
+        /** netDb lookups, stores, searches, and encrypted garlic lookups */
+        NETDB("netdb"),
+        /** everything else */
+        BULK("bulk");
+
+        private final String name;
+
+        Lane(String name) { this.name = name; }
+
+        /** for stats */
+        public String getName() { return name; }
+    }
+
+    private static final Lane[] LANES = Lane.values();
+    private static final int STARVATION_INTERVAL = 8;
+    private static final Map<Class<?>, Lane> _laneCache = new ConcurrentHashMap<Class<?>, Lane>(64);
+
+    private final List<LinkedBlockingQueue<Job>> _lanes;
+    /** one permit per queued job */
+    private final Semaphore _available = new Semaphore(0);
+    private final AtomicInteger _takes = new AtomicInteger();
+
+    public JobLaneQueue() {
+        _lanes = new ArrayList<LinkedBlockingQueue<Job>>(LANES.length);
+        for (int i = 0; i < LANES.length; i++) {
+            _lanes.add(new LinkedBlockingQueue<Job>());
+        }
+    }
+
+    /**
+     *  The lane for a job, by class.
+     *  Also used for per-lane stats when the lanes are not enabled.
+     */
+    public static Lane getLane(Job job) {
+        Class<?> cls = job.getClass();
+        Lane rv = _laneCache.get(cls);
+        if (rv == null) {
+            rv = classify(cls);
+            _laneCache.put(cls, rv);
+        }
+        return rv;
+    }
+
+    private static Lane classify(Class<?> cls) {
+        // garlic is on the JobQueue drop list, mostly encrypted lookups to floodfills
+        if (cls == HandleGarlicMessageJob.class)
+            return Lane.NETDB;
+        return classify(cls.getName());
+    }
+
+    /**
+     *  Package private for unit tests
+     *
+     *  @param name fully qualified class name
+     */
+    static Lane classify(String name) {
+        if (name.startsWith("net.i2p.router.client.") ||
+            name.startsWith("net.i2p.router.tunnel.") ||
+            name.startsWith("net.i2p.router.message.OutboundClientMessage") ||
+            name.startsWith("net.i2p.router.JobQueue$"))    // PoisonJob
+            return Lane.CLIENT;
+        if (name.startsWith("net.i2p.router.networkdb."))
+            return Lane.NETDB;
+        return Lane.BULK;
+    }
+
+    public boolean offer(Job job) {
+        _lanes.get(getLane(job).ordinal()).offer(job);
+        _available.release();
+        return true;
+    }
+
+    public void put(Job job) {
+        offer(job);
+    }
+
+    public boolean offer(Job job, long timeout, TimeUnit unit) {
+        return offer(job);
+    }
+
+    public Job take() throws InterruptedException {
+        while (true) {
+            _available.acquire();
+            Job rv = pollLanes();
+            if (rv != null)
+                return rv;
+            // a job was removed after we got the permit, go around again
+        }
+    }
+
+    public Job poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!_available.tryAcquire(timeout, unit))
+            return null;
+        return pollLanes();
+    }
+
+    public Job poll() {
+        if (!_available.tryAcquire())
+            return null;
+        return pollLanes();
+    }
+
+    /**
+     *  Caller must have a permit
+     */
+    private Job pollLanes() {
+        boolean reverse = (_takes.incrementAndGet() % STARVATION_INTERVAL) == 0;
+        for (int i = 0; i < _lanes.size(); i++) {
+            Job rv = _lanes.get(reverse ? _lanes.size() - 1 - i : i).poll();
+            if (rv != null)
+                return rv;
+        }
+        return null;
+    }
+
+    /**
+     *  The oldest head of all the lanes, approximately.
+     */
+    public Job peek() {
+        Job rv = null;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < _lanes.size(); i++) {
+            Job j = _lanes.get(i).peek();
+            if (j == null)
+                continue;
+            JobTiming jt = j.getTiming();
+            // PoisonJob timing is null
+            if (jt == null)
+                return j;
+            long start = jt.getStartAfter();
+            if (start < oldest) {
+                oldest = start;
+                rv = j;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  The head of a single lane.
+     */
+    public Job peek(Lane lane) {
+        return _lanes.get(lane.ordinal()).peek();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Job))
+            return false;
+        return _lanes.get(getLane((Job) o).ordinal()).contains(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Job))
+            return false;
+        boolean rv = _lanes.get(getLane((Job) o).ordinal()).remove(o);
+        // if there's no permit, a taker has it and will go around again
+        if (rv)
+            _available.tryAcquire();
+        return rv;
+    }
+
+    public int size() {
+        int rv = 0;
+        for (int i = 0; i < _lanes.size(); i++) {
+            rv += _lanes.get(i).size();
+        }
+        return rv;
+    }
+
+    /**
+     *  @since 0.9.45
+     */
+    public int size(Lane lane) {
+        return _lanes.get(lane.ordinal()).size();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < _lanes.size(); i++) {
+            _lanes.get(i).clear();
+        }
+        _available.drainPermits();
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super Job> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super Job> c, int maxElements) {
+        int rv = 0;
+        while (rv < maxElements) {
+            Job j = poll();
+            if (j == null)
+                break;
+            c.add(j);
+            rv++;
+        }
+        return rv;
+    }
+
+    /**
+     *  Weakly consistent, by lane, highest priority first.
+     *  Does not support remove().
+     */
+    public Iterator<Job> iterator() {
+        List<Job> rv = new ArrayList<Job>(size());
+        for (int i = 0; i < _lanes.size(); i++) {
+            rv.addAll(_lanes.get(i));
+        }
+        return Collections.unmodifiableList(rv).iterator();
+    }
+}
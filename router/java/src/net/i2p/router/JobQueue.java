@@ -11,11 +11,14 @@ package net.i2p.router;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
@@ -50,8 +53,18 @@ public class JobQueue {
     private final static AtomicInteger _runnerId = new AtomicInteger(0);
     /** list of jobs that are ready to run ASAP */
     private final BlockingQueue<Job> _readyJobs;
-    /** SortedSet of jobs that are scheduled for running in the future, earliest first */
+    /** same as _readyJobs if enabled, else null */
+    private final JobLaneQueue _laneQueue;
+    /** indexed by lane ordinal, kept whether or not the lanes are enabled */
+    private final JobStats[] _laneStats;
+    private final String[] _laneLagStats;
+    /**
+     *  SortedSet of jobs that are scheduled for running in the future, earliest first,
+     *  or the _timerWheel, which is not sorted
+     */
     private final Set<Job> _timedJobs;
+    /** same as _timedJobs if enabled, else null */
+    private final JobTimerWheel _timerWheel;
     /** job name to JobStat for that job */
     private final ConcurrentHashMap<String, JobStats> _jobStats;
     private final QueuePumper _pumper;
@@ -79,6 +92,20 @@ public class JobQueue {
     private final static int DEFAULT_MAX_RUNNERS = 1;
     /** router.config parameter to override the max runners */
     private final static String PROP_MAX_RUNNERS = "router.maxJobRunners";
+
+    /**
+     *  router.config parameter to store the timed jobs in a timing wheel
+     *  rather than a TreeSet. Default false. Requires restart.
+     *  @since 0.9.45
+     */
+    private final static String PROP_TIMER_WHEEL = "router.jobQueueTimerWheel";
+
+    /**
+     *  router.config parameter to split the ready jobs into priority lanes
+     *  (client, netdb, bulk). Default false. Requires restart.
+     *  @since 0.9.45
+     */
+    private final static String PROP_LANES = "router.jobQueueLanes";
     
     /** how frequently should we check and update the max runners */
     private final static long MAX_LIMIT_UPDATE_DELAY = 60*1000;
@@ -157,8 +184,30 @@ public class JobQueue {
         _context.statManager().createRequiredRateStat("jobQueue.jobLag", "Job run delay (ms)", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRateStat("jobQueue.jobWait", "How long does a job sit on the job queue?", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
 
-        _readyJobs = new LinkedBlockingQueue<Job>();
-        _timedJobs = new TreeSet<Job>(new JobComparator());
+        JobLaneQueue.Lane[] lanes = JobLaneQueue.Lane.values();
+        _laneStats = new JobStats[lanes.length];
+        _laneLagStats = new String[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            String name = lanes[i].getName();
+            _laneStats[i] = new JobStats("Lane: " + name);
+            _laneLagStats[i] = "jobQueue.jobLag." + name;
+            _context.statManager().createRateStat(_laneLagStats[i], "Job run delay (ms) for the " + name + " lane",
+                                                  "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
+        }
+        if (_context.getBooleanProperty(PROP_LANES)) {
+            _laneQueue = new JobLaneQueue();
+            _readyJobs = _laneQueue;
+        } else {
+            _laneQueue = null;
+            _readyJobs = new LinkedBlockingQueue<Job>();
+        }
+        if (_context.getBooleanProperty(PROP_TIMER_WHEEL)) {
+            _timerWheel = new JobTimerWheel(_context.clock().now());
+            _timedJobs = _timerWheel;
+        } else {
+            _timerWheel = null;
+            _timedJobs = new TreeSet<Job>(new JobComparator());
+        }
         _jobLock = new Object();
         _queueRunners = new ConcurrentHashMap<Integer,JobQueueRunner>(RUNNERS);
         _jobStats = new ConcurrentHashMap<String,JobStats>();
@@ -279,9 +328,30 @@ public class JobQueue {
             return _readyJobs.size();
     }
 
+    /**
+     *  If the lanes are enabled, this is the max lag of all the lanes.
+     */
     public long getMaxLag() { 
             // first job is the one that has been waiting the longest
             Job j = _readyJobs.peek();
+            return getLag(j);
+    }
+
+    /**
+     *  @return the lag of the head of the lane, or of the whole queue if the lanes are not enabled
+     *  @since 0.9.45
+     */
+    private long getMaxLag(JobLaneQueue.Lane lane) { 
+            if (_laneQueue == null)
+                return getMaxLag();
+            return getLag(_laneQueue.peek(lane));
+    }
+
+    /**
+     *  @param j may be null
+     *  @since 0.9.45 split out from getMaxLag()
+     */
+    private long getLag(Job j) { 
             if (j == null) return 0;
             JobTiming jt = j.getTiming();
             // PoisonJob timing is null, prevent NPE at shutdown
@@ -331,7 +401,8 @@ public class JobQueue {
                 //}
 
                 // this tail drops based on the lag at the head
-                if (getMaxLag() >= MIN_LAG_TO_DROP)
+                // of this job's lane, if the lanes are enabled
+                if (getMaxLag(JobLaneQueue.getLane(job)) >= MIN_LAG_TO_DROP)
                     return true;
             }
         }
@@ -529,6 +600,9 @@ public class JobQueue {
      *
      */
     private final class QueuePumper implements Runnable, Clock.ClockUpdateListener, RouterClock.ClockShiftListener {
+        /** for pumpWheel() only */
+        private final List<Job> _wheelReady = new ArrayList<Job>(16);
+
         public QueuePumper() { 
             _context.clock().addUpdateListener(this);
             ((RouterClock) _context.clock()).addShiftListener(this);
@@ -541,6 +615,9 @@ public class JobQueue {
                     long timeToWait = -1;
                     try {
                         synchronized (_jobLock) {
+                          if (_timerWheel != null) {
+                            timeToWait = pumpWheel(now);
+                          } else {
                             Job lastJob = null;
                             long lastTime = Long.MIN_VALUE;
                             for (Iterator<Job> iter = _timedJobs.iterator(); iter.hasNext(); ) {
@@ -589,6 +666,7 @@ public class JobQueue {
                                     break;
                                 }
                             }
+                          }
                                 if (timeToWait < 0)
                                     timeToWait = 1000;
                                 else if (timeToWait < 10)
@@ -611,6 +689,25 @@ public class JobQueue {
             }
         }
 
+        /**
+         *  Move the due jobs from the timer wheel to the ready queue.
+         *  Caller must synch on _jobLock.
+         *
+         *  @return time to wait
+         *  @since 0.9.45
+         */
+        private long pumpWheel(long now) {
+            _timerWheel.expire(now, _wheelReady);
+            for (int i = 0; i < _wheelReady.size(); i++) {
+                Job j = _wheelReady.get(i);
+                if (j instanceof JobImpl)
+                    ((JobImpl)j).madeReady();
+                _readyJobs.offer(j);
+            }
+            _wheelReady.clear();
+            return _timerWheel.getTimeToNext(now);
+        }
+
         public void offsetChanged(long delta) {
             updateJobTimings(delta);
             synchronized (_jobLock) {
@@ -645,6 +742,8 @@ public class JobQueue {
             for (Job j : _timedJobs) {
                 j.getTiming().offsetChanged(delta);
             }
+            if (_timerWheel != null)
+                _timerWheel.reset(_context.clock().now());
             for (Job j : _readyJobs) {
                 j.getTiming().offsetChanged(delta);
             }
@@ -681,6 +780,9 @@ public class JobQueue {
                 stats = old;
         }
         stats.jobRan(duration, lag);
+        int lane = JobLaneQueue.getLane(job).ordinal();
+        _laneStats[lane].jobRan(duration, lag);
+        _context.statManager().addRateData(_laneLagStats[lane], lag);
 
         String dieMsg = null;
 
@@ -736,9 +838,10 @@ public class JobQueue {
     /**
      *  Comparator for the _timedJobs TreeSet.
      *  Ensure different jobs with the same timing are different so they aren't removed.
+     *  Package private for JobTimerWheelBench since 0.9.45.
      *  @since 0.8.9
      */
-    private static class JobComparator implements Comparator<Job>, Serializable {
+    static class JobComparator implements Comparator<Job>, Serializable {
          public int compare(Job l, Job r) {
              // equals first, Jobs generally don't override so this should be fast
              // And this MUST be first so we can remove a job even if its timing has changed.
@@ -800,6 +903,17 @@ public class JobQueue {
         return Collections.unmodifiableCollection(_jobStats.values());
     }
 
+    /**
+     *  Current job stats for each priority lane (client, netdb, bulk).
+     *  These are maintained whether or not the lanes are enabled.
+     *  Names are "Lane: client" etc.
+     *
+     *  @since 0.9.45
+     */
+    public Collection<JobStats> getLaneStats() {
+        return Collections.unmodifiableList(Arrays.asList(_laneStats));
+    }
+
     /** @deprecated moved to router console */
     @Deprecated
     public void renderStatusHTML(Writer out) throws IOException {
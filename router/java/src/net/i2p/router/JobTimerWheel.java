@@ -0,0 +1,299 @@
+package net.i2p.router;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A hierarchical hashed timing wheel for the timed jobs in the JobQueue,
+ * as an alternative to the TreeSet.
+ * Add, remove, and contains are O(1), as opposed to O(log n).
+ *
+ * There are four levels, with 256 slots in the first level and 64 in the others.
+ * Each slot in the first level is one TICK, each slot in the next level
+ * is the span of the entire previous level. Jobs are placed in the lowest level
+ * that covers their start time, and moved down a level ("cascaded") when
+ * the first level wraps around. With a 16 ms tick, the total span is about 12 days.
+ * Jobs farther out than that are placed in the last slot and re-placed
+ * when they get there.
+ *
+ * Jobs are never run early, but may be run up to one TICK late.
+ * As with the TreeSet, if a job's start time is changed without calling
+ * JobQueue.addJob(), it will not be moved. If it is moved later, we will
+ * notice on expiration and re-place it. If it is moved earlier, it will run late.
+ *
+ * Not thread safe. The JobQueue locks it with the _jobLock.
+ * The iterator does not support remove(). This is a Set only so
+ * the JobQueue can treat it like the TreeSet for everything except the pumper.
+ *
+ * For use by the router only.
+ *
+ * @since 0.9.45
+ */
+class JobTimerWheel extends AbstractSet<Job> {
+
+    /** ms, power of two */
+    static final int TICK = 16;
+    private static final int TICK_SHIFT = 4;
+    private static final int L0_BITS = 8;
+    private static final int LN_BITS = 6;
+    private static final int L0_SIZE = 1 << L0_BITS;
+    private static final int LN_SIZE = 1 << LN_BITS;
+    private static final int L0_MASK = L0_SIZE - 1;
+    private static final int LN_MASK = LN_SIZE - 1;
+    private static final int LEVELS = 4;
+    /** in ticks */
+    private static final long MAX_SPAN = 1L << (L0_BITS + ((LEVELS - 1) * LN_BITS));
+    /** in ticks, if we fall this far behind, re-place everything rather than stepping */
+    private static final long MAX_STEP = 1L << (L0_BITS + LN_BITS + LN_BITS);
+
+    /** [level][slot], head of a doubly-linked list, null if empty */
+    private final Node[][] _slots;
+    private final Map<Job, Node> _index;
+    /** the next tick to be processed */
+    private long _current;
+
+    private static class Node {
+        final Job job;
+        long expires;
+        Node prev, next;
+        int level, slot;
+
+        Node(Job j) { job = j; }
+    }
+
+    /**
+     *  @param now current time in ms
+     */
+    public JobTimerWheel(long now) {
+        _slots = new Node[LEVELS][];
+        _slots[0] = new Node[L0_SIZE];
+        for (int i = 1; i < LEVELS; i++) {
+            _slots[i] = new Node[LN_SIZE];
+        }
+        _index = new HashMap<Job, Node>(256);
+        _current = toTick(now);
+    }
+
+    /** round up, so we never run early */
+    private static long toTick(long time) {
+        return (time + TICK - 1) >> TICK_SHIFT;
+    }
+
+    /**
+     *  Add the job at its current start time.
+     *  If it is already present, it is moved.
+     *
+     *  @return true if it was not already present
+     */
+    @Override
+    public boolean add(Job job) {
+        Node n = _index.get(job);
+        boolean rv = n == null;
+        if (rv) {
+            n = new Node(job);
+            _index.put(job, n);
+        } else {
+            unlink(n);
+        }
+        n.expires = toTick(job.getTiming().getStartAfter());
+        place(n);
+        return rv;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Node n = _index.remove(o);
+        if (n == null)
+            return false;
+        unlink(n);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return _index.containsKey(o);
+    }
+
+    @Override
+    public int size() {
+        return _index.size();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < LEVELS; i++) {
+            for (int j = 0; j < _slots[i].length; j++) {
+                _slots[i][j] = null;
+            }
+        }
+        _index.clear();
+    }
+
+    /**
+     *  Unordered, does not support remove()
+     */
+    @Override
+    public Iterator<Job> iterator() {
+        return Collections.unmodifiableSet(_index.keySet()).iterator();
+    }
+
+    /**
+     *  Move all jobs that are due to the collection, in approximate start order,
+     *  and advance the wheel to now.
+     *
+     *  @param now current time in ms
+     *  @param ready out parameter
+     *  @return number of jobs added to ready
+     */
+    public int expire(long now, Collection<Job> ready) {
+        // only expire a tick once it is entirely in the past
+        long nowTick = now >> TICK_SHIFT;
+        if (nowTick - _current > MAX_STEP) {
+            // way behind, e.g. suspend/resume
+            reset(now);
+        }
+        int rv = 0;
+        while (_current <= nowTick) {
+            int idx = (int) (_current & L0_MASK);
+            if (idx == 0) {
+                // cascade down as each level wraps
+                for (int level = 1; level < LEVELS; level++) {
+                    int lidx = (int) ((_current >> (L0_BITS + ((level - 1) * LN_BITS))) & LN_MASK);
+                    cascade(level, lidx);
+                    if (lidx != 0)
+                        break;
+                }
+            }
+            Node n = _slots[0][idx];
+            _slots[0][idx] = null;
+            while (n != null) {
+                Node next = n.next;
+                n.prev = null;
+                n.next = null;
+                long start = n.job.getTiming().getStartAfter();
+                if (start > now) {
+                    // start time was moved later without calling addJob()
+                    n.expires = toTick(start);
+                    if (n.expires <= _current)
+                        n.expires = _current + 1;
+                    place(n);
+                } else {
+                    _index.remove(n.job);
+                    ready.add(n.job);
+                    rv++;
+                }
+                n = next;
+            }
+            _current++;
+        }
+        return rv;
+    }
+
+    /**
+     *  How long until the next job may be due, for the pumper to wait.
+     *  Only looks at the first level, so this is at most one
+     *  first-level span (about 4 seconds), to catch cascades.
+     *
+     *  @param now current time in ms
+     *  @return ms, 0 if something is due now
+     */
+    public long getTimeToNext(long now) {
+        long nowTick = now >> TICK_SHIFT;
+        if (_current <= nowTick)
+            return 0;
+        long tick = _current;
+        // stop at the wrap, where a cascade may bring in more jobs
+        do {
+            if (_slots[0][(int) (tick & L0_MASK)] != null)
+                break;
+            tick++;
+        } while ((tick & L0_MASK) != 0);
+        return Math.max(0, (tick << TICK_SHIFT) - now);
+    }
+
+    /**
+     *  Re-place every job, e.g. after a clock change that adjusted all the timings.
+     *
+     *  @param now current time in ms
+     */
+    public void reset(long now) {
+        for (int i = 0; i < LEVELS; i++) {
+            for (int j = 0; j < _slots[i].length; j++) {
+                _slots[i][j] = null;
+            }
+        }
+        _current = toTick(now);
+        for (Node n : _index.values()) {
+            n.prev = null;
+            n.next = null;
+            n.expires = toTick(n.job.getTiming().getStartAfter());
+            place(n);
+        }
+    }
+
+    /**
+     *  Move everything in this slot to lower levels
+     */
+    private void cascade(int level, int slot) {
+        Node n = _slots[level][slot];
+        _slots[level][slot] = null;
+        while (n != null) {
+            Node next = n.next;
+            n.prev = null;
+            n.next = null;
+            place(n);
+            n = next;
+        }
+    }
+
+    /**
+     *  Put the node in the correct slot relative to _current, based on n.expires.
+     *  Must not be linked.
+     */
+    private void place(Node n) {
+        long expires = n.expires;
+        long delta = expires - _current;
+        int level;
+        int slot;
+        if (delta < L0_SIZE) {
+            if (delta < 0)
+                expires = _current;
+            level = 0;
+            slot = (int) (expires & L0_MASK);
+        } else {
+            if (delta >= MAX_SPAN) {
+                // will be re-placed when we get there
+                expires = _current + MAX_SPAN - 1;
+            }
+            level = 1;
+            int shift = L0_BITS;
+            while (level < LEVELS - 1 && (expires - _current) >= (1L << (shift + LN_BITS))) {
+                level++;
+                shift += LN_BITS;
+            }
+            slot = (int) ((expires >> shift) & LN_MASK);
+        }
+        n.level = level;
+        n.slot = slot;
+        Node head = _slots[level][slot];
+        n.next = head;
+        if (head != null)
+            head.prev = n;
+        _slots[level][slot] = n;
+    }
+
+    private void unlink(Node n) {
+        if (n.prev != null)
+            n.prev.next = n.next;
+        else
+            _slots[n.level][n.slot] = n.next;
+        if (n.next != null)
+            n.next.prev = n.prev;
+        n.prev = null;
+        n.next = null;
+    }
+}
@@ -0,0 +1,234 @@
+package net.i2p.router.crypto;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.SessionTag;
+
+/**
+ *  Compact inbound store of 32-byte session tags, each mapped to an owner.
+ *
+ *  The tags are copied into one flat byte array, one 32-byte slot per tag,
+ *  with a parallel owner array, so there are no per-tag objects.
+ *  An open-addressed int index with linear probing and backward-shift
+ *  deletion maps the tag to its slot.
+ *  The index is hashed with SessionTag.hashCode(), which is a keyed SipHash,
+ *  so peers can't choose colliding tags. The hash is kept for each slot
+ *  so the index can be resized and shifted without rehashing.
+ *
+ *  Slot numbers are stable for as long as the tag is in the table,
+ *  so an owner may remember its slots and remove them later
+ *  with removeSlot() without a lookup. Freed slots are reused,
+ *  and the slot storage only shrinks when the table is empty.
+ *
+ *  Not thread safe, caller must synch.
+ *
+ *  @since 0.9.45
+ */
+class SessionTagTable<T> {
+    private static final int TAG_LEN = SessionTag.BYTE_LENGTH;
+    private static final int MIN_CAPACITY = 64;
+
+    /** capacity * TAG_LEN */
+    private byte[] _tags;
+    /** null = free slot */
+    private Object[] _owners;
+    /** hash of the tag in the slot, or for a free slot, the next free slot or -1 */
+    private int[] _hashes;
+    /** slot + 1, 0 = empty */
+    private int[] _index;
+    private int _indexMask;
+    /** slots above this have never been used */
+    private int _highWater;
+    private int _freeHead;
+    private int _size;
+
+    public SessionTagTable() {
+        init(MIN_CAPACITY);
+    }
+
+    private void init(int capacity) {
+        _tags = new byte[capacity * TAG_LEN];
+        _owners = new Object[capacity];
+        _hashes = new int[capacity];
+        // at most half full
+        _index = new int[capacity * 2];
+        _indexMask = _index.length - 1;
+        _highWater = 0;
+        _freeHead = -1;
+        _size = 0;
+    }
+
+    /**
+     *  Number of tags
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *  Number of slots
+     */
+    public int capacity() {
+        return _owners.length;
+    }
+
+    /**
+     *  @return slot or -1 if not present
+     */
+    public int find(SessionTag tag) {
+        int h = tag.hashCode();
+        byte[] data = tag.getData();
+        int i = h & _indexMask;
+        int s;
+        while ((s = _index[i]) != 0) {
+            s--;
+            if (_hashes[s] == h && DataHelper.eq(_tags, s * TAG_LEN, data, 0, TAG_LEN))
+                return s;
+            i = (i + 1) & _indexMask;
+        }
+        return -1;
+    }
+
+    /**
+     *  @return owner or null if not present
+     */
+    public T get(SessionTag tag) {
+        int s = find(tag);
+        return s >= 0 ? getOwner(s) : null;
+    }
+
+    /**
+     *  @param slot must be in use
+     */
+    @SuppressWarnings("unchecked")
+    public T getOwner(int slot) {
+        return (T) _owners[slot];
+    }
+
+    /**
+     *  @param slot must be in use
+     *  @param owner non-null
+     */
+    public void setOwner(int slot, T owner) {
+        _owners[slot] = owner;
+    }
+
+    /**
+     *  Caller must check that the tag is not present with find().
+     *
+     *  @param owner non-null
+     *  @return the slot
+     */
+    public int add(SessionTag tag, T owner) {
+        if (_freeHead < 0 && _highWater >= _owners.length)
+            grow();
+        int s;
+        if (_freeHead >= 0) {
+            s = _freeHead;
+            _freeHead = _hashes[s];
+        } else {
+            s = _highWater++;
+        }
+        int h = tag.hashCode();
+        System.arraycopy(tag.getData(), 0, _tags, s * TAG_LEN, TAG_LEN);
+        _owners[s] = owner;
+        _hashes[s] = h;
+        insertIndex(h, s);
+        _size++;
+        return s;
+    }
+
+    /**
+     *  @return the owner of the removed tag, or null if not present
+     */
+    public T remove(SessionTag tag) {
+        int s = find(tag);
+        if (s < 0)
+            return null;
+        T rv = getOwner(s);
+        free(s);
+        return rv;
+    }
+
+    /**
+     *  Remove the tag in this slot only if it still belongs to owner.
+     *  The tag may have been removed and the slot reused.
+     *
+     *  @return true if removed
+     */
+    public boolean removeSlot(int slot, T owner) {
+        if (slot < 0 || slot >= _highWater || _owners[slot] != owner)
+            return false;
+        free(slot);
+        return true;
+    }
+
+    public void clear() {
+        init(MIN_CAPACITY);
+    }
+
+    private void free(int s) {
+        int i = _hashes[s] & _indexMask;
+        while (_index[i] != s + 1) {
+            i = (i + 1) & _indexMask;
+        }
+        deleteIndex(i);
+        _owners[s] = null;
+        _size--;
+        if (_size == 0 && _owners.length > MIN_CAPACITY) {
+            init(MIN_CAPACITY);
+        } else {
+            _hashes[s] = _freeHead;
+            _freeHead = s;
+        }
+    }
+
+    private void insertIndex(int h, int s) {
+        int i = h & _indexMask;
+        while (_index[i] != 0) {
+            i = (i + 1) & _indexMask;
+        }
+        _index[i] = s + 1;
+    }
+
+    /**
+     *  Backward-shift deletion
+     */
+    private void deleteIndex(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & _indexMask;
+            int s = _index[j];
+            if (s == 0)
+                break;
+            int home = _hashes[s - 1] & _indexMask;
+            // move j to i if home is not cyclically in (i, j]
+            if ((j > i && (home <= i || home > j)) ||
+                (j < i && (home <= i && home > j))) {
+                _index[i] = s;
+                i = j;
+            }
+        }
+        _index[i] = 0;
+    }
+
+    /**
+     *  Only called when there are no free slots, so the slots are copied as-is
+     */
+    private void grow() {
+        int capacity = _owners.length * 2;
+        byte[] tags = new byte[capacity * TAG_LEN];
+        System.arraycopy(_tags, 0, tags, 0, _tags.length);
+        _tags = tags;
+        Object[] owners = new Object[capacity];
+        System.arraycopy(_owners, 0, owners, 0, _owners.length);
+        _owners = owners;
+        int[] hashes = new int[capacity];
+        System.arraycopy(_hashes, 0, hashes, 0, _hashes.length);
+        _hashes = hashes;
+        _index = new int[capacity * 2];
+        _indexMask = _index.length - 1;
+        for (int s = 0; s < _highWater; s++) {
+            insertIndex(_hashes[s], s);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -20,6 +21,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -81,7 +83,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     /** Map allowing us to go from the targeted PublicKey to the OutboundSession used */
     private final Map<PublicKey, OutboundSession> _outboundSessions;
     /** Map allowing us to go from a SessionTag to the containing TagSet */
-    private final Map<SessionTag, TagSet> _inboundTagSets;
+    private final InboundTagStore _inboundTagSets;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -156,6 +158,14 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     /** ditto */
     public static final int LOW_THRESHOLD = 30;
 
+    /**
+     *  Store inbound tags in a SessionTagTable instead of a HashMap,
+     *  with no objects per tag, and expire them in order. Default false.
+     *
+     *  @since 0.9.45
+     */
+    public static final String PROP_COMPACT_TAGS = "router.compactSessionTags";
+
     /**
      * The session key manager should only be constructed and accessed through the 
      * application context.  This constructor should only be used by the 
@@ -180,7 +190,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         _log = context.logManager().getLog(TransientSessionKeyManager.class);
         _context = context;
         _outboundSessions = new HashMap<PublicKey, OutboundSession>(64);
-        _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+        if (context.getBooleanProperty(PROP_COMPACT_TAGS))
+            _inboundTagSets = new CompactInboundTags();
+        else
+            _inboundTagSets = new MapInboundTags();
         context.statManager().createRateStat("crypto.sessionTagsExpired", "How many tags/sessions are expired?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
         context.statManager().createRateStat("crypto.sessionTagsRemaining", "How many tags/sessions are remaining after a cleanup?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
          _alive = true;
@@ -551,17 +564,14 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                     }
                 }
             }
+            tagSet.releaseTags();
         }
 
         if (old != null) {
             // drop both old and tagSet tags
             synchronized (_inboundTagSets) {
-                for (SessionTag tag : old.getTags()) {
-                    _inboundTagSets.remove(tag);
-                }
-                for (SessionTag tag : sessionTags) {
-                    _inboundTagSets.remove(tag);
-                }
+                _inboundTagSets.removeTags(old);
+                _inboundTagSets.removeTags(tagSet);
             }
 
             if (_log.shouldLog(Log.WARN)) {
@@ -592,7 +602,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         List<TagSet> removed = new ArrayList<TagSet>(toRemove);
         synchronized (_inboundTagSets) {
             for (TagSet set : _inboundTagSets.values()) {
-                int size = set.getTags().size();
+                int size = set.size();
                 if (size > 1000)
                     absurd++;
                 if (size > 100)
@@ -613,10 +623,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             }
             for (int i = 0; i < removed.size(); i++) {
                 TagSet cur = removed.get(i);
-                for (SessionTag tag : cur.getTags()) {
-                    _inboundTagSets.remove(tag);
-                    tags++;
-                }
+                tags += _inboundTagSets.removeTags(cur);
             }
         }
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS!  removed " + removed.size()
@@ -689,15 +696,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         long now = _context.clock().now();
 
         synchronized (_inboundTagSets) {
-            for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-                TagSet ts = iter.next();
-                // for inbound tagsets, getDate() is the expire time
-                if (ts.getDate() <= now) {
-                    iter.remove();
-                    // bug, this counts inbound tags, not tag sets
-                    removed++;
-                }
-            }
+            // bug, this counts inbound tags, not tag sets
+            removed = _inboundTagSets.expire(now);
             remaining = _inboundTagSets.size();
             if (remaining > 500) {
                 // find SessionKeys with a large number of TagSets and trim them
@@ -715,17 +715,14 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                         // From 9 minutes at 10 down to one minute at 50
                         long age = Math.min(5*60*1000, Math.max(60*1000, 9*60*1000 - ((count - 10) * 8*60*1000/40)));
                         for (TagSet ts : sets) {
-                            Set<SessionTag> tags = ts.getTags();
-                            int curSize = tags.size();
+                            int curSize = ts.size();
                             int origSize = ts.getOriginalSize();
                             long expires = ts.getDate();
                             if (curSize == origSize && curSize > 8 &&
                                 expires < now + SESSION_LIFETIME_MAX_MS - age) {
                                 if (_log.shouldInfo())
                                     _log.info("Removed unused tag set " + ts);
-                                for (SessionTag tag : tags) {
-                                    _inboundTagSets.remove(tag);
-                                }
+                                _inboundTagSets.removeTags(ts);
                                 removed += curSize;
                             }
                         }
@@ -795,7 +792,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                        "<td><b>Sets:</b> ").append(sets.size()).append("</td></tr>" +
                        "<tr class=\"expiry\"><td colspan=\"2\"><ul>");
             for (TagSet ts : sets) {
-                int size = ts.getTags().size();
+                int size = ts.size();
                 total += size;
                 buf.append("<li><b>ID: ").append(ts.getID());
                 long expires = ts.getDate() - now;
@@ -874,6 +871,177 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
     }
 
+    /**
+     *  Inbound SessionTag to TagSet map.
+     *  Caller must synch on it.
+     *
+     *  @since 0.9.45
+     */
+    private interface InboundTagStore {
+
+        /**
+         *  @return the previous TagSet for the tag, or null
+         */
+        public TagSet put(SessionTag tag, TagSet ts);
+
+        /**
+         *  @return the TagSet for the tag, or null
+         */
+        public TagSet remove(SessionTag tag);
+
+        /**
+         *  Remove the remaining tags of the TagSet.
+         *
+         *  @return number of tags removed
+         */
+        public int removeTags(TagSet ts);
+
+        /**
+         *  Remove the tags of all TagSets with getDate() at or before now.
+         *
+         *  @return number of tags removed
+         */
+        public int expire(long now);
+
+        /**
+         *  @return number of tags
+         */
+        public int size();
+
+        /**
+         *  @return the TagSets, possibly with duplicates
+         */
+        public Collection<TagSet> values();
+
+        public void clear();
+    }
+
+    /**
+     *  The original store, each tag is a key in the map
+     *  and the TagSet keeps its Set of tags.
+     *  Expiration iterates over all the tags.
+     *
+     *  @since 0.9.45 moved from fields and methods above
+     */
+    private static class MapInboundTags implements InboundTagStore {
+        private final Map<SessionTag, TagSet> _map = new HashMap<SessionTag, TagSet>(128);
+
+        public TagSet put(SessionTag tag, TagSet ts) {
+            return _map.put(tag, ts);
+        }
+
+        public TagSet remove(SessionTag tag) {
+            return _map.remove(tag);
+        }
+
+        public int removeTags(TagSet ts) {
+            int rv = 0;
+            for (SessionTag tag : ts.getTags()) {
+                if (_map.remove(tag) != null)
+                    rv++;
+            }
+            return rv;
+        }
+
+        public int expire(long now) {
+            int rv = 0;
+            for (Iterator<TagSet> iter = _map.values().iterator(); iter.hasNext();) {
+                TagSet ts = iter.next();
+                // for inbound tagsets, getDate() is the expire time
+                if (ts.getDate() <= now) {
+                    iter.remove();
+                    rv++;
+                }
+            }
+            return rv;
+        }
+
+        public int size() {
+            return _map.size();
+        }
+
+        public Collection<TagSet> values() {
+            return _map.values();
+        }
+
+        public void clear() {
+            _map.clear();
+        }
+    }
+
+    /**
+     *  The tags are copied into a SessionTagTable, and the TagSet
+     *  keeps only the table slots, so there are no objects per tag.
+     *  The TagSets are queued by expiration, so expiration
+     *  only touches the expired TagSets and their slots.
+     *
+     *  @since 0.9.45
+     */
+    private static class CompactInboundTags implements InboundTagStore {
+        private final SessionTagTable<TagSet> _table = new SessionTagTable<TagSet>();
+        /** includes TagSets with no tags remaining, until they expire */
+        private final PriorityQueue<TagSet> _byExpiration = new PriorityQueue<TagSet>(64, new TagSetComparator());
+
+        public TagSet put(SessionTag tag, TagSet ts) {
+            TagSet rv;
+            int slot = _table.find(tag);
+            if (slot >= 0) {
+                rv = _table.getOwner(slot);
+                _table.setOwner(slot, ts);
+            } else {
+                rv = null;
+                slot = _table.add(tag, ts);
+            }
+            if (ts.getSlotCount() == 0)
+                _byExpiration.add(ts);
+            ts.addSlot(slot);
+            return rv;
+        }
+
+        public TagSet remove(SessionTag tag) {
+            return _table.remove(tag);
+        }
+
+        public int removeTags(TagSet ts) {
+            int rv = 0;
+            int[] slots = ts.getSlots();
+            for (int i = 0; i < ts.getSlotCount(); i++) {
+                if (_table.removeSlot(slots[i], ts))
+                    rv++;
+            }
+            ts.clearSlots();
+            return rv;
+        }
+
+        public int expire(long now) {
+            int rv = 0;
+            TagSet ts;
+            while ((ts = _byExpiration.peek()) != null && ts.getDate() <= now) {
+                _byExpiration.poll();
+                rv += removeTags(ts);
+            }
+            return rv;
+        }
+
+        public int size() {
+            return _table.size();
+        }
+
+        public Collection<TagSet> values() {
+            List<TagSet> rv = new ArrayList<TagSet>(_byExpiration.size());
+            for (TagSet ts : _byExpiration) {
+                if (ts.size() > 0)
+                    rv.add(ts);
+            }
+            return rv;
+        }
+
+        public void clear() {
+            _table.clear();
+            _byExpiration.clear();
+        }
+    }
+
     /**
      *  The state for a crypto session to a single public key
      */
@@ -1147,7 +1315,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
 
     private static class TagSet implements TagSetHandle {
-        private final Set<SessionTag> _sessionTags;
+        /** null for inbound TagSets in a CompactInboundTags after releaseTags() */
+        private Set<SessionTag> _sessionTags;
         private final SessionKey _key;
         private final long _date;
         private final int _id;
@@ -1155,6 +1324,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         //private Exception _createdBy;
         /** did we get an ack for this tagset? Only for outbound tagsets */
         private boolean _acked;
+        /** CompactInboundTags only */
+        private int[] _slots;
+        private int _slotCount;
+        private int _remaining;
 
         /**
          *  @param date For inbound: when the TagSet will expire; for outbound: creation time
@@ -1191,11 +1364,77 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         //    _date = when;
         //}
 
-        /** tags still available */
+        /**
+         *  Tags still available.
+         *  Null for inbound TagSets in a CompactInboundTags, use size().
+         */
         public Set<SessionTag> getTags() {
             return _sessionTags;
         }
 
+        /**
+         *  Number of tags still available
+         *
+         *  @since 0.9.45
+         */
+        public int size() {
+            return _sessionTags != null ? _sessionTags.size() : _remaining;
+        }
+
+        /**
+         *  CompactInboundTags only.
+         *  Caller must synch.
+         *
+         *  @since 0.9.45
+         */
+        public void addSlot(int slot) {
+            if (_slots == null)
+                _slots = new int[_origSize];
+            _slots[_slotCount++] = slot;
+        }
+
+        /**
+         *  CompactInboundTags only.
+         *  @since 0.9.45
+         */
+        public int[] getSlots() {
+            return _slots;
+        }
+
+        /**
+         *  CompactInboundTags only.
+         *  @since 0.9.45
+         */
+        public int getSlotCount() {
+            return _slotCount;
+        }
+
+        /**
+         *  CompactInboundTags only, after the tags are removed.
+         *  Caller must synch.
+         *
+         *  @since 0.9.45
+         */
+        public void clearSlots() {
+            _slots = null;
+            _slotCount = 0;
+            _remaining = 0;
+        }
+
+        /**
+         *  If the tags were copied to a CompactInboundTags,
+         *  drop our Set of them. No-op otherwise.
+         *  Caller must synch.
+         *
+         *  @since 0.9.45
+         */
+        public void releaseTags() {
+            if (_slots != null) {
+                _remaining = _slotCount;
+                _sessionTags = null;
+            }
+        }
+
         public SessionKey getAssociatedKey() {
             return _key;
         }
@@ -1204,7 +1443,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
          *  Caller must synch.
          */
         public void consume(SessionTag tag) {
-            _sessionTags.remove(tag);
+            if (_sessionTags != null)
+                _sessionTags.remove(tag);
+            else if (_remaining > 0 && --_remaining == 0)
+                clearSlots();
         }
 
         /**
@@ -1263,7 +1505,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             StringBuilder buf = new StringBuilder(256);
             buf.append("TagSet #").append(_id).append(" created: ").append(new Date(_date));
             buf.append(" Session key: ").append(_key);
-            buf.append(" Size: ").append(_sessionTags.size());
+            buf.append(" Size: ").append(size());
             buf.append('/').append(_origSize);
             buf.append(" Acked? ").append(_acked);
             return buf.toString();
@@ -1,14 +1,12 @@
 package net.i2p.router.crypto.ratchet;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import net.i2p.I2PAppContext;
 import net.i2p.crypto.EncType;
 import net.i2p.crypto.KeyFactory;
 import net.i2p.crypto.KeyPair;
+import net.i2p.crypto.PrecalcQueue;
 import net.i2p.data.PrivateKey;
 import net.i2p.data.PublicKey;
-import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.SystemVersion;
 
@@ -20,18 +18,16 @@ import net.i2p.util.SystemVersion;
  *  the pairs are generated in the NTCP Pumper thread,
  *  and it can fall behind.
  *
+ *  As of 0.9.45, the pairs are made in the PrecalcQueue thread pool,
+ *  and this is no longer a Thread.
+ *
  *  @since 0.9.44 from X25519KeyFactory
  */
-public class Elg2KeyFactory extends I2PThread implements KeyFactory {
+public class Elg2KeyFactory implements KeyFactory, PrecalcQueue.Generator<Elg2KeyPair> {
 
     private final I2PAppContext _context;
     private final Log _log;
-    private final int _minSize;
-    private final int _maxSize;
-    private final int _calcDelay;
-    private final LinkedBlockingQueue<Elg2KeyPair> _keys;
-    private volatile boolean _isRunning;
-    private long _checkDelay = 10 * 1000;
+    private final PrecalcQueue<Elg2KeyPair> _keys;
 
     private final static String PROP_DH_PRECALC_MIN = "crypto.edh.precalc.min";
     private final static String PROP_DH_PRECALC_MAX = "crypto.edh.precalc.max";
@@ -41,85 +37,36 @@ public class Elg2KeyFactory extends I2PThread implements KeyFactory {
     private final static int DEFAULT_DH_PRECALC_DELAY = 25;
 
     public Elg2KeyFactory(I2PAppContext ctx) {
-        super("EDH Precalc");
         _context = ctx;
         _log = ctx.logManager().getLog(Elg2KeyFactory.class);
         ctx.statManager().createRateStat("crypto.EDHGenerateTime", "How long it takes to create x and X", "Encryption", new long[] { 60*60*1000 });
-        ctx.statManager().createRateStat("crypto.EDHUsed", "Need a DH from the queue", "Encryption", new long[] { 60*60*1000 });
         ctx.statManager().createRateStat("crypto.EDHReused", "Unused DH requeued", "Encryption", new long[] { 60*60*1000 });
-        ctx.statManager().createRateStat("crypto.EDHEmpty", "DH queue empty", "Encryption", new long[] { 60*60*1000 });
 
         // add to the defaults for every 128MB of RAM, up to 512MB
         long maxMemory = SystemVersion.getMaxMemory();
         int factor = (int) Math.max(1l, Math.min(4l, 1 + (maxMemory / (128*1024*1024l))));
         int defaultMin = DEFAULT_DH_PRECALC_MIN * factor;
         int defaultMax = DEFAULT_DH_PRECALC_MAX * factor;
-        _minSize = ctx.getProperty(PROP_DH_PRECALC_MIN, defaultMin);
-        _maxSize = ctx.getProperty(PROP_DH_PRECALC_MAX, defaultMax);
-        _calcDelay = ctx.getProperty(PROP_DH_PRECALC_DELAY, DEFAULT_DH_PRECALC_DELAY);
+        int minSize = ctx.getProperty(PROP_DH_PRECALC_MIN, defaultMin);
+        int maxSize = ctx.getProperty(PROP_DH_PRECALC_MAX, defaultMax);
+        int calcDelay = ctx.getProperty(PROP_DH_PRECALC_DELAY, DEFAULT_DH_PRECALC_DELAY);
+        _keys = new PrecalcQueue<Elg2KeyPair>(ctx, "EDH", this, minSize, maxSize, calcDelay);
+    }
 
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("EDH Precalc (minimum: " + _minSize + " max: " + _maxSize + ", delay: "
-                       + _calcDelay + ")");
-        _keys = new LinkedBlockingQueue<Elg2KeyPair>(_maxSize);
-        if (!SystemVersion.isWindows())
-            setPriority(Thread.NORM_PRIORITY - 1);
+    /**
+     *  Start the background precalc.
+     *
+     *  @since 0.9.45 was Thread.start()
+     */
+    public void start() {
+        _keys.start();
     }
         
     /**
-     *  Note that this stops the singleton precalc thread.
-     *  You don't want to do this if there are multiple routers in the JVM.
-     *  Fix this if you care. See Router.shutdown().
+     *  Stop the background precalc.
      */
     public void shutdown() {
-        _isRunning = false;
-        this.interrupt();
-        _keys.clear();
-    }
-
-    public void run() {
-        try {
-            run2();
-        } catch (IllegalStateException ise) {
-            if (_isRunning)
-                throw ise;
-            // else ignore, thread can be slow to shutdown on Android,
-            // PRNG gets stopped first and throws ISE
-        }
-    }
-
-    private void run2() {
-        _isRunning = true;
-        while (_isRunning) {
-            int startSize = getSize();
-            // Adjust delay
-            if (startSize <= (_minSize * 2 / 3) && _checkDelay > 1000)
-                _checkDelay -= 1000;
-            else if (startSize > (_minSize * 3 / 2) && _checkDelay < 60*1000)
-                _checkDelay += 1000;
-            if (startSize < _minSize) {
-                // fill all the way up, do the check here so we don't
-                // throw away one when full in addValues()
-                while (getSize() < _maxSize && _isRunning) {
-                    long curStart = System.currentTimeMillis();
-                    if (!addKeys(precalc()))
-                        break;
-                    long curCalc = System.currentTimeMillis() - curStart;
-                    // for some relief...
-                    if (!interrupted()) {
-                        try {
-                            Thread.sleep(Math.min(200, Math.max(10, _calcDelay + (curCalc * 3))));
-                        } catch (InterruptedException ie) {}
-                    }
-                }
-            }
-            if (!_isRunning)
-                break;
-            try {
-                Thread.sleep(_checkDelay);
-            } catch (InterruptedException ie) { // nop
-            }
-        }
+        _keys.shutdown();
     }
 
     /**
@@ -127,18 +74,15 @@ public class Elg2KeyFactory extends I2PThread implements KeyFactory {
      * or if not available, construct a new one.
      */
     public Elg2KeyPair getKeys() {
-        _context.statManager().addRateData("crypto.EDHUsed", 1);
-        Elg2KeyPair rv = _keys.poll();
-        if (rv == null) {
-            _context.statManager().addRateData("crypto.EDHEmpty", 1);
-            rv = precalc();
-            // stop sleeping, wake up, make some more
-            this.interrupt();
-        }
-        return rv;
+        return _keys.get();
     }
 
-    private Elg2KeyPair precalc() {
+    /**
+     *  For PrecalcQueue only
+     *
+     *  @since 0.9.45 was private precalc()
+     */
+    public Elg2KeyPair generate() {
         long start = System.currentTimeMillis();
         KeyPair rv;
         byte[] enc;
@@ -165,14 +109,4 @@ public class Elg2KeyFactory extends I2PThread implements KeyFactory {
         _keys.offer(kp);
 */
     }
-
-    /** @return true if successful, false if full */
-    private final boolean addKeys(Elg2KeyPair kp) {
-        return _keys.offer(kp);
-    }
-
-    private final int getSize() {
-        return _keys.size();
-    }
-
 }
@@ -45,7 +45,7 @@ public class RatchetSKM extends SessionKeyManager implements SessionTagListener
     private final ConcurrentHashMap<PublicKey, OutboundSession> _outboundSessions;
     private final HashMap<PublicKey, List<OutboundSession>> _pendingOutboundSessions;
     /** Map allowing us to go from a SessionTag to the containing RatchetTagSet */
-    private final ConcurrentHashMap<RatchetSessionTag, RatchetTagSet> _inboundTagSets;
+    private final RatchetTagTable _inboundTagSets;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -96,7 +96,7 @@ public class RatchetSKM extends SessionKeyManager implements SessionTagListener
         _context = context;
         _outboundSessions = new ConcurrentHashMap<PublicKey, OutboundSession>(64);
         _pendingOutboundSessions = new HashMap<PublicKey, List<OutboundSession>>(64);
-        _inboundTagSets = new ConcurrentHashMap<RatchetSessionTag, RatchetTagSet>(128);
+        _inboundTagSets = new RatchetTagTable();
         _hkdf = new HKDF(context);
         // start the precalc of Elg2 keys if it wasn't already started
         context.eciesEngine().startup();
@@ -128,9 +128,7 @@ public class RatchetSKM extends SessionKeyManager implements SessionTagListener
 
     /** RatchetTagSet */
     private Set<RatchetTagSet> getRatchetTagSets() {
-        synchronized (_inboundTagSets) {
-            return new HashSet<RatchetTagSet>(_inboundTagSets.values());
-        }
+        return _inboundTagSets.values();
     }
 
     /** OutboundSession - used only by HTML */
@@ -527,7 +525,7 @@ public class RatchetSKM extends SessionKeyManager implements SessionTagListener
     public SessionKeyAndNonce consumeTag(RatchetSessionTag tag) {
         RatchetTagSet tagSet;
         SessionKeyAndNonce key;
-        tagSet = _inboundTagSets.remove(tag);
+        tagSet = _inboundTagSets.remove(tag.getLong());
         if (tagSet == null) {
             //if (_log.shouldDebug())
             //    _log.debug("IB tag not found: " + tag.toBase64());
@@ -617,14 +615,7 @@ public class RatchetSKM extends SessionKeyManager implements SessionTagListener
         long exp = now - SESSION_LIFETIME_MAX_MS;
 
         // inbound
-        int removed = 0;
-        for (Iterator<RatchetTagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-            RatchetTagSet ts = iter.next();
-            if (ts.getDate() < exp) {
-                iter.remove();
-                removed++;
-            }
-        }
+        int removed = _inboundTagSets.expire(exp);
         if (removed > 0 && _log.shouldInfo())
             _log.info("Expired inbound: " + removed);
 
@@ -672,14 +663,32 @@ public class RatchetSKM extends SessionKeyManager implements SessionTagListener
      *  @return true if added, false if dup
      */
     public boolean addTag(RatchetSessionTag tag, RatchetTagSet ts) {
-        return _inboundTagSets.putIfAbsent(tag, ts) == null;
+        return _inboundTagSets.putIfAbsent(tag.getLong(), ts);
     }
 
     /**
      *  Remove the tag associated with this tagset.
      */
     public void expireTag(RatchetSessionTag tag, RatchetTagSet ts) {
-        _inboundTagSets.remove(tag, ts);
+        _inboundTagSets.remove(tag.getLong(), ts);
+    }
+
+    /**
+     *  Map the tags to this tagset.
+     *
+     *  @since 0.9.45
+     */
+    public void addTags(long[] tags, int count, RatchetTagSet ts) {
+        _inboundTagSets.putAll(tags, 0, count, ts);
+    }
+
+    /**
+     *  Remove the tags associated with this tagset.
+     *
+     *  @since 0.9.45
+     */
+    public void expireTags(long[] tags, int count, RatchetTagSet ts) {
+        _inboundTagSets.removeAll(tags, 0, count, ts);
     }
 
     /// end SessionTagListener ///
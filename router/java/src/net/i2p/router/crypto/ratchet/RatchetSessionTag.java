@@ -31,6 +31,13 @@ public class RatchetSessionTag {
         return rv;
     }
     
+    /**
+     *  @since 0.9.45
+     */
+    public long getLong() {
+        return _data;
+    }
+
     public int length() {
         return LENGTH;
     }
@@ -139,9 +139,7 @@ class RatchetTagSet implements TagSetHandle {
                 _sessionKeys = new SparseArray<byte[]>(minSize);
             else
                 _sessionKeys = null;
-            for (int i = 0; i < minSize; i++) {
-               storeNextTag();
-            }
+            storeNextTags(minSize);
         } else {
             _sessionTags = null;
             _sessionKeys = null;
@@ -331,34 +329,48 @@ class RatchetTagSet implements TagSetHandle {
         int toAdd = _originalSize - remaining;
         if (toAdd > 0) {
             //System.out.println("Extending tags by " + toAdd);
-            for (int i = 0; i < toAdd; i++) {
-                storeNextTag();
-            }
+            storeNextTags(toAdd);
         }
 
         // trim if too big
         int toTrim = _sessionTags.size() - _maxSize;
         if (toTrim > 0) {
             //System.out.println("Trimming tags by " + toTrim);
+            long[] expired = _lsnr != null ? new long[toTrim] : null;
             for (int i = 0; i < toTrim; i++) {
                 int tagnum = _sessionTags.keyAt(i);
                 int kidx = _sessionKeys.indexOfKey(tagnum);
                 if (kidx >= 0)
                     _sessionKeys.removeAt(kidx);
-                if (_lsnr != null)
-                    _lsnr.expireTag(_sessionTags.valueAt(i), this);
+                if (expired != null)
+                    expired[i] = _sessionTags.valueAt(i).getLong();
             }
             _sessionTags.removeAtRange(0, toTrim);
+            if (expired != null)
+                _lsnr.expireTags(expired, toTrim, this);
         }
     }
 
-    private void storeNextTag() {
-        RatchetSessionTag tag = consumeNext();
-        if (tag == null)
-            return;
-        _sessionTags.put(_lastTag, tag);
-        if (_lsnr != null)
-            _lsnr.addTag(tag, this);
+    /**
+     *  Generate and store the next count tags,
+     *  and pass them to the listener all at once.
+     *
+     *  @since 0.9.45 was storeNextTag()
+     */
+    private void storeNextTags(int count) {
+        long[] added = _lsnr != null ? new long[count] : null;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            RatchetSessionTag tag = consumeNext();
+            if (tag == null)
+                break;
+            _sessionTags.put(_lastTag, tag);
+            if (added != null)
+                added[n] = tag.getLong();
+            n++;
+        }
+        if (added != null && n > 0)
+            _lsnr.addTags(added, n, this);
     }
 
     /**
@@ -0,0 +1,308 @@
+package net.i2p.router.crypto.ratchet;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  Inbound tag to tagset map for the RatchetSKM, keyed by the
+ *  8-byte tag as a primitive long.
+ *
+ *  Open addressing with linear probing and backward-shift deletion,
+ *  so there are no per-entry objects and no tombstones.
+ *  Split into segments, each with its own lock, so lookups
+ *  for different tags rarely contend.
+ *
+ *  Tags are HKDF output, so they are well distributed,
+ *  but they are mixed anyway before selecting the segment and slot.
+ *
+ *  @since 0.9.45
+ */
+class RatchetTagTable {
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int MIN_CAPACITY = 16;
+
+    private final Segment[] _segments;
+
+    public RatchetTagTable() {
+        _segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            _segments[i] = new Segment();
+        }
+    }
+
+    /**
+     *  One open-addressed table.
+     *  A null value is an empty slot, so any long is a valid key.
+     */
+    private static class Segment {
+        private long[] _keys;
+        private RatchetTagSet[] _values;
+        private int _size;
+        private int _mask;
+        /** resize above 5/8 full */
+        private int _threshold;
+
+        public Segment() {
+            init(MIN_CAPACITY);
+        }
+
+        private void init(int capacity) {
+            _keys = new long[capacity];
+            _values = new RatchetTagSet[capacity];
+            _mask = capacity - 1;
+            _threshold = capacity * 5 / 8;
+            _size = 0;
+        }
+
+        private int find(long key, int h) {
+            int i = h & _mask;
+            while (true) {
+                if (_values[i] == null)
+                    return -1;
+                if (_keys[i] == key)
+                    return i;
+                i = (i + 1) & _mask;
+            }
+        }
+
+        public synchronized RatchetTagSet get(long key, int h) {
+            int i = find(key, h);
+            return i >= 0 ? _values[i] : null;
+        }
+
+        public synchronized boolean putIfAbsent(long key, int h, RatchetTagSet ts) {
+            int i = h & _mask;
+            while (_values[i] != null) {
+                if (_keys[i] == key)
+                    return false;
+                i = (i + 1) & _mask;
+            }
+            _keys[i] = key;
+            _values[i] = ts;
+            if (++_size > _threshold)
+                rehash(_keys.length * 2, Long.MIN_VALUE);
+            return true;
+        }
+
+        /**
+         *  @param ts if non-null, only remove if mapped to this
+         *  @return the removed value or null
+         */
+        public synchronized RatchetTagSet remove(long key, int h, RatchetTagSet ts) {
+            int i = find(key, h);
+            if (i < 0)
+                return null;
+            RatchetTagSet rv = _values[i];
+            if (ts != null && rv != ts)
+                return null;
+            deleteAt(i);
+            if (_size < _threshold / 4 && _keys.length > MIN_CAPACITY)
+                rehash(_keys.length / 2, Long.MIN_VALUE);
+            return rv;
+        }
+
+        /**
+         *  Backward-shift deletion
+         */
+        private void deleteAt(int i) {
+            int j = i;
+            while (true) {
+                j = (j + 1) & _mask;
+                if (_values[j] == null)
+                    break;
+                int home = hash(_keys[j]) & _mask;
+                // move j to i if home is not cyclically in (i, j]
+                if ((j > i && (home <= i || home > j)) ||
+                    (j < i && (home <= i && home > j))) {
+                    _keys[i] = _keys[j];
+                    _values[i] = _values[j];
+                    i = j;
+                }
+            }
+            _values[i] = null;
+            _size--;
+        }
+
+        /**
+         *  Rebuild, dropping tagsets older than exp
+         *
+         *  @return number of tags removed
+         */
+        private int rehash(int capacity, long exp) {
+            long[] keys = _keys;
+            RatchetTagSet[] values = _values;
+            int size = _size;
+            int kept = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && values[i].getDate() >= exp)
+                    kept++;
+            }
+            while (capacity > MIN_CAPACITY && kept < capacity * 5 / 32)
+                capacity /= 2;
+            while (kept > capacity * 5 / 8)
+                capacity *= 2;
+            init(capacity);
+            for (int i = 0; i < values.length; i++) {
+                RatchetTagSet ts = values[i];
+                if (ts != null && ts.getDate() >= exp) {
+                    int j = hash(keys[i]) & _mask;
+                    while (_values[j] != null) {
+                        j = (j + 1) & _mask;
+                    }
+                    _keys[j] = keys[i];
+                    _values[j] = ts;
+                    _size++;
+                }
+            }
+            return size - _size;
+        }
+
+        /**
+         *  @return number of tags removed
+         */
+        public synchronized int expire(long exp) {
+            boolean any = false;
+            for (int i = 0; i < _values.length; i++) {
+                if (_values[i] != null && _values[i].getDate() < exp) {
+                    any = true;
+                    break;
+                }
+            }
+            if (!any)
+                return 0;
+            return rehash(_keys.length, exp);
+        }
+
+        public synchronized int size() {
+            return _size;
+        }
+
+        public synchronized void addValuesTo(Collection<RatchetTagSet> c) {
+            for (int i = 0; i < _values.length; i++) {
+                if (_values[i] != null)
+                    c.add(_values[i]);
+            }
+        }
+
+        public synchronized void clear() {
+            init(MIN_CAPACITY);
+        }
+    }
+
+    /**
+     *  Fibonacci hashing, the segment is from the high bits
+     *  and the slot from the low bits.
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment segment(int h) {
+        return _segments[h >>> (32 - SEGMENT_BITS)];
+    }
+
+    public RatchetTagSet get(long tag) {
+        int h = hash(tag);
+        return segment(h).get(tag, h);
+    }
+
+    /**
+     *  @return true if added, false if already present
+     */
+    public boolean putIfAbsent(long tag, RatchetTagSet ts) {
+        int h = hash(tag);
+        return segment(h).putIfAbsent(tag, h, ts);
+    }
+
+    /**
+     *  @return the removed tagset or null
+     */
+    public RatchetTagSet remove(long tag) {
+        int h = hash(tag);
+        return segment(h).remove(tag, h, null);
+    }
+
+    /**
+     *  Remove only if mapped to ts
+     *
+     *  @return true if removed
+     */
+    public boolean remove(long tag, RatchetTagSet ts) {
+        int h = hash(tag);
+        return segment(h).remove(tag, h, ts) != null;
+    }
+
+    /**
+     *  Bulk add, for a new or extended tagset.
+     *
+     *  @return number added, not counting duplicates
+     */
+    public int putAll(long[] tags, int off, int len, RatchetTagSet ts) {
+        int rv = 0;
+        for (int i = off; i < off + len; i++) {
+            if (putIfAbsent(tags[i], ts))
+                rv++;
+        }
+        return rv;
+    }
+
+    /**
+     *  Bulk remove, for a trimmed tagset.
+     *  Tags mapped to a different tagset are not removed.
+     *
+     *  @return number removed
+     */
+    public int removeAll(long[] tags, int off, int len, RatchetTagSet ts) {
+        int rv = 0;
+        for (int i = off; i < off + len; i++) {
+            if (remove(tags[i], ts))
+                rv++;
+        }
+        return rv;
+    }
+
+    /**
+     *  Remove all tags for tagsets with getDate() before exp.
+     *  Each segment is rebuilt in one pass, if it has any.
+     *
+     *  @return number of tags removed
+     */
+    public int expire(long exp) {
+        int rv = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            rv += _segments[i].expire(exp);
+        }
+        return rv;
+    }
+
+    /**
+     *  Number of tags
+     */
+    public int size() {
+        int rv = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            rv += _segments[i].size();
+        }
+        return rv;
+    }
+
+    /**
+     *  A snapshot of the distinct tagsets, not consistent across segments
+     */
+    public Set<RatchetTagSet> values() {
+        Set<RatchetTagSet> rv = new HashSet<RatchetTagSet>();
+        for (int i = 0; i < SEGMENTS; i++) {
+            _segments[i].addValuesTo(rv);
+        }
+        return rv;
+    }
+
+    public void clear() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            _segments[i].clear();
+        }
+    }
+}
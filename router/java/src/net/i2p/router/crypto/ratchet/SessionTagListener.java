@@ -20,4 +20,20 @@ interface SessionTagListener {
      *  Remove the tag associated with this tagset.
      */
     public void expireTag(RatchetSessionTag tag, RatchetTagSet ts);
+
+    /**
+     *  Map the tags to this tagset.
+     *
+     *  @param tags as from RatchetSessionTag.getLong()
+     *  @since 0.9.45
+     */
+    public void addTags(long[] tags, int count, RatchetTagSet ts);
+
+    /**
+     *  Remove the tags associated with this tagset.
+     *
+     *  @param tags as from RatchetSessionTag.getLong()
+     *  @since 0.9.45
+     */
+    public void expireTags(long[] tags, int count, RatchetTagSet ts);
 }
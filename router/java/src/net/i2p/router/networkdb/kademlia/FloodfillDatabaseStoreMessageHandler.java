@@ -23,10 +23,12 @@ import net.i2p.router.RouterContext;
 public class FloodfillDatabaseStoreMessageHandler implements HandlerJobBuilder {
     private RouterContext _context;
     private FloodfillNetworkDatabaseFacade _facade;
+    private final StorePreverifier _preverifier;
     
     public FloodfillDatabaseStoreMessageHandler(RouterContext context, FloodfillNetworkDatabaseFacade facade) {
         _context = context;
         _facade = facade;
+        _preverifier = new StorePreverifier(context);
         // following are for HFDSMJ
         context.statManager().createRateStat("netDb.storeHandled", "How many netDb store messages have we handled?", "NetworkDatabase", new long[] { 60*1000, 60*60*1000l });
         context.statManager().createRateStat("netDb.storeLeaseSetHandled", "How many leaseSet store messages have we handled?", "NetworkDatabase", new long[] { 60*60*1000l });
@@ -35,7 +37,9 @@ public class FloodfillDatabaseStoreMessageHandler implements HandlerJobBuilder {
     }
 
     public Job createJob(I2NPMessage receivedMessage, RouterIdentity from, Hash fromHash) {
-        Job j = new HandleFloodfillDatabaseStoreMessageJob(_context, (DatabaseStoreMessage)receivedMessage, from, fromHash, _facade);
+        DatabaseStoreMessage dsm = (DatabaseStoreMessage) receivedMessage;
+        _preverifier.add(dsm.getEntry());
+        Job j = new HandleFloodfillDatabaseStoreMessageJob(_context, dsm, from, fromHash, _facade, _preverifier);
         if (false) {
             j.runJob();
             return null;
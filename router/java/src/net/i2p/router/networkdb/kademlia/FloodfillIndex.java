@@ -0,0 +1,134 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+
+/**
+ *  An immutable snapshot of the floodfill router hashes,
+ *  sorted as unsigned big-endian numbers.
+ *
+ *  In that order, the hashes sharing any prefix are contiguous,
+ *  so the hashes closest to a key by the XOR metric can be found,
+ *  closest first, by walking down the implied binary trie:
+ *  at each bit, the half with the same bit as the key is closer
+ *  than the whole other half. This costs a binary search per level
+ *  for the returned entries only, instead of sorting all the
+ *  floodfills for every lookup and store.
+ *
+ *  The floodfill hashes are not routing keys, so the daily
+ *  routing key change does not affect the index.
+ *
+ *  @since 0.9.45
+ */
+class FloodfillIndex {
+    private final Hash[] _hashes;
+    private final long _created;
+
+    /** unsigned order is XOR order from zero */
+    private static final XORComparator<Hash> UNSIGNED = new XORComparator<Hash>(Hash.FAKE_HASH);
+
+    /**
+     *  @param ffs will be copied
+     *  @param now creation time
+     */
+    public FloodfillIndex(Collection<Hash> ffs, long now) {
+        _hashes = ffs.toArray(new Hash[ffs.size()]);
+        Arrays.sort(_hashes, UNSIGNED);
+        _created = now;
+    }
+
+    public int size() {
+        return _hashes.length;
+    }
+
+    public long getCreated() {
+        return _created;
+    }
+
+    /**
+     *  @return all the hashes, unmodifiable, not shuffled
+     */
+    public List<Hash> getAll() {
+        return Collections.unmodifiableList(Arrays.asList(_hashes));
+    }
+
+    /**
+     *  Selects hashes to return
+     */
+    public interface Filter {
+        /** @return true to return it */
+        public boolean accept(Hash h);
+    }
+
+    /**
+     *  @param key the ROUTING key (NOT the original key)
+     *  @param max max to return
+     *  @param filter may be null
+     *  @return up to max accepted hashes, closest to the key first
+     */
+    public List<Hash> getClosest(Hash key, int max, Filter filter) {
+        List<Hash> rv = new ArrayList<Hash>(Math.min(max, _hashes.length));
+        if (max > 0)
+            collect(0, _hashes.length, 0, key.getData(), max, filter, rv);
+        return rv;
+    }
+
+    /**
+     *  All the hashes in [lo, hi) have the same first bit bits.
+     *  Add the accepted ones to rv, closest first, until rv has max.
+     */
+    private void collect(int lo, int hi, int bit, byte[] key, int max, Filter filter, List<Hash> rv) {
+        // skip the levels where all the hashes have the same bit
+        while (hi - lo > 1 && bit < 8 * Hash.HASH_LENGTH) {
+            int mid = split(lo, hi, bit);
+            if (mid == lo || mid == hi) {
+                bit++;
+                continue;
+            }
+            if (testBit(key, bit)) {
+                collect(mid, hi, bit + 1, key, max, filter, rv);
+                if (rv.size() >= max)
+                    return;
+                // the other half is farther, finish it here
+                hi = mid;
+            } else {
+                collect(lo, mid, bit + 1, key, max, filter, rv);
+                if (rv.size() >= max)
+                    return;
+                lo = mid;
+            }
+            bit++;
+        }
+        // one left, or duplicates
+        for (int i = lo; i < hi && rv.size() < max; i++) {
+            Hash h = _hashes[i];
+            if (filter == null || filter.accept(h))
+                rv.add(h);
+        }
+    }
+
+    /**
+     *  @return the index of the first hash in [lo, hi) with the bit set, or hi
+     */
+    private int split(int lo, int hi, int bit) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (testBit(_hashes[mid].getData(), bit))
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /** big-endian bit number */
+    private static boolean testBit(byte[] data, int bit) {
+        return (data[bit >> 3] & (0x80 >> (bit & 7))) != 0;
+    }
+}
@@ -16,6 +16,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
@@ -39,11 +40,68 @@ import net.i2p.util.Log;
  *  Warning - most methods taking a key as an argument require the
  *            routing key, not the original key.
  *
+ *  As of 0.9.45, the floodfills are kept in a FloodfillIndex,
+ *  rebuilt when the floodfill count changes or it gets old.
+ *
  */
 class FloodfillPeerSelector extends PeerSelector {
 
+    private volatile FloodfillIndex _index;
+
+    /** don't rebuild more often than this when the floodfill count changes */
+    private static final long MIN_INDEX_AGE = 10*1000;
+    /** always rebuild after this, to pick up replaced floodfills */
+    private static final long MAX_INDEX_AGE = 2*60*1000;
+
     public FloodfillPeerSelector(RouterContext ctx) {
         super(ctx);
+        ctx.statManager().createRateStat("netDb.selectClosestFloodfillTime", "Time to select the floodfills closest to a key (us)", "NetworkDatabase", new long[] { 60*60*1000l });
+        ctx.statManager().createRateStat("netDb.selectReliableFloodfillTime", "Time to select floodfills for a search (us)", "NetworkDatabase", new long[] { 60*60*1000l });
+    }
+
+    /**
+     *  The current index, rebuilt if stale.
+     *  Entries may no longer be floodfills, callers must check.
+     *
+     *  @return non-null
+     *  @since 0.9.45
+     */
+    FloodfillIndex getFloodfillIndex() {
+        FloodfillIndex rv = _index;
+        long now = _context.clock().now();
+        if (rv != null) {
+            long age = now - rv.getCreated();
+            if (age < MIN_INDEX_AGE ||
+                (age < MAX_INDEX_AGE &&
+                 rv.size() == _context.peerManager().countPeersByCapability(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL)))
+                return rv;
+        }
+        // concurrent rebuilds are harmless
+        Set<Hash> ffs = _context.peerManager().getPeersByCapability(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL);
+        rv = new FloodfillIndex(ffs, now);
+        _index = rv;
+        return rv;
+    }
+
+    /**
+     *  Accepts current floodfills that are not ignored or banlisted forever
+     *  @since 0.9.45
+     */
+    private class FloodfillFilter implements FloodfillIndex.Filter {
+        private final Set<Hash> _ffs;
+        private final Set<Hash> _toIgnore;
+
+        /** @param toIgnore can be null */
+        public FloodfillFilter(Set<Hash> toIgnore) {
+            _ffs = _context.peerManager().getPeersByCapability(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL);
+            _toIgnore = toIgnore;
+        }
+
+        public boolean accept(Hash h) {
+            return _ffs.contains(h) &&
+                   (_toIgnore == null || !_toIgnore.contains(h)) &&
+                   !_context.banlist().isBanlistedForever(h);
+        }
     }
     
     /**
@@ -86,15 +144,25 @@ class FloodfillPeerSelector extends PeerSelector {
      * @return List of Hash for the peers selected
      */
     List<Hash> selectNearestExplicitThin(Hash key, int maxNumRouters, Set<Hash> peersToIgnore, KBucketSet<Hash> kbuckets, boolean preferConnected) { 
+        long begin = System.nanoTime();
         if (peersToIgnore == null)
             peersToIgnore = Collections.singleton(_context.routerHash());
         else
             peersToIgnore.add(_context.routerHash());
-        // TODO this is very slow
         FloodfillSelectionCollector matches = new FloodfillSelectionCollector(key, peersToIgnore, maxNumRouters);
         if (kbuckets == null) return new ArrayList<Hash>();
-        kbuckets.getAll(matches);
+        if (SearchJob.onlyQueryFloodfillPeers(_context)) {
+            // The collector would drop all the non-floodfills,
+            // so don't go through the whole netDb to find the floodfills
+            for (Hash h : getFloodfillIndex().getAll()) {
+                matches.add(h);
+            }
+        } else {
+            kbuckets.getAll(matches);
+        }
         List<Hash> rv = matches.get(maxNumRouters, preferConnected);
+        _context.statManager().addRateData("netDb.selectReliableFloodfillTime",
+                                           TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Searching for " + maxNumRouters + " peers close to " + key + ": " 
                        + rv + " (not including " + peersToIgnore + ") [allHashes.size = " 
@@ -203,13 +271,16 @@ class FloodfillPeerSelector extends PeerSelector {
      *  @param kbuckets now unused
      */
     private List<Hash> selectFloodfillParticipantsIncludingUs(Hash key, int howMany, Set<Hash> toIgnore, KBucketSet<Hash> kbuckets) {
-        List<Hash> ffs = selectFloodfillParticipants(toIgnore, kbuckets);
-        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
-        sorted.addAll(ffs);
+        long begin = System.nanoTime();
+        // 5 == FNDF.MAX_TO_FLOOD + 1
+        int limit = Math.max(5, howMany);
+        // only the closest limit are looked at below
+        List<Hash> sorted = getFloodfillIndex().getClosest(key, limit, new FloodfillFilter(toIgnore));
+        limit = sorted.size();
 
         List<Hash> rv = new ArrayList<Hash>(howMany);
-        List<Hash> okff = new ArrayList<Hash>(ffs.size());
-        List<Hash> badff = new ArrayList<Hash>(ffs.size());
+        List<Hash> okff = new ArrayList<Hash>(limit);
+        List<Hash> badff = new ArrayList<Hash>(limit);
         int found = 0;
         long now = _context.clock().now();
         long installed = _context.getProperty("router.firstInstalled", 0L);
@@ -227,16 +298,10 @@ class FloodfillPeerSelector extends PeerSelector {
             }
         }
 
-        // 5 == FNDF.MAX_TO_FLOOD + 1
-        int limit = Math.max(5, howMany);
-        limit = Math.min(limit, ffs.size());
         MaskedIPSet maskedIPs = new MaskedIPSet(limit * 3);
         // split sorted list into 3 sorted lists
         for (int i = 0; found < howMany && i < limit; i++) {
-            Hash entry = sorted.first();
-            if (entry == null)
-                break;  // shouldn't happen
-            sorted.remove(entry);
+            Hash entry = sorted.get(i);
             // put anybody in the same /16 at the end
             RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
             MaskedIPSet entryIPs = new MaskedIPSet(_context, entry, info, 2);
@@ -325,6 +390,8 @@ class FloodfillPeerSelector extends PeerSelector {
             found++;
         }
 
+        _context.statManager().addRateData("netDb.selectClosestFloodfillTime",
+                                           TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
         return rv;
     }
     
@@ -42,21 +42,25 @@ class HandleFloodfillDatabaseStoreMessageJob extends JobImpl {
     private final RouterIdentity _from;
     private Hash _fromHash;
     private final FloodfillNetworkDatabaseFacade _facade;
+    private final StorePreverifier _preverifier;
     private final static int REPLY_TIMEOUT = 60*1000;
     private final static int MESSAGE_PRIORITY = OutNetMessage.PRIORITY_NETDB_REPLY;
 
     /**
      * @param receivedMessage must never have reply token set if it came down a tunnel
+     * @param preverifier may be null
      */
     public HandleFloodfillDatabaseStoreMessageJob(RouterContext ctx, DatabaseStoreMessage receivedMessage,
                                                   RouterIdentity from, Hash fromHash,
-                                                  FloodfillNetworkDatabaseFacade facade) {
+                                                  FloodfillNetworkDatabaseFacade facade,
+                                                  StorePreverifier preverifier) {
         super(ctx);
         _log = ctx.logManager().getLog(getClass());
         _message = receivedMessage;
         _from = from;
         _fromHash = fromHash;
         _facade = facade;
+        _preverifier = preverifier;
     }
     
     public void runJob() {
@@ -64,6 +68,8 @@ class HandleFloodfillDatabaseStoreMessageJob extends JobImpl {
         //    _log.debug("Handling database store message");
 
         long recvBegin = System.currentTimeMillis();
+        if (_preverifier != null)
+            _preverifier.verifyPending();
         
         String invalidMessage = null;
         // set if invalid store but not his fault
@@ -10,6 +10,8 @@ package net.i2p.router.networkdb.kademlia;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -57,9 +59,20 @@ public class PersistentDataStore extends TransientDataStore {
     private volatile boolean _initialized;
     private final boolean _flat;
     private final int _networkID;
+    /** null unless segmented */
+    private final SegmentedRouterInfoStore _segments;
     
     private final static int READ_DELAY = 2*60*1000;
+    /** RIs read before batch verifying their signatures */
+    private static final int READ_BATCH = 64;
     private static final String PROP_FLAT = "router.networkDatabase.flat";
+    /**
+     *  Store the RIs in a SegmentedRouterInfoStore instead of one file each.
+     *  Existing files are imported on startup. If set back to false,
+     *  the segments are exported to files on startup.
+     *  @since 0.9.45
+     */
+    private static final String PROP_SEGMENTED = "router.networkDatabase.segmented";
     static final String DIR_PREFIX = "r";
     private static final String B64 = Base64.ALPHABET_I2P;
 
@@ -70,7 +83,14 @@ public class PersistentDataStore extends TransientDataStore {
         super(ctx);
         _networkID = ctx.router().getNetworkID();
         _flat = ctx.getBooleanProperty(PROP_FLAT);
-        _dbDir = getDbDir(dbDir);
+        boolean segmented = ctx.getBooleanProperty(PROP_SEGMENTED);
+        _dbDir = getDbDir(dbDir, segmented);
+        if (segmented) {
+            // files are imported in the ReadJob
+            _segments = new SegmentedRouterInfoStore(ctx, new File(_dbDir, SegmentedRouterInfoStore.DIR_NAME));
+        } else {
+            _segments = null;
+        }
         _facade = facade;
         _readJob = new ReadJob();
         _context.jobQueue().addJob(_readJob);
@@ -266,9 +286,20 @@ public class PersistentDataStore extends TransientDataStore {
                             _log.info("Wrote " + lastCount + " entries to disk in " + time);
                          _context.statManager().addRateData("netDb.writeOut", lastCount);
                          _context.statManager().addRateData("netDb.writeTime", time);
+                        if (_segments != null) {
+                            try {
+                                _segments.sync();
+                                _segments.compactIfNeeded();
+                            } catch (IOException ioe) {
+                                _log.error("Error writing the netDb segments", ioe);
+                            }
+                        }
                     }
-                    if (_quit)
+                    if (_quit) {
+                        if (_segments != null)
+                            _segments.close();
                         break;
+                    }
                     synchronized (_waitLock) {
                         try {
                             _waitLock.wait(WRITE_DELAY);
@@ -295,10 +326,23 @@ public class PersistentDataStore extends TransientDataStore {
         try {
             String filename = null;
 
-            if (data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
-                filename = getRouterInfoName(key);
-            else
+            if (data.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO)
                 throw new IOException("We don't know how to write objects of type " + data.getClass().getName());
+            if (_segments != null) {
+                long dataPublishDate = getPublishDate(data);
+                if (_segments.getDate(key) < dataPublishDate) {
+                    try {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+                        data.writeBytes(baos);
+                        _segments.put(key, dataPublishDate, baos.toByteArray());
+                    } catch (DataFormatException dfe) {
+                        _log.error("Error writing out malformed object as " + key + ": " 
+                                   + data, dfe);
+                    }
+                }
+                return;
+            }
+            filename = getRouterInfoName(key);
 
             dbFile = new File(_dbDir, filename);
             long dataPublishDate = getPublishDate(data);
@@ -365,7 +409,7 @@ public class PersistentDataStore extends TransientDataStore {
             long lastMod = _dbDir.lastModified();
             // if size() (= RI + LS) is too low, call anyway to check for reseed
             boolean shouldScan = lastMod > _lastModified || size() < MIN_ROUTERS + 10;
-            if (!shouldScan && !_flat) {
+            if (!shouldScan && !_flat && _segments == null) {
                 for (int j = 0; j < B64.length(); j++) {
                     File subdir = new File(_dbDir, DIR_PREFIX + B64.charAt(j));
                     if (subdir.lastModified() > _lastModified) {
@@ -393,10 +437,13 @@ public class PersistentDataStore extends TransientDataStore {
         private void readFiles() {
             int routerCount = 0;
 
-            File routerInfoFiles[] = _dbDir.listFiles(RI_FILTER);
-            if (_flat) {
+            if (_segments != null) {
+                routerCount = readSegments();
+            } else if (_flat) {
+                File routerInfoFiles[] = _dbDir.listFiles(RI_FILTER);
                 if (routerInfoFiles != null) {
                     routerCount = routerInfoFiles.length;
+                    List<ReadRouterJob> batch = new ArrayList<ReadRouterJob>(READ_BATCH);
                     for (int i = 0; i < routerInfoFiles.length; i++) {
                         // drop out if the router gets killed right after startup
                         if (!_context.router().isAlive())
@@ -407,13 +454,17 @@ public class PersistentDataStore extends TransientDataStore {
                             // Also this allows us to wait until it is really done to call checkReseed() and set _initialized
                             //PersistentDataStore.this._context.jobQueue().addJob(new ReadRouterJob(routerInfoFiles[i], key));
                             //long start = System.currentTimeMillis();
-                            (new ReadRouterJob(routerInfoFiles[i], key)).runJob();
+                            batch.add(new ReadRouterJob(routerInfoFiles[i], key));
+                            if (batch.size() >= READ_BATCH)
+                                readBatch(batch);
                             //_context.statManager().addRateData("netDb.readTime", System.currentTimeMillis() - start);
                         }
                     }
+                    readBatch(batch);
                 }
             } else {
                 // move all new RIs to subdirs, then scan those
+                File routerInfoFiles[] = _dbDir.listFiles(RI_FILTER);
                 if (routerInfoFiles != null)
                     migrate(_dbDir, routerInfoFiles);
                 // Loading the files in-order causes clumping in the kbuckets,
@@ -437,24 +488,30 @@ public class PersistentDataStore extends TransientDataStore {
                 }
                 Collections.shuffle(toRead, _context.random());
                 int i = 0;
+                List<ReadRouterJob> batch = new ArrayList<ReadRouterJob>(READ_BATCH);
                 for (File file : toRead) {
                     Hash key = getRouterInfoHash(file.getName());
                     if (key != null && !isKnown(key)) {
-                        (new ReadRouterJob(file, key)).runJob();
-                        if (i++ == 150 && SystemVersion.isSlow() && !_initialized) {
-                            // Can take 2 minutes to load them all on Android,
-                            // after we have already built expl. tunnels.
-                            // This is enough to let i2ptunnel get started.
-                            // Do not set _initialized yet so we don't start rescanning.
-                            _setNetDbReady = true;
-                            _context.router().setNetDbReady();
-                        } else if (i == 500 && !_setNetDbReady) {
-                            // do this for faster systems also at 500
-                            _setNetDbReady = true;
-                            _context.router().setNetDbReady();
+                        batch.add(new ReadRouterJob(file, key));
+                        // small batches at first, to get started sooner
+                        if (batch.size() >= READ_BATCH || (i < 500 && batch.size() >= READ_BATCH / 4)) {
+                            i += readBatch(batch);
+                            if (i >= 150 && SystemVersion.isSlow() && !_initialized && !_setNetDbReady) {
+                                // Can take 2 minutes to load them all on Android,
+                                // after we have already built expl. tunnels.
+                                // This is enough to let i2ptunnel get started.
+                                // Do not set _initialized yet so we don't start rescanning.
+                                _setNetDbReady = true;
+                                _context.router().setNetDbReady();
+                            } else if (i >= 500 && !_setNetDbReady) {
+                                // do this for faster systems also at 500
+                                _setNetDbReady = true;
+                                _context.router().setNetDbReady();
+                            }
                         }
                     }
                 }
+                readBatch(batch);
             }
             
             if (!_initialized) {
@@ -489,12 +546,79 @@ public class PersistentDataStore extends TransientDataStore {
                 }
             }
         }
+
+        /**
+         *  Import any new files (from a reseed), then read the RIs we don't have
+         *  from the segments, in random order.
+         *
+         *  @return the number of RIs in the segments
+         *  @since 0.9.45
+         */
+        private int readSegments() {
+            try {
+                int count = _segments.importFiles(_dbDir);
+                if (count > 0 && _log.shouldInfo())
+                    _log.info("Imported " + count + " RI files to the segments");
+            } catch (IOException ioe) {
+                _log.error("Error importing RI files to the segments", ioe);
+            }
+            List<Hash> keys = _segments.getKeys();
+            Collections.shuffle(keys, _context.random());
+            int i = 0;
+            List<ReadRouterJob> batch = new ArrayList<ReadRouterJob>(READ_BATCH);
+            for (Hash key : keys) {
+                if (!_context.router().isAlive())
+                    break;
+                if (isKnown(key))
+                    continue;
+                batch.add(new ReadRouterJob(key));
+                if (batch.size() >= READ_BATCH || (i < 500 && batch.size() >= READ_BATCH / 4)) {
+                    i += readBatch(batch);
+                    if (i >= 500 && !_setNetDbReady) {
+                        _setNetDbReady = true;
+                        _context.router().setNetDbReady();
+                    }
+                }
+            }
+            readBatch(batch);
+            return keys.size();
+        }
+
+        /**
+         *  Read the files, batch verify the signatures, then store.
+         *  Clears the list.
+         *
+         *  @return the number of files
+         *  @since 0.9.45
+         */
+        private int readBatch(List<ReadRouterJob> jobs) {
+            int rv = jobs.size();
+            if (rv <= 0)
+                return 0;
+            List<RouterInfo> ris = new ArrayList<RouterInfo>(rv);
+            for (Iterator<ReadRouterJob> iter = jobs.iterator(); iter.hasNext(); ) {
+                RouterInfo ri = iter.next().read();
+                if (ri != null)
+                    ris.add(ri);
+                else
+                    iter.remove();
+            }
+            if (ris.size() > 1)
+                DatabaseEntry.preverifySignatures(ris);
+            for (ReadRouterJob job : jobs) {
+                job.store();
+            }
+            jobs.clear();
+            return rv;
+        }
     }
     
     private class ReadRouterJob extends JobImpl {
+        /** null if from the segments */
         private final File _routerFile;
         private final Hash _key;
         private long _knownDate;
+        private RouterInfo _ri;
 
         /**
          *  @param key must match the RI hash in the file
@@ -505,6 +629,14 @@ public class PersistentDataStore extends TransientDataStore {
             _key = key;
         }
 
+        /**
+         *  From the segments
+         *  @since 0.9.45
+         */
+        public ReadRouterJob(Hash key) {
+            this(null, key);
+        }
+
         public String getName() { return "Read RouterInfo"; }
         
         private boolean shouldRead() {
@@ -513,29 +645,107 @@ public class PersistentDataStore extends TransientDataStore {
             if (data == null) return true;
             if (data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
                 _knownDate = ((RouterInfo)data).getPublished();
-                long fileDate = _routerFile.lastModified();
+                long fileDate = _routerFile != null ? _routerFile.lastModified() : _segments.getDate(_key);
                 // don't overwrite recent netdb RIs with reseed data
                 return fileDate > _knownDate + (60*60*1000);
             } else {
                 // safety measure - prevent injection from reseeding
-                _log.error("Prevented LS overwrite by RI " + _key + " from " + _routerFile);
+                _log.error("Prevented LS overwrite by RI " + _key + " from " + getSourceName());
                 return false;
             }
         }
 
         public void runJob() {
-            if (!shouldRead()) return;
+            if (read() != null)
+                store();
+        }
+
+        /**
+         *  Read in the file, without verifying the sig.
+         *  Deletes the file if it is corrupt.
+         *
+         *  @return the RouterInfo to be stored with store(), or null
+         *  @since 0.9.45 split out of runJob()
+         */
+        public RouterInfo read() {
+            if (!shouldRead()) return null;
             if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Reading " + _routerFile);
+                _log.debug("Reading " + getSourceName());
 
                 InputStream fis = null;
                 boolean corrupt = false;
                 try {
-                    fis = new FileInputStream(_routerFile);
-                    fis = new BufferedInputStream(fis);
+                    if (_routerFile != null) {
+                        fis = new FileInputStream(_routerFile);
+                        fis = new BufferedInputStream(fis);
+                    } else {
+                        byte[] data = _segments.get(_key);
+                        if (data == null)
+                            return null;
+                        fis = new ByteArrayInputStream(data);
+                    }
                     RouterInfo ri = new RouterInfo();
-                    ri.readBytes(fis, true);  // true = verify sig on read
-                    if (ri.getNetworkId() != _networkID) {
+                    // sig is verified in store(), after preverifySignatures()
+                    ri.readBytes(fis, false);
+                    _ri = ri;
+                } catch (DataFormatException dfe) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Error reading the routerInfo from " + getSourceName(), dfe);
+                    corrupt = true;
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Unable to read the router reference in " + getSourceName(), ioe);
+                    corrupt = true;
+                } catch (RuntimeException e) {
+                    // key certificate problems, etc., don't let one bad RI kill the whole thing
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Unable to read the router reference in " + getSourceName(), e);
+                    corrupt = true;
+                } finally {
+                    if (fis != null) try { fis.close(); } catch (IOException ioe) {}
+                }
+                if (corrupt) deleteCorrupt();
+                return _ri;
+        }
+
+        /**
+         *  @since 0.9.45
+         */
+        private String getSourceName() {
+            return _routerFile != null ? _routerFile.getName() : "segment entry " + _key.toBase64();
+        }
+
+        /**
+         *  @since 0.9.45
+         */
+        private void deleteCorrupt() {
+            if (_routerFile != null) {
+                _routerFile.delete();
+            } else {
+                try {
+                    _segments.remove(_key);
+                } catch (IOException ioe) {}
+            }
+        }
+
+        /**
+         *  Verify the sig and store the RouterInfo from read(), if any.
+         *  Deletes the file if it is corrupt.
+         *
+         *  @since 0.9.45 split out of runJob()
+         */
+        public void store() {
+            RouterInfo ri = _ri;
+            if (ri == null)
+                return;
+            _ri = null;
+                boolean corrupt = false;
+                try {
+                    if (!ri.isValid()) {
+                        corrupt = true;
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Bad sig on the routerInfo from " + getSourceName());
+                    } else if (ri.getNetworkId() != _networkID) {
                         corrupt = true;
                         if (_log.shouldLog(Log.ERROR))
                             _log.error("The router "
@@ -546,11 +756,16 @@ public class PersistentDataStore extends TransientDataStore {
                         // this is checked in KNDF.validate() but catch it sooner and log as error.
                         corrupt = true;
                         if (_log.shouldLog(Log.WARN))
-                            _log.warn(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + _routerFile);
+                            _log.warn(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + getSourceName());
                     } else if (ri.getPublished() <= _knownDate) {
                         // Don't store but don't delete
                         if (_log.shouldLog(Log.WARN))
-                            _log.warn("Skipping since netdb newer than " + _routerFile);
+                            _log.warn("Skipping since netdb newer than " + getSourceName());
+                    } else if (_routerFile == null && getContext().banlist().isBanlistedForever(_key)) {
+                        // our old identity, LoadRouterInfoJob can only delete the file
+                        corrupt = true;
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn(_key + " is banlisted forever");
                     } else if (getContext().blocklist().isBlocklisted(ri)) {
                         corrupt = true;
                         if (_log.shouldLog(Log.WARN))
@@ -569,28 +784,21 @@ public class PersistentDataStore extends TransientDataStore {
                             corrupt = true;
                         }
                     }
-                } catch (DataFormatException dfe) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Error reading the routerInfo from " + _routerFile.getName(), dfe);
-                    corrupt = true;
-                } catch (IOException ioe) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Unable to read the router reference in " + _routerFile.getName(), ioe);
-                    corrupt = true;
                 } catch (RuntimeException e) {
                     // key certificate problems, etc., don't let one bad RI kill the whole thing
                     if (_log.shouldLog(Log.INFO))
-                        _log.info("Unable to read the router reference in " + _routerFile.getName(), e);
+                        _log.info("Unable to read the router reference in " + getSourceName(), e);
                     corrupt = true;
-                } finally {
-                    if (fis != null) try { fis.close(); } catch (IOException ioe) {}
                 }
-                if (corrupt) _routerFile.delete();
+                if (corrupt) deleteCorrupt();
         }
     }
     
     
-    private File getDbDir(String dbDir) throws IOException {
+    /**
+     *  @param segmented if false, and there are segments, export them to files
+     */
+    private File getDbDir(String dbDir, boolean segmented) throws IOException {
         File f = new SecureDirectory(_context.getRouterDir(), dbDir);
         if (!f.exists()) {
             boolean created = f.mkdirs();
@@ -603,6 +811,16 @@ public class PersistentDataStore extends TransientDataStore {
             throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not readable!");
         if (!f.canWrite())
             throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not writable!");
+        if (segmented)
+            return f;
+        File segdir = new File(f, SegmentedRouterInfoStore.DIR_NAME);
+        if (SegmentedRouterInfoStore.exists(segdir)) {
+            SegmentedRouterInfoStore segs = new SegmentedRouterInfoStore(_context, segdir);
+            int count = segs.exportFiles(f, _flat);
+            segs.delete();
+            if (_log.shouldWarn())
+                _log.warn("Exported " + count + " RIs from the segments to files");
+        }
         if (_flat) {
             unmigrate(f);
         } else {
@@ -651,8 +869,8 @@ public class PersistentDataStore extends TransientDataStore {
         }
     }
     
-    private final static String ROUTERINFO_PREFIX = "routerInfo-";
-    private final static String ROUTERINFO_SUFFIX = ".dat";
+    final static String ROUTERINFO_PREFIX = "routerInfo-";
+    final static String ROUTERINFO_SUFFIX = ".dat";
 
     /** @since 0.9.34 */
     public static final FileFilter RI_FILTER = new FileSuffixFilter(ROUTERINFO_PREFIX, ROUTERINFO_SUFFIX);
@@ -705,6 +923,10 @@ public class PersistentDataStore extends TransientDataStore {
     }
     
     private void removeFile(Hash key, File dir) throws IOException {
+        if (_segments != null) {
+            _segments.remove(key);
+            return;
+        }
         String riName = getRouterInfoName(key);
         File f = new File(dir, riName);
         if (f.exists()) {
@@ -0,0 +1,666 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Base64;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Append-only store of RouterInfos in a few large segment files,
+ *  instead of one file per RouterInfo.
+ *  Used by PersistentDataStore when router.networkDatabase.segmented=true.
+ *
+ *  The segments are memory-mapped for reading. An in-memory index
+ *  maps each hash to the location of its latest record.
+ *  A store or remove appends a record to the active segment.
+ *  When more than half of the bytes are old records, the live records
+ *  are copied to a new segment and the old segments are deleted.
+ *
+ *  Segment format: 16 byte header, then records.
+ *<pre>
+ *  Header: "NDBS" 1 byte version, 3 bytes reserved,
+ *          8 bytes: segments numbered lower than this are obsolete (compacted)
+ *  Record: 4 bytes data length, 4 bytes CRC32 of the rest of the record,
+ *          1 byte type (1 = store, 2 = remove), 32 bytes hash,
+ *          8 bytes published date, data (the RouterInfo)
+ *</pre>
+ *  A truncated or corrupt record at the end of the last segment,
+ *  as after a crash, is discarded on open.
+ *
+ *  All methods are synchronized. Not for LeaseSets.
+ *
+ *  Also a command line tool to migrate to and from the directory layout.
+ *
+ *  @since 0.9.45
+ */
+class SegmentedRouterInfoStore {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final File _dir;
+    /** segment number to segment */
+    private final TreeMap<Integer, Segment> _segments;
+    private final Map<Hash, Location> _index;
+    private Segment _active;
+    /** bytes in all records */
+    private long _totalBytes;
+    /** bytes in the latest record for each hash */
+    private long _liveBytes;
+    private boolean _closed;
+
+    public static final String DIR_NAME = "segments";
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+    private static final byte[] MAGIC = DataHelper.getASCII("NDBS");
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 16;
+    private static final int RECORD_HEADER_LEN = 4 + 4 + 1 + Hash.HASH_LENGTH + 8;
+    private static final byte TYPE_STORE = 1;
+    private static final byte TYPE_REMOVE = 2;
+    /** RIs are under 2KB, this is for corruption detection */
+    private static final int MAX_DATA_LEN = 64*1024;
+    private static final int MAX_SEGMENT_SIZE = 4*1024*1024;
+    private static final long MIN_COMPACT_SIZE = 1024*1024;
+
+    private static class Segment {
+        final int num;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long size;
+        MappedByteBuffer map;
+
+        Segment(int num, File file, RandomAccessFile raf) throws IOException {
+            this.num = num;
+            this.file = file;
+            this.raf = raf;
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        /**
+         *  Map, or remap if the segment has grown past the map
+         */
+        ByteBuffer map(long end) throws IOException {
+            if (map == null || map.capacity() < end) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return map.duplicate();
+        }
+
+        void close() {
+            // We can't unmap, just drop it for the GC
+            map = null;
+            try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        /** total record length */
+        final int length;
+        final long date;
+
+        Location(Segment segment, int offset, int length, long date) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.date = date;
+        }
+    }
+
+    /**
+     *  Opens the store and reads the index, creating the directory if necessary.
+     *
+     *  @param dir the segment directory
+     */
+    public SegmentedRouterInfoStore(I2PAppContext ctx, File dir) throws IOException {
+        _context = ctx;
+        _log = ctx.logManager().getLog(SegmentedRouterInfoStore.class);
+        _dir = dir;
+        _segments = new TreeMap<Integer, Segment>();
+        _index = new HashMap<Hash, Location>(4096);
+        if (!_dir.exists() && !new SecureDirectory(_dir.getPath()).mkdirs())
+            throw new IOException("Unable to create the segment directory " + _dir);
+        open();
+    }
+
+    /**
+     *  Does the directory contain a segment store?
+     */
+    public static boolean exists(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return false;
+        for (File f : files) {
+            if (getSegmentNumber(f.getName()) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    private void open() throws IOException {
+        File[] files = _dir.listFiles();
+        if (files == null)
+            throw new IOException("Unable to list " + _dir);
+        TreeMap<Integer, File> sorted = new TreeMap<Integer, File>();
+        for (File f : files) {
+            String name = f.getName();
+            int num = getSegmentNumber(name);
+            if (num >= 0) {
+                sorted.put(Integer.valueOf(num), f);
+            } else if (name.endsWith(".tmp")) {
+                // failed compaction
+                f.delete();
+            }
+        }
+        // first pass, find the latest compaction
+        long obsoleteBelow = 0;
+        for (File f : sorted.values()) {
+            long ob = readObsoleteBelow(f);
+            if (ob > obsoleteBelow)
+                obsoleteBelow = ob;
+        }
+        for (Map.Entry<Integer, File> e : sorted.entrySet()) {
+            int num = e.getKey().intValue();
+            File f = e.getValue();
+            if (num < obsoleteBelow) {
+                // compacted, but we couldn't delete it last time (Windows)
+                if (_log.shouldInfo())
+                    _log.info("Deleting compacted segment " + f);
+                f.delete();
+                continue;
+            }
+            Segment seg = new Segment(num, f, new RandomAccessFile(f, "rw"));
+            _segments.put(e.getKey(), seg);
+            scan(seg, num == sorted.lastKey().intValue());
+        }
+        if (_segments.isEmpty())
+            _active = createSegment(1, 0);
+        else
+            _active = _segments.lastEntry().getValue();
+        if (_log.shouldInfo())
+            _log.info("Opened " + _segments.size() + " segments with " + _index.size() +
+                      " entries, " + _liveBytes + " of " + _totalBytes + " bytes live");
+        compactIfNeeded();
+    }
+
+    /**
+     *  @return -1 if not a segment file
+     */
+    private static int getSegmentNumber(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static String getSegmentName(int num) {
+        return PREFIX + num + SUFFIX;
+    }
+
+    /**
+     *  @return 0 if the header is bad
+     */
+    private static long readObsoleteBelow(File f) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            byte[] hdr = new byte[HEADER_LEN];
+            if (DataHelper.read(in, hdr) != HEADER_LEN || !DataHelper.eq(hdr, 0, MAGIC, 0, MAGIC.length))
+                return 0;
+            return DataHelper.fromLong(hdr, 8, 8);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Read the records in a segment and add them to the index.
+     *  Truncate the last segment after the last good record.
+     */
+    private void scan(Segment seg, boolean isLast) throws IOException {
+        if (seg.size < HEADER_LEN) {
+            if (isLast) {
+                writeHeader(seg, 0);
+                return;
+            }
+            throw new IOException("Bad segment " + seg.file);
+        }
+        ByteBuffer buf = seg.map(seg.size);
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!DataHelper.eq(magic, MAGIC) || buf.get() != VERSION)
+            throw new IOException("Bad segment header " + seg.file);
+        int pos = HEADER_LEN;
+        int limit = (int) seg.size;
+        byte[] rec = new byte[RECORD_HEADER_LEN + 2048];
+        CRC32 crc = new CRC32();
+        while (pos + RECORD_HEADER_LEN <= limit) {
+            int len = buf.getInt(pos);
+            if (len < 0 || len > MAX_DATA_LEN || pos + RECORD_HEADER_LEN + len > limit)
+                break;
+            int reclen = RECORD_HEADER_LEN + len;
+            if (rec.length < reclen)
+                rec = new byte[reclen];
+            buf.position(pos);
+            buf.get(rec, 0, reclen);
+            crc.reset();
+            crc.update(rec, 8, reclen - 8);
+            if ((int) crc.getValue() != buf.getInt(pos + 4))
+                break;
+            byte type = rec[8];
+            if (type != TYPE_STORE && type != TYPE_REMOVE)
+                break;
+            Hash h = Hash.create(rec, 9);
+            long date = DataHelper.fromLong(rec, 9 + Hash.HASH_LENGTH, 8);
+            _totalBytes += reclen;
+            Location old;
+            if (type == TYPE_STORE) {
+                old = _index.put(h, new Location(seg, pos, reclen, date));
+                _liveBytes += reclen;
+            } else {
+                old = _index.remove(h);
+            }
+            if (old != null)
+                _liveBytes -= old.length;
+            pos += reclen;
+        }
+        if (pos < limit) {
+            if (isLast) {
+                if (_log.shouldWarn())
+                    _log.warn("Truncating " + seg.file + " at " + pos + " of " + limit);
+                seg.map = null;
+                seg.channel.truncate(pos);
+                seg.size = pos;
+            } else {
+                // Not at the end, so not an interrupted write, just skip the rest
+                _log.error("Corrupt record in " + seg.file + " at " + pos + " of " + limit);
+            }
+        }
+    }
+
+    /**
+     *  Create a new segment, and add it to _segments.
+     */
+    private Segment createSegment(int num, long obsoleteBelow) throws IOException {
+        File f = new File(_dir, getSegmentName(num));
+        // sets permissions
+        new SecureFileOutputStream(f).close();
+        Segment seg = new Segment(num, f, new RandomAccessFile(f, "rw"));
+        writeHeader(seg, obsoleteBelow);
+        _segments.put(Integer.valueOf(num), seg);
+        return seg;
+    }
+
+    private static void writeHeader(Segment seg, long obsoleteBelow) throws IOException {
+        byte[] hdr = new byte[HEADER_LEN];
+        System.arraycopy(MAGIC, 0, hdr, 0, MAGIC.length);
+        hdr[MAGIC.length] = VERSION;
+        DataHelper.toLong(hdr, 8, 8, obsoleteBelow);
+        seg.channel.write(ByteBuffer.wrap(hdr), 0);
+        seg.size = HEADER_LEN;
+    }
+
+    /**
+     *  @return the number of RouterInfos
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     *  @return a copy of the hashes of the RouterInfos
+     */
+    public synchronized List<Hash> getKeys() {
+        return new ArrayList<Hash>(_index.keySet());
+    }
+
+    /**
+     *  @return the published date of the stored RouterInfo, or 0 if none
+     */
+    public synchronized long getDate(Hash key) {
+        Location loc = _index.get(key);
+        return loc != null ? loc.date : 0;
+    }
+
+    /**
+     *  @return the RouterInfo data, or null if none
+     */
+    public synchronized byte[] get(Hash key) throws IOException {
+        Location loc = _index.get(key);
+        if (loc == null)
+            return null;
+        ByteBuffer buf = loc.segment.map(loc.offset + loc.length);
+        byte[] rv = new byte[loc.length - RECORD_HEADER_LEN];
+        buf.position(loc.offset + RECORD_HEADER_LEN);
+        buf.get(rv);
+        return rv;
+    }
+
+    /**
+     *  Store the RouterInfo if it is newer than the one stored.
+     *
+     *  @param date the published date
+     *  @param data the RouterInfo
+     *  @return true if written
+     */
+    public synchronized boolean put(Hash key, long date, byte[] data) throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        if (data.length > MAX_DATA_LEN)
+            throw new IOException("too big: " + data.length);
+        Location old = _index.get(key);
+        if (old != null && old.date >= date)
+            return false;
+        Location loc = append(TYPE_STORE, key, date, data);
+        _index.put(key, loc);
+        _liveBytes += loc.length;
+        if (old != null)
+            _liveBytes -= old.length;
+        return true;
+    }
+
+    /**
+     *  @return true if it was stored
+     */
+    public synchronized boolean remove(Hash key) throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        Location old = _index.remove(key);
+        if (old == null)
+            return false;
+        append(TYPE_REMOVE, key, 0, new byte[0]);
+        _liveBytes -= old.length;
+        return true;
+    }
+
+    private Location append(byte type, Hash key, long date, byte[] data) throws IOException {
+        int reclen = RECORD_HEADER_LEN + data.length;
+        if (_active.size + reclen > MAX_SEGMENT_SIZE && _active.size > HEADER_LEN)
+            _active = createSegment(_active.num + 1, 0);
+        byte[] rec = new byte[reclen];
+        DataHelper.toLong(rec, 0, 4, data.length);
+        rec[8] = type;
+        System.arraycopy(key.getData(), 0, rec, 9, Hash.HASH_LENGTH);
+        DataHelper.toLong(rec, 9 + Hash.HASH_LENGTH, 8, date);
+        System.arraycopy(data, 0, rec, RECORD_HEADER_LEN, data.length);
+        CRC32 crc = new CRC32();
+        crc.update(rec, 8, reclen - 8);
+        DataHelper.toLong(rec, 4, 4, crc.getValue());
+        return write(_active, rec, type, date);
+    }
+
+    private Location write(Segment seg, byte[] rec, byte type, long date) throws IOException {
+        int offset = (int) seg.size;
+        ByteBuffer buf = ByteBuffer.wrap(rec);
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            pos += seg.channel.write(buf, pos);
+        }
+        seg.size = pos;
+        _totalBytes += rec.length;
+        return new Location(seg, offset, rec.length, date);
+    }
+
+    /**
+     *  Flush the active segment to disk
+     */
+    public synchronized void sync() throws IOException {
+        if (!_closed)
+            _active.channel.force(false);
+    }
+
+    /**
+     *  Compact if more than half the bytes are old records.
+     *
+     *  @return true if compacted
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (_closed || _totalBytes < MIN_COMPACT_SIZE || _liveBytes > _totalBytes / 2)
+            return false;
+        compact();
+        return true;
+    }
+
+    /**
+     *  Copy the live records to a new segment and delete the others.
+     *  The new segment is written to a temp file and renamed,
+     *  so a crash leaves either the old segments or the new one.
+     */
+    public synchronized void compact() throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        long start = System.currentTimeMillis();
+        int num = _active.num + 1;
+        long oldTotal = _totalBytes;
+        File tmp = new File(_dir, getSegmentName(num) + ".tmp");
+        new SecureFileOutputStream(tmp).close();
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        Segment seg = new Segment(num, tmp, raf);
+        Map<Hash, Location> newIndex = new HashMap<Hash, Location>(_index.size());
+        boolean success = false;
+        try {
+            writeHeader(seg, num);
+            _totalBytes = 0;
+            for (Map.Entry<Hash, Location> e : _index.entrySet()) {
+                Location loc = e.getValue();
+                ByteBuffer buf = loc.segment.map(loc.offset + loc.length);
+                byte[] rec = new byte[loc.length];
+                buf.position(loc.offset);
+                buf.get(rec);
+                newIndex.put(e.getKey(), write(seg, rec, TYPE_STORE, loc.date));
+            }
+            seg.channel.force(true);
+            success = true;
+        } finally {
+            if (!success) {
+                _totalBytes = oldTotal;
+                seg.close();
+                tmp.delete();
+            }
+        }
+        seg.close();
+        File f = new File(_dir, getSegmentName(num));
+        if (!FileUtil.rename(tmp, f)) {
+            tmp.delete();
+            _totalBytes = oldTotal;
+            throw new IOException("Unable to rename " + tmp + " to " + f);
+        }
+        // the new segment is on disk and makes the old ones obsolete
+        for (Segment old : _segments.values()) {
+            old.close();
+            if (!old.file.delete() && _log.shouldWarn())
+                _log.warn("Unable to delete " + old.file + ", will delete on restart");
+        }
+        _segments.clear();
+        seg = new Segment(num, f, new RandomAccessFile(f, "rw"));
+        _segments.put(Integer.valueOf(num), seg);
+        _active = seg;
+        _index.clear();
+        for (Map.Entry<Hash, Location> e : newIndex.entrySet()) {
+            Location loc = e.getValue();
+            _index.put(e.getKey(), new Location(seg, loc.offset, loc.length, loc.date));
+        }
+        _liveBytes = _totalBytes;
+        if (_log.shouldInfo())
+            _log.info("Compacted " + oldTotal + " bytes to " + _totalBytes + " in " +
+                      (System.currentTimeMillis() - start) + "ms");
+    }
+
+    public synchronized void close() {
+        if (_closed)
+            return;
+        _closed = true;
+        try {
+            _active.channel.force(false);
+        } catch (IOException ioe) {}
+        for (Segment seg : _segments.values()) {
+            seg.close();
+        }
+        _segments.clear();
+        _index.clear();
+    }
+
+    /**
+     *  Import routerInfo-*.dat files from the netDb directory and its subdirectories,
+     *  and delete them.
+     *  The file modification time is the published date, as written by PersistentDataStore.
+     *  The files are not verified here.
+     *
+     *  @param dbDir the netDb directory
+     *  @return the number of files imported
+     */
+    public int importFiles(File dbDir) throws IOException {
+        List<File> files = new ArrayList<File>();
+        File[] top = dbDir.listFiles(PersistentDataStore.RI_FILTER);
+        if (top != null)
+            files.addAll(Arrays.asList(top));
+        String b64 = Base64.ALPHABET_I2P;
+        for (int j = 0; j < b64.length(); j++) {
+            File subdir = new File(dbDir, PersistentDataStore.DIR_PREFIX + b64.charAt(j));
+            File[] sub = subdir.listFiles(PersistentDataStore.RI_FILTER);
+            if (sub != null)
+                files.addAll(Arrays.asList(sub));
+        }
+        int rv = 0;
+        for (File f : files) {
+            Hash h = PersistentDataStore.getRouterInfoHash(f.getName());
+            if (h != null) {
+                long len = f.length();
+                if (len > 0 && len <= MAX_DATA_LEN) {
+                    byte[] data = new byte[(int) len];
+                    InputStream in = null;
+                    try {
+                        in = new FileInputStream(f);
+                        if (DataHelper.read(in, data) == len && put(h, f.lastModified(), data))
+                            rv++;
+                    } finally {
+                        if (in != null) try { in.close(); } catch (IOException ioe) {}
+                    }
+                }
+            }
+            f.delete();
+        }
+        if (rv > 0)
+            sync();
+        return rv;
+    }
+
+    /**
+     *  Export to routerInfo-*.dat files in the netDb subdirectories,
+     *  or in the netDb directory if flat.
+     *  Does not close or delete the store.
+     *
+     *  @param dbDir the netDb directory
+     *  @return the number of files exported
+     */
+    public synchronized int exportFiles(File dbDir, boolean flat) throws IOException {
+        int rv = 0;
+        for (Map.Entry<Hash, Location> e : _index.entrySet()) {
+            String b64 = e.getKey().toBase64();
+            File dir = flat ? dbDir : new SecureDirectory(dbDir, PersistentDataStore.DIR_PREFIX + b64.charAt(0));
+            if (!dir.exists())
+                dir.mkdirs();
+            File f = new File(dir, PersistentDataStore.ROUTERINFO_PREFIX + b64 +
+                              PersistentDataStore.ROUTERINFO_SUFFIX);
+            OutputStream out = null;
+            try {
+                out = new SecureFileOutputStream(f);
+                out.write(get(e.getKey()));
+            } finally {
+                if (out != null) try { out.close(); } catch (IOException ioe) {}
+            }
+            f.setLastModified(e.getValue().date);
+            rv++;
+        }
+        return rv;
+    }
+
+    /**
+     *  Delete the segment files and the directory.
+     *  Closes the store.
+     */
+    public synchronized void delete() {
+        List<File> files = new ArrayList<File>(_segments.size());
+        for (Segment seg : _segments.values()) {
+            files.add(seg.file);
+        }
+        close();
+        for (File f : files) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    /**
+     *  Migration tool
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 ||
+            !(args[0].equals("import") || args[0].equals("export") ||
+              args[0].equals("compact") || args[0].equals("info"))) {
+            System.err.println("Usage: SegmentedRouterInfoStore import|export|compact|info netDbDir\n" +
+                               "  import: move the routerInfo-*.dat files into the segments\n" +
+                               "  export: move the segments to routerInfo-*.dat files\n" +
+                               "Stop the router first.");
+            System.exit(1);
+        }
+        File dbDir = new File(args[1]);
+        if (!dbDir.isDirectory()) {
+            System.err.println("Not a directory: " + dbDir);
+            System.exit(1);
+        }
+        File dir = new File(dbDir, DIR_NAME);
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        long start = System.currentTimeMillis();
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(ctx, dir);
+        long time = System.currentTimeMillis() - start;
+        String cmd = args[0];
+        if (cmd.equals("import")) {
+            int count = store.importFiles(dbDir);
+            store.compactIfNeeded();
+            System.out.println("Imported " + count + " files, " + store.size() + " RouterInfos in the segments");
+            store.close();
+        } else if (cmd.equals("export")) {
+            int count = store.exportFiles(dbDir, false);
+            store.delete();
+            System.out.println("Exported " + count + " files");
+        } else if (cmd.equals("compact")) {
+            store.compact();
+            System.out.println("Compacted " + store.size() + " RouterInfos");
+            store.close();
+        } else {
+            synchronized (store) {
+                System.out.println(store.size() + " RouterInfos in " + store._segments.size() +
+                                   " segments, opened in " + time + "ms, " + store._liveBytes +
+                                   " of " + store._totalBytes + " bytes live");
+            }
+            store.close();
+        }
+    }
+}
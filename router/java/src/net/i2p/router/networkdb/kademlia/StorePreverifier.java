@@ -0,0 +1,75 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.i2p.crypto.SigType;
+import net.i2p.data.DatabaseEntry;
+import net.i2p.data.Signature;
+import net.i2p.router.RouterContext;
+
+/**
+ *  Entries from DatabaseStoreMessages waiting for their
+ *  HandleFloodfillDatabaseStoreMessageJob to run.
+ *
+ *  When a job runs, it takes all the waiting entries and
+ *  verifies the signatures together with DatabaseEntry.preverifySignatures(),
+ *  so the jobs behind it don't have to.
+ *  When the job queue is backed up, as during flood storms, the batches
+ *  are large. When it isn't, there's one entry at a time,
+ *  and it is verified as usual. There is no added delay.
+ *
+ *  Set router.preverifyStores=false to disable.
+ *
+ *  @since 0.9.45
+ */
+class StorePreverifier {
+    private final RouterContext _context;
+    private final LinkedBlockingQueue<DatabaseEntry> _pending;
+    private final boolean _enabled;
+
+    public static final String PROP_ENABLE = "router.preverifyStores";
+    private static final int MAX_PENDING = 512;
+    private static final int MAX_BATCH = 128;
+
+    public StorePreverifier(RouterContext ctx) {
+        _context = ctx;
+        _enabled = ctx.getBooleanPropertyDefaultTrue(PROP_ENABLE);
+        _pending = new LinkedBlockingQueue<DatabaseEntry>(MAX_PENDING);
+        ctx.statManager().createRateStat("netDb.storePreverified", "Size of store sig batch verifications", "NetworkDatabase", new long[] { 60*60*1000l });
+    }
+
+    /**
+     *  Called when the message arrives.
+     *  Only Ed25519 entries are queued.
+     *  If the queue is full, the entry will be verified as usual.
+     */
+    public void add(DatabaseEntry entry) {
+        if (!_enabled)
+            return;
+        Signature sig = entry.getSignature();
+        if (sig == null || sig.getType() != SigType.EdDSA_SHA512_Ed25519)
+            return;
+        _pending.offer(entry);
+    }
+
+    /**
+     *  Called when a job runs, before it stores its entry.
+     *  Verify all the waiting entries if there's more than one.
+     *  If another job already took our entry, it may still be in progress,
+     *  then it will be verified twice, which is harmless.
+     */
+    public void verifyPending() {
+        if (_pending.isEmpty())
+            return;
+        List<DatabaseEntry> entries = new ArrayList<DatabaseEntry>(MAX_BATCH);
+        _pending.drainTo(entries, MAX_BATCH);
+        if (entries.size() < 2) {
+            // just one, its job will verify it as usual
+            return;
+        }
+        int count = DatabaseEntry.preverifySignatures(entries);
+        _context.statManager().addRateData("netDb.storePreverified", count);
+    }
+}
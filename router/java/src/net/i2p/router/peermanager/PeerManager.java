@@ -159,6 +159,7 @@ class PeerManager {
             for (Hash peer : peers) {
                 storeProfile(peer);
             }
+            _persistenceHelper.flush();
         } finally {
             _storeLock.set(false);
         }
@@ -170,6 +171,7 @@ class PeerManager {
         _capabilitiesByPeer.clear();
         for (Set<Hash> p : _peersByCapability.values())
             p.clear();
+        _persistenceHelper.close();
     }
 
     Set<Hash> selectPeers() {
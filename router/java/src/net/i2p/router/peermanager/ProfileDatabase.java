@@ -0,0 +1,527 @@
+package net.i2p.router.peermanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Append-only single-file store of peer profiles,
+ *  instead of one gzipped text file per profile.
+ *  Used by ProfilePersistenceHelper when router.profileDatabase=true.
+ *
+ *  Each profile is stored as the same key/value pairs as the text format,
+ *  with the keys replaced by two-byte ids from a dictionary kept in the
+ *  same file, so a profile is a few hundred bytes and loads without
+ *  gzip or line parsing.
+ *
+ *  An in-memory index maps each hash to its latest record.
+ *  Stores and removes are buffered and appended to the file on flush().
+ *  When more than half of the bytes are old records, the dictionary and
+ *  the live records are copied to a new file.
+ *
+ *<pre>
+ *  Header: "PRDB" 1 byte version, 11 bytes reserved
+ *  Record: 4 bytes payload length, 4 bytes CRC32 of the rest of the record,
+ *          1 byte type, payload
+ *  Key:     2 bytes id (the number of previous key records), UTF-8 key
+ *  Profile: 32 bytes hash, 8 bytes date stored,
+ *           then for each property: 2 bytes key id, 1 byte length, UTF-8 value
+ *  Remove:  32 bytes hash
+ *</pre>
+ *  A truncated or corrupt record at the end, as after a crash,
+ *  is discarded on open.
+ *
+ *  All methods are synchronized.
+ *
+ *  @since 0.9.45
+ */
+class ProfileDatabase {
+    private final Log _log;
+    private final File _file;
+    private RandomAccessFile _raf;
+    private FileChannel _channel;
+    /** key id to key */
+    private final List<String> _keys;
+    private final Map<String, Integer> _keyIds;
+    private final Map<Hash, Location> _index;
+    /** records not yet written */
+    private final ByteArrayOutputStream _pending;
+    /** bytes on disk */
+    private long _size;
+    /** bytes in all profile and remove records, on disk and pending */
+    private long _totalBytes;
+    /** bytes in the latest record for each hash */
+    private long _liveBytes;
+    private boolean _closed;
+
+    public static final String FILE_NAME = "profiles.db";
+    private static final byte[] MAGIC = DataHelper.getASCII("PRDB");
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 16;
+    private static final int RECORD_HEADER_LEN = 4 + 4 + 1;
+    private static final int PROFILE_HEADER_LEN = Hash.HASH_LENGTH + 8;
+    private static final byte TYPE_KEY = 1;
+    private static final byte TYPE_PROFILE = 2;
+    private static final byte TYPE_REMOVE = 3;
+    /** profiles are a few KB, this is for corruption detection */
+    private static final int MAX_RECORD_LEN = 64*1024;
+    private static final int MAX_KEYS = 65535;
+    private static final long MIN_COMPACT_SIZE = 256*1024;
+
+    private static class Location {
+        final long offset;
+        /** total record length */
+        final int length;
+        final long date;
+
+        Location(long offset, int length, long date) {
+            this.offset = offset;
+            this.length = length;
+            this.date = date;
+        }
+    }
+
+    /**
+     *  Opens the database and reads the index, creating the file if necessary.
+     */
+    public ProfileDatabase(I2PAppContext ctx, File file) throws IOException {
+        _log = ctx.logManager().getLog(ProfileDatabase.class);
+        _file = file;
+        _keys = new ArrayList<String>(256);
+        _keyIds = new HashMap<String, Integer>(256);
+        _index = new HashMap<Hash, Location>(1024);
+        _pending = new ByteArrayOutputStream(64*1024);
+        if (!_file.exists())
+            new SecureFileOutputStream(_file).close();
+        open();
+    }
+
+    private void open() throws IOException {
+        _raf = new RandomAccessFile(_file, "rw");
+        _channel = _raf.getChannel();
+        _size = _channel.size();
+        if (_size < HEADER_LEN) {
+            byte[] hdr = new byte[HEADER_LEN];
+            System.arraycopy(MAGIC, 0, hdr, 0, MAGIC.length);
+            hdr[MAGIC.length] = VERSION;
+            _channel.truncate(0);
+            write(hdr, 0);
+            _size = HEADER_LEN;
+            return;
+        }
+        scan();
+        if (_log.shouldInfo())
+            _log.info("Opened " + _file + " with " + _index.size() + " profiles and " + _keys.size() +
+                      " keys, " + _liveBytes + " of " + _totalBytes + " bytes live");
+    }
+
+    /**
+     *  Read the records and build the dictionary and the index.
+     *  Truncate after the last good record.
+     */
+    private void scan() throws IOException {
+        InputStream in = null;
+        long pos = HEADER_LEN;
+        try {
+            in = new BufferedInputStream(new FileInputStream(_file), 64*1024);
+            byte[] hdr = new byte[HEADER_LEN];
+            if (DataHelper.read(in, hdr) != HEADER_LEN ||
+                !DataHelper.eq(hdr, 0, MAGIC, 0, MAGIC.length) || hdr[MAGIC.length] != VERSION)
+                throw new IOException("Bad header " + _file);
+            byte[] rec = new byte[4096];
+            CRC32 crc = new CRC32();
+            while (pos + RECORD_HEADER_LEN <= _size) {
+                if (DataHelper.read(in, rec, 0, RECORD_HEADER_LEN) != RECORD_HEADER_LEN)
+                    break;
+                int len = (int) DataHelper.fromLong(rec, 0, 4);
+                if (len < 0 || len > MAX_RECORD_LEN || pos + RECORD_HEADER_LEN + len > _size)
+                    break;
+                int reclen = RECORD_HEADER_LEN + len;
+                if (rec.length < reclen) {
+                    byte[] nrec = new byte[reclen];
+                    System.arraycopy(rec, 0, nrec, 0, RECORD_HEADER_LEN);
+                    rec = nrec;
+                }
+                if (DataHelper.read(in, rec, RECORD_HEADER_LEN, len) != reclen)
+                    break;
+                crc.reset();
+                crc.update(rec, 8, reclen - 8);
+                if ((int) crc.getValue() != (int) DataHelper.fromLong(rec, 4, 4))
+                    break;
+                byte type = rec[8];
+                if (type == TYPE_KEY) {
+                    if (len < 2 || DataHelper.fromLong(rec, RECORD_HEADER_LEN, 2) != _keys.size())
+                        break;
+                    addKey(DataHelper.getUTF8(rec, RECORD_HEADER_LEN + 2, len - 2));
+                } else if (type == TYPE_PROFILE || type == TYPE_REMOVE) {
+                    if (len < (type == TYPE_PROFILE ? PROFILE_HEADER_LEN : Hash.HASH_LENGTH))
+                        break;
+                    Hash h = Hash.create(rec, RECORD_HEADER_LEN);
+                    _totalBytes += reclen;
+                    Location old;
+                    if (type == TYPE_PROFILE) {
+                        long date = DataHelper.fromLong(rec, RECORD_HEADER_LEN + Hash.HASH_LENGTH, 8);
+                        old = _index.put(h, new Location(pos, reclen, date));
+                        _liveBytes += reclen;
+                    } else {
+                        old = _index.remove(h);
+                    }
+                    if (old != null)
+                        _liveBytes -= old.length;
+                } else {
+                    break;
+                }
+                pos += reclen;
+            }
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        if (pos < _size) {
+            if (_log.shouldWarn())
+                _log.warn("Truncating " + _file + " at " + pos + " of " + _size);
+            _channel.truncate(pos);
+            _size = pos;
+        }
+    }
+
+    private int addKey(String key) {
+        int id = _keys.size();
+        _keys.add(key);
+        _keyIds.put(key, Integer.valueOf(id));
+        return id;
+    }
+
+    /**
+     *  Does the file exist and contain more than the header?
+     */
+    public static boolean exists(File file) {
+        return file.length() > HEADER_LEN;
+    }
+
+    /**
+     *  @return the number of profiles
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     *  @return the hashes of the stored profiles, in file order, for a fast bulk load
+     */
+    public synchronized List<Hash> getKeys() {
+        List<Map.Entry<Hash, Location>> entries = new ArrayList<Map.Entry<Hash, Location>>(_index.entrySet());
+        Collections.sort(entries, new OffsetComparator());
+        List<Hash> rv = new ArrayList<Hash>(entries.size());
+        for (Map.Entry<Hash, Location> e : entries) {
+            rv.add(e.getKey());
+        }
+        return rv;
+    }
+
+    private static class OffsetComparator implements Comparator<Map.Entry<Hash, Location>> {
+        public int compare(Map.Entry<Hash, Location> l, Map.Entry<Hash, Location> r) {
+            long lo = l.getValue().offset;
+            long ro = r.getValue().offset;
+            return lo < ro ? -1 : (lo > ro ? 1 : 0);
+        }
+    }
+
+    /**
+     *  @return the date the profile was stored, or 0 if none
+     */
+    public synchronized long getDate(Hash key) {
+        Location loc = _index.get(key);
+        return loc != null ? loc.date : 0;
+    }
+
+    /**
+     *  @return the profile properties, or null if none
+     */
+    public synchronized Properties get(Hash key) throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        Location loc = _index.get(key);
+        if (loc == null)
+            return null;
+        writePending();
+        byte[] rec = read(loc);
+        Properties rv = new Properties();
+        int pos = RECORD_HEADER_LEN + PROFILE_HEADER_LEN;
+        while (pos + 3 <= rec.length) {
+            int id = (int) DataHelper.fromLong(rec, pos, 2);
+            int len = rec[pos + 2] & 0xff;
+            pos += 3;
+            if (id >= _keys.size() || pos + len > rec.length)
+                throw new IOException("Corrupt profile record for " + key);
+            rv.setProperty(_keys.get(id), DataHelper.getUTF8(rec, pos, len));
+            pos += len;
+        }
+        return rv;
+    }
+
+    private byte[] read(Location loc) throws IOException {
+        byte[] rv = new byte[loc.length];
+        ByteBuffer buf = ByteBuffer.wrap(rv);
+        long pos = loc.offset;
+        while (buf.hasRemaining()) {
+            int read = _channel.read(buf, pos);
+            if (read < 0)
+                throw new IOException("EOF reading " + _file);
+            pos += read;
+        }
+        return rv;
+    }
+
+    /**
+     *  Store the profile. Buffered until flush().
+     *  Values longer than 255 bytes are not stored.
+     *
+     *  @param date the time stored
+     */
+    public synchronized void put(Hash key, long date, Properties props) throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(PROFILE_HEADER_LEN + props.size() * 10);
+        byte[] tmp = new byte[PROFILE_HEADER_LEN];
+        System.arraycopy(key.getData(), 0, tmp, 0, Hash.HASH_LENGTH);
+        DataHelper.toLong(tmp, Hash.HASH_LENGTH, 8, date);
+        baos.write(tmp);
+        for (Map.Entry<Object, Object> e : props.entrySet()) {
+            String k = (String) e.getKey();
+            byte[] v = DataHelper.getUTF8((String) e.getValue());
+            if (v.length > 255)
+                continue;
+            Integer id = _keyIds.get(k);
+            int iid;
+            if (id != null) {
+                iid = id.intValue();
+            } else {
+                if (_keys.size() >= MAX_KEYS)
+                    throw new IOException("too many keys");
+                iid = addKey(k);
+                appendKey(iid, k);
+            }
+            DataHelper.toLong(tmp, 0, 2, iid);
+            tmp[2] = (byte) v.length;
+            baos.write(tmp, 0, 3);
+            baos.write(v);
+        }
+        byte[] payload = baos.toByteArray();
+        if (payload.length > MAX_RECORD_LEN)
+            throw new IOException("too big: " + payload.length);
+        Location loc = new Location(_size + _pending.size(), RECORD_HEADER_LEN + payload.length, date);
+        append(TYPE_PROFILE, payload);
+        Location old = _index.put(key, loc);
+        _totalBytes += loc.length;
+        _liveBytes += loc.length;
+        if (old != null)
+            _liveBytes -= old.length;
+    }
+
+    /**
+     *  Buffered until flush().
+     *
+     *  @return true if it was stored
+     */
+    public synchronized boolean remove(Hash key) throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        Location old = _index.remove(key);
+        if (old == null)
+            return false;
+        append(TYPE_REMOVE, key.getData());
+        _totalBytes += RECORD_HEADER_LEN + Hash.HASH_LENGTH;
+        _liveBytes -= old.length;
+        return true;
+    }
+
+    /**
+     *  Remove the profiles stored before the cutoff. Buffered until flush().
+     *
+     *  @return the number removed
+     */
+    public synchronized int removeOlderThan(long cutoff) throws IOException {
+        List<Hash> old = new ArrayList<Hash>();
+        for (Map.Entry<Hash, Location> e : _index.entrySet()) {
+            if (e.getValue().date < cutoff)
+                old.add(e.getKey());
+        }
+        for (Hash h : old) {
+            remove(h);
+        }
+        return old.size();
+    }
+
+    private void appendKey(int id, String key) throws IOException {
+        append(TYPE_KEY, keyPayload(id, key));
+    }
+
+    private static byte[] keyPayload(int id, String key) {
+        byte[] k = DataHelper.getUTF8(key);
+        byte[] rv = new byte[2 + k.length];
+        DataHelper.toLong(rv, 0, 2, id);
+        System.arraycopy(k, 0, rv, 2, k.length);
+        return rv;
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        writeRecord(_pending, type, payload);
+    }
+
+    private static void writeRecord(OutputStream out, byte type, byte[] payload) throws IOException {
+        byte[] hdr = new byte[RECORD_HEADER_LEN];
+        DataHelper.toLong(hdr, 0, 4, payload.length);
+        hdr[8] = type;
+        CRC32 crc = new CRC32();
+        crc.update(hdr, 8, 1);
+        crc.update(payload);
+        DataHelper.toLong(hdr, 4, 4, crc.getValue());
+        out.write(hdr);
+        out.write(payload);
+    }
+
+    private void writePending() throws IOException {
+        if (_pending.size() <= 0)
+            return;
+        write(_pending.toByteArray(), _size);
+        _size += _pending.size();
+        _pending.reset();
+    }
+
+    private void write(byte[] data, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            pos += _channel.write(buf, pos);
+        }
+    }
+
+    /**
+     *  Write the buffered records to disk
+     */
+    public synchronized void flush() throws IOException {
+        if (_closed)
+            return;
+        writePending();
+        _channel.force(false);
+    }
+
+    /**
+     *  Compact if more than half the bytes are old records.
+     *
+     *  @return true if compacted
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (_closed || _totalBytes < MIN_COMPACT_SIZE || _liveBytes > _totalBytes / 2)
+            return false;
+        compact();
+        return true;
+    }
+
+    /**
+     *  Copy the dictionary and the live records to a new file.
+     *  The new file is written to a temp file and renamed,
+     *  so a crash leaves either the old file or the new one.
+     */
+    public synchronized void compact() throws IOException {
+        if (_closed)
+            throw new IOException("closed");
+        long start = System.currentTimeMillis();
+        writePending();
+        long oldTotal = _totalBytes;
+        List<Hash> keys = getKeys();
+        Map<Hash, Location> newIndex = new HashMap<Hash, Location>(keys.size());
+        File tmp = new File(_file.getPath() + ".tmp");
+        OutputStream out = null;
+        boolean success = false;
+        long pos = HEADER_LEN;
+        long live = 0;
+        try {
+            out = new BufferedOutputStream(new SecureFileOutputStream(tmp), 64*1024);
+            byte[] hdr = new byte[HEADER_LEN];
+            System.arraycopy(MAGIC, 0, hdr, 0, MAGIC.length);
+            hdr[MAGIC.length] = VERSION;
+            out.write(hdr);
+            // same ids, so the profile records are copied as-is
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+            for (int i = 0; i < _keys.size(); i++) {
+                writeRecord(baos, TYPE_KEY, keyPayload(i, _keys.get(i)));
+            }
+            baos.writeTo(out);
+            pos += baos.size();
+            for (Hash h : keys) {
+                Location loc = _index.get(h);
+                out.write(read(loc));
+                newIndex.put(h, new Location(pos, loc.length, loc.date));
+                pos += loc.length;
+                live += loc.length;
+            }
+            out.close();
+            out = null;
+            success = true;
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            if (!success)
+                tmp.delete();
+        }
+        _raf.close();
+        boolean renamed = FileUtil.rename(tmp, _file);
+        if (!renamed)
+            tmp.delete();
+        _raf = new RandomAccessFile(_file, "rw");
+        _channel = _raf.getChannel();
+        _size = _channel.size();
+        if (!renamed)
+            throw new IOException("Unable to rename " + tmp + " to " + _file);
+        _index.clear();
+        _index.putAll(newIndex);
+        _totalBytes = live;
+        _liveBytes = _totalBytes;
+        if (_log.shouldInfo())
+            _log.info("Compacted " + oldTotal + " bytes to " + _totalBytes + " in " +
+                      (System.currentTimeMillis() - start) + "ms");
+    }
+
+    public synchronized void close() {
+        if (_closed)
+            return;
+        try {
+            flush();
+        } catch (IOException ioe) {
+            _log.error("Error writing " + _file, ioe);
+        }
+        _closed = true;
+        try { _raf.close(); } catch (IOException ioe) {}
+        _index.clear();
+    }
+
+    /**
+     *  Close and delete the file
+     */
+    public synchronized void delete() {
+        close();
+        _file.delete();
+    }
+}
@@ -5,7 +5,9 @@ import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -35,6 +37,10 @@ import net.i2p.util.Log;
  * actively update anything - the reorganize() method should be called periodically
  * to recalculate thresholds and move profiles into the appropriate tiers, and addProfile()
  * should be used to add new profiles (placing them into the appropriate groupings).
+ *
+ * As of 0.9.45, the tier maps are only used under the write lock. After each change,
+ * an immutable copy of the tiers is published, and peer selection and the
+ * isX() and countX() methods use that copy without locking.
  */
 public class ProfileOrganizer {
     private final Log _log;
@@ -90,6 +96,57 @@ public class ProfileOrganizer {
     
     /** synchronized against this lock when updating the tier that peers are located in (and when fetching them from a peer) */
     private final ReentrantReadWriteLock _reorganizeLock = new ReentrantReadWriteLock(false);
+
+    /**
+     *  The current tiers, replaced by locked_publishTiers()
+     *  @since 0.9.45
+     */
+    private volatile Tiers _tiers = new Tiers();
+
+    /**
+     *  Immutable array-backed copy of the tier maps.
+     *  The arrays are never modified after construction.
+     *
+     *  @since 0.9.45
+     */
+    private static class Tiers {
+        final List<Hash> fast;
+        final List<Hash> highCap;
+        final List<Hash> wellIntegrated;
+        /** may contain duplicates, as _notFailingPeersList does */
+        final List<Hash> notFailing;
+        final List<Hash> failing;
+        final Set<Hash> fastSet;
+        final Set<Hash> highCapSet;
+        final Set<Hash> wellIntegratedSet;
+        final int notFailingCount;
+
+        /** empty */
+        Tiers() {
+            fast = highCap = wellIntegrated = notFailing = failing = Collections.emptyList();
+            fastSet = highCapSet = wellIntegratedSet = Collections.emptySet();
+            notFailingCount = 0;
+        }
+
+        Tiers(Map<Hash, PeerProfile> fastPeers, Map<Hash, PeerProfile> highCapPeers,
+              Map<Hash, PeerProfile> wellIntegratedPeers, Map<Hash, PeerProfile> notFailingPeers,
+              List<Hash> notFailingList, Map<Hash, PeerProfile> failingPeers) {
+            fast = toList(fastPeers.keySet());
+            highCap = toList(highCapPeers.keySet());
+            wellIntegrated = toList(wellIntegratedPeers.keySet());
+            notFailing = toList(notFailingList);
+            failing = toList(failingPeers.keySet());
+            fastSet = new HashSet<Hash>(fast);
+            highCapSet = new HashSet<Hash>(highCap);
+            wellIntegratedSet = new HashSet<Hash>(wellIntegrated);
+            notFailingCount = notFailingPeers.size();
+        }
+
+        /** fixed-size, array-backed */
+        private static List<Hash> toList(Collection<Hash> c) {
+            return Arrays.asList(c.toArray(new Hash[c.size()]));
+        }
+    }
     
     public ProfileOrganizer(RouterContext context) {
         _context = context;
@@ -227,24 +284,27 @@ public class ProfileOrganizer {
                 _highCapacityPeers.put(peer, profile);
             }
             _strictCapacityOrder.add(profile);
+            locked_publishTiers();
         } finally { releaseWriteLock(); }
         return old;
     }
     
-    private int count(Map<Hash, PeerProfile> m) {
-        getReadLock();
-        try {
-            return m.size();
-        } finally { releaseReadLock(); }
+    /**
+     *  Copy the tier maps to a new Tiers. Call after changing them.
+     *  @since 0.9.45
+     */
+    private void locked_publishTiers() {
+        _tiers = new Tiers(_fastPeers, _highCapacityPeers, _wellIntegratedPeers,
+                           _notFailingPeers, _notFailingPeersList, _failingPeers);
     }
 
-    public int countFastPeers() { return count(_fastPeers); }
-    public int countHighCapacityPeers() { return count(_highCapacityPeers); }
+    public int countFastPeers() { return _tiers.fast.size(); }
+    public int countHighCapacityPeers() { return _tiers.highCap.size(); }
     /** @deprecated use ProfileManager.getPeersByCapability('f').size() */
     @Deprecated
-    public int countWellIntegratedPeers() { return count(_wellIntegratedPeers); }
-    public int countNotFailingPeers() { return count(_notFailingPeers); }
-    public int countFailingPeers() { return count(_failingPeers); }
+    public int countWellIntegratedPeers() { return _tiers.wellIntegrated.size(); }
+    public int countNotFailingPeers() { return _tiers.notFailingCount; }
+    public int countFailingPeers() { return _tiers.failing.size(); }
     
     public int countActivePeers() {
         int activePeers = 0;
@@ -268,16 +328,9 @@ public class ProfileOrganizer {
         return activePeers;
     }
     
-    private boolean isX(Map<Hash, PeerProfile> m, Hash peer) {
-        getReadLock();
-        try {
-            return m.containsKey(peer);
-        } finally { releaseReadLock(); }
-    }
-
-    public boolean isFast(Hash peer) { return isX(_fastPeers, peer); }
-    public boolean isHighCapacity(Hash peer) { return isX(_highCapacityPeers, peer); }
-    public boolean isWellIntegrated(Hash peer) { return isX(_wellIntegratedPeers, peer); }
+    public boolean isFast(Hash peer) { return _tiers.fastSet.contains(peer); }
+    public boolean isHighCapacity(Hash peer) { return _tiers.highCapSet.contains(peer); }
+    public boolean isWellIntegrated(Hash peer) { return _tiers.wellIntegratedSet.contains(peer); }
 
     /**
      *  Deprecated for now, always false
@@ -300,6 +353,7 @@ public class ProfileOrganizer {
             _notFailingPeersList.clear();
             _wellIntegratedPeers.clear();
             _strictCapacityOrder.clear();
+            locked_publishTiers();
         } finally { releaseWriteLock(); }
     }
 
@@ -369,10 +423,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_fastPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        selectPeers(_tiers.fast, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -429,18 +480,16 @@ public class ProfileOrganizer {
      *</pre>
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        getReadLock();
-        try {
-            if (subTierMode != Slice.SLICE_ALL) {
-                int sz = _fastPeers.size();
-                if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
-                    subTierMode = Slice.SLICE_ALL;
-            }
-            if (subTierMode != Slice.SLICE_ALL)
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, randomKey, subTierMode);
-            else
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, 2);
-        } finally { releaseReadLock(); }
+        List<Hash> fast = _tiers.fast;
+        if (subTierMode != Slice.SLICE_ALL) {
+            int sz = fast.size();
+            if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
+                subTierMode = Slice.SLICE_ALL;
+        }
+        if (subTierMode != Slice.SLICE_ALL)
+            selectPeers(fast, howMany, exclude, matches, randomKey, subTierMode);
+        else
+            selectPeers(fast, howMany, exclude, matches, 2);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -465,19 +514,16 @@ public class ProfileOrganizer {
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
     public void selectHighCapacityPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
-            // or we are falling back due to _fastPeers being too small, so we can always 
-            // exclude the fast peers
-            /*
-            if (exclude == null)
-                exclude = new HashSet(_fastPeers.keySet());
-            else
-                exclude.addAll(_fastPeers.keySet());
-             */
-            locked_selectPeers(_highCapacityPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
+        // or we are falling back due to _fastPeers being too small, so we can always 
+        // exclude the fast peers
+        /*
+        if (exclude == null)
+            exclude = new HashSet(_fastPeers.keySet());
+        else
+            exclude.addAll(_fastPeers.keySet());
+         */
+        selectPeers(_tiers.highCap, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectHighCap("+howMany+"), not enough highcap (" + matches.size() + ") going on to ANFP2");
@@ -508,10 +554,7 @@ public class ProfileOrganizer {
      */
     @Deprecated
     public void selectWellIntegratedPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_wellIntegratedPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        selectPeers(_tiers.wellIntegrated, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectWellIntegrated("+howMany+"), not enough integrated (" + matches.size() + ") going on to notFailing");
@@ -577,14 +620,12 @@ public class ProfileOrganizer {
     public void selectActiveNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
         if (matches.size() < howMany) {
             Set<Hash> connected = _context.commSystem().getEstablished();
-            getReadLock();
-            try {
-                for (Hash peer : _notFailingPeers.keySet()) {
-                    if (!connected.contains(peer))
-                        exclude.add(peer);
-                }
-                locked_selectPeers(_notFailingPeers, howMany, exclude, matches, 0);
-            } finally { releaseReadLock(); }
+            List<Hash> notFailing = _tiers.notFailing;
+            for (Hash peer : notFailing) {
+                if (!connected.contains(peer))
+                    exclude.add(peer);
+            }
+            selectPeers(notFailing, howMany, exclude, matches, 0);
         }
     }
 
@@ -604,16 +645,12 @@ public class ProfileOrganizer {
     private void selectActiveNotFailingPeers2(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
         if (matches.size() < howMany) {
             Set<Hash> connected = _context.commSystem().getEstablished();
-            Map<Hash, PeerProfile> activePeers = new HashMap<Hash, PeerProfile>(connected.size());
-            getReadLock();
-            try {
-                for (Hash peer : connected) {
-                    PeerProfile prof = _notFailingPeers.get(peer);
-                    if (prof != null)
-                        activePeers.put(peer, prof);
-                }
-                locked_selectPeers(activePeers, howMany, exclude, matches, mask);
-            } finally { releaseReadLock(); }
+            List<Hash> activePeers = new ArrayList<Hash>(connected.size());
+            for (Hash peer : _tiers.notFailing) {
+                if (connected.contains(peer))
+                    activePeers.add(peer);
+            }
+            selectPeers(activePeers, howMany, exclude, matches, mask);
         }
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
@@ -642,30 +679,28 @@ public class ProfileOrganizer {
             int orig = matches.size();
             int needed = howMany - orig;
             List<Hash> selected = new ArrayList<Hash>(needed);
-            getReadLock();
-            try {
-                // use RandomIterator to avoid shuffling the whole thing
-                for (Iterator<Hash> iter = new RandomIterator<Hash>(_notFailingPeersList); (selected.size() < needed) && iter.hasNext(); ) {
-                    Hash cur = iter.next();
-                    if (matches.contains(cur) ||
-                        (exclude != null && exclude.contains(cur))) {
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
-                        continue;
-                    } else if (onlyNotFailing && _highCapacityPeers.containsKey(cur)) {
-                        // we dont want the good peers, just random ones
-                        continue;
-                    } else {
-                        if (isSelectable(cur))
-                            selected.add(cur);
-                        else if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Not selectable: " + cur.toBase64());
-                    }
+            Tiers tiers = _tiers;
+            // use RandomIterator to avoid shuffling the whole thing
+            for (Iterator<Hash> iter = new RandomIterator<Hash>(tiers.notFailing); (selected.size() < needed) && iter.hasNext(); ) {
+                Hash cur = iter.next();
+                if (matches.contains(cur) ||
+                    (exclude != null && exclude.contains(cur))) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
+                    continue;
+                } else if (onlyNotFailing && tiers.highCapSet.contains(cur)) {
+                    // we dont want the good peers, just random ones
+                    continue;
+                } else {
+                    if (isSelectable(cur))
+                        selected.add(cur);
+                    else if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Not selectable: " + cur.toBase64());
                 }
-            } finally { releaseReadLock(); }
+            }
             if (_log.shouldLog(Log.INFO))
                 _log.info("Selecting all not failing (strict? " + onlyNotFailing
-                          + ") found " + selected.size() + " new peers: " + selected + " all=" + _notFailingPeersList.size() + " strict=" + _strictCapacityOrder.size());
+                          + ") found " + selected.size() + " new peers: " + selected + " all=" + tiers.notFailing.size() + " strict=" + _strictCapacityOrder.size());
             matches.addAll(selected);
         }
         if (matches.size() < howMany) {
@@ -684,11 +719,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
-        getReadLock();
-        try {
-            locked_selectPeers(_failingPeers, howMany, exclude, matches);
-        } finally { releaseReadLock(); }
-        return;        
+        selectPeers(_tiers.failing, howMany, exclude, matches, 0);
     }                  
 
     /**                
@@ -792,7 +823,8 @@ public class ProfileOrganizer {
         int profileCount = 0;
         int expiredCount = 0;
         
-        long uptime = _context.router().getUptime();
+        // no router for the CLI
+        long uptime = _context.router() != null ? _context.router().getUptime() : 0;
         long expireOlderThan = -1;
         if (uptime > 60*60*1000) {
             // dynamically adjust expire time to control memory usage
@@ -867,6 +899,7 @@ public class ProfileOrganizer {
             locked_demoteHighCapAsNecessary();
             locked_promoteFastAsNecessary();
             locked_demoteFastAsNecessary();
+            locked_publishTiers();
 
             // we now use a random iterator in selectAllNotFailingPeers(),
             // as it was picking peers in-order before the first reorganization
@@ -1222,26 +1255,21 @@ public class ProfileOrganizer {
     }
     
     /**
-     * Select peers from the peer mapping, excluding appropriately and increasing the
+     * Select peers from the tier, excluding appropriately and increasing the
      * matches set until it has howMany elements in it.
      *
-     */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches) {
-        locked_selectPeers(peers, howMany, toExclude, matches, 0);
-    }
-
-    /**
-      *
-      * As of 0.9.24, checks for a netdb family match as well, unless mask == 0.
-      *
+     * As of 0.9.24, checks for a netdb family match as well, unless mask == 0.
+     *
+     * @param peers from _tiers, not modified; as of 0.9.45, no lock required
      * @param mask 0-4 Number of bytes to match to determine if peers in the same IP range should
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
-        List<Hash> all = new ArrayList<Hash>(peers.keySet());
-        MaskedIPSet IPSet = new MaskedIPSet(16);
+    private void selectPeers(List<Hash> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
+        if (peers.isEmpty() || matches.size() >= howMany)
+            return;
+        MaskedIPSet IPSet = mask > 0 ? new MaskedIPSet(16) : null;
         // use RandomIterator to avoid shuffling the whole thing
-        for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (matches.size() < howMany) && iter.hasNext(); ) {
+        for (Iterator<Hash> iter = new RandomIterator<Hash>(peers); (matches.size() < howMany) && iter.hasNext(); ) {
             Hash peer = iter.next();
             if (toExclude != null && toExclude.contains(peer))
                 continue;
@@ -1280,6 +1308,7 @@ public class ProfileOrganizer {
     }
 
     /**
+     * @param peers from _tiers, not modified; as of 0.9.45, no lock required
      * @param randomKey used for deterministic random partitioning into subtiers
      * @param subTierMode 2-7:
      *<pre>
@@ -1291,11 +1320,10 @@ public class ProfileOrganizer {
      *    7: return only from group 3
      *</pre>
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude,
-                                    Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        List<Hash> all = new ArrayList<Hash>(peers.keySet());
+    private void selectPeers(List<Hash> peers, int howMany, Set<Hash> toExclude,
+                             Set<Hash> matches, Hash randomKey, Slice subTierMode) {
         // use RandomIterator to avoid shuffling the whole thing
-        for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (matches.size() < howMany) && iter.hasNext(); ) {
+        for (Iterator<Hash> iter = new RandomIterator<Hash>(peers); (matches.size() < howMany) && iter.hasNext(); ) {
             Hash peer = iter.next();
             if (toExclude != null && toExclude.contains(peer))
                 continue;
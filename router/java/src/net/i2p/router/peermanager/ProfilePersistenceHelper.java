@@ -2,6 +2,7 @@ package net.i2p.router.peermanager;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -12,6 +13,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
@@ -32,6 +34,11 @@ import net.i2p.util.SecureFileOutputStream;
  *  The files are gzip compressed, we previously stored them
  *  with a ".dat" extension instead of ".txt.gz", so it wasn't apparent.
  *  Now migrated to a ".txt.gz" extension.
+ *
+ *  As of 0.9.45, if router.profileDatabase=true, profiles are stored
+ *  in a single ProfileDatabase file instead, and only those that changed
+ *  since they were last stored are written. The text files are imported
+ *  on startup, and exported if the database is disabled again.
  */
 class ProfilePersistenceHelper {
     private final Log _log;
@@ -47,6 +54,14 @@ class ProfilePersistenceHelper {
     private static final int MIN_NAME_LENGTH = PREFIX.length() + 44 + OLD_SUFFIX.length();
     private static final String DIR_PREFIX = "p";
     private static final String B64 = Base64.ALPHABET_I2P;
+    /** @since 0.9.45 */
+    public static final String PROP_PROFILE_DB = "router.profileDatabase";
+    /**
+     *  Rewrite unchanged profiles this often in the database,
+     *  so PeerManager doesn't expire them. Must be less than PeerManager.EXPIRE_AGE.
+     *  @since 0.9.45
+     */
+    private static final long DB_REWRITE_AGE = 2*24*60*60*1000L;
     
     /**
      * If we haven't been able to get a message through to the peer in this much time,
@@ -58,6 +73,8 @@ class ProfilePersistenceHelper {
     
     private final File _profileDir;
     private Hash _us;
+    /** null unless enabled, opened on first use */
+    private ProfileDatabase _db;
     
     public ProfilePersistenceHelper(RouterContext ctx) {
         _context = ctx;
@@ -82,6 +99,11 @@ class ProfilePersistenceHelper {
         if (isExpired(profile.getLastSendSuccessful()))
             return;
         
+        ProfileDatabase db = getDB();
+        if (db != null) {
+            writeProfile(profile, db);
+            return;
+        }
         File f = pickFile(profile);
         long before = _context.clock().now();
         OutputStream fos = null;
@@ -98,6 +120,173 @@ class ProfilePersistenceHelper {
             _log.debug("Writing the profile to " + f.getName() + " took " + delay + "ms");
     }
 
+    /**
+     *  Write the profile to the database if it changed since it was last stored.
+     *
+     *  @since 0.9.45
+     */
+    private void writeProfile(PeerProfile profile, ProfileDatabase db) {
+        Hash peer = profile.getPeer();
+        long now = _context.clock().now();
+        long stored = db.getDate(peer);
+        if (stored > 0 && getLastActivity(profile) <= stored && now - stored < DB_REWRITE_AGE)
+            return;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+            writeProfile(profile, baos, false);
+            Properties props = new Properties();
+            parseProps(props, baos.toByteArray());
+            db.put(peer, now, props);
+        } catch (IOException ioe) {
+            _log.error("Error writing profile " + peer + " to the database", ioe);
+        }
+    }
+
+    /**
+     *  The latest of the timestamps that change when the profile is updated
+     *
+     *  @since 0.9.45
+     */
+    private static long getLastActivity(PeerProfile p) {
+        long rv = Math.max(p.getLastHeardFrom(), p.getLastHeardAbout());
+        rv = Math.max(rv, Math.max(p.getLastSendSuccessful(), p.getLastSendFailed()));
+        TunnelHistory th = p.getTunnelHistory();
+        if (th != null) {
+            rv = Math.max(rv, Math.max(th.getLastAgreedTo(), th.getLastFailed()));
+            rv = Math.max(rv, Math.max(th.getLastRejectedCritical(), th.getLastRejectedBandwidth()));
+            rv = Math.max(rv, Math.max(th.getLastRejectedTransient(), th.getLastRejectedProbabalistic()));
+        }
+        DBHistory dh = p.getDBHistory();
+        if (dh != null) {
+            rv = Math.max(rv, Math.max(dh.getLastLookupSuccessful(), dh.getLastLookupFailed()));
+            rv = Math.max(rv, Math.max(dh.getLastStoreSuccessful(), dh.getLastStoreFailed()));
+        }
+        return rv;
+    }
+
+    /**
+     *  Parse the uncommented key=value lines written by writeProfile().
+     *  Much simpler than DataHelper.loadProps(), no escapes or trimming.
+     *
+     *  @since 0.9.45
+     */
+    private static void parseProps(Properties props, byte[] data) {
+        int start = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i < data.length && data[i] != '\n' && data[i] != '\r')
+                continue;
+            if (i > start && data[start] != '#') {
+                for (int j = start; j < i; j++) {
+                    if (data[j] == '=') {
+                        props.setProperty(DataHelper.getUTF8(data, start, j - start),
+                                          DataHelper.getUTF8(data, j + 1, i - (j + 1)));
+                        break;
+                    }
+                }
+            }
+            start = i + 1;
+        }
+    }
+
+    /**
+     *  Write the buffered profiles to the database,
+     *  and compact it if necessary. No-op if the database is not enabled.
+     *
+     *  @since 0.9.45
+     */
+    public void flush() {
+        ProfileDatabase db;
+        synchronized(this) {
+            db = _db;
+        }
+        if (db == null)
+            return;
+        try {
+            db.flush();
+            db.compactIfNeeded();
+        } catch (IOException ioe) {
+            _log.error("Error writing the profile database", ioe);
+        }
+    }
+
+    /**
+     *  Flush and close the database, if open.
+     *
+     *  @since 0.9.45
+     */
+    public synchronized void close() {
+        if (_db != null) {
+            _db.close();
+            _db = null;
+        }
+    }
+
+    /**
+     *  Open the database if enabled.
+     *  If disabled and a database exists, export the profiles to text files
+     *  and delete it.
+     *
+     *  @return null if disabled or on error
+     *  @since 0.9.45
+     */
+    private synchronized ProfileDatabase getDB() {
+        if (_db != null)
+            return _db;
+        File f = new File(_profileDir, ProfileDatabase.FILE_NAME);
+        boolean enabled = _context.getBooleanProperty(PROP_PROFILE_DB);
+        if (!enabled && !ProfileDatabase.exists(f))
+            return null;
+        ProfileDatabase db;
+        try {
+            db = new ProfileDatabase(_context, f);
+        } catch (IOException ioe) {
+            _log.error("Unable to open the profile database " + f, ioe);
+            return null;
+        }
+        if (enabled) {
+            _db = db;
+            return db;
+        }
+        int count = exportProfiles(db);
+        if (_log.shouldWarn())
+            _log.warn("Exported " + count + " profiles from " + f);
+        db.delete();
+        return null;
+    }
+
+    /**
+     *  Write the profiles in the database to text files.
+     *  The file modification time is the time stored.
+     *
+     *  @return the number exported
+     *  @since 0.9.45
+     */
+    private int exportProfiles(ProfileDatabase db) {
+        int rv = 0;
+        for (Hash peer : db.getKeys()) {
+            File f = pickFile(peer);
+            OutputStream fos = null;
+            try {
+                Properties props = db.get(peer);
+                StringBuilder buf = new StringBuilder(4096);
+                for (Map.Entry<Object, Object> e : props.entrySet()) {
+                    buf.append(e.getKey()).append('=').append(e.getValue()).append(NL);
+                }
+                fos = new BufferedOutputStream(new GZIPOutputStream(new SecureFileOutputStream(f)));
+                fos.write(DataHelper.getUTF8(buf.toString()));
+                fos.close();
+                fos = null;
+                f.setLastModified(db.getDate(peer));
+                rv++;
+            } catch (IOException ioe) {
+                _log.error("Error exporting profile to " + f, ioe);
+            } finally {
+                if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+            }
+        }
+        return rv;
+    }
+
     /**
      * write out the data from the profile to the stream
      * includes comments
@@ -112,23 +301,23 @@ class ProfilePersistenceHelper {
      * @since 0.9.41
      */
     public void writeProfile(PeerProfile profile, OutputStream out, boolean addComments) throws IOException {
-        String groups = null;
-        if (_context.profileOrganizer().isFailing(profile.getPeer())) {
-            groups = "Failing";
-        } else if (!_context.profileOrganizer().isHighCapacity(profile.getPeer())) {
-            groups = "Standard";
-        } else {
-            if (_context.profileOrganizer().isFast(profile.getPeer()))
-                groups = "Fast, High Capacity";
-            else
-                groups = "High Capacity";
-            
-            if (_context.profileOrganizer().isWellIntegrated(profile.getPeer()))
-                groups = groups + ", Integrated";
-        }
-        
         StringBuilder buf = new StringBuilder(512);
         if (addComments) {
+            String groups = null;
+            if (_context.profileOrganizer().isFailing(profile.getPeer())) {
+                groups = "Failing";
+            } else if (!_context.profileOrganizer().isHighCapacity(profile.getPeer())) {
+                groups = "Standard";
+            } else {
+                if (_context.profileOrganizer().isFast(profile.getPeer()))
+                    groups = "Fast, High Capacity";
+                else
+                    groups = "High Capacity";
+                
+                if (_context.profileOrganizer().isWellIntegrated(profile.getPeer()))
+                    groups = groups + ", Integrated";
+            }
+            
             buf.append("########################################################################").append(NL);
             buf.append("# Profile for peer ").append(profile.getPeer().toBase64()).append(NL);
             if (_us != null)
@@ -205,6 +394,9 @@ class ProfilePersistenceHelper {
     
     public Set<PeerProfile> readProfiles() {
         long start = _context.clock().now();
+        ProfileDatabase db = getDB();
+        if (db != null)
+            return readProfiles(db, start);
         List<File> files = selectFiles();
         Set<PeerProfile> profiles = new HashSet<PeerProfile>(files.size());
         for (File f :  files) {
@@ -218,6 +410,58 @@ class ProfilePersistenceHelper {
         return profiles;
     }
     
+    /**
+     *  Import any text files, then load all the profiles from the database.
+     *
+     *  @since 0.9.45
+     */
+    private Set<PeerProfile> readProfiles(ProfileDatabase db, long start) {
+        List<File> files = selectFiles();
+        int imported = 0;
+        for (File f : files) {
+            Hash peer = getHash(f.getName());
+            if (peer != null) {
+                try {
+                    Properties props = new Properties();
+                    loadProps(props, f);
+                    if (f.lastModified() > db.getDate(peer)) {
+                        db.put(peer, f.lastModified(), props);
+                        imported++;
+                    }
+                } catch (IOException ioe) {
+                    if (_log.shouldWarn())
+                        _log.warn("Error importing profile from " + f, ioe);
+                }
+            }
+            f.delete();
+        }
+        if (imported > 0 && _log.shouldWarn())
+            _log.warn("Imported " + imported + " profiles into the database");
+        List<Hash> peers = db.getKeys();
+        Set<PeerProfile> profiles = new HashSet<PeerProfile>(peers.size());
+        for (Hash peer : peers) {
+            try {
+                Properties props = db.get(peer);
+                if (isExpired(getLong(props, "lastSentToSuccessfully"))) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Dropping old profile " + peer +
+                                  ", since we haven't heard from them in a long time");
+                    db.remove(peer);
+                    continue;
+                }
+                profiles.add(readProfile(peer, props));
+            } catch (IOException ioe) {
+                _log.error("Error loading profile " + peer + " from the database", ioe);
+                try { db.remove(peer); } catch (IOException e) {}
+            }
+        }
+        flush();
+        long duration = _context.clock().now() - start;
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Loading " + profiles.size() + " from the database took " + duration + "ms");
+        return profiles;
+    }
+
     private static class ProfileFilter implements FilenameFilter {
         public boolean accept(File dir, String filename) {
             return (filename.startsWith(PREFIX) &&
@@ -264,6 +508,18 @@ class ProfilePersistenceHelper {
      */
     public void deleteOldProfiles(long age) {
         long cutoff = System.currentTimeMillis() - age;
+        ProfileDatabase db = getDB();
+        if (db != null) {
+            try {
+                int count = db.removeOlderThan(cutoff);
+                if (_log.shouldWarn())
+                    _log.warn("Deleted " + count + " old profiles");
+            } catch (IOException ioe) {
+                _log.error("Error deleting old profiles", ioe);
+            }
+            flush();
+            return;
+        }
         List<File> files = selectFiles();
         int i = 0;
         for (File f :  files) {
@@ -290,7 +546,6 @@ class ProfilePersistenceHelper {
                 _log.error("The file " + file.getName() + " is not a valid hash");
                 return null;
             }
-            PeerProfile profile = new PeerProfile(_context, peer);
             Properties props = new Properties();
             
             loadProps(props, file);
@@ -312,44 +567,9 @@ class ProfilePersistenceHelper {
                     file.delete();
             }
             
-            profile.setCapacityBonus((int) getLong(props, "capacityBonus"));
-            profile.setIntegrationBonus((int) getLong(props, "integrationBonus"));
-            profile.setSpeedBonus((int) getLong(props, "speedBonus"));
-            
-            profile.setLastHeardAbout(getLong(props, "lastHeardAbout"));
-            profile.setFirstHeardAbout(getLong(props, "firstHeardAbout"));
-            profile.setLastSendSuccessful(getLong(props, "lastSentToSuccessfully"));
-            profile.setLastSendFailed(getLong(props, "lastFailedSend"));
-            profile.setLastHeardFrom(getLong(props, "lastHeardFrom"));
-            profile.setTunnelTestTimeAverage(getFloat(props, "tunnelTestTimeAverage"));
-            profile.setPeakThroughputKBps(getFloat(props, "tunnelPeakThroughput"));
-            profile.setPeakTunnelThroughputKBps(getFloat(props, "tunnelPeakTunnelThroughput"));
-            profile.setPeakTunnel1mThroughputKBps(getFloat(props, "tunnelPeakTunnel1mThroughput"));
-            
-            profile.getTunnelHistory().load(props);
-
-            // In the interest of keeping the in-memory profiles small,
-            // don't load the DB info at all unless there is something interesting there
-            // (i.e. floodfills)
-            if (getLong(props, "dbHistory.lastLookupSuccessful") > 0 ||
-                getLong(props, "dbHistory.lastLookupFailed") > 0 ||
-                getLong(props, "dbHistory.lastStoreSuccessful") > 0 ||
-                getLong(props, "dbHistory.lastStoreFailed") > 0) {
-                profile.expandDBProfile();
-                profile.getDBHistory().load(props);
-                profile.getDbIntroduction().load(props, "dbIntroduction", true);
-                profile.getDbResponseTime().load(props, "dbResponseTime", true);
-            }
-
-            //profile.getReceiveSize().load(props, "receiveSize", true);
-            //profile.getSendSuccessSize().load(props, "sendSuccessSize", true);
-            profile.getTunnelCreateResponseTime().load(props, "tunnelCreateResponseTime", true);
-            profile.getTunnelTestResponseTime().load(props, "tunnelTestResponseTime", true);
-            
+            PeerProfile profile = readProfile(peer, props);
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Loaded the profile for " + peer.toBase64() + " from " + file.getName());
-            
-            fixupFirstHeardAbout(profile);
             return profile;
         } catch (IOException e) {
             if (_log.shouldLog(Log.WARN))
@@ -359,6 +579,50 @@ class ProfilePersistenceHelper {
         }
     }
 
+    /**
+     *  @param props as written by writeProfile()
+     *  @since 0.9.45 split out of readProfile(File)
+     */
+    private PeerProfile readProfile(Hash peer, Properties props) {
+        PeerProfile profile = new PeerProfile(_context, peer);
+        profile.setCapacityBonus((int) getLong(props, "capacityBonus"));
+        profile.setIntegrationBonus((int) getLong(props, "integrationBonus"));
+        profile.setSpeedBonus((int) getLong(props, "speedBonus"));
+        
+        profile.setLastHeardAbout(getLong(props, "lastHeardAbout"));
+        profile.setFirstHeardAbout(getLong(props, "firstHeardAbout"));
+        profile.setLastSendSuccessful(getLong(props, "lastSentToSuccessfully"));
+        profile.setLastSendFailed(getLong(props, "lastFailedSend"));
+        profile.setLastHeardFrom(getLong(props, "lastHeardFrom"));
+        profile.setTunnelTestTimeAverage(getFloat(props, "tunnelTestTimeAverage"));
+        profile.setPeakThroughputKBps(getFloat(props, "tunnelPeakThroughput"));
+        profile.setPeakTunnelThroughputKBps(getFloat(props, "tunnelPeakTunnelThroughput"));
+        profile.setPeakTunnel1mThroughputKBps(getFloat(props, "tunnelPeakTunnel1mThroughput"));
+        
+        profile.getTunnelHistory().load(props);
+
+        // In the interest of keeping the in-memory profiles small,
+        // don't load the DB info at all unless there is something interesting there
+        // (i.e. floodfills)
+        if (getLong(props, "dbHistory.lastLookupSuccessful") > 0 ||
+            getLong(props, "dbHistory.lastLookupFailed") > 0 ||
+            getLong(props, "dbHistory.lastStoreSuccessful") > 0 ||
+            getLong(props, "dbHistory.lastStoreFailed") > 0) {
+            profile.expandDBProfile();
+            profile.getDBHistory().load(props);
+            profile.getDbIntroduction().load(props, "dbIntroduction", true);
+            profile.getDbResponseTime().load(props, "dbResponseTime", true);
+        }
+
+        //profile.getReceiveSize().load(props, "receiveSize", true);
+        //profile.getSendSuccessSize().load(props, "sendSuccessSize", true);
+        profile.getTunnelCreateResponseTime().load(props, "tunnelCreateResponseTime", true);
+        profile.getTunnelTestResponseTime().load(props, "tunnelTestResponseTime", true);
+        
+        fixupFirstHeardAbout(profile);
+        return profile;
+    }
+
     /**
      *  First heard about wasn't always set correctly before,
      *  set it to the minimum of all recorded timestamps.
@@ -475,7 +739,12 @@ class ProfilePersistenceHelper {
     }
     
     private File pickFile(PeerProfile profile) {
-        String hash = profile.getPeer().toBase64();
+        return pickFile(profile.getPeer());
+    }
+
+    /** @since 0.9.45 */
+    private File pickFile(Hash peer) {
+        String hash = peer.toBase64();
         File dir = new File(_profileDir, DIR_PREFIX + hash.charAt(0));
         return new File(dir, PREFIX + hash + SUFFIX);
     }
@@ -0,0 +1,150 @@
+package net.i2p.router.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  One level of the outbound bandwidth hierarchy of the FIFOBandwidthLimiter,
+ *  either a transport or a traffic class.
+ *
+ *  Each outbound request draws from a chain of shares
+ *  (its transport, then its traffic class) and then from the
+ *  global outbound TokenBucket in the limiter.
+ *  A share may be capped at a percentage of the global outbound rate,
+ *  with its own TokenBucket. An uncapped share (100%) only counts
+ *  what was allocated, for the utilization stats.
+ *
+ *  Lockless, like the TokenBucket. If the cap is changed
+ *  while a request is in progress, the share's bucket may be
+ *  off by that request until the next refill.
+ *
+ *  @since 0.9.45
+ */
+class BandwidthShare {
+    private final String _name;
+    private final TokenBucket _bucket = new TokenBucket();
+    private volatile int _percent = 100;
+    private final AtomicLong _allocated = new AtomicLong();
+    /** refiller thread only */
+    private long _lastAllocated;
+
+    public BandwidthShare(String name) {
+        _name = name;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     *  @return 1-100
+     */
+    public int getPercent() {
+        return _percent;
+    }
+
+    /**
+     *  @param percent of the global rate, 100 or more for uncapped, minimum 1
+     */
+    public void setPercent(int percent) {
+        _percent = Math.max(1, Math.min(100, percent));
+    }
+
+    public boolean isCapped() {
+        return _percent < 100;
+    }
+
+    /**
+     *  Only call from the refiller thread.
+     *
+     *  @param bytes added to the global bucket this time
+     *  @param max the most the global bucket may hold
+     */
+    public void refill(int bytes, int max) {
+        int pct = _percent;
+        if (pct < 100)
+            _bucket.refill((int) (((long) bytes) * pct / 100), (int) (((long) max) * pct / 100), 0, 0);
+    }
+
+    /**
+     *  Bytes allocated through this share since the last call.
+     *  Only call from the refiller thread.
+     */
+    public long getAllocatedSinceLast() {
+        long tot = _allocated.get();
+        long rv = tot - _lastAllocated;
+        _lastAllocated = tot;
+        return rv;
+    }
+
+    public void clear() {
+        _bucket.clear();
+    }
+
+    private boolean tryTake(int bytes) {
+        return _percent >= 100 || _bucket.tryAcquire(bytes);
+    }
+
+    private int takeUpTo(int max) {
+        return _percent >= 100 ? max : _bucket.acquireUpTo(max);
+    }
+
+    private void giveBack(int bytes) {
+        if (_percent < 100 && bytes > 0)
+            _bucket.release(bytes);
+    }
+
+    /**
+     *  Take all or nothing from every share in the chain and then the root.
+     *
+     *  @param chain may be empty
+     *  @return true if all the bytes were taken
+     */
+    public static boolean tryAcquire(BandwidthShare[] chain, TokenBucket root, int bytes) {
+        int i = 0;
+        for ( ; i < chain.length; i++) {
+            if (!chain[i].tryTake(bytes))
+                break;
+        }
+        if (i == chain.length && root.tryAcquire(bytes)) {
+            for (int j = 0; j < chain.length; j++) {
+                chain[j]._allocated.addAndGet(bytes);
+            }
+            return true;
+        }
+        // roll back
+        while (--i >= 0) {
+            chain[i].giveBack(bytes);
+        }
+        return false;
+    }
+
+    /**
+     *  Take as much as every share in the chain and the root allow, up to max.
+     *
+     *  @param chain may be empty
+     *  @return the number of bytes taken, 0 to max
+     */
+    public static int acquireUpTo(BandwidthShare[] chain, TokenBucket root, int max) {
+        int[] taken = new int[chain.length];
+        int want = max;
+        for (int i = 0; i < chain.length; i++) {
+            want = chain[i].takeUpTo(want);
+            taken[i] = want;
+            if (want <= 0)
+                break;
+        }
+        int rv = want > 0 ? root.acquireUpTo(want) : 0;
+        // give back what the later ones didn't allow
+        for (int i = 0; i < chain.length; i++) {
+            chain[i].giveBack(taken[i] - rv);
+            if (rv > 0)
+                chain[i]._allocated.addAndGet(rv);
+        }
+        return rv;
+    }
+
+    @Override
+    public String toString() {
+        return _name + ' ' + _percent + "% " + _bucket;
+    }
+}
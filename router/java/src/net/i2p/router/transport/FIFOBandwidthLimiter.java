@@ -3,11 +3,16 @@ package net.i2p.router.transport;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.I2PAppContext;
+import net.i2p.router.OutNetMessage;
+import net.i2p.router.Router;
+import net.i2p.router.transport.ntcp.NTCPTransport;
+import net.i2p.router.transport.udp.UDPTransport;
 import net.i2p.router.util.PQEntry;
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
@@ -30,20 +35,51 @@ import net.i2p.util.Log;
  *  methods for the common case where we are under the bandwidth limits.
  *  And the volatile counters are now AtomicIntegers / AtomicLongs.
  *
+ *  As of 0.9.45, the available bytes are in a TokenBucket, where
+ *  all allocations are compare-and-set, so the shortcut
+ *  never overdraws the bucket and never locks.
+ *  The FIFO queues are only used when the bucket is empty
+ *  or there are requests already waiting, and the pending counts are volatile,
+ *  so neither the shortcut nor the refiller locks the queues when they are empty.
+ *
+ *  As of 0.9.45, outbound requests may also be limited by a BandwidthShare
+ *  for their transport and for their TrafficClass, each capped at a
+ *  percentage of the global outbound rate, so that participating traffic
+ *  cannot use up all the bandwidth for our own traffic.
+ *  All shares are uncapped unless configured, see PROP_OUTBOUND_PERCENT
+ *  and PROP_CAP_PARTICIPATING.
+ *  Requests held back by their share do not block the requests behind them in the queue,
+ *  except for those with the same transport and traffic class, which stay in order.
+ *  Nor do they stop new requests for other transports and classes from taking the shortcut.
+ *
  */
 public class FIFOBandwidthLimiter {
     private final Log _log;
     private final I2PAppContext _context;
     private final List<SimpleRequest> _pendingInboundRequests;
     private final List<SimpleRequest> _pendingOutboundRequests;
-    /** how many bytes we can consume for inbound transmission immediately */
-    private final AtomicInteger _availableInbound = new AtomicInteger();
-    /** how many bytes we can consume for outbound transmission immediately */
-    private final AtomicInteger _availableOutbound = new AtomicInteger();
-    /** how many bytes we can queue up for bursting */
-    private final AtomicInteger _unavailableInboundBurst = new AtomicInteger();
-    /** how many bytes we can queue up for bursting */
-    private final AtomicInteger _unavailableOutboundBurst = new AtomicInteger();
+    /** size of _pendingInboundRequests, written only while holding its lock */
+    private volatile int _pendingInboundCount;
+    /** size of _pendingOutboundRequests, written only while holding its lock */
+    private volatile int _pendingOutboundCount;
+    /**
+     *  how many of _pendingOutboundRequests were held back by their share,
+     *  not by the global bucket, in the last pass, written only while holding its lock
+     *  @since 0.9.45
+     */
+    private volatile int _heldOutboundCount;
+    /** how many bytes we can consume for inbound transmission immediately, and queue up for bursting */
+    private final TokenBucket _inbound = new TokenBucket();
+    /** how many bytes we can consume for outbound transmission immediately, and queue up for bursting */
+    private final TokenBucket _outbound = new TokenBucket();
+    /** by TrafficClass ordinal */
+    private final BandwidthShare[] _classShares;
+    /** transport style to share */
+    private final Map<String, BandwidthShare> _transportShares;
+    /** transport style to chain by TrafficClass ordinal */
+    private final Map<String, ShareChain[]> _chains;
+    /** chain by TrafficClass ordinal, for no transport */
+    private final ShareChain[] _classChains;
     /** how large _unavailableInbound can get */
     private int _maxInboundBurst;
     /** how large _unavailableInbound can get */
@@ -63,6 +99,22 @@ public class FIFOBandwidthLimiter {
     // following is temp until switch to PBQ
     private static final AtomicLong __requestId = new AtomicLong();
 
+    /**
+     *  Prefix for the outbound share of a transport or traffic class,
+     *  in percent of the global outbound rate, e.g. i2np.bandwidth.outboundPercent.participating
+     *  @since 0.9.45
+     */
+    public static final String PROP_OUTBOUND_PERCENT = "i2np.bandwidth.outboundPercent.";
+    /**
+     *  If true, and there's no outbound percent set for participating traffic,
+     *  cap it at the router's share percentage. Default false.
+     *  @since 0.9.45
+     */
+    public static final String PROP_CAP_PARTICIPATING = "i2np.bandwidth.capParticipating";
+    private static final String[] TRANSPORTS = { NTCPTransport.STYLE, UDPTransport.STYLE };
+    private static final TrafficClass[] CLASSES = TrafficClass.values();
+    private static final long[] RATES = { 60*1000l, 60*60*1000l };
+
     /** lifetime counter of tokens available for use but exceeded our maxInboundBurst size */
     //private final AtomicLong _totalWastedInboundBytes = new AtomicLong();
     /** lifetime counter of tokens available for use but exceeded our maxOutboundBurst size */
@@ -93,6 +145,23 @@ public class FIFOBandwidthLimiter {
         _context.statManager().createRateStat("bwLimiter.inboundDelayedTime", "How long it takes to honor an inbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _pendingInboundRequests = new ArrayList<SimpleRequest>(16);
         _pendingOutboundRequests = new ArrayList<SimpleRequest>(16);
+        _classShares = new BandwidthShare[CLASSES.length];
+        _classChains = new ShareChain[CLASSES.length];
+        for (int i = 0; i < CLASSES.length; i++) {
+            _classShares[i] = createShare(CLASSES[i].getName());
+            _classChains[i] = new ShareChain(new BandwidthShare[] { _classShares[i] });
+        }
+        _transportShares = new HashMap<String, BandwidthShare>(4);
+        _chains = new HashMap<String, ShareChain[]>(4);
+        for (String style : TRANSPORTS) {
+            BandwidthShare ts = createShare(style);
+            _transportShares.put(style, ts);
+            ShareChain[] chains = new ShareChain[CLASSES.length];
+            for (int i = 0; i < CLASSES.length; i++) {
+                chains[i] = new ShareChain(new BandwidthShare[] { ts, _classShares[i] });
+            }
+            _chains.put(style, chains);
+        }
         _lastTotalSent = _totalAllocatedOutboundBytes.get();
         _lastTotalReceived = _totalAllocatedInboundBytes.get();
         _lastStatsUpdated = now();
@@ -169,18 +238,40 @@ public class FIFOBandwidthLimiter {
         clear();
     }
 
+    /** @since 0.9.45 */
+    private BandwidthShare createShare(String name) {
+        _context.statManager().createRateStat("bwLimiter.outboundUtilization." + name,
+                                              "Percent of the outbound bandwidth used by " + name,
+                                              "BandwidthLimiter", RATES);
+        return new BandwidthShare(name);
+    }
+
     /** @since 0.8.8 */
     private void clear() {
-        _pendingInboundRequests.clear();
-        _pendingOutboundRequests.clear();
-        _availableInbound.set(0);
-        _availableOutbound.set(0);
+        synchronized (_pendingInboundRequests) {
+            _pendingInboundRequests.clear();
+            _pendingInboundCount = 0;
+        }
+        synchronized (_pendingOutboundRequests) {
+            for (SimpleRequest req : _pendingOutboundRequests) {
+                req.chain.pending--;
+            }
+            _pendingOutboundRequests.clear();
+            _pendingOutboundCount = 0;
+            _heldOutboundCount = 0;
+        }
+        _inbound.clear();
+        _outbound.clear();
+        for (BandwidthShare bs : _classShares) {
+            bs.clear();
+        }
+        for (BandwidthShare bs : _transportShares.values()) {
+            bs.clear();
+        }
         _maxInbound = 0;
         _maxOutbound = 0;
         _maxInboundBurst = 0;
         _maxOutboundBurst = 0;
-        _unavailableInboundBurst.set(0);
-        _unavailableOutboundBurst.set(0);
         // always limited for now
         //_inboundUnlimited = false;
         //_outboundUnlimited = false;
@@ -213,7 +304,7 @@ public class FIFOBandwidthLimiter {
         // try to satisfy without grabbing the global lock
         if (shortcutSatisfyInboundRequest(bytesIn))
             return _noop;
-        SimpleRequest req = new SimpleRequest(bytesIn, 0);
+        SimpleRequest req = new SimpleRequest(bytesIn, 0, null);
         requestInbound(req, bytesIn, purpose);
         return req;
     }
@@ -230,6 +321,7 @@ public class FIFOBandwidthLimiter {
         synchronized (_pendingInboundRequests) {
             pending = _pendingInboundRequests.size();
             _pendingInboundRequests.add(req);
+            _pendingInboundCount = pending + 1;
         }
         satisfyInboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
@@ -239,12 +331,28 @@ public class FIFOBandwidthLimiter {
 
     /**
      * Request some bytes. Does not block.
+     * Limited by the share for the TrafficClass of the priority only.
+     *
+     * @param priority OutNetMessage priority, or 0 if unspecified
      */
     public Request requestOutbound(int bytesOut, int priority, String purpose) {
+        return requestOutbound(bytesOut, priority, null, purpose);
+    }
+
+    /**
+     * Request some bytes. Does not block.
+     * Limited by the shares for the transport and the TrafficClass of the priority.
+     *
+     * @param priority OutNetMessage priority, or 0 if unspecified
+     * @param style transport style, e.g. "NTCP" or "SSU", may be null
+     * @since 0.9.45
+     */
+    public Request requestOutbound(int bytesOut, int priority, String style, String purpose) {
+        ShareChain chain = getChain(style, priority);
         // try to satisfy without grabbing the global lock
-        if (shortcutSatisfyOutboundRequest(bytesOut))
+        if (shortcutSatisfyOutboundRequest(bytesOut, chain))
             return _noop;
-        SimpleRequest req = new SimpleRequest(bytesOut, priority);
+        SimpleRequest req = new SimpleRequest(bytesOut, priority, chain);
         requestOutbound(req, bytesOut, purpose);
         return req;
     }
@@ -256,6 +364,8 @@ public class FIFOBandwidthLimiter {
         synchronized (_pendingOutboundRequests) {
             pending = _pendingOutboundRequests.size();
             _pendingOutboundRequests.add(req);
+            _pendingOutboundCount = pending + 1;
+            req.chain.pending++;
         }
         satisfyOutboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
@@ -263,6 +373,57 @@ public class FIFOBandwidthLimiter {
             _context.statManager().addRateData("bwLimiter.pendingOutboundRequests", pending);
     }
     
+    /**
+     *  @param style may be null
+     *  @since 0.9.45
+     */
+    private ShareChain getChain(String style, int priority) {
+        int cls = TrafficClass.fromPriority(priority).ordinal();
+        if (style != null) {
+            ShareChain[] chains = _chains.get(style);
+            if (chains != null)
+                return chains[cls];
+        }
+        return _classChains[cls];
+    }
+
+    /**
+     *  Read the share percentages from the config.
+     *  Called by the refiller at startup and periodically.
+     *
+     *  @since 0.9.45
+     */
+    void updateShares() {
+        for (TrafficClass tc : CLASSES) {
+            int def = 100;
+            if (tc == TrafficClass.PARTICIPATING && _context.getBooleanProperty(PROP_CAP_PARTICIPATING))
+                def = getSharePercentage();
+            _classShares[tc.ordinal()].setPercent(_context.getProperty(PROP_OUTBOUND_PERCENT + tc.getName(), def));
+        }
+        for (BandwidthShare bs : _transportShares.values()) {
+            bs.setPercent(_context.getProperty(PROP_OUTBOUND_PERCENT + bs.getName(), 100));
+        }
+    }
+
+    /**
+     *  Same as Router.getSharePercentage(), but we only have an I2PAppContext
+     *
+     *  @return 1-100
+     *  @since 0.9.45
+     */
+    private int getSharePercentage() {
+        String pct = _context.getProperty(Router.PROP_BANDWIDTH_SHARE_PERCENTAGE);
+        if (pct != null) {
+            try {
+                double d = Double.parseDouble(pct);
+                if (d <= 1)
+                    d *= 100;
+                return Math.max(1, (int) d);
+            } catch (NumberFormatException nfe) {}
+        }
+        return Router.DEFAULT_SHARE_PERCENTAGE;
+    }
+
     void setInboundBurstKBps(int kbytesPerSecond) {
         _maxInbound = kbytesPerSecond * 1024;
     }
@@ -276,9 +437,9 @@ public class FIFOBandwidthLimiter {
     
     StringBuilder getStatus() {
         StringBuilder rv = new StringBuilder(128);
-        rv.append("Available: ").append(_availableInbound).append('/').append(_availableOutbound).append(' ');
+        rv.append("Available: ").append(_inbound.getAvailable()).append('/').append(_outbound.getAvailable()).append(' ');
         rv.append("Max: ").append(_maxInbound).append('/').append(_maxOutbound).append(' ');
-        rv.append("Burst: ").append(_unavailableInboundBurst).append('/').append(_unavailableOutboundBurst).append(' ');
+        rv.append("Burst: ").append(_inbound.getBurst()).append('/').append(_outbound.getBurst()).append(' ');
         rv.append("Burst max: ").append(_maxInboundBurst).append('/').append(_maxOutboundBurst).append(' ');
         return rv;
     }
@@ -295,73 +456,21 @@ public class FIFOBandwidthLimiter {
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("Refilling the queues with " + bytesInbound + "/" + bytesOutbound + ": " + getStatus().toString());
 
-        // Take some care throughout to minimize accesses to the atomics,
-        // both for efficiency and to not let strange things happen if
-        // it changes out from under us
-        // This never had locks before concurrent, anyway
-
+        // The buckets are lockless, with compare-and-set for any change
+        // that may race with an allocation.
+        // Only this thread changes the burst reserves.
         // FIXME wrap - change to AtomicLong or detect
-        int avi = _availableInbound.addAndGet((int) bytesInbound);
-        if (avi > _maxInbound) {
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("available inbound (" + avi + ") exceeds our inbound burst (" + _maxInbound + "), so no supplement");
-            int uib = _unavailableInboundBurst.addAndGet(avi - _maxInbound);
-            _availableInbound.set(_maxInbound);
-            if (uib > _maxInboundBurst) {
-                //_totalWastedInboundBytes.addAndGet(uib - _maxInboundBurst);
-                _unavailableInboundBurst.set(_maxInboundBurst);
-            }
-        } else {
-            // try to pull in up to 1/10th of the burst rate, since we refill every 100ms
-            int want = (int)maxBurstIn;
-            if (want > (_maxInbound - avi))
-                want = _maxInbound - avi;
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("want to pull " + want + " from the inbound burst (" + _unavailableInboundBurst + ") to supplement " + avi + " (max: " + _maxInbound + ")");
-            
-            if (want > 0) {
-                int uib = _unavailableInboundBurst.get();
-                if (want <= uib) {
-                    _availableInbound.addAndGet(want);
-                    _unavailableInboundBurst.addAndGet(0 - want);
-                } else {
-                    _availableInbound.addAndGet(uib);
-                    _unavailableInboundBurst.set(0);
-                }
-            }
+        _inbound.refill((int) bytesInbound, _maxInbound, _maxInboundBurst, (int) maxBurstIn);
+        _outbound.refill((int) bytesOutbound, _maxOutbound, _maxOutboundBurst, (int) maxBurstOut);
+        // the shares get their percentage of the burst rate
+        int shareBytes = (int) (bytesOutbound + Math.max(0, maxBurstOut));
+        for (BandwidthShare bs : _classShares) {
+            bs.refill(shareBytes, _maxOutbound);
         }
-        
-        int avo = _availableOutbound.addAndGet((int) bytesOutbound);
-        if (avo > _maxOutbound) {
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("available outbound (" + avo + ") exceeds our outbound burst (" + _maxOutbound + "), so no supplement");
-            int uob = _unavailableOutboundBurst.getAndAdd(avo - _maxOutbound);
-            _availableOutbound.set(_maxOutbound);
-
-            if (uob > _maxOutboundBurst) {
-                //_totalWastedOutboundBytes.getAndAdd(uob - _maxOutboundBurst);
-                _unavailableOutboundBurst.set(_maxOutboundBurst);
-            }
-        } else {
-            // try to pull in up to the burst rate, since we refill periodically
-            int want = (int)maxBurstOut;
-            if (want > (_maxOutbound - avo))
-                want = _maxOutbound - avo;
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("want to pull " + want + " from the outbound burst (" + _unavailableOutboundBurst + ") to supplement " + avo + " (max: " + _maxOutbound + ")");
-            
-            if (want > 0) {
-                int uob = _unavailableOutboundBurst.get();
-                if (want <= uob) {
-                    _availableOutbound.addAndGet(want);
-                    _unavailableOutboundBurst.addAndGet(0 - want);
-                } else {
-                    _availableOutbound.addAndGet(uob);
-                    _unavailableOutboundBurst.set(0);
-                }
-            }
+        for (BandwidthShare bs : _transportShares.values()) {
+            bs.refill(shareBytes, _maxOutbound);
         }
-        
+
         satisfyRequests(buf);
         updateStats();
     }
@@ -378,6 +487,7 @@ public class FIFOBandwidthLimiter {
             _lastTotalSent = totS;
             _lastTotalReceived = totR;
             _lastStatsUpdated = now;
+            updateShareStats(time);
 
             if (_sendBps <= 0)
                 _sendBps = (sent*1000f)/time;
@@ -419,6 +529,33 @@ public class FIFOBandwidthLimiter {
         }
     }
     
+    /**
+     *  Percent of each share's allowance used, where the allowance is
+     *  its percentage of the outbound burst rate.
+     *
+     *  @param time since last call, ms, at least 1000
+     *  @since 0.9.45
+     */
+    private void updateShareStats(long time) {
+        long rate = 1024L * getOutboundBurstKBytesPerSecond();
+        if (rate <= 0)
+            return;
+        for (BandwidthShare bs : _classShares) {
+            updateShareStats(bs, time, rate);
+        }
+        for (BandwidthShare bs : _transportShares.values()) {
+            updateShareStats(bs, time, rate);
+        }
+    }
+
+    /** @since 0.9.45 */
+    private void updateShareStats(BandwidthShare bs, long time, long rate) {
+        long bytes = bs.getAllocatedSinceLast();
+        long allowed = rate * bs.getPercent() * time / (100 * 1000);
+        if (allowed > 0)
+            _context.statManager().addRateData("bwLimiter.outboundUtilization." + bs.getName(), 100 * bytes / allowed);
+    }
+
     /**
      * Go through the queue, satisfying as many requests as possible (notifying
      * each one satisfied that the request has been granted).  
@@ -436,11 +573,14 @@ public class FIFOBandwidthLimiter {
      * @param satisfied Out parameter, returned with the satisfied requests added
      */
     private final void satisfyInboundRequests(List<Request> satisfied) {
+        // don't bother locking if nobody is waiting
+        if (_pendingInboundCount <= 0)
+            return;
         synchronized (_pendingInboundRequests) {
             if (_inboundUnlimited) {
                 locked_satisfyInboundUnlimited(satisfied);
             } else {
-                if (_availableInbound.get() > 0) {
+                if (_inbound.getAvailable() > 0) {
                     locked_satisfyInboundAvailable(satisfied);
                 } else {
                     // no bandwidth available
@@ -450,6 +590,7 @@ public class FIFOBandwidthLimiter {
                                   + ", longest waited " + locked_getLongestInboundWait() + ')');
                 }
             }
+            _pendingInboundCount = _pendingInboundRequests.size();
         }
         
         if (satisfied != null) {
@@ -533,8 +674,7 @@ public class FIFOBandwidthLimiter {
                 i--;
                 continue;
             }
-            int avi = _availableInbound.get();
-            if (avi <= 0) break;
+            if (_inbound.getAvailable() <= 0) break;
             // NO, don't do this, since SSU requires a full allocation to proceed.
             // By stopping after a partial allocation, we stall SSU.
             // This never affected NTCP (which also requires a full allocation)
@@ -549,12 +689,9 @@ public class FIFOBandwidthLimiter {
             //}
             // ok, they are really waiting for us to give them stuff
             int requested = req.getPendingRequested();
-            int allocated;
-            if (avi >= requested) 
-                allocated = requested;
-            else
-                allocated = avi;
-            _availableInbound.addAndGet(0 - allocated);
+            int allocated = _inbound.acquireUpTo(requested);
+            if (allocated <= 0 && requested > 0)
+                break;
             _totalAllocatedInboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
             satisfied.add(req);
@@ -586,12 +723,16 @@ public class FIFOBandwidthLimiter {
      * @param satisfied Out parameter, returned with the satisfied requests added
      */
     private final void satisfyOutboundRequests(List<Request> satisfied) {
+        // don't bother locking if nobody is waiting
+        if (_pendingOutboundCount <= 0)
+            return;
         synchronized (_pendingOutboundRequests) {
+            int held = 0;
             if (_outboundUnlimited) {
                 locked_satisfyOutboundUnlimited(satisfied);
             } else {
-                if (_availableOutbound.get() > 0) {
-                    locked_satisfyOutboundAvailable(satisfied);
+                if (_outbound.getAvailable() > 0) {
+                    held = locked_satisfyOutboundAvailable(satisfied);
                 } else {
                     // no bandwidth available
                     if (_log.shouldLog(Log.INFO))
@@ -600,6 +741,8 @@ public class FIFOBandwidthLimiter {
                                   + ", longest waited " + locked_getLongestOutboundWait() + ')');
                 }
             }
+            _pendingOutboundCount = _pendingOutboundRequests.size();
+            _heldOutboundCount = held;
         }
         
         if (satisfied != null) {
@@ -617,6 +760,7 @@ public class FIFOBandwidthLimiter {
     private final void locked_satisfyOutboundUnlimited(List<Request> satisfied) {
         while (!_pendingOutboundRequests.isEmpty()) {
             SimpleRequest req = _pendingOutboundRequests.remove(0);
+            req.chain.pending--;
             int allocated = req.getPendingRequested();
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -637,9 +781,13 @@ public class FIFOBandwidthLimiter {
      * bandwidth as we can to those who have used what we have given them and are waiting
      * for more (giving priority to the first ones who requested it)
      * 
-     * @return list of requests that were completely satisfied
+     * @param satisfied Out parameter, returned with the satisfied requests added
+     * @return how many requests are still pending because their share held them back, as of 0.9.45
      */
-    private final void locked_satisfyOutboundAvailable(List<Request> satisfied) {
+    private final int locked_satisfyOutboundAvailable(List<Request> satisfied) {
+        // chains that held back a request this time
+        List<ShareChain> held = null;
+        int rv = 0;
         for (int i = 0; i < _pendingOutboundRequests.size(); i++) {
             SimpleRequest req = _pendingOutboundRequests.get(i);
             long waited = now() - req.getRequestTime();
@@ -652,11 +800,11 @@ public class FIFOBandwidthLimiter {
                                 + waited
                                 + "ms) pending " + _pendingOutboundRequests.size());
                 _pendingOutboundRequests.remove(i);
+                req.chain.pending--;
                 i--;
                 continue;
             }
-            int avo = _availableOutbound.get();
-            if (avo <= 0) break;
+            if (_outbound.getAvailable() <= 0) break;
             // NO, don't do this, since SSU requires a full allocation to proceed.
             // By stopping after a partial allocation, we stall SSU.
             // This never affected NTCP (which also requires a full allocation)
@@ -669,14 +817,28 @@ public class FIFOBandwidthLimiter {
             //        _log.warn("multiple allocations since wait... ntcp shouldn't do this: " + req);
             //    continue;
             //}
+            // keep requests on the same chain in order, NTCP depends on it
+            if (held != null && held.contains(req.chain)) {
+                rv++;
+                continue;
+            }
             // ok, they are really waiting for us to give them stuff
             int requested = req.getPendingRequested();
-            int allocated;
-            if (avo >= requested) 
-                allocated = requested;
-            else
-                allocated = avo;
-            _availableOutbound.addAndGet(0 - allocated);
+            int allocated = BandwidthShare.acquireUpTo(req.chain.shares, _outbound, requested);
+            if (allocated < requested) {
+                if (held == null)
+                    held = new ArrayList<ShareChain>(4);
+                held.add(req.chain);
+                if (_outbound.getAvailable() <= 0) {
+                    if (allocated <= 0)
+                        break;
+                } else {
+                    // held back by its share, don't block the ones behind it on other chains
+                    rv++;
+                    if (allocated <= 0)
+                        continue;
+                }
+            }
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
             satisfied.add(req);
@@ -697,52 +859,53 @@ public class FIFOBandwidthLimiter {
                                 + "ms) pending " + _pendingOutboundRequests.size()
                                 + ", longest waited " + locked_getLongestOutboundWait() + " out)");
                 _pendingOutboundRequests.remove(i);
+                req.chain.pending--;
                 i--;
                 if (waited > 10)
                     _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
             }
         }
+        return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction.
+     *  As of 0.9.45, never drives the available counter below zero.
      *
      *  @param requested number of bytes
      *  @return satisfaction
      *  @since 0.7.13
      */
     private boolean shortcutSatisfyInboundRequest(int requested) {
+        // don't jump the queue
         boolean rv = _inboundUnlimited ||
-                     (_pendingInboundRequests.isEmpty() &&
-                      _availableInbound.get() >= requested);
-        if (rv) {
-            _availableInbound.addAndGet(0 - requested);
+                     (_pendingInboundCount <= 0 &&
+                      _inbound.tryAcquire(requested));
+        if (rv)
             _totalAllocatedInboundBytes.addAndGet(requested);
-        }
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("IB shortcut for " + requested + "B? " + rv);
         return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction.
+     *  As of 0.9.45, never drives the available counter below zero.
      *
      *  @param requested number of bytes
+     *  @param chain the shares to take from, as of 0.9.45
      *  @return satisfaction
      *  @since 0.7.13
      */
-    private boolean shortcutSatisfyOutboundRequest(int requested) {
+    private boolean shortcutSatisfyOutboundRequest(int requested, ShareChain chain) {
+        // don't jump the queue on our chain, or anybody waiting for the global bucket,
+        // but don't wait behind other chains held back by their shares
         boolean rv = _outboundUnlimited ||
-                     (_pendingOutboundRequests.isEmpty() &&
-                      _availableOutbound.get() >= requested);
-        if (rv) {
-            _availableOutbound.addAndGet(0 - requested);
+                     (chain.pending <= 0 &&
+                      _pendingOutboundCount <= _heldOutboundCount &&
+                      BandwidthShare.tryAcquire(chain.shares, _outbound, requested));
+        if (rv)
             _totalAllocatedOutboundBytes.addAndGet(requested);
-        }
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("OB shortcut for " + requested + "B? " + rv);
         return rv;
@@ -784,6 +947,22 @@ public class FIFOBandwidthLimiter {
 ******/
     }
     
+    /**
+     *  The shares for one transport and traffic class,
+     *  and how many queued outbound requests are on them.
+     *
+     *  @since 0.9.45
+     */
+    private static class ShareChain {
+        final BandwidthShare[] shares;
+        /** queued outbound requests, written only while holding the _pendingOutboundRequests lock */
+        volatile int pending;
+
+        public ShareChain(BandwidthShare[] shares) {
+            this.shares = shares;
+        }
+    }
+
     private static class SimpleRequest implements Request {
         private int _allocated;
         private final int _total;
@@ -796,14 +975,18 @@ public class FIFOBandwidthLimiter {
         private CompleteListener _lsnr;
         private Object _attachment;
         private final int _priority;
+        /** outbound only, null for inbound */
+        final ShareChain chain;
         
         /**
          *  @param priority 0 for now
+         *  @param chain outbound only, null for inbound
          */
-        public SimpleRequest(int bytes, int priority) {
+        public SimpleRequest(int bytes, int priority, ShareChain chain) {
             satisfiedBuffer = new ArrayList<Request>(1);
             _total = bytes;
             _priority = priority;
+            this.chain = chain;
             // following two are temp until switch to PBQ
             _requestTime = System.currentTimeMillis();
             _requestId = __requestId.incrementAndGet();
@@ -938,6 +1121,39 @@ public class FIFOBandwidthLimiter {
         public CompleteListener getCompleteListener();
     }
     
+    /**
+     *  Outbound traffic classes, by OutNetMessage priority.
+     *
+     *  @since 0.9.45
+     */
+    public enum TrafficClass {
+        /** our own client data, tunnel builds, netDb lookups and stores, and transport overhead */
+        LOCAL("local"),
+        /** traffic for others: participating tunnels, build replies, netDb replies and floods */
+        PARTICIPATING("participating"),
+        /** background netDb: exploration and low-priority stores */
+        NETDB("netdb");
+
+        private final String name;
+
+        TrafficClass(String name) { this.name = name; }
+
+        /** for stats and config */
+        public String getName() { return name; }
+
+        /**
+         *  @param priority OutNetMessage priority; 0 or less is unspecified,
+         *                  e.g. establishment, acks, and transport control, and is LOCAL
+         */
+        public static TrafficClass fromPriority(int priority) {
+            if (priority <= 0 || priority >= OutNetMessage.PRIORITY_MY_DATA)
+                return LOCAL;
+            if (priority < OutNetMessage.PRIORITY_PARTICIPATING)
+                return NETDB;
+            return PARTICIPATING;
+        }
+    }
+
     public interface CompleteListener {
         public void complete(Request req);
     }
@@ -0,0 +1,133 @@
+package net.i2p.router.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  A token bucket for one direction of the FIFOBandwidthLimiter,
+ *  with an available count and a burst reserve.
+ *
+ *  All changes to the available count are compare-and-set,
+ *  so concurrent acquires never drive it below zero, and
+ *  a refill never overwrites a concurrent acquire.
+ *  No locks are taken.
+ *
+ *  The burst reserve is only changed by the refiller thread,
+ *  but is atomic anyway for clear() and the status display.
+ *
+ *  @since 0.9.45
+ */
+class TokenBucket {
+    /** how many bytes we can consume immediately */
+    private final AtomicInteger _available = new AtomicInteger();
+    /** how many bytes we can queue up for bursting */
+    private final AtomicInteger _burst = new AtomicInteger();
+
+    /**
+     *  Take all or nothing.
+     *
+     *  @param bytes number of bytes, must be non-negative
+     *  @return true if all the bytes were taken
+     */
+    public boolean tryAcquire(int bytes) {
+        while (true) {
+            int avail = _available.get();
+            if (avail < bytes)
+                return false;
+            if (_available.compareAndSet(avail, avail - bytes))
+                return true;
+        }
+    }
+
+    /**
+     *  Take as many as are available, up to max.
+     *
+     *  @param max number of bytes, must be non-negative
+     *  @return the number of bytes taken, 0 to max
+     */
+    public int acquireUpTo(int max) {
+        while (true) {
+            int avail = _available.get();
+            if (avail <= 0)
+                return 0;
+            int rv = Math.min(avail, max);
+            if (_available.compareAndSet(avail, avail - rv))
+                return rv;
+        }
+    }
+
+    /**
+     *  Return bytes that were acquired but not used.
+     *  May briefly exceed the max, until the next refill.
+     *
+     *  @param bytes number of bytes, must be non-negative
+     */
+    public void release(int bytes) {
+        _available.addAndGet(bytes);
+    }
+
+    /**
+     *  Add bytes to the bucket. If that would exceed max, the excess
+     *  goes to the burst reserve, up to maxBurst, and the rest is discarded.
+     *  Otherwise, pull up to burstRate from the burst reserve to top up the bucket, up to max.
+     *
+     *  Only call from one thread (the refiller).
+     *
+     *  @param bytes to add
+     *  @param max the most the bucket may hold, i.e. the burst rate for one second
+     *  @param maxBurst the most the burst reserve may hold
+     *  @param burstRate the most to pull from the burst reserve this time (may be negative)
+     */
+    public void refill(int bytes, int max, int maxBurst, int burstRate) {
+        int avail = _available.addAndGet(bytes);
+        if (avail > max) {
+            // Take off only the excess, so we don't overwrite a concurrent acquire.
+            // If the acquirers get there first, there's less (or no) excess.
+            int excess;
+            while (true) {
+                avail = _available.get();
+                excess = avail - max;
+                if (excess <= 0)
+                    break;
+                if (_available.compareAndSet(avail, max))
+                    break;
+            }
+            if (excess > 0) {
+                int burst = _burst.addAndGet(excess);
+                if (burst > maxBurst)
+                    _burst.set(maxBurst);
+            }
+        } else {
+            // try to pull in up to the burst rate, since we refill periodically
+            int want = Math.min(burstRate, max - avail);
+            if (want > 0) {
+                int burst = _burst.get();
+                if (want > burst)
+                    want = burst;
+                if (want > 0) {
+                    _burst.addAndGet(0 - want);
+                    _available.addAndGet(want);
+                }
+            }
+        }
+    }
+
+    /** for status only, may be stale */
+    public int getAvailable() {
+        return _available.get();
+    }
+
+    /** for status only, may be stale */
+    public int getBurst() {
+        return _burst.get();
+    }
+
+    public void clear() {
+        _available.set(0);
+        _burst.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return _available.get() + "+" + _burst.get();
+    }
+}
@@ -447,6 +447,17 @@ public abstract class TransportImpl implements Transport {
      */
     protected abstract void outboundMessageReady();
 
+    /**
+     * Request outbound bandwidth, limited by the shares for this transport
+     * and for the traffic class of the priority. Does not block.
+     *
+     * @param priority OutNetMessage priority, or 0 if unspecified
+     * @since 0.9.45
+     */
+    public FIFOBandwidthLimiter.Request requestOutbound(int bytes, int priority, String purpose) {
+        return _context.bandwidthLimiter().requestOutbound(bytes, priority, getStyle(), purpose);
+    }
+
     /**
      * Message received from the I2NPMessageReader - send it to the listener
      *
@@ -13,17 +13,16 @@ package net.i2p.router.transport.crypto;
 //import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import net.i2p.I2PAppContext;
 import net.i2p.I2PException;
 import net.i2p.crypto.CryptoConstants;
+import net.i2p.crypto.PrecalcQueue;
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.crypto.SigUtil;
 import net.i2p.data.ByteArray;
 //import net.i2p.data.DataHelper;
 import net.i2p.data.SessionKey;
-import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.NativeBigInteger;
 import net.i2p.util.RandomSource;
@@ -434,110 +433,48 @@ public class DHSessionKeyBuilder {
      *  It's important to do this in a separate thread, because if we run out,
      *  the pairs are generated in the NTCP Pumper thread,
      *  and it can fall behind.
+     *
+     *  As of 0.9.45, the pairs are made in the PrecalcQueue thread pool,
+     *  and this is no longer a Thread.
      */
-    public static class PrecalcRunner extends I2PThread implements Factory {
+    public static class PrecalcRunner implements Factory, PrecalcQueue.Generator<DHSessionKeyBuilder> {
         private final I2PAppContext _context;
         private final Log _log;
-        private final int _minSize;
-        private final int _maxSize;
-        private final int _calcDelay;
-        private final LinkedBlockingQueue<DHSessionKeyBuilder> _builders;
-        private volatile boolean _isRunning;
-
-        /** check periodically whether we have less than the minimum */
-        private long _checkDelay = 10 * 1000;
+        private final PrecalcQueue<DHSessionKeyBuilder> _builders;
 
         public PrecalcRunner(I2PAppContext ctx) {
-            super("DH Precalc");
             _context = ctx;
             _log = ctx.logManager().getLog(DHSessionKeyBuilder.class);
             ctx.statManager().createRateStat("crypto.dhGeneratePublicTime", "How long it takes to create x and X", "Encryption", new long[] { 60*60*1000 });
             ctx.statManager().createRateStat("crypto.dhCalculateSessionTime", "How long it takes to create the session key", "Encryption", new long[] { 60*60*1000 });        
-            ctx.statManager().createRateStat("crypto.DHUsed", "Need a DH from the queue", "Encryption", new long[] { 60*60*1000 });
             ctx.statManager().createRateStat("crypto.DHReused", "Unused DH requeued", "Encryption", new long[] { 60*60*1000 });
-            ctx.statManager().createRateStat("crypto.DHEmpty", "DH queue empty", "Encryption", new long[] { 60*60*1000 });
 
             // add to the defaults for every 128MB of RAM, up to 512MB
             long maxMemory = SystemVersion.getMaxMemory();
             int factor = (int) Math.max(1l, Math.min(4l, 1 + (maxMemory / (128*1024*1024l))));
             int defaultMin = DEFAULT_DH_PRECALC_MIN * factor;
             int defaultMax = DEFAULT_DH_PRECALC_MAX * factor;
-            _minSize = ctx.getProperty(PROP_DH_PRECALC_MIN, defaultMin);
-            _maxSize = ctx.getProperty(PROP_DH_PRECALC_MAX, defaultMax);
-            _calcDelay = ctx.getProperty(PROP_DH_PRECALC_DELAY, DEFAULT_DH_PRECALC_DELAY);
+            int minSize = ctx.getProperty(PROP_DH_PRECALC_MIN, defaultMin);
+            int maxSize = ctx.getProperty(PROP_DH_PRECALC_MAX, defaultMax);
+            int calcDelay = ctx.getProperty(PROP_DH_PRECALC_DELAY, DEFAULT_DH_PRECALC_DELAY);
+            _builders = new PrecalcQueue<DHSessionKeyBuilder>(ctx, "DH", this, minSize, maxSize, calcDelay);
+        }
 
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("DH Precalc (minimum: " + _minSize + " max: " + _maxSize + ", delay: "
-                           + _calcDelay + ")");
-            _builders = new LinkedBlockingQueue<DHSessionKeyBuilder>(_maxSize);
-            if (!SystemVersion.isWindows())
-                setPriority(Thread.NORM_PRIORITY - 1);
+        /**
+         *  Start the background precalc.
+         *
+         *  @since 0.9.45 was Thread.start()
+         */
+        public void start() {
+            _builders.start();
         }
         
         /**
-         *  Note that this stops the singleton precalc thread.
-         *  You don't want to do this if there are multiple routers in the JVM.
-         *  Fix this if you care. See Router.shutdown().
+         *  Stop the background precalc.
          *  @since 0.8.8
          */
         public void shutdown() {
-            _isRunning = false;
-            this.interrupt();
-            _builders.clear();
-        }
-
-        public void run() {
-            try {
-                run2();
-            } catch (IllegalStateException ise) {
-                if (_isRunning)
-                    throw ise;
-                // else ignore, thread can be slow to shutdown on Android,
-                // PRNG gets stopped first and throws ISE
-            }
-        }
-
-        private void run2() {
-            _isRunning = true;
-            while (_isRunning) {
-                //long start = System.currentTimeMillis();
-                int startSize = getSize();
-                // Adjust delay
-                if (startSize <= (_minSize * 2 / 3) && _checkDelay > 1000)
-                    _checkDelay -= 1000;
-                else if (startSize > (_minSize * 3 / 2) && _checkDelay < 60*1000)
-                    _checkDelay += 1000;
-                if (startSize < _minSize) {
-                    // fill all the way up, do the check here so we don't
-                    // throw away one when full in addValues()
-                    while (getSize() < _maxSize && _isRunning) {
-                        long curStart = System.currentTimeMillis();
-                        if (!addBuilder(precalc()))
-                            break;
-                        long curCalc = System.currentTimeMillis() - curStart;
-                        // for some relief...
-                        if (!interrupted()) {
-                            try {
-                                Thread.sleep(Math.min(200, Math.max(10, _calcDelay + (curCalc * 3))));
-                            } catch (InterruptedException ie) {}
-                        }
-                    }
-                }
-                //long end = System.currentTimeMillis();
-                //int numCalc = curSize - startSize;
-                //if (numCalc > 0) {
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("Precalced " + numCalc + " to " + curSize + " in "
-                //                   + (end - start - CALC_DELAY * numCalc) + "ms (not counting "
-                //                   + (CALC_DELAY * numCalc) + "ms relief).  now sleeping");
-                //}
-                if (!_isRunning)
-                    break;
-                try {
-                    Thread.sleep(_checkDelay);
-                } catch (InterruptedException ie) { // nop
-                }
-            }
+            _builders.shutdown();
         }
 
         /**
@@ -547,19 +484,15 @@ public class DHSessionKeyBuilder {
          * @since 0.9 moved from DHSKB
          */
         public DHSessionKeyBuilder getBuilder() {
-            _context.statManager().addRateData("crypto.DHUsed", 1);
-            DHSessionKeyBuilder builder = _builders.poll();
-            if (builder == null) {
-                if (_log.shouldLog(Log.INFO)) _log.info("No more builders, creating one now");
-                _context.statManager().addRateData("crypto.DHEmpty", 1);
-                builder = precalc();
-                // stop sleeping, wake up, make some more
-                this.interrupt();
-            }
-            return builder;
+            return _builders.get();
         }
 
-        private DHSessionKeyBuilder precalc() {
+        /**
+         *  For PrecalcQueue only
+         *
+         *  @since 0.9.45 was private precalc()
+         */
+        public DHSessionKeyBuilder generate() {
             long start = System.currentTimeMillis();
             DHSessionKeyBuilder builder = new DHSessionKeyBuilder(_context);
             long end = System.currentTimeMillis();
@@ -591,16 +524,6 @@ public class DHSessionKeyBuilder {
             _builders.offer(builder);
 */
         }
-
-        /** @return true if successful, false if full */
-        private final boolean addBuilder(DHSessionKeyBuilder builder) {
-            return _builders.offer(builder);
-        }
-
-        private final int getSize() {
-            return _builders.size();
-        }
-
     }
     
     public static class InvalidPublicParameterException extends I2PException {
@@ -39,6 +39,8 @@ import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *  There may be several, see NTCPTransport.PROP_PUMPERS,
+ *  each with its own selector and read buffer pool.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
@@ -52,7 +54,15 @@ class EventPumper implements Runnable {
     private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
     private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
     private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    /** accepted by another pumper, to be registered on ours */
+    private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
     private final NTCPTransport _transport;
+    /** 0 for the first pumper, which does the accepts and the transport-wide housekeeping */
+    private final int _id;
+    /** read buffers, one pool per pumper */
+    private final TryCache<ByteBuffer> _bufferCache;
+    private final String _loopTimeStat;
+    private final String _keysReadyStat;
     private final ObjectCounter<ByteArray> _blockedIPs;
     private long _expireIdleWriteTime;
     private static final boolean _useDirect = false;
@@ -110,14 +120,55 @@ class EventPumper implements Runnable {
         MIN_BUFS = (int) Math.max(MIN_MINB, Math.min(MAX_MINB, 1 + (maxMemory / (16*1024*1024))));
     }
     
-    private static final TryCache<ByteBuffer> _bufferCache = new TryCache<>(new BufferFactory(), MIN_BUFS);
+    /**
+     *  Write all of a connection's pending frames with one gathering write,
+     *  from pooled direct buffers. Default false.
+     *  @since 0.9.45
+     */
+    public static final String PROP_GATHER_WRITES = "i2np.ntcp.gatherWrites";
+    /** max buffers per gathering write */
+    private static final int MAX_GATHER = 16;
+    /**
+     *  Direct write buffers, big enough for a full NTCP2 frame
+     *  and the 2-byte length
+     *  @since 0.9.45
+     */
+    private static final int WRITE_BUF_SIZE = NTCPConnection.BUFFER_SIZE + 2;
+    private static final int MAX_WRITE_BUFS = 4 * MAX_MINB;
 
-    public EventPumper(RouterContext ctx, NTCPTransport transport) {
+    private static class WriteBufferFactory implements TryCache.ObjectFactory<ByteBuffer> {
+        public ByteBuffer newInstance() {
+            return ByteBuffer.allocateDirect(WRITE_BUF_SIZE);
+        }
+    }
+
+    private static final TryCache<ByteBuffer> _writeBufferCache = new TryCache<>(new WriteBufferFactory(), MAX_WRITE_BUFS);
+
+    private final boolean _gatherWrites;
+    /** pumper thread only */
+    private final ByteBuffer[] _gatherBufs;
+
+    /**
+     *  @param id 0 for the first pumper, which accepts inbound connections
+     *  @param blockedIPs shared by all the pumpers
+     *  @since 0.9.45 added id and blockedIPs params
+     */
+    public EventPumper(RouterContext ctx, NTCPTransport transport, int id, ObjectCounter<ByteArray> blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _id = id;
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
+        _blockedIPs = blockedIPs;
+        _bufferCache = new TryCache<ByteBuffer>(new BufferFactory(), MIN_BUFS);
+        _loopTimeStat = "ntcp.pumperLoopTime." + id;
+        _keysReadyStat = "ntcp.pumperKeysReady." + id;
+        _context.statManager().createRateStat(_loopTimeStat, "Average time to process the ready keys (us) for pumper " + id, "ntcp", new long[] {10*60*1000} );
+        _context.statManager().createRateStat(_keysReadyStat, "Average ready keys per select for pumper " + id, "ntcp", new long[] {10*60*1000} );
+        _gatherWrites = ctx.getBooleanProperty(PROP_GATHER_WRITES);
+        _gatherBufs = _gatherWrites ? new ByteBuffer[MAX_GATHER] : null;
+        if (_gatherWrites)
+            _context.statManager().createRateStat("ntcp.gatherWriteBuffers", "Buffers per gathering write", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
         //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
@@ -132,7 +183,7 @@ class EventPumper implements Runnable {
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            new I2PThread(this, _id == 0 ? "NTCP Pumper" : "NTCP Pumper " + _id, true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -183,6 +234,9 @@ class EventPumper implements Runnable {
      */
     public void run() {
         int loopCount = 0;
+        int readyLoops = 0;
+        int readyKeys = 0;
+        long readyTime = 0;
         int failsafeLoopCount = FAILSAFE_LOOP_COUNT;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
@@ -193,11 +247,15 @@ class EventPumper implements Runnable {
                 try {
                     int count = _selector.select(SELECTOR_LOOP_DELAY);
                     if (count > 0) {
+                        long start = System.nanoTime();
                         Set<SelectionKey> selected = _selector.selectedKeys();
                         //_context.statManager().addRateData("ntcp.pumperKeysPerLoop", selected.size());
                         processKeys(selected);
                         // does clear() do anything useful?
                         selected.clear();
+                        readyTime += System.nanoTime() - start;
+                        readyKeys += count;
+                        readyLoops++;
                     }
                     runDelayedEvents();
                 } catch (ClosedSelectorException cse) {
@@ -223,6 +281,13 @@ class EventPumper implements Runnable {
                         int lastKeySetSize = all.size();
                         _context.statManager().addRateData("ntcp.pumperKeySetSize", lastKeySetSize);
                         _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
+                        if (readyLoops > 0) {
+                            _context.statManager().addRateData(_loopTimeStat, readyTime / (1000 * readyLoops));
+                            _context.statManager().addRateData(_keysReadyStat, readyKeys / readyLoops);
+                            readyLoops = 0;
+                            readyKeys = 0;
+                            readyTime = 0;
+                        }
                         // reset the failsafe loop counter,
                         // and recalculate the max loops before failsafe sleep, based on number of keys
                         loopCount = 0;
@@ -330,7 +395,7 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                if (_id == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -368,6 +433,10 @@ class EventPumper implements Runnable {
             _log.error("Error closing keys on pumper shutdown", e);
         }
         _wantsConRegister.clear();
+        SocketChannel chan;
+        while ((chan = _wantsAcceptRegister.poll()) != null) {
+            try { chan.close(); } catch (IOException ioe) {}
+        }
         _wantsRead.clear();
         _wantsRegister.clear();
         _wantsWrite.clear();
@@ -436,8 +505,35 @@ class EventPumper implements Runnable {
      *  @since 0.9.35 off/len version
      */
     public void wantsWrite(NTCPConnection con, byte data[], int off, int len) {
-        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
-        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, 0, "NTCP write");//con, buf);
+        wantsWrite(con, data, off, len, 0);
+    }
+
+    /**
+     *  Called by the connection when it has data ready to write.
+     *  If we have bandwidth, calls con.Write() which calls wantsWrite(con).
+     *  If no bandwidth, calls con.queuedWrite().
+     *
+     *  @param priority the highest OutNetMessage priority in the data, or 0 if none
+     *  @since 0.9.45
+     */
+    public void wantsWrite(NTCPConnection con, byte data[], int off, int len, int priority) {
+        wantsWrite(con, ByteBuffer.wrap(data, off, len), priority);
+    }
+
+    /**
+     *  Called by the connection when it has data ready to write.
+     *  If we have bandwidth, calls con.Write() which calls wantsWrite(con).
+     *  If no bandwidth, calls con.queuedWrite().
+     *
+     *  @param buf flipped, ready to write; if direct, must be from acquireWriteBuf()
+     *  @param priority the highest OutNetMessage priority in the data, or 0 if none
+     *  @since 0.9.45
+     */
+    public void wantsWrite(NTCPConnection con, ByteBuffer buf, int priority) {
+        int len = buf.remaining();
+        // frames must not pass one held back by the limiter
+        priority = con.getWritePriority(priority);
+        FIFOBandwidthLimiter.Request req = _transport.requestOutbound(len, priority, "NTCP write");
         if (req.getPendingRequested() > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("queued write on " + con + " for " + len);
@@ -478,9 +574,12 @@ class EventPumper implements Runnable {
     /**
      *  Return a read buffer to the pool.
      *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE.
+     *  Call on the pumper for the connection the buffer was read from.
      *  High-frequency path in thread.
+     *
+     *  @since 0.9.45 no longer static
      */
-    public static void releaseBuf(ByteBuffer buf) {
+    public void releaseBuf(ByteBuffer buf) {
         // double check
         if (buf.capacity() < BUF_SIZE) {
             I2PAppContext.getGlobalContext().logManager().getLog(EventPumper.class).error("Bad size " + buf.capacity(), new Exception());
@@ -490,6 +589,42 @@ class EventPumper implements Runnable {
         _bufferCache.release(buf);
     }
     
+    /**
+     *  @return true if connections should use acquireWriteBuf() and gathering writes
+     *  @since 0.9.45
+     */
+    public boolean isGatheringWrites() {
+        return _gatherWrites;
+    }
+
+    /**
+     *  A pooled direct buffer for an outbound frame, if it fits.
+     *  Caller must flip() it and pass it to wantsWrite(),
+     *  it will be released after it is written.
+     *
+     *  @param len the frame size
+     *  @return a cleared direct buffer, or null if len is too big
+     *  @since 0.9.45
+     */
+    public static ByteBuffer acquireWriteBuf(int len) {
+        if (len > WRITE_BUF_SIZE)
+            return null;
+        return _writeBufferCache.acquire();
+    }
+
+    /**
+     *  Return a write buffer to the pool.
+     *  Does nothing if it isn't from acquireWriteBuf().
+     *
+     *  @since 0.9.45
+     */
+    public static void releaseWriteBuf(ByteBuffer buf) {
+        if (buf.isDirect() && buf.capacity() == WRITE_BUF_SIZE) {
+            buf.clear();
+            _writeBufferCache.release(buf);
+        }
+    }
+
     private void processAccept(SelectionKey key) {
         ServerSocketChannel servChan = (ServerSocketChannel)key.attachment();
         try {
@@ -528,14 +663,38 @@ class EventPumper implements Runnable {
             if (shouldSetKeepAlive(chan))
                 chan.socket().setKeepAlive(true);
 
-            SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            NTCPConnection con = new NTCPConnection(_context, _transport, chan, ckey);
-            ckey.attach(con);
-            _transport.establishing(con);
+            EventPumper pumper = _transport.getPumper(ip);
+            if (pumper == this)
+                registerAccepted(chan);
+            else
+                pumper.queueAccepted(chan);
         } catch (IOException ioe) {
             _log.error("Error accepting", ioe);
         }
     }
+
+    /**
+     *  Inbound, accepted by the first pumper, to be registered on this one.
+     *
+     *  @since 0.9.45
+     */
+    private void queueAccepted(SocketChannel chan) {
+        _wantsAcceptRegister.offer(chan);
+        _selector.wakeup();
+    }
+
+    /**
+     *  Inbound, register and create the connection.
+     *  Pumper thread only.
+     *
+     *  @since 0.9.45 split out of processAccept()
+     */
+    private void registerAccepted(SocketChannel chan) throws IOException {
+        SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
+        NTCPConnection con = new NTCPConnection(_context, _transport, this, chan, ckey);
+        ckey.attach(con);
+        _transport.establishing(con);
+    }
     
     private void processConnect(SelectionKey key) {
         final NTCPConnection con = (NTCPConnection)key.attachment();
@@ -737,6 +896,10 @@ class EventPumper implements Runnable {
         final NTCPConnection con = (NTCPConnection)key.attachment();
         final SocketChannel chan = con.getChannel();
         try {
+            if (_gatherWrites) {
+                processGatheringWrite(key, con, chan);
+                return;
+            }
             while (true) {
                 ByteBuffer buf = con.getNextWriteBuf();
                 if (buf != null) {
@@ -781,6 +944,48 @@ class EventPumper implements Runnable {
         }
     }
     
+    /**
+     *  Write as many of the pending buffers as we can in one system call.
+     *  OP_WRITE will always be set before this is called.
+     *  This method will disable the interest if no more writes remain.
+     *  High-frequency path in thread.
+     *
+     *  @since 0.9.45
+     */
+    private void processGatheringWrite(SelectionKey key, NTCPConnection con, SocketChannel chan) throws IOException {
+        final ByteBuffer[] bufs = _gatherBufs;
+        while (true) {
+            int count = con.getNextWriteBufs(bufs);
+            if (count <= 0) {
+                // Nothing more to write
+                if (key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            chan.write(bufs, 0, count);
+            if (count > 1)
+                _context.statManager().addRateData("ntcp.gatherWriteBuffers", count);
+            int done = 0;
+            try {
+                for ( ; done < count; done++) {
+                    ByteBuffer buf = bufs[done];
+                    if (buf.remaining() > 0)
+                        break;
+                    con.removeWriteBuf(buf);
+                }
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    bufs[i] = null;
+                }
+            }
+            if (done < count) {
+                // socket is full, stay interested
+                return;
+            }
+            // else go around again, in case more were added
+        }
+    }
+
     /**
      *  Pull off the 4 _wants* queues and update the interest ops,
      *  which may, according to the javadocs, be a "naive" implementation and block.
@@ -848,6 +1053,16 @@ class EventPumper implements Runnable {
             }
         }
         
+        SocketChannel achan;
+        while ((achan = _wantsAcceptRegister.poll()) != null) {
+            try {
+                registerAccepted(achan);
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", ioe);
+                try { achan.close(); } catch (IOException e) {}
+            }
+        }
+
         while ((con = _wantsConRegister.poll()) != null) {
             final SocketChannel schan = con.getChannel();
             try {
@@ -888,7 +1103,7 @@ class EventPumper implements Runnable {
         }
         
         long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
+        if (_id == 0 && _lastExpired + 1000 <= now) {
             expireTimedOut();
             _lastExpired = now;
         }
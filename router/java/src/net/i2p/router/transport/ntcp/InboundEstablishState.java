@@ -255,7 +255,7 @@ class InboundEstablishState extends EstablishBase implements NTCP2Payload.Payloa
 
                     // ok, now that is prepared, we want to actually send it, so make sure we are up for writing
                     changeState(State.IB_SENT_Y);
-                    _transport.getPumper().wantsWrite(_con, write);
+                    _con.getPumper().wantsWrite(_con, write);
                     if (!src.hasRemaining()) return;
                 } catch (DHSessionKeyBuilder.InvalidPublicParameterException e) {
                     _context.statManager().addRateData("ntcp.invalidDH", 1);
@@ -643,7 +643,7 @@ class InboundEstablishState extends EstablishBase implements NTCP2Payload.Payloa
 
         if (_log.shouldLog(Log.DEBUG))
             _log.debug(prefix() + "Sending encrypted inbound confirmation");
-        _transport.getPumper().wantsWrite(_con, _e_bobSig);
+        _con.getPumper().wantsWrite(_con, _e_bobSig);
     }
 
     //// NTCP2 below here
@@ -926,7 +926,7 @@ class InboundEstablishState extends EstablishBase implements NTCP2Payload.Payloa
 
         changeState(State.IB_NTCP2_SENT_Y);
         // send it all at once
-        _transport.getPumper().wantsWrite(_con, tmp);
+        _con.getPumper().wantsWrite(_con, tmp);
     }
 
     /**
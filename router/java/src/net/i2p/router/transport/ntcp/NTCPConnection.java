@@ -10,7 +10,9 @@ import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -104,6 +106,7 @@ public class NTCPConnection implements Closeable {
     private long _establishedOn;
     private volatile EstablishState _establishState;
     private final NTCPTransport _transport;
+    private final EventPumper _pumper;
     private final boolean _isInbound;
     private final AtomicBoolean _closed = new AtomicBoolean();
     private final RouterAddress _remAddr;
@@ -118,6 +121,14 @@ public class NTCPConnection implements Closeable {
      *  current prepared OutNetMessages, or empty - synchronize to modify or read
      */
     private final List<OutNetMessage> _currentOutbound;
+    /**
+     *  With gathering writes, the OutNetMessage in each frame still in the pumper,
+     *  so it is completed when its own frame is written, not the first one.
+     *  By identity, as ByteBuffer.equals() compares the remaining contents.
+     *  Synchronize on _currentOutbound.
+     *  @since 0.9.45
+     */
+    private final Map<ByteBuffer, OutNetMessage> _frameMessages;
     private SessionKey _sessionKey;
     private byte _prevWriteEnd[];
     /** current partially read I2NP message */
@@ -188,6 +199,12 @@ public class NTCPConnection implements Closeable {
     // don't make combined messages too big, to minimize latency
     // Tunnel data msgs are 1024 + 4 + 9 + 3 = 1040, allow 5
     private static final int NTCP2_PREFERRED_PAYLOAD_MAX = 5 * 1040;
+    /**
+     *  Frames to prepare at once when the pumper does gathering writes.
+     *  The message in each is completed when that frame is written.
+     *  @since 0.9.45
+     */
+    private static final int MAX_GATHER_FRAMES = 4;
     static final int REASON_UNSPEC = 0;
     static final int REASON_TERMINATION = 1;
     static final int REASON_TIMEOUT = 2;
@@ -229,8 +246,9 @@ public class NTCPConnection implements Closeable {
      * Caller MUST call transport.establishing(this) after construction.
      * Caller MUST key.attach(this) after construction.
      */
-    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key) {
-        this(ctx, transport, null, true);
+    public NTCPConnection(RouterContext ctx, NTCPTransport transport, EventPumper pumper,
+                          SocketChannel chan, SelectionKey key) {
+        this(ctx, transport, pumper, null, true);
         _chan = chan;
         _version = 1;
         _conKey = key;
@@ -246,7 +264,7 @@ public class NTCPConnection implements Closeable {
      */
     public NTCPConnection(RouterContext ctx, NTCPTransport transport, RouterIdentity remotePeer,
                           RouterAddress remAddr, int version) throws DataFormatException {
-        this(ctx, transport, remAddr, false);
+        this(ctx, transport, transport.getPumper(remotePeer.calculateHash()), remAddr, false);
         _remotePeer = remotePeer;
         _version = version;
         if (version == 1) {
@@ -262,13 +280,15 @@ public class NTCPConnection implements Closeable {
 
     /**
      * Base constructor in/out
-     * @since 0.9.36
+     * @since 0.9.36, pumper param added in 0.9.45
      */
-    private NTCPConnection(RouterContext ctx, NTCPTransport transport, RouterAddress remAddr, boolean isIn) {
+    private NTCPConnection(RouterContext ctx, NTCPTransport transport, EventPumper pumper,
+                           RouterAddress remAddr, boolean isIn) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _created = ctx.clock().now();
         _transport = transport;
+        _pumper = pumper;
         _remAddr = remAddr;
         _lastSendTime = _created;
         _lastReceiveTime = _created;
@@ -280,6 +300,7 @@ public class NTCPConnection implements Closeable {
         //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
         _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
         _currentOutbound = new ArrayList<OutNetMessage>(1);
+        _frameMessages = new IdentityHashMap<ByteBuffer, OutNetMessage>(MAX_GATHER_FRAMES);
         _isInbound = isIn;
         _inboundListener = new InboundListener();
         _outboundListener = new OutboundListener();
@@ -290,6 +311,12 @@ public class NTCPConnection implements Closeable {
      */
     public synchronized SocketChannel getChannel() { return _chan; }
 
+    /**
+     *  The pumper whose selector this connection is registered on
+     *  @since 0.9.45
+     */
+    EventPumper getPumper() { return _pumper; }
+
     /**
      *  Valid for inbound; valid for outbound shortly after creation
      */
@@ -551,7 +578,7 @@ public class NTCPConnection implements Closeable {
         _writeBufs.clear();
         ByteBuffer bb;
         while ((bb = _readBufs.poll()) != null) {
-            EventPumper.releaseBuf(bb);
+            _pumper.releaseBuf(bb);
         }
 
         List<OutNetMessage> pending = new ArrayList<OutNetMessage>();
@@ -561,6 +588,7 @@ public class NTCPConnection implements Closeable {
             if (!_currentOutbound.isEmpty())
                 pending.addAll(_currentOutbound);
             _currentOutbound.clear();
+            _frameMessages.clear();
         }
         for (OutNetMessage msg : pending) {
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
@@ -763,7 +791,7 @@ public class NTCPConnection implements Closeable {
         bufferedPrepare(msg, buf);
         _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
         System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        _pumper.wantsWrite(this, buf.encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -841,20 +869,43 @@ public class NTCPConnection implements Closeable {
      * @since 0.9.36
      */
     private void prepareNextWriteNTCP2(PrepBuffer buf) {
+        // With gathering writes, queue up several frames,
+        // so the pumper can write them in one call.
+        int frames = _pumper.isGatheringWrites() ? MAX_GATHER_FRAMES : 1;
+        for (int i = 0; i < frames; i++) {
+            if (!prepareNextFrameNTCP2(buf, i > 0))
+                break;
+        }
+    }
+
+    /**
+     * Prepare one NTCP2 frame.
+     *
+     * Caller must synchronize.
+     *
+     * @param buf we use buf.enencrypted only
+     * @param more if true, we are adding to the frames already prepared
+     *             by the caller, so don't check for messages in progress
+     * @return true if a frame was sent to the pumper
+     * @since 0.9.45 split out of prepareNextWriteNTCP2()
+     */
+    private boolean prepareNextFrameNTCP2(PrepBuffer buf, boolean more) {
         int size = OutboundNTCP2State.MAC_SIZE;
         List<Block> blocks = new ArrayList<Block>(4);
         long now = _context.clock().now();
+        int priority;
+        OutNetMessage first;
         synchronized (_currentOutbound) {
-            if (!_currentOutbound.isEmpty()) {
+            if (!more && !_currentOutbound.isEmpty()) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("attempt for multiple outbound messages with " + _currentOutbound.size() + " already waiting and " + _outbound.size() + " queued");
-                return;
+                return false;
             }
             OutNetMessage msg;
             while (true) {
                 msg = _outbound.poll();
                 if (msg == null)
-                    return;
+                    return false;
                 if (msg.getExpiration() >= now)
                     break;
                 if (_log.shouldWarn())
@@ -862,6 +913,8 @@ public class NTCPConnection implements Closeable {
                 _transport.afterSend(msg, false, false, msg.getLifetime());
             }
             _currentOutbound.add(msg);
+            first = msg;
+            priority = msg.getPriority();
             I2NPMessage m = msg.getMessage();
             Block block = new NTCP2Payload.I2NPBlock(m);
             blocks.add(block);
@@ -889,6 +942,7 @@ public class NTCPConnection implements Closeable {
                         block = new NTCP2Payload.I2NPBlock(m);
                         blocks.add(block);
                         size += NTCP2Payload.BLOCK_HEADER_SIZE + msz;
+                        priority = Math.max(priority, msg.getPriority());
                     } else {
                         if (_log.shouldWarn())
                             _log.warn("dropping message expired on queue: " + msg + " on " + this);
@@ -928,7 +982,8 @@ public class NTCPConnection implements Closeable {
             size += block.getTotalLength();
         }
         byte[] tmp = size <= BUFFER_SIZE ? buf.unencrypted : new byte[size];
-        sendNTCP2(tmp, blocks);
+        sendNTCP2(tmp, blocks, priority, first);
+        return true;
     }
 
     /**
@@ -1085,7 +1140,22 @@ public class NTCPConnection implements Closeable {
      *         must have room for block output. May be released immediately on return.
      *  @since 0.9.36
      */
-    private synchronized void sendNTCP2(byte[] tmp, List<Block> blocks) {
+    private void sendNTCP2(byte[] tmp, List<Block> blocks) {
+        sendNTCP2(tmp, blocks, 0, null);
+    }
+
+    /**
+     *  This constructs the payload from the blocks, using the
+     *  tmp byte array, then encrypts the payload and
+     *  passes it to the pumper for writing.
+     *
+     *  @param tmp to be used for output of NTCP2Payload.writePayload(),
+     *         must have room for block output. May be released immediately on return.
+     *  @param priority the highest OutNetMessage priority in the blocks, or 0 if none
+     *  @param msg the message in _currentOutbound to complete when this frame is written, or null
+     *  @since 0.9.45
+     */
+    private synchronized void sendNTCP2(byte[] tmp, List<Block> blocks, int priority, OutNetMessage msg) {
         if (_sender == null) {
             if (_log.shouldInfo())
                 _log.info("sender gone", new Exception());
@@ -1093,20 +1163,39 @@ public class NTCPConnection implements Closeable {
         }
         int payloadlen = NTCP2Payload.writePayload(tmp, 0, blocks);
         int framelen = payloadlen + OutboundNTCP2State.MAC_SIZE;
-        // TODO use a buffer
-        byte[] enc = new byte[2 + framelen];
+        EventPumper pumper = _pumper;
+        ByteBuffer dbuf = null;
+        if (pumper.isGatheringWrites() && framelen <= tmp.length)
+            dbuf = EventPumper.acquireWriteBuf(2 + framelen);
+        byte[] enc;
         try {
-            _sender.encryptWithAd(null, tmp, 0, enc, 2, payloadlen);
+            if (dbuf != null) {
+                // encrypt in place, then one copy to the direct buffer
+                enc = null;
+                _sender.encryptWithAd(null, tmp, 0, tmp, 0, payloadlen);
+            } else {
+                enc = new byte[2 + framelen];
+                _sender.encryptWithAd(null, tmp, 0, enc, 2, payloadlen);
+            }
         } catch (GeneralSecurityException gse) {
             // TODO anything else?
             _log.error("data enc", gse);
+            if (dbuf != null)
+                EventPumper.releaseWriteBuf(dbuf);
             return;
         }
 
         // siphash ^ len
         long sipIV = SipHashInline.hash24(_sendSipk1, _sendSipk2, _sendSipIV);
-        enc[0] = (byte) ((framelen >> 8) ^ (sipIV >> 8));
-        enc[1] = (byte) (framelen ^ sipIV);
+        byte len0 = (byte) ((framelen >> 8) ^ (sipIV >> 8));
+        byte len1 = (byte) (framelen ^ sipIV);
+        if (dbuf != null) {
+            dbuf.put(len0).put(len1).put(tmp, 0, framelen);
+            dbuf.flip();
+        } else {
+            enc[0] = len0;
+            enc[1] = len1;
+        }
         if (_log.shouldDebug()) {
             StringBuilder buf = new StringBuilder(256);
             buf.append("Sending ").append(blocks.size())
@@ -1117,7 +1206,14 @@ public class NTCPConnection implements Closeable {
             }
             _log.debug(buf.toString());
         }
-        _transport.getPumper().wantsWrite(this, enc);
+        ByteBuffer bb = dbuf != null ? dbuf : ByteBuffer.wrap(enc);
+        if (msg != null && pumper.isGatheringWrites()) {
+            // before the pumper can write it
+            synchronized (_currentOutbound) {
+                _frameMessages.put(bb, msg);
+            }
+        }
+        pumper.wantsWrite(this, bb, priority);
         toLong8LE(_sendSipIV, 0, sipIV);
     }
     
@@ -1146,7 +1242,7 @@ public class NTCPConnection implements Closeable {
             removeIBRequest(req);
             ByteBuffer buf = (ByteBuffer)req.attachment();
             if (_closed.get()) {
-                EventPumper.releaseBuf(buf);
+                _pumper.releaseBuf(buf);
                 return;
             }
             _context.statManager().addRateData("ntcp.throttledReadComplete", (_context.clock().now()-req.getRequestTime()));
@@ -1154,7 +1250,7 @@ public class NTCPConnection implements Closeable {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            _pumper.wantsRead(NTCPConnection.this);
         }
     }
 
@@ -1188,6 +1284,23 @@ public class NTCPConnection implements Closeable {
     private void addOBRequest(FIFOBandwidthLimiter.Request req) {
         _bwOutRequests.add(req);
     }
+
+    /**
+     *  The limiter keeps requests in order only within a traffic class,
+     *  and the frames must be written in order.
+     *  So while any writes are waiting for bandwidth, use their priority.
+     *
+     *  @param priority what we would use if nothing is waiting
+     *  @return the priority to request bandwidth with
+     *  @since 0.9.45
+     */
+    int getWritePriority(int priority) {
+        for (FIFOBandwidthLimiter.Request req : _bwOutRequests) {
+            // all the same
+            return req.getPriority();
+        }
+        return priority;
+    }
     
     /**
      * We have read the data in the buffer, but we can't process it locally yet,
@@ -1234,7 +1347,7 @@ public class NTCPConnection implements Closeable {
      */
     void write(ByteBuffer buf) {
         _writeBufs.offer(buf);
-        _transport.getPumper().wantsWrite(this);
+        _pumper.wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1254,6 +1367,24 @@ public class NTCPConnection implements Closeable {
     ByteBuffer getNextWriteBuf() {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
+
+    /**
+     *  The pending write buffers, in order, without removing them.
+     *  Caller must removeWriteBuf() each after it is written.
+     *
+     *  @param bufs out parameter, filled in from index 0
+     *  @return the number of buffers, 0 to bufs.length
+     *  @since 0.9.45
+     */
+    int getNextWriteBufs(ByteBuffer[] bufs) {
+        int rv = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            bufs[rv++] = buf;
+            if (rv >= bufs.length)
+                break;
+        }
+        return rv;
+    }
     
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
@@ -1262,7 +1393,8 @@ public class NTCPConnection implements Closeable {
         // never clear OutNetMessages during establish phase
         boolean clearMessage = isEstablished();
         synchronized(this) {
-            _bytesSent += buf.capacity();
+            // limit, not capacity, for pooled buffers
+            _bytesSent += buf.limit();
             if (_sendingMeta && (buf.capacity() == META_SIZE)) {
                 _sendingMeta = false;
                 clearMessage = false;
@@ -1270,11 +1402,17 @@ public class NTCPConnection implements Closeable {
             updateStats();
         }
         _writeBufs.remove(buf);
+        EventPumper.releaseWriteBuf(buf);
         if (clearMessage) {
             List<OutNetMessage> msgs = null;
             // see synchronization comments in prepareNextWriteFast()
             synchronized (_currentOutbound) {
-                if (!_currentOutbound.isEmpty()) {
+                OutNetMessage msg = _frameMessages.remove(buf);
+                if (msg != null) {
+                    // gathering writes, later frames may still be pending
+                    if (_currentOutbound.remove(msg))
+                        msgs = Collections.singletonList(msg);
+                } else if (_frameMessages.isEmpty() && !_currentOutbound.isEmpty()) {
                     msgs = new ArrayList<OutNetMessage>(_currentOutbound);
                     _currentOutbound.clear();
                 }
@@ -1291,7 +1429,7 @@ public class NTCPConnection implements Closeable {
                         _log.debug("I2NP message " + _messagesWritten + "/" + msg.getMessageId() + " sent after " 
                                   + msg.getSendTime() + "/"
                                   + msg.getLifetime()
-                                  + " with " + buf.capacity() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
+                                  + " with " + buf.limit() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
                     }
                     _transport.sendComplete(msg);
                 }
@@ -1449,7 +1587,7 @@ public class NTCPConnection implements Closeable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, data);
+        _pumper.wantsWrite(this, data);
     }
     
     private static final int MAX_HANDLERS = 4;
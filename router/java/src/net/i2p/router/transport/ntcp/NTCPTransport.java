@@ -30,6 +30,7 @@ import net.i2p.crypto.EncType;
 import net.i2p.crypto.KeyPair;
 import net.i2p.crypto.SigType;
 import net.i2p.data.Base64;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
@@ -58,6 +59,7 @@ import net.i2p.router.util.EventLog;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.ObjectCounter;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
@@ -76,7 +78,9 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final ConcurrentHashMap<Hash, NTCPConnection> _conByIdent;
+    /** the first one also does the accepts */
     private final EventPumper _pumper;
+    private final EventPumper[] _pumpers;
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -111,6 +115,13 @@ public class NTCPTransport extends TransportImpl {
     
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
+    /**
+     *  Number of selector threads. Connections are assigned to one
+     *  by peer hash (outbound) or by IP (inbound). Default 1.
+     *  @since 0.9.45
+     */
+    public static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    private static final int MAX_PUMPERS = 16;
 
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
@@ -229,7 +240,13 @@ public class NTCPTransport extends TransportImpl {
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        int pumpers = Math.max(1, Math.min(MAX_PUMPERS, ctx.getProperty(PROP_PUMPERS, 1)));
+        _pumpers = new EventPumper[pumpers];
+        ObjectCounter<ByteArray> blockedIPs = new ObjectCounter<ByteArray>();
+        for (int i = 0; i < pumpers; i++) {
+            _pumpers[i] = new EventPumper(ctx, this, i, blockedIPs);
+        }
+        _pumper = _pumpers[0];
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -434,7 +451,7 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    con.getPumper().registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -481,7 +498,7 @@ public class NTCPTransport extends TransportImpl {
                         SocketChannel channel = SocketChannel.open();
                         con.setChannel(channel);
                         channel.configureBlocking(false);
-                        _pumper.registerConnect(con);
+                        con.getPumper().registerConnect(con);
                     } catch (IOException ioe) {
                         if (_log.shouldLog(Log.ERROR))
                             _log.error("Error opening a channel", ioe);
@@ -841,7 +858,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -936,7 +953,9 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (int i = 0; i < _pumpers.length; i++) {
+            _pumpers[i].startPumping();
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -953,7 +972,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (int i = 0; i < _pumpers.length; i++) {
+            if (_pumpers[i].isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -1113,9 +1136,28 @@ public class NTCPTransport extends TransportImpl {
     }
 
     /**
+     *  The pumper for an outbound connection.
      *  Hook for NTCPConnection
+     *  @since 0.9.45
      */
-    EventPumper getPumper() { return _pumper; }
+    EventPumper getPumper(Hash peer) {
+        if (_pumpers.length == 1)
+            return _pumper;
+        return _pumpers[(peer.hashCode() & 0x7fffffff) % _pumpers.length];
+    }
+
+    /**
+     *  The pumper for an inbound connection.
+     *  We don't know the peer until the connection is established,
+     *  and it can't move to another selector after that, so use the IP.
+     *  Hook for EventPumper
+     *  @since 0.9.45
+     */
+    EventPumper getPumper(byte[] ip) {
+        if (_pumpers.length == 1)
+            return _pumper;
+        return _pumpers[(DataHelper.hashCode(ip) & 0x7fffffff) % _pumpers.length];
+    }
 
     /**
      *  @return null if not configured for NTCP1
@@ -1852,7 +1894,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (int i = 0; i < _pumpers.length; i++) {
+            _pumpers[i].stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
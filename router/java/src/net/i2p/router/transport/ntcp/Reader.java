@@ -153,12 +153,12 @@ class Reader {
                 // why is it complete yet !con.isEstablished?
                 _log.error("establishment state [" + est + "] is complete, yet the connection isn't established? " 
                         + con.isEstablished() + " (inbound? " + con.isInbound() + " " + con + ")");
-                EventPumper.releaseBuf(buf);
+                con.getPumper().releaseBuf(buf);
                 break;
             }
             // FIXME call est.isCorrupt() before also? throws ISE here... see above
             est.receive(buf);
-            EventPumper.releaseBuf(buf);
+            con.getPumper().releaseBuf(buf);
             if (est.isCorrupt()) {
                 con.close();
                 return;
@@ -168,7 +168,7 @@ class Reader {
         while (!con.isClosed() && (buf = con.getNextReadBuf()) != null) {
             // decrypt the data and push it into an i2np message
             con.recvEncryptedI2NP(buf);
-            EventPumper.releaseBuf(buf);
+            con.getPumper().releaseBuf(buf);
         }
     }
 }
@@ -314,12 +314,14 @@ class PacketBuilder {
         // calculate data size
         int numFragments = fragments.size();
         int dataSize = 0;
+        int priority = 0;
         for (int i = 0; i < numFragments; i++) {
             Fragment frag = fragments.get(i);
             OutboundMessageState state = frag.state;
             int fragment = frag.num;
             int sz = state.fragmentSize(fragment);
             dataSize += sz;
+            priority = Math.max(priority, state.getPriority());
             if (msg != null) {
                 msg.append(" Fragment ").append(i);
                 msg.append(": msg ").append(state.getMessageId()).append(' ').append(fragment);
@@ -348,6 +350,7 @@ class PacketBuilder {
 
         // make the packet
         UDPPacket packet = buildPacketHeader(DATA_FLAG_BYTE);
+        packet.setPriority(priority);
         DatagramPacket pkt = packet.getPacket();
         byte data[] = pkt.getData();
         int off = HEADER_SIZE;
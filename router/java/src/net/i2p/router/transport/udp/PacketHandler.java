@@ -4,6 +4,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
@@ -23,8 +24,13 @@ import net.i2p.util.SystemVersion;
  * Data and ACK packets go to the InboundMessageFragments, the various 
  * establishment packets go to the EstablishmentManager, and, once implemented,
  * relay packets will go to the relay manager.  At the moment, this is 
- * an actual pool of packet handler threads, each pulling off the inbound
- * receiver's queue and pushing them as necessary.
+ * an actual pool of packet handler threads, each pulling off its own
+ * inbound queue and pushing them as necessary.
+ *
+ * As of 0.9.45, packets are sharded across the handlers by RemoteHostId,
+ * so that all packets from a single peer are handled in order by
+ * a single thread, while the authentication and decryption work for
+ * different peers is spread over the available cores.
  *
  */
 class PacketHandler {
@@ -38,14 +44,19 @@ class PacketHandler {
     private volatile boolean _keepReading;
     private final Handler[] _handlers;
     private final Map<RemoteHostId, Object> _failCache;
-    private final BlockingQueue<UDPPacket> _inboundQueue;
     private static final Object DUMMY = new Object();
     
     private static final int TYPE_POISON = -99999;
     private static final int MIN_QUEUE_SIZE = 16;
     private static final int MAX_QUEUE_SIZE = 192;
     private static final int MIN_NUM_HANDLERS = 1;  // unless < 32MB
-    private static final int MAX_NUM_HANDLERS = 1;
+    private static final int MAX_NUM_HANDLERS = 8;
+    /**
+     *  Override the number of handler threads.
+     *  Packets are sharded by RemoteHostId, so ordering is preserved per-peer.
+     *  @since 0.9.45
+     */
+    private static final String PROP_NUM_HANDLERS = "i2np.udp.packetHandlers";
     /** let packets be up to 30s slow */
     private static final long GRACE_PERIOD = Router.CLOCK_FUDGE_FACTOR + 30*1000;
     private static final long MAX_SKEW = 90*24*60*60*1000L;
@@ -65,17 +76,22 @@ class PacketHandler {
 
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (2*1024*1024)));
-        _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
         int num_handlers;
-        if (maxMemory < 32*1024*1024)
+        if (maxMemory < 64*1024*1024)
             num_handlers = 1;
-        else if (maxMemory < 64*1024*1024)
-            num_handlers = 2;
         else
-            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
+            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(Math.min(MAX_NUM_HANDLERS, SystemVersion.getCores()),
+                                                               ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 400));
+        num_handlers = Math.max(1, ctx.getProperty(PROP_NUM_HANDLERS, num_handlers));
         _handlers = new Handler[num_handlers];
-        for (int i = 0; i < num_handlers; i++) {
-            _handlers[i] = new Handler();
+        if (num_handlers == 1) {
+            _handlers[0] = new Handler(0, new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize));
+        } else {
+            // split the total queue size across the shards, but not too small
+            int shardSize = Math.max(MIN_QUEUE_SIZE, qsize / num_handlers);
+            for (int i = 0; i < num_handlers; i++) {
+                _handlers[i] = new Handler(i, new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver-" + i, shardSize));
+            }
         }
 
         //_context.statManager().createRateStat("udp.handleTime", "How long it takes to handle a received packet after its been pulled off the queue", "udp", UDPTransport.RATES);
@@ -126,19 +142,49 @@ class PacketHandler {
         rv.append("Handlers: ").append(_handlers.length);
         for (int i = 0; i < _handlers.length; i++) {
             Handler handler = _handlers[i];
-            rv.append(" handler ").append(i).append(" state: ").append(handler._state);
+            rv.append(" handler ").append(i).append(" state: ").append(handler._state)
+              .append(" queued: ").append(handler._inboundQueue.size())
+              .append(" dropped: ").append(handler._dropped.get());
         }
         return rv.toString();
     }
 
     /**
-     * Blocking call to retrieve the next inbound packet, or null if we have
-     * shut down.
+     * Queue an inbound packet to the handler for its peer.
+     * If there is only one handler, this blocks while the queue is full.
+     * If there is more than one handler, a full queue for one shard
+     * must not stall the receiver for all other peers,
+     * so the packet is dropped instead.
      *
      * @since IPv6 moved from UDPReceiver
      */
     public void queueReceived(UDPPacket packet) throws InterruptedException {
-        _inboundQueue.put(packet);
+        if (_handlers.length == 1) {
+            _handlers[0]._inboundQueue.put(packet);
+            return;
+        }
+        Handler handler = _handlers[shard(packet.getRemoteHost())];
+        if (!handler._inboundQueue.offer(packet)) {
+            handler._dropped.incrementAndGet();
+            _context.statManager().addRateData(handler._statDropped, 1);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Dropping inbound packet, handler " + handler._id + " queue full: " + packet);
+            packet.release();
+        }
+    }
+
+    /**
+     * The shard for a peer. All packets from a peer go to the same handler.
+     *
+     * @since 0.9.45
+     */
+    private int shard(RemoteHostId rem) {
+        // spread the hashcode bits, DataHelper.hashCode() of an IP is not very random
+        int h = rem.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & 0x7fffffff) % _handlers.length;
     }
 
 
@@ -148,38 +194,32 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     private void stopQueue() {
-        _inboundQueue.clear();
         for (int i = 0; i < _handlers.length; i++) {
+            BlockingQueue<UDPPacket> queue = _handlers[i]._inboundQueue;
+            queue.clear();
             UDPPacket poison = UDPPacket.acquire(_context, false);
             poison.setMessageType(TYPE_POISON);
-            _inboundQueue.offer(poison);
+            queue.offer(poison);
         }
-        for (int i = 1; i <= 5 && !_inboundQueue.isEmpty(); i++) {
+        for (int i = 1; i <= 5 && !queuesEmpty(); i++) {
             try {
                 Thread.sleep(i * 50);
             } catch (InterruptedException ie) {}
         }
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._inboundQueue.clear();
+        }
     }
 
     /**
-     * Blocking call to retrieve the next inbound packet, or null if we have
-     * shut down.
-     *
-     * @since IPv6 moved from UDPReceiver
+     * @since 0.9.45
      */
-    public UDPPacket receiveNext() {
-        UDPPacket rv = null;
-        //int remaining = 0;
-        while (_keepReading && rv == null) {
-            try {
-                rv = _inboundQueue.take();
-            } catch (InterruptedException ie) {}
-            if (rv != null && rv.getMessageType() == TYPE_POISON)
-                return null;
+    private boolean queuesEmpty() {
+        for (int i = 0; i < _handlers.length; i++) {
+            if (!_handlers[i]._inboundQueue.isEmpty())
+                return false;
         }
-        //_context.statManager().addRateData("udp.receiveRemaining", remaining, 0);
-        return rv;
+        return true;
     }
 
     /**
@@ -198,11 +238,46 @@ class PacketHandler {
     
     private class Handler implements Runnable { 
         private final UDPPacketReader _reader;
+        private final int _id;
+        private final BlockingQueue<UDPPacket> _inboundQueue;
+        private final String _statQueueSize;
+        private final String _statDropped;
+        private final AtomicLong _dropped = new AtomicLong();
         // TODO comment out all uses of _state
         public /* volatile */ int _state;
 
-        public Handler() {
+        /**
+         * @param id the shard number
+         * @param queue this handler's inbound queue
+         */
+        public Handler(int id, BlockingQueue<UDPPacket> queue) {
             _reader = new UDPPacketReader(_context);
+            _id = id;
+            _inboundQueue = queue;
+            _statQueueSize = ("udp.handlerQueueSize." + id).intern();
+            _statDropped = ("udp.handlerDropped." + id).intern();
+            _context.statManager().createRateStat(_statQueueSize, "Inbound queue depth for this packet handler shard", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat(_statDropped, "Inbound packets dropped because this packet handler shard's queue was full", "udp", UDPTransport.RATES);
+        }
+
+        /**
+         * Blocking call to retrieve the next inbound packet, or null if we have
+         * shut down.
+         *
+         * @since IPv6 moved from UDPReceiver, moved to Handler in 0.9.45
+         */
+        private UDPPacket receiveNext() {
+            UDPPacket rv = null;
+            while (_keepReading && rv == null) {
+                try {
+                    rv = _inboundQueue.take();
+                } catch (InterruptedException ie) {}
+                if (rv != null && rv.getMessageType() == TYPE_POISON)
+                    return null;
+            }
+            if (rv != null)
+                _context.statManager().addRateData(_statQueueSize, _inboundQueue.size());
+            return rv;
         }
         
         public void run() {
@@ -5,7 +5,9 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
@@ -24,9 +26,19 @@ class UDPEndpoint implements SocketListener {
     private UDPSender _sender;
     private UDPReceiver _receiver;
     private DatagramSocket _socket;
+    /** non-null only in NIO mode, in which case _socket is its adaptor */
+    private DatagramChannel _channel;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
+
+    /**
+     *  If true, use a non-blocking DatagramChannel with direct buffers,
+     *  and receive and send packets in batches.
+     *  Default false. Requires restart of the transport.
+     *  @since 0.9.45
+     */
+    public static final String PROP_NIO = "i2np.udp.nio";
     
     /**
      *  @param transport may be null for unit testing ONLY
@@ -58,10 +70,10 @@ class UDPEndpoint implements SocketListener {
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
+        _sender = new UDPSender(_context, _socket, _channel, "UDPSender " + count, this);
         _sender.startup();
         if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
+            _receiver = new UDPReceiver(_context, _transport, _socket, _channel, "UDPReceiver " + count, this);
             _receiver.startup();
         }
     }
@@ -74,6 +86,7 @@ class UDPEndpoint implements SocketListener {
         if (_socket != null) {
             _socket.close();
         }
+        _channel = null;
     }
     
     public void setListenPort(int newPort) { _listenPort = newPort; }
@@ -104,9 +117,11 @@ class UDPEndpoint implements SocketListener {
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
      *  @return null on failure
      *  Sets _listenPort to actual port or -1 on failure
+     *  Sets _channel if in NIO mode
      */
     private DatagramSocket getSocket() {
         DatagramSocket socket = null;
+        boolean nio = _context.getBooleanProperty(PROP_NIO);
         int port = _listenPort;
         if (port > 0 && !TransportUtil.isValidPort(port)) {
             TransportUtil.logInvalidPort(_log, "UDP", port);
@@ -120,14 +135,17 @@ class UDPEndpoint implements SocketListener {
                  port = TransportUtil.selectRandomPort(_context, UDPTransport.STYLE);
              }
              try {
-                 if (_bindAddress == null)
+                 if (nio) {
+                     socket = getChannelSocket(port);
+                 } else if (_bindAddress == null) {
                      socket = new DatagramSocket(port);
-                 else
+                 } else {
                      socket = new DatagramSocket(port, _bindAddress);
+                 }
                  break;
-             } catch (SocketException se) {
+             } catch (IOException ioe) {
                  if (_log.shouldLog(Log.WARN))
-                     _log.warn("Binding to port " + port + " failed", se);
+                     _log.warn("Binding to port " + port + " failed", ioe);
              }
              port = -1;
         }
@@ -143,6 +161,25 @@ class UDPEndpoint implements SocketListener {
         return socket;
     }
 
+    /**
+     *  Open and bind a non-blocking channel, and set _channel.
+     *
+     *  @return the channel's socket adaptor
+     *  @since 0.9.45
+     */
+    private DatagramSocket getChannelSocket(int port) throws IOException {
+        DatagramChannel chan = DatagramChannel.open();
+        try {
+            chan.bind(new InetSocketAddress(_bindAddress, port));
+            chan.configureBlocking(false);
+        } catch (IOException ioe) {
+            chan.close();
+            throw ioe;
+        }
+        _channel = chan;
+        return chan.socket();
+    }
+
 
     /** call after startup() to get actual port or -1 on startup failure */
     public int getListenPort() { return _listenPort; }
@@ -162,10 +199,13 @@ class UDPEndpoint implements SocketListener {
      *
      * UNIT TESTING ONLY. Direct from the socket.
      * In normal operation, UDPReceiver thread injects to PacketHandler queue.
+     * Not supported in NIO mode, returns null.
      *
      * @return null if we have shut down, or on failure
      */
     public UDPPacket receive() { 
+        if (_channel != null)
+            return null;
         UDPPacket packet = UDPPacket.acquire(_context, true);
         try {
             _socket.receive(packet.getPacket());
@@ -159,6 +159,7 @@ class UDPPacket implements CDQEntry {
         // _isInbound = inbound;
         _initializeTime = _context.clock().now();
         _markedType = -1;
+        _priority = 0;
         _validateCount = 0;
         _remoteHost = null;
         _released = false;
@@ -181,6 +182,14 @@ class UDPPacket implements CDQEntry {
     /** */
     public synchronized DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
     public synchronized short getPriority() { verifyNotReleased(); return _priority; }
+
+    /**
+     *  For the bandwidth limiter.
+     *
+     *  @param priority the highest OutNetMessage priority of the fragments in this packet
+     *  @since 0.9.45
+     */
+    public synchronized void setPriority(int priority) { verifyNotReleased(); _priority = (short) priority; }
     //public long getExpiration() { verifyNotReleased(); return _expiration; }
     public synchronized long getBegin() { verifyNotReleased(); return _initializeTime; }
     public long getLifetime() { /** verifyNotReleased(); */ return _context.clock().now() - _initializeTime; }
@@ -361,7 +370,8 @@ class UDPPacket implements CDQEntry {
      */
     public synchronized void requestOutboundBandwidth() {
         verifyNotReleased();
-        _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), 0, "UDP sender");
+        _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), _priority,
+                                                                         UDPTransport.STYLE, "UDP sender");
     }
     
     /**
@@ -3,7 +3,15 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
@@ -21,38 +29,52 @@ import net.i2p.util.SystemVersion;
  * There is a UDPReceiver for each UDPEndpoint.
  * It contains a thread but no queue. Received packets are queued
  * in the common PacketHandler queue.
+ *
+ * In NIO mode (as of 0.9.45), the thread waits on a Selector and then
+ * drains all available packets from the non-blocking channel
+ * through a single direct buffer, making a single bandwidth request
+ * for the whole batch.
  */
 class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
-    private final Runner _runner;
+    private final Runnable _runner;
     private final UDPTransport _transport;
     private final PacketHandler _handler;
     private final SocketListener _endpoint;
 
     private static final boolean _isAndroid = SystemVersion.isAndroid();
+    /** max packets per selector wakeup in NIO mode */
+    private static final int MAX_BATCH = 32;
 
-    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name,
-                       SocketListener lsnr) {
+    /**
+     *  @param channel non-null for NIO mode, in which case socket is its adaptor
+     */
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, DatagramChannel channel,
+                       String name, SocketListener lsnr) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
         _socket = socket;
+        _channel = channel;
         _transport = transport;
         _endpoint = lsnr;
         _handler = transport.getPacketHandler();
         if (_handler == null)
             throw new IllegalStateException();
-        _runner = new Runner();
+        _runner = channel != null ? new ChannelRunner() : new Runner();
         //_context.statManager().createRateStat("udp.receivePacketSize", "How large packets received are", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.receiveRemaining", "How many packets are left sitting on the receiver's queue", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.droppedInbound", "How many packet are queued up but not yet received when we drop", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveHolePunch", "How often we receive a NAT hole punch", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.ignorePacketFromDroplist", "Packet lifetime for those dropped on the drop list", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
+        if (channel != null)
+            _context.statManager().createRateStat("udp.receiveBatchSize", "Packets received per wakeup (NIO mode)", "udp", UDPTransport.RATES);
     }
     
     /**
@@ -326,4 +348,136 @@ class UDPReceiver {
         }
       *****/
     }
+
+    /**
+     *  NIO mode. Single thread, one selector, one direct buffer.
+     *
+     *  @since 0.9.45
+     */
+    private class ChannelRunner implements Runnable {
+        private final ByteBuffer _buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+        private final List<UDPPacket> _batch = new ArrayList<UDPPacket>(MAX_BATCH);
+
+        public void run() {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                _channel.register(selector, SelectionKey.OP_READ);
+                while (_keepRunning) {
+                    while (!_context.throttle().acceptNetworkMessage())
+                        try { Thread.sleep(10); } catch (InterruptedException ie) {}
+                    try {
+                        // timeout so we notice shutdown
+                        selector.select(1000);
+                        selector.selectedKeys().clear();
+                        int total = drain();
+                        if (!_batch.isEmpty())
+                            process(total);
+                    } catch (IOException ioe) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Error receiving", ioe);
+                        for (UDPPacket packet : _batch) {
+                            packet.release();
+                        }
+                        _batch.clear();
+                        if (!_channel.isOpen()) {
+                            if (_keepRunning) {
+                                _keepRunning = false;
+                                _endpoint.fail();
+                            }
+                        } else if (_keepRunning) {
+                            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                // Selector.open() or register() failed
+                _log.error("Unable to start receiving on " + _endpoint, ioe);
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+            } finally {
+                if (selector != null) {
+                    try { selector.close(); } catch (IOException ioe) {}
+                }
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
+
+        /**
+         *  Read everything available, up to MAX_BATCH packets, into _batch.
+         *  Hole punches are handled here.
+         *
+         *  @return total bytes in the batch
+         */
+        private int drain() throws IOException {
+            int total = 0;
+            for (int i = 0; i < MAX_BATCH; i++) {
+                _buf.clear();
+                SocketAddress from = _channel.receive(_buf);
+                if (from == null)
+                    break;
+                _buf.flip();
+                int size = _buf.remaining();
+                InetSocketAddress isa = (InetSocketAddress) from;
+                if (size >= UDPPacket.MAX_PACKET_SIZE) {
+                    // as in Runner, if it's this big it was probably truncated
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("packet too large! truncated and dropped from: " + isa);
+                    continue;
+                }
+                if (size == 0) {
+                    _context.statManager().addRateData("udp.receiveHolePunch", 1);
+                    // nat hole punch packets are 0 bytes
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Received a 0 byte udp packet from " + isa);
+                    _transport.getEstablisher().receiveHolePunch(isa.getAddress(), isa.getPort());
+                    continue;
+                }
+                UDPPacket packet = UDPPacket.acquire(_context, true);
+                DatagramPacket dpacket = packet.getPacket();
+                _buf.get(dpacket.getData(), 0, size);
+                dpacket.setLength(size);
+                dpacket.setSocketAddress(isa);
+                packet.resetBegin();
+                _batch.add(packet);
+                total += size;
+            }
+            return total;
+        }
+
+        /**
+         *  One bandwidth request for the whole batch, then queue each packet.
+         *  Clears _batch.
+         */
+        private void process(int total) {
+            _context.statManager().addRateData("udp.receiveBatchSize", _batch.size());
+            if (_context.commSystem().isDummy()) {
+                // testing
+                for (UDPPacket packet : _batch) {
+                    packet.release();
+                }
+                _batch.clear();
+                return;
+            }
+            FIFOBandwidthLimiter.Request req =
+                  _context.bandwidthLimiter().requestInbound(total, "UDP receiver");
+            // failsafe, don't wait forever
+            int waitCount = 0;
+            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                req.waitForNextAllocation();
+            }
+            if (waitCount >= 5) {
+                // tell FBL we didn't receive it, but receive it anyway
+                req.abort();
+                _context.statManager().addRateData("udp.receiveFailsafe", 1);
+            }
+            for (int i = 0; i < _batch.size(); i++) {
+                receive(_batch.get(i));
+            }
+            _batch.clear();
+        }
+    }
 }
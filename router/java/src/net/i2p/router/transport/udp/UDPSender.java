@@ -3,6 +3,13 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import net.i2p.router.RouterContext;
@@ -18,15 +25,23 @@ import net.i2p.util.SystemVersion;
  * There is a UDPSender for each UDPEndpoint.
  * It contains a thread and a queue. Packet to be sent are queued
  * by the PacketPusher.
+ *
+ * In NIO mode (as of 0.9.45), packets are drained from the queue in batches
+ * and sent on the non-blocking channel through a single direct buffer.
  */
 class UDPSender {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    private final DatagramChannel _channel;
+    /** NIO mode only, only used by the runner thread */
+    private final ByteBuffer _sendBuf;
+    /** NIO mode only, only used by the runner thread, to wait for OP_WRITE when the send buffer is full */
+    private Selector _writeSelector;
     private String _name;
     private final BlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
-    private final Runner _runner;
+    private final Runnable _runner;
     private final boolean _dummy;
     private final SocketListener _endpoint;
 
@@ -37,8 +52,15 @@ class UDPSender {
     // When full, packets back up into the PacketPusher thread, pre-CoDel.
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /** max packets per wakeup in NIO mode */
+    private static final int MAX_BATCH = 32;
+    /** NIO mode, max time to wait for the send buffer, ms */
+    private static final long MAX_SEND_WAIT = 20;
     
-    public UDPSender(RouterContext ctx, DatagramSocket socket, String name, SocketListener lsnr) {
+    /**
+     *  @param channel non-null for NIO mode, in which case socket is its adaptor
+     */
+    public UDPSender(RouterContext ctx, DatagramSocket socket, DatagramChannel channel, String name, SocketListener lsnr) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
@@ -46,7 +68,16 @@ class UDPSender {
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
         _socket = socket;
-        _runner = new Runner();
+        _channel = channel;
+        if (channel != null) {
+            _sendBuf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            _runner = new ChannelRunner();
+            _context.statManager().createRateStat("udp.sendBatchSize", "Packets sent per wakeup (NIO mode)", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.sendBufferFull", "Socket send buffer full (NIO mode)", "udp", UDPTransport.RATES);
+        } else {
+            _sendBuf = null;
+            _runner = new Runner();
+        }
         _name = name;
         _endpoint = lsnr;
         _context.statManager().createRateStat("udp.pushTime", "How long a UDP packet takes to get pushed out", "udp", UDPTransport.RATES);
@@ -213,6 +244,138 @@ class UDPSender {
         }
     }
     
+    /**
+     *  Wait for bandwidth and send a single packet, and release it.
+     *  Pulled out of Runner.run() in 0.9.45.
+     */
+    private void send(UDPPacket packet) {
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Packet to send known: " + packet);
+        long acquireTime = _context.clock().now();
+        int size = packet.getPacket().getLength();
+        // ?? int size2 = packet.getPacket().getLength();
+        if (size > 0) {
+            //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
+            FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
+            if (req != null) {
+                // failsafe, don't wait forever
+                int waitCount = 0;
+                while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                    req.waitForNextAllocation();
+                }
+                if (waitCount >= 5) {
+                    // tell FBL we didn't send it, but send it anyway
+                    req.abort();
+                    _context.statManager().addRateData("udp.sendFailsafe", 1);
+                }
+            }
+        }
+        
+        long afterBW = _context.clock().now();
+        
+        //if (_log.shouldLog(Log.DEBUG)) {
+            //if (len > 128)
+            //    len = 128;
+            //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
+        //}
+        
+        if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
+            _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
+        
+        //packet.getPacket().setLength(size);
+        try {
+            //long before = _context.clock().now();
+            //synchronized (Runner.this) {
+                // synchronization lets us update safely
+                //_log.debug("Break out datagram for " + packet);
+                DatagramPacket dp = packet.getPacket();
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("Just before socket.send of " + packet);
+                if (_channel != null)
+                    sendChannel(dp);
+                else
+                    _socket.send(dp);
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("Just after socket.send of " + packet);
+            //}
+            //long sendTime = _context.clock().now() - before;
+            // less than 50 microsec
+            //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Sent the packet " + packet);
+            long throttleTime = afterBW - acquireTime;
+            if (throttleTime > 10)
+                _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
+            if (packet.getMarkedType() == 1)
+                _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
+            _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
+            _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
+            _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+            if (_socket.isClosed()) {
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+            }
+        }
+        
+        // back to the cache
+        packet.release();
+    }
+
+    /**
+     *  NIO mode. Copy to the direct buffer and send.
+     *  The channel is non-blocking (it is shared with the receiver's selector),
+     *  so if the socket send buffer is full, wait for it to be writable
+     *  on our own selector, for up to MAX_SEND_WAIT.
+     *
+     *  @since 0.9.45
+     */
+    private void sendChannel(DatagramPacket dp) throws IOException {
+        _sendBuf.clear();
+        _sendBuf.put(dp.getData(), dp.getOffset(), dp.getLength());
+        _sendBuf.flip();
+        SocketAddress to = dp.getSocketAddress();
+        if (_channel.send(_sendBuf, to) > 0)
+            return;
+        _context.statManager().addRateData("udp.sendBufferFull", 1);
+        if (_writeSelector == null) {
+            _writeSelector = Selector.open();
+            _channel.register(_writeSelector, SelectionKey.OP_WRITE);
+        }
+        long end = _context.clock().now() + MAX_SEND_WAIT;
+        while (_keepRunning) {
+            long remaining = end - _context.clock().now();
+            if (remaining <= 0)
+                break;
+            _writeSelector.select(remaining);
+            _writeSelector.selectedKeys().clear();
+            if (_channel.send(_sendBuf, to) > 0)
+                return;
+        }
+        throw new IOException("Socket send buffer full");
+    }
+
+    /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
+    private UDPPacket getNextPacket() {
+        UDPPacket packet = null;
+        while ( (_keepRunning) && (packet == null || packet.getLifetime() > MAX_HEAD_LIFETIME) ) {
+            if (packet != null) {
+                _context.statManager().addRateData("udp.sendQueueTrimmed", 1);
+                packet.release();
+            }
+            try {
+                packet = _outboundQueue.take();
+            } catch (InterruptedException ie) {}
+            if (packet != null && packet.getMessageType() == TYPE_POISON)
+                return null;
+        }
+        return packet;
+    }
+
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
 
@@ -228,78 +391,7 @@ class UDPSender {
                 
                 UDPPacket packet = getNextPacket();
                 if (packet != null) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("Packet to send known: " + packet);
-                    long acquireTime = _context.clock().now();
-                    int size = packet.getPacket().getLength();
-                    // ?? int size2 = packet.getPacket().getLength();
-                    if (size > 0) {
-                        //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
-                        FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
-                        if (req != null) {
-                            // failsafe, don't wait forever
-                            int waitCount = 0;
-                            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                                req.waitForNextAllocation();
-                            }
-                            if (waitCount >= 5) {
-                                // tell FBL we didn't send it, but send it anyway
-                                req.abort();
-                                _context.statManager().addRateData("udp.sendFailsafe", 1);
-                            }
-                        }
-                    }
-                    
-                    long afterBW = _context.clock().now();
-                    
-                    //if (_log.shouldLog(Log.DEBUG)) {
-                        //if (len > 128)
-                        //    len = 128;
-                        //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
-                    //}
-                    
-                    if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
-                        _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
-                    
-                    //packet.getPacket().setLength(size);
-                    try {
-                        //long before = _context.clock().now();
-                        //synchronized (Runner.this) {
-                            // synchronization lets us update safely
-                            //_log.debug("Break out datagram for " + packet);
-                            DatagramPacket dp = packet.getPacket();
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just after socket.send of " + packet);
-                        //}
-                        //long sendTime = _context.clock().now() - before;
-                        // less than 50 microsec
-                        //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Sent the packet " + packet);
-                        long throttleTime = afterBW - acquireTime;
-                        if (throttleTime > 10)
-                            _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
-                        if (packet.getMarkedType() == 1)
-                            _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
-                        _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
-                        _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
-                    } catch (IOException ioe) {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
-                        _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                        if (_socket.isClosed()) {
-                            if (_keepRunning) {
-                                _keepRunning = false;
-                                _endpoint.fail();
-                            }
-                        }
-                    }
-                    
-                    // back to the cache
-                    packet.release();
+                    send(packet);
                 }
             }
             if (_log.shouldLog(Log.WARN))
@@ -307,23 +399,6 @@ class UDPSender {
             _outboundQueue.clear();
         }
         
-        /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
-        private UDPPacket getNextPacket() {
-            UDPPacket packet = null;
-            while ( (_keepRunning) && (packet == null || packet.getLifetime() > MAX_HEAD_LIFETIME) ) {
-                if (packet != null) {
-                    _context.statManager().addRateData("udp.sendQueueTrimmed", 1);
-                    packet.release();
-                }
-                try {
-                    packet = _outboundQueue.take();
-                } catch (InterruptedException ie) {}
-                if (packet != null && packet.getMessageType() == TYPE_POISON)
-                    return null;
-            }
-            return packet;
-        }
-
      /******
         public DatagramSocket updateListeningPort(DatagramSocket socket, int newPort) {
             _name = "UDPSend on " + newPort;
@@ -337,4 +412,55 @@ class UDPSender {
         }
       *****/
     }
+
+    /**
+     *  NIO mode. Take one packet, then drain up to MAX_BATCH - 1 more
+     *  from the queue, and send them all, without blocking between them.
+     *  The CoDel queue drains with one poll() per packet, so it can drop as usual.
+     *
+     *  @since 0.9.45
+     */
+    private class ChannelRunner implements Runnable {
+        private final List<UDPPacket> _batch = new ArrayList<UDPPacket>(MAX_BATCH);
+
+        public void run() {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Running the UDP sender (NIO)");
+            while (_keepRunning) {
+                UDPPacket packet = getNextPacket();
+                if (packet == null)
+                    continue;
+                _batch.add(packet);
+                _outboundQueue.drainTo(_batch, MAX_BATCH - 1);
+                int sz = _batch.size();
+                _context.statManager().addRateData("udp.sendBatchSize", sz);
+                for (int i = 0; i < sz; i++) {
+                    packet = _batch.get(i);
+                    if (packet.getMessageType() == TYPE_POISON) {
+                        // release the rest, we're done
+                        for (int j = i + 1; j < sz; j++) {
+                            _batch.get(j).release();
+                        }
+                        break;
+                    }
+                    if (!_keepRunning || packet.getLifetime() > MAX_HEAD_LIFETIME) {
+                        if (_keepRunning)
+                            _context.statManager().addRateData("udp.sendQueueTrimmed", 1);
+                        packet.release();
+                        continue;
+                    }
+                    send(packet);
+                }
+                _batch.clear();
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop sending on " + _endpoint);
+            _outboundQueue.clear();
+            if (_writeSelector != null) {
+                try {
+                    _writeSelector.close();
+                } catch (IOException ioe) {}
+            }
+        }
+    }
 }
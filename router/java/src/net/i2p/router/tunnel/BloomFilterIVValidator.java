@@ -7,6 +7,7 @@ import net.i2p.router.RouterContext;
 import net.i2p.router.tasks.OOMListener;
 import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.router.util.DecayingHashSet;
+import net.i2p.router.util.LockFreeDecayingBloomFilter;
 import net.i2p.util.Log;
 import net.i2p.util.SimpleByteCache;
 import net.i2p.util.SystemVersion;
@@ -41,6 +42,9 @@ class BloomFilterIVValidator implements IVValidator {
     private static final String PROP_FORCE = "router.forceDecayingBloomFilter";
     /** for testing */
     private static final String PROP_DISABLE = "router.disableDecayingBloomFilter";
+    /** as in DecayingBloomFilter */
+    private static final String PROP_M = "router.decayingBloomFilterM";
+    private static final int DEFAULT_M = 23;
 
     /**
      *  @param KBps share bandwidth
@@ -53,7 +57,7 @@ class BloomFilterIVValidator implements IVValidator {
         // See DBF, BloomSHA1, and KeySelector for details.
         long maxMemory = SystemVersion.getMaxMemory();
         if (_context.getBooleanProperty(PROP_FORCE)) {
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV");  // 2MB fixed
+            _filter = newFilter(-1);  // 2MB fixed
         } else if (_context.getBooleanProperty(PROP_DISABLE)) {
             _filter = null;
         } else if (KBps < MIN_SHARE_KBPS_TO_USE_BLOOM || maxMemory < MIN_MEM_TO_USE_BLOOM) {
@@ -61,28 +65,44 @@ class BloomFilterIVValidator implements IVValidator {
                 warn(maxMemory, KBps, MIN_MEM_TO_USE_BLOOM, MIN_SHARE_KBPS_TO_USE_BLOOM);
             _filter = new DecayingHashSet(ctx, HALFLIFE_MS, 16, "TunnelIVV"); // appx. 4MB max
         } else if (KBps >= MIN_SHARE_KBPS_FOR_HUGE3_BLOOM && maxMemory >= MIN_MEM_FOR_HUGE3_BLOOM) {
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 27);  // 32MB fixed
+            _filter = newFilter(27);  // 32MB fixed
         } else if (KBps >= MIN_SHARE_KBPS_FOR_HUGE2_BLOOM && maxMemory >= MIN_MEM_FOR_HUGE2_BLOOM) {
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 26);  // 16MB fixed
+            _filter = newFilter(26);  // 16MB fixed
             if (KBps >= MIN_SHARE_KBPS_FOR_HUGE3_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_HUGE3_BLOOM, MIN_SHARE_KBPS_FOR_HUGE3_BLOOM);
         } else if (KBps >= MIN_SHARE_KBPS_FOR_HUGE_BLOOM && maxMemory >= MIN_MEM_FOR_HUGE_BLOOM) {
             if (KBps >= MIN_SHARE_KBPS_FOR_HUGE2_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_HUGE2_BLOOM, MIN_SHARE_KBPS_FOR_HUGE2_BLOOM);
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 25);  // 8MB fixed
+            _filter = newFilter(25);  // 8MB fixed
         } else if (KBps >= MIN_SHARE_KBPS_FOR_BIG_BLOOM && maxMemory >= MIN_MEM_FOR_BIG_BLOOM) {
             if (KBps >= MIN_SHARE_KBPS_FOR_HUGE_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_HUGE_BLOOM, MIN_SHARE_KBPS_FOR_HUGE_BLOOM);
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 24);  // 4MB fixed
+            _filter = newFilter(24);  // 4MB fixed
         } else {
             if (KBps >= MIN_SHARE_KBPS_FOR_BIG_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_BIG_BLOOM, MIN_SHARE_KBPS_FOR_BIG_BLOOM);
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV");  // 2MB fixed
+            _filter = newFilter(-1);  // 2MB fixed
         }
         ctx.statManager().createRateStat("tunnel.duplicateIV", "Note that a duplicate IV was received", "Tunnels", 
                                          new long[] { 60*60*1000l });
     }
     
+    /**
+     *  @param m filter size exponent, or -1 for the default,
+     *           router.decayingBloomFilterM if set, else 23
+     *  @since 0.9.45
+     */
+    private DecayingBloomFilter newFilter(int m) {
+        if (_context.getBooleanProperty(LockFreeDecayingBloomFilter.PROP_ENABLE)) {
+            if (m < 0)
+                m = _context.getProperty(PROP_M, DEFAULT_M);
+            return new LockFreeDecayingBloomFilter(_context, HALFLIFE_MS, 16, "TunnelIVV", m);
+        }
+        if (m < 0)
+            return new DecayingBloomFilter(_context, HALFLIFE_MS, 16, "TunnelIVV");
+        return new DecayingBloomFilter(_context, HALFLIFE_MS, 16, "TunnelIVV", m);
+    }
+
     public boolean receiveIV(byte ivData[], int ivOffset, byte payload[], int payloadOffset) {
         if (_filter == null)  // testing only
             return true;
@@ -0,0 +1,136 @@
+package net.i2p.router.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.i2p.data.Hash;
+import net.i2p.data.i2np.TunnelDataMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ * Process participating tunnel messages (the hop decryption and IV check)
+ * on a pool of threads, instead of inline on the transport's receive thread.
+ *
+ * Each tunnel is always handled by the same thread, selected by tunnel ID,
+ * so messages for a tunnel are processed in the order they were dispatched.
+ * Each thread has a bounded queue; if it is full, the message is dropped,
+ * as it would be anywhere else in a tunnel.
+ *
+ * @since 0.9.45
+ */
+class ParticipantDispatcher {
+    private final RouterContext _context;
+    private final Log _log;
+    private final List<BlockingQueue<Work>> _queues;
+    private final List<Thread> _threads;
+    private volatile boolean _stop;
+
+    private static final int MAX_QUEUE = 1024;
+    private static final Work POISON = new Work(null, null, null);
+
+    private static class Work {
+        final TunnelParticipant participant;
+        final TunnelDataMessage msg;
+        final Hash recvFrom;
+
+        Work(TunnelParticipant p, TunnelDataMessage m, Hash from) {
+            participant = p;
+            msg = m;
+            recvFrom = from;
+        }
+    }
+
+    /**
+     *  @param threads at least 1
+     */
+    public ParticipantDispatcher(RouterContext ctx, int threads) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(ParticipantDispatcher.class);
+        _queues = new ArrayList<BlockingQueue<Work>>(threads);
+        _threads = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            _queues.add(new LinkedBlockingQueue<Work>(MAX_QUEUE));
+        }
+        ctx.statManager().createRateStat("tunnel.participantDispatchQueue",
+                                         "Participating messages queued for the hop processor", "Tunnels",
+                                         new long[] { 60*1000l, 10*60*1000l });
+        ctx.statManager().createRateStat("tunnel.participantDispatchDrop",
+                                         "Participating messages dropped, hop processor queue full", "Tunnels",
+                                         new long[] { 10*60*1000l, 60*60*1000l });
+    }
+
+    public synchronized void startup() {
+        _stop = false;
+        int sz = _queues.size();
+        for (int i = 0; i < sz; i++) {
+            Thread t = new I2PThread(new Runner(_queues.get(i)),
+                                     "Tunnel hop processor " + (i+1) + '/' + sz, true);
+            _threads.add(t);
+            t.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        _stop = true;
+        for (BlockingQueue<Work> queue : _queues) {
+            queue.clear();
+            queue.offer(POISON);
+        }
+        for (Thread t : _threads) {
+            t.interrupt();
+        }
+        _threads.clear();
+    }
+
+    /**
+     *  Queue the message for the participant's thread.
+     *  Drops are counted in the stat tunnel.participantDispatchDrop.
+     *
+     *  @return false if dropped
+     */
+    public boolean dispatch(TunnelParticipant participant, TunnelDataMessage msg, Hash recvFrom) {
+        if (_stop)
+            return false;
+        long id = msg.getTunnelId();
+        int idx = (int) ((id ^ (id >>> 32)) & 0x7fffffff) % _queues.size();
+        BlockingQueue<Work> queue = _queues.get(idx);
+        if (!queue.offer(new Work(participant, msg, recvFrom))) {
+            _context.statManager().addRateData("tunnel.participantDispatchDrop", 1);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Hop processor queue full, dropping " + msg.getUniqueId() + " on " + msg.getTunnelId());
+            return false;
+        }
+        return true;
+    }
+
+    private class Runner implements Runnable {
+        private final BlockingQueue<Work> _queue;
+
+        public Runner(BlockingQueue<Work> queue) {
+            _queue = queue;
+        }
+
+        public void run() {
+            while (!_stop) {
+                Work w;
+                try {
+                    w = _queue.take();
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+                if (w == POISON)
+                    break;
+                _context.statManager().addRateData("tunnel.participantDispatchQueue", _queue.size());
+                try {
+                    w.participant.dispatch(w.msg, w.recvFrom);
+                } catch (RuntimeException re) {
+                    _log.error("Error processing " + w.msg, re);
+                }
+            }
+        }
+    }
+}
@@ -161,8 +161,10 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
     public int drainTo(Collection<? super E> c, int maxElements) {
         int rv = 0;
         E e;
-        while ((e = poll()) != null && rv++ < maxElements) {
+        // check the count first, so we don't poll one too many and lose it
+        while (rv < maxElements && (e = poll()) != null) {
             c.add(e);
+            rv++;
         }
         return rv;
     }
@@ -134,8 +134,10 @@ public class CoDelPriorityBlockingQueue<E extends CDPQEntry> extends PriBlocking
     public int drainTo(Collection<? super E> c, int maxElements) {
         int rv = 0;
         E e;
-        while ((e = poll()) != null && rv++ < maxElements) {
+        // check the count first, so we don't poll one too many and lose it
+        while (rv < maxElements && (e = poll()) != null) {
             c.add(e);
+            rv++;
         }
         return rv;
     }
@@ -0,0 +1,339 @@
+package net.i2p.router.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.SipHashInline;
+import net.i2p.util.Log;
+
+/**
+ * A DecayingBloomFilter without locks, for the replay checks
+ * on the tunnel data path.
+ *
+ * The bits are in AtomicLongArrays and are set with compare-and-set,
+ * so adds proceed in parallel and no bits are lost, unlike
+ * the unsynchronized insert under the read lock in the superclass.
+ * Indexes are from a keyed SipHash of the entry, so the entries
+ * need not be random, and there are no extenders.
+ *
+ * Decay is double-buffered without a lock: the current and previous
+ * filters are published together as one immutable generation,
+ * and a third, already-cleared filter becomes the new current one.
+ * The old previous filter is then cleared in the timer thread,
+ * to be the spare for the next decay. So this uses 50% more
+ * memory than the superclass for the same m.
+ *
+ * As with any bloom filter without a lock, two concurrent adds of the
+ * same new entry may both return false.
+ *
+ * The insert count is striped to avoid contention, and is approximate.
+ *
+ * @since 0.9.45
+ */
+public class LockFreeDecayingBloomFilter extends DecayingBloomFilter {
+    private final int _k;
+    private final int _mask;
+    private final int _words;
+    private final long _k0, _k1;
+    private volatile Generation _gen;
+    /** the next current filter, cleared, timer thread only */
+    private AtomicLongArray _spare;
+    /** padded so each stripe is in its own cache line */
+    private final AtomicLongArray _counts;
+    private final AtomicLong _dups = new AtomicLong();
+
+    /**
+     *  Use this instead of the DecayingBloomFilter and DecayingHashSet
+     *  for the tunnel IV and I2NP message ID checks. Default false.
+     */
+    public static final String PROP_ENABLE = "router.lockFreeDecayingBloomFilter";
+
+    private static final int DEFAULT_M = 23;
+    private static final int STRIPES = 16;
+    private static final int PAD = 8;
+
+    /** immutable */
+    private static class Generation {
+        final AtomicLongArray current, previous;
+
+        Generation(AtomicLongArray current, AtomicLongArray previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Uses default m of 23, memory usage is 3 MB.
+     *
+     * @param durationMs entries last for at least this long, but no more than twice this long
+     * @param entryBytes how large are the entries to be added?
+     * @param name just for logging / debugging / stats
+     */
+    public LockFreeDecayingBloomFilter(I2PAppContext context, int durationMs, int entryBytes, String name) {
+        this(context, durationMs, entryBytes, name, DEFAULT_M);
+    }
+
+    /**
+     * Memory usage is 3 * (2**m) bits or 3 * 2**(m-3) bytes.
+     *
+     * @param m filter size exponent, 6 to 29
+     */
+    public LockFreeDecayingBloomFilter(I2PAppContext context, int durationMs, int entryBytes, String name, int m) {
+        super(durationMs, entryBytes, name, context);
+        if (m < 6 || m > 29)
+            throw new IllegalArgumentException("m must be 6 to 29");
+        // same as the superclass
+        int k = 11;
+        if (m > DEFAULT_M) {
+            k--;
+            if (m > 26)
+                k--;
+        }
+        _k = k;
+        _mask = (1 << m) - 1;
+        _words = 1 << (m - 6);
+        _k0 = context.random().nextLong();
+        _k1 = context.random().nextLong();
+        _gen = new Generation(new AtomicLongArray(_words), new AtomicLongArray(_words));
+        _spare = new AtomicLongArray(_words);
+        _counts = new AtomicLongArray(STRIPES * PAD);
+        if (_log.shouldLog(Log.WARN))
+           _log.warn("New LFDBF " + name + " m = " + m + " k = " + k + " entryBytes = " + entryBytes +
+                     " cycle (s) = " + (durationMs / 1000));
+        context.statManager().createRateStat("router.decayingBloomFilter." + name + ".size",
+             "Size", "Router", new long[] { 10 * Math.max(60*1000, durationMs) });
+        context.statManager().createRateStat("router.decayingBloomFilter." + name + ".dups",
+             "1000000 * Duplicates/Size", "Router", new long[] { 10 * Math.max(60*1000, durationMs) });
+    }
+
+    @Override
+    public long getCurrentDuplicateCount() { return _dups.get(); }
+
+    /** approximate, current period only */
+    @Override
+    public int getInsertedCount() {
+        return (int) sumCounts();
+    }
+
+    /** current period only */
+    @Override
+    public double getFalsePositiveRate() {
+        // (1 - e(-kN/M))^k
+        return Math.pow(1d - Math.exp(0d - ((double) _k) * sumCounts() / (_mask + 1d)), _k);
+    }
+
+    /**
+     * @return true if the entry added is a duplicate
+     */
+    @Override
+    public boolean add(byte entry[], int off, int len) {
+        if (entry == null)
+            throw new IllegalArgumentException("Null entry");
+        if (len != _entryBytes)
+            throw new IllegalArgumentException("Bad entry [" + len + ", expected "
+                                               + _entryBytes + "]");
+        return add(SipHashInline.hash24(_k0, _k1, entry, off, len), true);
+    }
+
+    /**
+     * @return true if the entry added is a duplicate
+     */
+    @Override
+    public boolean add(long entry) {
+        return add(mix(entry), true);
+    }
+
+    /**
+     * @return true if the entry is already known. This does NOT add the entry.
+     */
+    @Override
+    public boolean isKnown(long entry) {
+        return add(mix(entry), false);
+    }
+
+    /**
+     *  Keyed, so it can't be attacked with chosen entries
+     */
+    private long mix(long entry) {
+        return mix(_k0, _k1, entry);
+    }
+
+    /**
+     *  The same as SipHashInline.hash24() of the 8 bytes from DataHelper.toLong(),
+     *  without the byte array, as this is on every add() and isKnown().
+     *  Package private for testing.
+     */
+    static long mix(long k0, long k1, long entry) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        // the big-endian bytes, read as a little-endian block
+        long m = Long.reverseBytes(entry);
+        v3 ^= m;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 ^= m;
+        // the last block, empty but for the length
+        m = 8L << 56;
+        v3 ^= m;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 ^= m;
+        v2 ^= 0xff;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        v0 += v1;                    v2 += v3;
+        v1 = (v1 << 13) | v1 >>> 51; v3 = (v3 << 16) | v3 >>> 48;
+        v1 ^= v0;                    v3 ^= v2;
+        v0 = (v0 << 32) | v0 >>> 32; v2 += v1;
+        v0 += v3;                    v1 = (v1 << 17) | v1 >>> 47;
+        v3 = (v3 << 21) | v3 >>> 43; v1 ^= v2;
+        v3 ^= v0;                    v2 = (v2 << 32) | v2 >>> 32;
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    /**
+     *  Double hashing, as in Kirsch and Mitzenmacher, "Less Hashing, Same Performance".
+     */
+    private boolean add(long hash, boolean addIfNew) {
+        int h1 = (int) hash;
+        int h2 = ((int) (hash >>> 32)) | 1;
+        Generation gen = _gen;
+        if (isMember(gen.current, h1, h2) || isMember(gen.previous, h1, h2)) {
+            _dups.incrementAndGet();
+            return true;
+        }
+        if (!addIfNew)
+            return false;
+        AtomicLongArray bits = gen.current;
+        boolean changed = false;
+        for (int i = 0; i < _k; i++) {
+            int idx = (h1 + i * h2) & _mask;
+            int word = idx >>> 6;
+            long bit = 1L << idx;
+            while (true) {
+                long old = bits.get(word);
+                if ((old & bit) != 0)
+                    break;
+                if (bits.compareAndSet(word, old, old | bit)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (!changed) {
+            // another thread added it after our check
+            _dups.incrementAndGet();
+            return true;
+        }
+        _counts.incrementAndGet((h1 & (STRIPES - 1)) * PAD);
+        return false;
+    }
+
+    private boolean isMember(AtomicLongArray bits, int h1, int h2) {
+        for (int i = 0; i < _k; i++) {
+            int idx = (h1 + i * h2) & _mask;
+            if ((bits.get(idx >>> 6) & (1L << idx)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private long sumCounts() {
+        long rv = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            rv += _counts.get(i * PAD);
+        }
+        return rv;
+    }
+
+    private long resetCounts() {
+        long rv = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            rv += _counts.getAndSet(i * PAD, 0);
+        }
+        return rv;
+    }
+
+    private static void clear(AtomicLongArray bits) {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.lazySet(i, 0);
+        }
+    }
+
+    /**
+     *  Not atomic, concurrent adds may or may not survive.
+     */
+    @Override
+    public synchronized void clear() {
+        Generation gen = _gen;
+        clear(gen.current);
+        clear(gen.previous);
+        resetCounts();
+        _dups.set(0);
+    }
+
+    @Override
+    protected synchronized void decay() {
+        Generation old = _gen;
+        _gen = new Generation(_spare, old.current);
+        long currentCount = resetCounts();
+        long dups = _dups.getAndSet(0);
+        // no longer visible to new adds or checks
+        _spare = old.previous;
+        clear(_spare);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Decaying the filter " + _name + " after inserting " + currentCount
+                       + " elements and " + dups + " duplicates");
+        _context.statManager().addRateData("router.decayingBloomFilter." + _name + ".size",
+                                           currentCount);
+        if (currentCount > 0)
+            _context.statManager().addRateData("router.decayingBloomFilter." + _name + ".dups",
+                                               1000l*1000*dups/currentCount);
+    }
+}
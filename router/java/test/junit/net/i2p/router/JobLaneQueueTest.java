@@ -0,0 +1,69 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check the JobLaneQueue priority and starvation handling.
+ */
+public class JobLaneQueueTest {
+
+    private static RouterContext _context;
+
+    @BeforeClass
+    public static void globalSetUp() {
+        _context = new RouterContext(null);
+    }
+
+    /** not in any of the client or netdb packages */
+    private static class BulkJob extends JobImpl {
+        public BulkJob() { super(_context); }
+        public String getName() { return "Bulk job"; }
+        public void runJob() {}
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(JobLaneQueue.Lane.BULK, JobLaneQueue.getLane(new BulkJob()));
+        assertEquals(JobLaneQueue.Lane.CLIENT, JobLaneQueue.classify("net.i2p.router.tunnel.pool.TestJob"));
+        assertEquals(JobLaneQueue.Lane.CLIENT, JobLaneQueue.classify("net.i2p.router.message.OutboundClientMessageOneShotJob"));
+        assertEquals(JobLaneQueue.Lane.NETDB, JobLaneQueue.classify("net.i2p.router.networkdb.kademlia.HandleFloodfillDatabaseLookupMessageJob"));
+        assertEquals(JobLaneQueue.Lane.NETDB, JobLaneQueue.classify("net.i2p.router.networkdb.kademlia.IterativeSearchJob"));
+        assertEquals(JobLaneQueue.Lane.BULK, JobLaneQueue.classify("net.i2p.router.peermanager.PeerManager$ReorgJob"));
+    }
+
+    @Test
+    public void testSingle() throws InterruptedException {
+        JobLaneQueue q = new JobLaneQueue();
+        Job bulk = new BulkJob();
+        q.offer(bulk);
+        assertEquals(1, q.size());
+        assertTrue(q.contains(bulk));
+        assertSame(bulk, q.peek());
+        assertSame(bulk, q.peek(JobLaneQueue.Lane.BULK));
+        assertNull(q.peek(JobLaneQueue.Lane.CLIENT));
+        assertSame(bulk, q.take());
+        assertEquals(0, q.size());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void testRemove() throws InterruptedException {
+        JobLaneQueue q = new JobLaneQueue();
+        Job a = new BulkJob();
+        Job b = new BulkJob();
+        q.offer(a);
+        q.offer(b);
+        assertTrue(q.remove(a));
+        assertFalse(q.remove(a));
+        assertEquals(1, q.size());
+        assertSame(b, q.take());
+        assertNull(q.poll());
+        q.offer(a);
+        q.clear();
+        assertEquals(0, q.size());
+        assertNull(q.poll());
+    }
+}
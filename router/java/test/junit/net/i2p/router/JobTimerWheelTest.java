@@ -0,0 +1,126 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check that the JobTimerWheel never runs a job early,
+ * runs it no more than one tick late, and handles remove and reschedule.
+ */
+public class JobTimerWheelTest {
+
+    private static RouterContext _context;
+    /** an arbitrary fixed time, so the tests don't depend on the clock */
+    private static final long BASE = 1500000000123L;
+
+    @BeforeClass
+    public static void globalSetUp() {
+        _context = new RouterContext(null);
+    }
+
+    private static class TestJob extends JobImpl {
+        public TestJob(long start) {
+            super(_context);
+            getTiming().setStartAfter(start);
+        }
+        public String getName() { return "Test job"; }
+        public void runJob() {}
+    }
+
+    @Test
+    public void testSingle() {
+        JobTimerWheel wheel = new JobTimerWheel(BASE);
+        Job j = new TestJob(BASE + 1000);
+        assertTrue(wheel.add(j));
+        assertTrue(wheel.contains(j));
+        assertEquals(1, wheel.size());
+        List<Job> ready = new ArrayList<Job>();
+        assertEquals(0, wheel.expire(BASE + 999, ready));
+        assertTrue(ready.isEmpty());
+        assertEquals(1, wheel.expire(BASE + 1000 + JobTimerWheel.TICK, ready));
+        assertSame(j, ready.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRemoveAndReschedule() {
+        JobTimerWheel wheel = new JobTimerWheel(BASE);
+        Job a = new TestJob(BASE + 100);
+        Job b = new TestJob(BASE + 200);
+        wheel.add(a);
+        wheel.add(b);
+        assertTrue(wheel.remove(a));
+        assertFalse(wheel.remove(a));
+        b.getTiming().setStartAfter(BASE + 60*1000);
+        assertFalse(wheel.add(b));
+        assertEquals(1, wheel.size());
+        List<Job> ready = new ArrayList<Job>();
+        assertEquals(0, wheel.expire(BASE + 30*1000, ready));
+        assertEquals(1, wheel.expire(BASE + 61*1000, ready));
+        assertSame(b, ready.get(0));
+    }
+
+    @Test
+    public void testMovedLaterWithoutAdd() {
+        JobTimerWheel wheel = new JobTimerWheel(BASE);
+        Job j = new TestJob(BASE + 100);
+        wheel.add(j);
+        j.getTiming().setStartAfter(BASE + 10*1000);
+        List<Job> ready = new ArrayList<Job>();
+        assertEquals(0, wheel.expire(BASE + 5000, ready));
+        assertTrue(wheel.contains(j));
+        assertEquals(1, wheel.expire(BASE + 10*1000 + JobTimerWheel.TICK, ready));
+    }
+
+    /**
+     * Random times out to several days, stepping the clock in random increments
+     */
+    @Test
+    public void testRandomNeverEarly() {
+        Random rand = new Random(42);
+        JobTimerWheel wheel = new JobTimerWheel(BASE);
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            long delay;
+            switch (i % 4) {
+                case 0:  delay = rand.nextInt(5000); break;
+                case 1:  delay = rand.nextInt(10*60*1000); break;
+                case 2:  delay = rand.nextInt(6*60*60*1000); break;
+                default: delay = (long) rand.nextInt(3*24*60*60) * 1000; break;
+            }
+            wheel.add(new TestJob(BASE + delay));
+        }
+        List<Job> ready = new ArrayList<Job>();
+        long now = BASE;
+        int total = 0;
+        while (wheel.size() > 0) {
+            now += 1 + rand.nextInt(2*60*1000);
+            ready.clear();
+            total += wheel.expire(now, ready);
+            for (Job j : ready) {
+                long start = j.getTiming().getStartAfter();
+                assertTrue("early", start <= now);
+            }
+            // anything still in the wheel must not be due more than a tick ago
+            assertTrue(wheel.getTimeToNext(now) > 0);
+        }
+        assertEquals(count, total);
+    }
+
+    @Test
+    public void testTimeToNext() {
+        JobTimerWheel wheel = new JobTimerWheel(BASE);
+        List<Job> ready = new ArrayList<Job>();
+        wheel.expire(BASE, ready);
+        wheel.add(new TestJob(BASE + 500));
+        long ttn = wheel.getTimeToNext(BASE);
+        assertTrue(ttn >= 500);
+        assertTrue(ttn <= 500 + JobTimerWheel.TICK);
+    }
+}
@@ -0,0 +1,95 @@
+package net.i2p.router.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.i2p.data.SessionTag;
+
+import org.junit.Test;
+
+/**
+ * Check the SessionTagTable against a HashMap with random operations.
+ */
+public class SessionTagTableTest {
+
+    private static SessionTag tag(int i) {
+        byte[] data = new byte[SessionTag.BYTE_LENGTH];
+        // only the end differs
+        data[30] = (byte) (i >> 8);
+        data[31] = (byte) i;
+        return new SessionTag(data);
+    }
+
+    @Test
+    public void testRandom() {
+        SessionTagTable<Integer> table = new SessionTagTable<Integer>();
+        Map<SessionTag, Integer> map = new HashMap<SessionTag, Integer>();
+        Random r = new Random(1234);
+        for (int i = 0; i < 200000; i++) {
+            SessionTag tag = tag(r.nextInt(5000));
+            switch (r.nextInt(4)) {
+                case 0:
+                case 1: {
+                    Integer owner = Integer.valueOf(r.nextInt(10));
+                    int slot = table.find(tag);
+                    if (map.containsKey(tag)) {
+                        assertTrue(slot >= 0);
+                    } else {
+                        assertEquals(-1, slot);
+                        table.add(tag, owner);
+                        map.put(tag, owner);
+                    }
+                    break;
+                }
+                case 2:
+                    assertSame(map.remove(tag), table.remove(tag));
+                    break;
+                default:
+                    assertSame(map.get(tag), table.get(tag));
+                    break;
+            }
+            assertEquals(map.size(), table.size());
+        }
+        for (Map.Entry<SessionTag, Integer> e : map.entrySet()) {
+            assertSame(e.getValue(), table.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testSlots() {
+        SessionTagTable<String> table = new SessionTagTable<String>();
+        String a = "a";
+        String b = "b";
+        List<Integer> slots = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            slots.add(table.add(tag(i), a));
+        }
+        assertEquals(1000, table.size());
+        // consume one, and reuse its slot for another owner
+        int s0 = slots.get(0).intValue();
+        assertSame(a, table.remove(tag(0)));
+        assertEquals(s0, table.add(tag(5000), b));
+        assertFalse(table.removeSlot(s0, a));
+        assertSame(b, table.get(tag(5000)));
+        // change the owner
+        int s1 = table.find(tag(1));
+        table.setOwner(s1, b);
+        assertFalse(table.removeSlot(s1, a));
+        for (int i = 2; i < 1000; i++) {
+            assertTrue(table.removeSlot(slots.get(i).intValue(), a));
+        }
+        assertEquals(2, table.size());
+        assertNull(table.get(tag(500)));
+        assertSame(b, table.get(tag(1)));
+        assertTrue(table.removeSlot(s1, b));
+        assertTrue(table.removeSlot(s0, b));
+        assertEquals(0, table.size());
+        // shrinks when empty
+        assertTrue(table.capacity() < 1000);
+    }
+}
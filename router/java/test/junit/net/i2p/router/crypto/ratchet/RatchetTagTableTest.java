@@ -0,0 +1,92 @@
+package net.i2p.router.crypto.ratchet;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.HKDF;
+import net.i2p.data.SessionKey;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check the RatchetTagTable against a HashMap with random operations.
+ */
+public class RatchetTagTableTest {
+
+    private static RatchetTagSet _old, _new;
+
+    @BeforeClass
+    public static void globalSetUp() {
+        HKDF hkdf = new HKDF(I2PAppContext.getGlobalContext());
+        SessionKey k = new SessionKey(new byte[32]);
+        _old = new RatchetTagSet(hkdf, k, k, 1000, 0);
+        _new = new RatchetTagSet(hkdf, k, k, 5000, 1);
+    }
+
+    @Test
+    public void testRandom() {
+        RatchetTagTable table = new RatchetTagTable();
+        Map<Long, RatchetTagSet> map = new HashMap<Long, RatchetTagSet>();
+        Random r = new Random(1234);
+        for (int i = 0; i < 200000; i++) {
+            // small key range so there are lots of hits and collisions
+            long tag = r.nextInt(20000);
+            if ((i & 1) != 0)
+                tag = tag * 0x10001L - Long.MAX_VALUE;
+            switch (r.nextInt(4)) {
+                case 0:
+                case 1: {
+                    RatchetTagSet ts = r.nextBoolean() ? _old : _new;
+                    boolean added = !map.containsKey(tag);
+                    if (added)
+                        map.put(tag, ts);
+                    assertEquals(added, table.putIfAbsent(tag, ts));
+                    break;
+                }
+                case 2:
+                    assertSame(map.remove(tag), table.remove(tag));
+                    break;
+                default:
+                    assertSame(map.get(tag), table.get(tag));
+                    break;
+            }
+        }
+        assertEquals(map.size(), table.size());
+        for (Map.Entry<Long, RatchetTagSet> e : map.entrySet()) {
+            assertSame(e.getValue(), table.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testBulkAndExpire() {
+        RatchetTagTable table = new RatchetTagTable();
+        long[] oldTags = new long[1000];
+        long[] newTags = new long[1000];
+        for (int i = 0; i < 1000; i++) {
+            oldTags[i] = i;
+            newTags[i] = -1 - i;
+        }
+        assertEquals(1000, table.putAll(oldTags, 0, 1000, _old));
+        assertEquals(1000, table.putAll(newTags, 0, 1000, _new));
+        // dups not added
+        assertEquals(0, table.putAll(oldTags, 0, 10, _new));
+        assertEquals(2000, table.size());
+        assertEquals(2, table.values().size());
+        // only removes tags mapped to the given tagset
+        assertEquals(0, table.removeAll(oldTags, 0, 10, _new));
+        assertEquals(10, table.removeAll(oldTags, 0, 10, _old));
+        assertFalse(table.remove(newTags[0], _old));
+        assertTrue(table.remove(newTags[0], _new));
+        assertEquals(990, table.expire(2000));
+        assertEquals(999, table.size());
+        assertNull(table.get(oldTags[500]));
+        assertSame(_new, table.get(newTags[500]));
+        table.clear();
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,87 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+import net.i2p.util.RandomSource;
+
+import org.junit.Test;
+
+/**
+ * @since 0.9.45
+ */
+public class FloodfillIndexTest {
+
+    private static Hash randomHash() {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        RandomSource.getInstance().nextBytes(b);
+        return new Hash(b);
+    }
+
+    /** the pre-0.9.45 way */
+    private static List<Hash> sortAll(Set<Hash> all, Hash key, int max, final Set<Hash> toIgnore) {
+        List<Hash> rv = new ArrayList<Hash>(all.size());
+        for (Hash h : all) {
+            if (!toIgnore.contains(h))
+                rv.add(h);
+        }
+        Collections.sort(rv, new XORComparator<Hash>(key));
+        if (rv.size() > max)
+            rv = rv.subList(0, max);
+        return rv;
+    }
+
+    @Test
+    public void testClosest() {
+        Set<Hash> all = new HashSet<Hash>();
+        for (int i = 0; i < 3000; i++) {
+            all.add(randomHash());
+        }
+        // some with a long common prefix
+        Hash base = randomHash();
+        for (int i = 0; i < 20; i++) {
+            byte[] b = randomHash().getData();
+            System.arraycopy(base.getData(), 0, b, 0, 12);
+            all.add(new Hash(b));
+        }
+        final Set<Hash> toIgnore = new HashSet<Hash>();
+        for (Hash h : all) {
+            if (RandomSource.getInstance().nextInt(5) == 0)
+                toIgnore.add(h);
+        }
+        FloodfillIndex.Filter filter = new FloodfillIndex.Filter() {
+            public boolean accept(Hash h) { return !toIgnore.contains(h); }
+        };
+        FloodfillIndex index = new FloodfillIndex(all, 0);
+        assertEquals(all.size(), index.size());
+        List<Hash> keys = new ArrayList<Hash>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(randomHash());
+        }
+        keys.add(base);
+        keys.add(index.getAll().get(7));
+        for (Hash key : keys) {
+            for (int max : new int[] { 1, 5, 16 }) {
+                assertEquals(sortAll(all, key, max, toIgnore), index.getClosest(key, max, filter));
+            }
+        }
+        Hash key = randomHash();
+        assertEquals(sortAll(all, key, 5000, Collections.<Hash>emptySet()), index.getClosest(key, 5000, null));
+        assertTrue(index.getClosest(key, 0, null).isEmpty());
+    }
+
+    @Test
+    public void testEmpty() {
+        FloodfillIndex index = new FloodfillIndex(Collections.<Hash>emptySet(), 0);
+        assertTrue(index.getClosest(randomHash(), 5, null).isEmpty());
+        index = new FloodfillIndex(Collections.singleton(Hash.FAKE_HASH), 0);
+        assertEquals(Collections.singletonList(Hash.FAKE_HASH), index.getClosest(randomHash(), 5, null));
+    }
+}
@@ -0,0 +1,189 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.RandomSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @since 0.9.45
+ */
+public class SegmentedRouterInfoStoreTest {
+
+    private I2PAppContext _context;
+    private File _dbDir;
+    private File _segDir;
+
+    @Before
+    public void setUp() throws IOException {
+        _context = I2PAppContext.getGlobalContext();
+        _dbDir = new File(System.getProperty("java.io.tmpdir"), "segtest-" + _context.random().nextLong(Long.MAX_VALUE));
+        assertTrue(_dbDir.mkdirs());
+        _segDir = new File(_dbDir, SegmentedRouterInfoStore.DIR_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.rmdir(_dbDir, false);
+    }
+
+    private static Hash randomHash() {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        RandomSource.getInstance().nextBytes(b);
+        return new Hash(b);
+    }
+
+    private static byte[] randomData() {
+        byte[] b = new byte[500 + RandomSource.getInstance().nextInt(1000)];
+        RandomSource.getInstance().nextBytes(b);
+        return b;
+    }
+
+    private File getFile(Hash h) {
+        String b64 = h.toBase64();
+        File dir = new File(_dbDir, PersistentDataStore.DIR_PREFIX + b64.charAt(0));
+        return new File(dir, PersistentDataStore.ROUTERINFO_PREFIX + b64 + PersistentDataStore.ROUTERINFO_SUFFIX);
+    }
+
+    @Test
+    public void testPutGetRemoveReopen() throws IOException {
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(_context, _segDir);
+        Hash[] keys = new Hash[100];
+        byte[][] data = new byte[100][];
+        for (int i = 0; i < 100; i++) {
+            keys[i] = randomHash();
+            data[i] = randomData();
+            assertTrue(store.put(keys[i], 1000 + i, data[i]));
+        }
+        // older or same is ignored
+        assertFalse(store.put(keys[0], 1000, randomData()));
+        byte[] newer = randomData();
+        assertTrue(store.put(keys[1], 5000, newer));
+        data[1] = newer;
+        assertTrue(store.remove(keys[2]));
+        assertFalse(store.remove(keys[2]));
+        assertEquals(99, store.size());
+        assertArrayEquals(data[50], store.get(keys[50]));
+        store.close();
+
+        store = new SegmentedRouterInfoStore(_context, _segDir);
+        assertEquals(99, store.size());
+        assertNull(store.get(keys[2]));
+        assertEquals(5000, store.getDate(keys[1]));
+        for (int i = 0; i < 100; i++) {
+            if (i != 2)
+                assertArrayEquals(data[i], store.get(keys[i]));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(_context, _segDir);
+        Hash k1 = randomHash();
+        Hash k2 = randomHash();
+        byte[] d1 = randomData();
+        store.put(k1, 1, d1);
+        store.put(k2, 1, randomData());
+        store.close();
+
+        // cut the last record in half, as after a crash
+        File f = _segDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() - 300);
+        raf.close();
+
+        store = new SegmentedRouterInfoStore(_context, _segDir);
+        assertEquals(1, store.size());
+        assertArrayEquals(d1, store.get(k1));
+        assertNull(store.get(k2));
+        // appends after the good record
+        byte[] d2 = randomData();
+        store.put(k2, 2, d2);
+        store.close();
+        store = new SegmentedRouterInfoStore(_context, _segDir);
+        assertEquals(2, store.size());
+        assertArrayEquals(d2, store.get(k2));
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(_context, _segDir);
+        Hash[] keys = new Hash[50];
+        byte[][] data = new byte[50][];
+        for (int i = 0; i < 50; i++) {
+            keys[i] = randomHash();
+        }
+        // rewrite each one 100 times, about 5 MB over two segments
+        for (int j = 0; j < 100; j++) {
+            for (int i = 0; i < 50; i++) {
+                data[i] = randomData();
+                store.put(keys[i], j + 1, data[i]);
+            }
+        }
+        assertTrue(store.compactIfNeeded());
+        assertFalse(store.compactIfNeeded());
+        assertEquals(1, _segDir.listFiles().length);
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(data[i], store.get(keys[i]));
+        }
+        Hash k = randomHash();
+        byte[] d = randomData();
+        store.put(k, 1, d);
+        store.close();
+
+        store = new SegmentedRouterInfoStore(_context, _segDir);
+        assertEquals(51, store.size());
+        assertArrayEquals(d, store.get(k));
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(data[i], store.get(keys[i]));
+            assertEquals(100, store.getDate(keys[i]));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testImportExport() throws IOException {
+        Hash[] keys = new Hash[20];
+        byte[][] data = new byte[20][];
+        for (int i = 0; i < 20; i++) {
+            keys[i] = randomHash();
+            data[i] = randomData();
+            File f = getFile(keys[i]);
+            f.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(data[i]);
+            out.close();
+            f.setLastModified(1000000000000L + i * 1000);
+        }
+        SegmentedRouterInfoStore store = new SegmentedRouterInfoStore(_context, _segDir);
+        assertEquals(20, store.importFiles(_dbDir));
+        assertEquals(20, store.size());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(data[i], store.get(keys[i]));
+            assertEquals(1000000000000L + i * 1000, store.getDate(keys[i]));
+            assertFalse(getFile(keys[i]).exists());
+        }
+
+        assertEquals(20, store.exportFiles(_dbDir, false));
+        store.delete();
+        assertFalse(SegmentedRouterInfoStore.exists(_segDir));
+        for (int i = 0; i < 20; i++) {
+            File f = getFile(keys[i]);
+            assertEquals(data[i].length, f.length());
+            assertEquals(1000000000000L + i * 1000, f.lastModified());
+        }
+    }
+}
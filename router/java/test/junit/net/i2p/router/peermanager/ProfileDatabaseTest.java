@@ -0,0 +1,165 @@
+package net.i2p.router.peermanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.RandomSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @since 0.9.45
+ */
+public class ProfileDatabaseTest {
+
+    private I2PAppContext _context;
+    private File _dir;
+    private File _file;
+
+    @Before
+    public void setUp() throws IOException {
+        _context = I2PAppContext.getGlobalContext();
+        _dir = new File(System.getProperty("java.io.tmpdir"), "profiletest-" + _context.random().nextLong(Long.MAX_VALUE));
+        assertTrue(_dir.mkdirs());
+        _file = new File(_dir, ProfileDatabase.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.rmdir(_dir, false);
+    }
+
+    private static Hash randomHash() {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        RandomSource.getInstance().nextBytes(b);
+        return new Hash(b);
+    }
+
+    private static Properties randomProps() {
+        Properties rv = new Properties();
+        RandomSource rand = RandomSource.getInstance();
+        for (int i = 0; i < 100; i++) {
+            rv.setProperty("rate" + rand.nextInt(20) + ".period" + i, Long.toString(rand.nextLong()));
+        }
+        rv.setProperty("tunnelTestTimeAverage", Float.toString(rand.nextFloat()));
+        rv.setProperty("empty", "");
+        return rv;
+    }
+
+    @Test
+    public void testPutGetRemoveReopen() throws IOException {
+        ProfileDatabase db = new ProfileDatabase(_context, _file);
+        Hash[] keys = new Hash[100];
+        Properties[] props = new Properties[100];
+        for (int i = 0; i < 100; i++) {
+            keys[i] = randomHash();
+            props[i] = randomProps();
+            db.put(keys[i], 1000 + i, props[i]);
+        }
+        // before and after flush
+        assertEquals(props[10], db.get(keys[10]));
+        db.flush();
+        assertEquals(props[20], db.get(keys[20]));
+        Properties newer = randomProps();
+        db.put(keys[1], 5000, newer);
+        props[1] = newer;
+        assertTrue(db.remove(keys[2]));
+        assertFalse(db.remove(keys[2]));
+        assertEquals(3, db.removeOlderThan(1005));
+        assertEquals(96, db.size());
+        db.close();
+
+        db = new ProfileDatabase(_context, _file);
+        assertEquals(96, db.size());
+        assertNull(db.get(keys[0]));
+        assertNull(db.get(keys[2]));
+        assertEquals(5000, db.getDate(keys[1]));
+        for (int i = 5; i < 100; i++) {
+            assertEquals(props[i], db.get(keys[i]));
+            assertEquals(1000 + i, db.getDate(keys[i]));
+        }
+        // new keys after reopen
+        Properties p = randomProps();
+        p.setProperty("another.key", "1");
+        db.put(keys[0], 7000, p);
+        db.close();
+        db = new ProfileDatabase(_context, _file);
+        assertEquals(p, db.get(keys[0]));
+        db.close();
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        ProfileDatabase db = new ProfileDatabase(_context, _file);
+        Hash k1 = randomHash();
+        Hash k2 = randomHash();
+        Properties p1 = randomProps();
+        db.put(k1, 1, p1);
+        db.put(k2, 1, randomProps());
+        db.close();
+
+        // cut the last record in half, as after a crash
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        raf.setLength(raf.length() - 300);
+        raf.close();
+
+        db = new ProfileDatabase(_context, _file);
+        assertEquals(1, db.size());
+        assertEquals(p1, db.get(k1));
+        assertNull(db.get(k2));
+        // appends after the good record
+        Properties p2 = randomProps();
+        db.put(k2, 2, p2);
+        db.close();
+        db = new ProfileDatabase(_context, _file);
+        assertEquals(2, db.size());
+        assertEquals(p2, db.get(k2));
+        db.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        ProfileDatabase db = new ProfileDatabase(_context, _file);
+        Hash[] keys = new Hash[50];
+        Properties[] props = new Properties[50];
+        for (int i = 0; i < 50; i++) {
+            keys[i] = randomHash();
+        }
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < 50; i++) {
+                props[i] = randomProps();
+                db.put(keys[i], j + 1, props[i]);
+            }
+            db.flush();
+        }
+        long before = _file.length();
+        assertTrue(db.compactIfNeeded());
+        assertFalse(db.compactIfNeeded());
+        assertTrue(_file.length() < before / 10);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(props[i], db.get(keys[i]));
+        }
+        Hash k = randomHash();
+        Properties p = randomProps();
+        db.put(k, 1, p);
+        db.close();
+
+        db = new ProfileDatabase(_context, _file);
+        assertEquals(51, db.size());
+        assertEquals(p, db.get(k));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(props[i], db.get(keys[i]));
+            assertEquals(20, db.getDate(keys[i]));
+        }
+        db.close();
+    }
+}
@@ -0,0 +1,67 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import net.i2p.router.OutNetMessage;
+import net.i2p.router.transport.FIFOBandwidthLimiter.TrafficClass;
+
+import org.junit.Test;
+
+/**
+ * Check that a chain of shares takes from each capped share
+ * and the root, and gives back what it couldn't use.
+ */
+public class BandwidthShareTest {
+
+    @Test
+    public void testTryAcquire() {
+        TokenBucket root = new TokenBucket();
+        root.refill(1000, 1000, 0, 0);
+        BandwidthShare transport = new BandwidthShare("NTCP");
+        BandwidthShare part = new BandwidthShare("participating");
+        part.setPercent(30);
+        transport.refill(1000, 1000);
+        part.refill(1000, 1000);
+        BandwidthShare[] chain = new BandwidthShare[] { transport, part };
+        assertTrue(BandwidthShare.tryAcquire(chain, root, 200));
+        assertEquals(800, root.getAvailable());
+        // over the share, nothing taken
+        assertFalse(BandwidthShare.tryAcquire(chain, root, 200));
+        assertEquals(800, root.getAvailable());
+        assertTrue(BandwidthShare.tryAcquire(chain, root, 100));
+        assertEquals(700, root.getAvailable());
+        // uncapped share is limited by the root only
+        assertTrue(BandwidthShare.tryAcquire(new BandwidthShare[] { transport }, root, 700));
+        assertEquals(0, root.getAvailable());
+        assertEquals(1000, transport.getAllocatedSinceLast());
+        assertEquals(300, part.getAllocatedSinceLast());
+        assertEquals(0, part.getAllocatedSinceLast());
+    }
+
+    @Test
+    public void testAcquireUpTo() {
+        TokenBucket root = new TokenBucket();
+        root.refill(100, 1000, 0, 0);
+        BandwidthShare part = new BandwidthShare("participating");
+        part.setPercent(50);
+        part.refill(1000, 1000);
+        BandwidthShare[] chain = new BandwidthShare[] { part };
+        // limited by the root, the rest goes back to the share
+        assertEquals(100, BandwidthShare.acquireUpTo(chain, root, 300));
+        assertEquals(0, BandwidthShare.acquireUpTo(chain, root, 300));
+        root.refill(1000, 1000, 0, 0);
+        // share had 500, 100 used
+        assertEquals(400, BandwidthShare.acquireUpTo(chain, root, 1000));
+        assertEquals(600, root.getAvailable());
+    }
+
+    @Test
+    public void testTrafficClass() {
+        assertEquals(TrafficClass.LOCAL, TrafficClass.fromPriority(0));
+        assertEquals(TrafficClass.LOCAL, TrafficClass.fromPriority(OutNetMessage.PRIORITY_MY_DATA));
+        assertEquals(TrafficClass.LOCAL, TrafficClass.fromPriority(OutNetMessage.PRIORITY_MY_BUILD_REQUEST));
+        assertEquals(TrafficClass.PARTICIPATING, TrafficClass.fromPriority(OutNetMessage.PRIORITY_PARTICIPATING));
+        assertEquals(TrafficClass.PARTICIPATING, TrafficClass.fromPriority(OutNetMessage.PRIORITY_BUILD_REPLY));
+        assertEquals(TrafficClass.NETDB, TrafficClass.fromPriority(OutNetMessage.PRIORITY_NETDB_EXPLORE));
+    }
+}
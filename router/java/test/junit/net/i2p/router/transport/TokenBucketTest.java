@@ -0,0 +1,82 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Check that the TokenBucket never overdraws under contention,
+ * and that refill moves the excess to the burst reserve and back.
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void testAcquire() {
+        TokenBucket tb = new TokenBucket();
+        tb.refill(1000, 2000, 0, 0);
+        assertEquals(1000, tb.getAvailable());
+        assertFalse(tb.tryAcquire(1001));
+        assertTrue(tb.tryAcquire(600));
+        assertEquals(400, tb.acquireUpTo(600));
+        assertEquals(0, tb.acquireUpTo(600));
+        assertFalse(tb.tryAcquire(1));
+        assertTrue(tb.tryAcquire(0));
+        assertEquals(0, tb.getAvailable());
+    }
+
+    @Test
+    public void testBurst() {
+        TokenBucket tb = new TokenBucket();
+        // 500 over the max goes to the burst reserve, capped at 300
+        tb.refill(1500, 1000, 300, 0);
+        assertEquals(1000, tb.getAvailable());
+        assertEquals(300, tb.getBurst());
+        assertTrue(tb.tryAcquire(1000));
+        // top up from the burst reserve, at most 200 this time
+        tb.refill(100, 1000, 300, 200);
+        assertEquals(300, tb.getAvailable());
+        assertEquals(100, tb.getBurst());
+        tb.refill(0, 1000, 300, 200);
+        assertEquals(400, tb.getAvailable());
+        assertEquals(0, tb.getBurst());
+        tb.clear();
+        assertEquals(0, tb.getAvailable());
+    }
+
+    @Test
+    public void testContention() throws InterruptedException {
+        final TokenBucket tb = new TokenBucket();
+        final int threads = 8;
+        final int total = 1000000;
+        final AtomicLong granted = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        tb.refill(total, total, 0, 0);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {}
+                    int got = 0;
+                    for (int j = 0; j < total; j++) {
+                        if (tb.tryAcquire(7))
+                            got += 7;
+                        else
+                            got += tb.acquireUpTo(3);
+                    }
+                    granted.addAndGet(got);
+                    done.countDown();
+                }
+            };
+            t.start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(total, granted.get());
+        assertEquals(0, tb.getAvailable());
+    }
+}
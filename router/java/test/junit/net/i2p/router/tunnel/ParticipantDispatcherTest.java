@@ -0,0 +1,83 @@
+package net.i2p.router.tunnel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Hash;
+import net.i2p.data.i2np.TunnelDataMessage;
+import net.i2p.router.RouterContext;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check that the ParticipantDispatcher keeps the order of messages within a tunnel.
+ */
+public class ParticipantDispatcherTest {
+
+    private static RouterContext _context;
+
+    @BeforeClass
+    public static void globalSetUp() {
+        _context = new RouterContext(null);
+    }
+
+    /** records the message IDs, in the order dispatched */
+    private static class TestParticipant extends TunnelParticipant {
+        final List<Long> ids = new ArrayList<Long>();
+        final CountDownLatch latch;
+
+        public TestParticipant(int count) {
+            super(_context, new HopConfig(), null);
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void dispatch(TunnelDataMessage msg, Hash recvFrom) {
+            synchronized (ids) {
+                ids.add(msg.getUniqueId());
+            }
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testOrderPerTunnel() throws Exception {
+        // Tunnels 1000 - 1009 on 4 threads is up to 3 per thread.
+        // Keep that times count under MAX_QUEUE (1024), so nothing is dropped
+        // even if the threads don't run until we're done dispatching.
+        int tunnels = 10;
+        int count = 300;
+        ParticipantDispatcher disp = new ParticipantDispatcher(_context, 4);
+        disp.startup();
+        try {
+            TestParticipant[] parts = new TestParticipant[tunnels];
+            for (int t = 0; t < tunnels; t++) {
+                parts[t] = new TestParticipant(count);
+            }
+            for (int i = 0; i < count; i++) {
+                for (int t = 0; t < tunnels; t++) {
+                    TunnelDataMessage msg = new TunnelDataMessage(_context);
+                    msg.setTunnelId(1000 + t);
+                    msg.setUniqueId(i);
+                    assertTrue(disp.dispatch(parts[t], msg, Hash.FAKE_HASH));
+                }
+            }
+            for (int t = 0; t < tunnels; t++) {
+                assertTrue(parts[t].latch.await(10, TimeUnit.SECONDS));
+                synchronized (parts[t].ids) {
+                    assertEquals(count, parts[t].ids.size());
+                    for (int i = 0; i < count; i++) {
+                        assertEquals(i, parts[t].ids.get(i).longValue());
+                    }
+                }
+            }
+        } finally {
+            disp.shutdown();
+        }
+    }
+}
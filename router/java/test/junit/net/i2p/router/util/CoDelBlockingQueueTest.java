@@ -0,0 +1,68 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.I2PAppContext;
+
+import org.junit.Test;
+
+/**
+ * drainTo(c, max) must not take more than max from the queue,
+ * in either CoDel queue.
+ */
+public class CoDelBlockingQueueTest {
+
+    private static class Entry implements CDPQEntry {
+        final int id;
+        private long enqueueTime, seqNum;
+        boolean dropped;
+
+        Entry(int id) { this.id = id; }
+        public void setEnqueueTime(long time) { enqueueTime = time; }
+        public long getEnqueueTime() { return enqueueTime; }
+        public void drop() { dropped = true; }
+        public int getPriority() { return 100; }
+        public void setSeqNum(long num) { seqNum = num; }
+        public long getSeqNum() { return seqNum; }
+    }
+
+    @Test
+    public void testDrainToMax() {
+        CoDelBlockingQueue<Entry> q = new CoDelBlockingQueue<Entry>(I2PAppContext.getGlobalContext(), "test", 64);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(q.offer(new Entry(i)));
+        }
+        List<Entry> batch = new ArrayList<Entry>();
+        assertEquals(31, q.drainTo(batch, 31));
+        assertEquals(31, batch.size());
+        assertEquals(9, q.size());
+        batch.clear();
+        assertEquals(9, q.drainTo(batch, 31));
+        for (int i = 0; i < 9; i++) {
+            assertEquals(31 + i, batch.get(i).id);
+        }
+        assertEquals(0, q.size());
+        assertEquals(0, q.drainTo(batch, 31));
+    }
+
+    @Test
+    public void testPriorityDrainToMax() {
+        CoDelPriorityBlockingQueue<Entry> q = new CoDelPriorityBlockingQueue<Entry>(I2PAppContext.getGlobalContext(), "test", 64);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(q.offer(new Entry(i)));
+        }
+        List<Entry> batch = new ArrayList<Entry>();
+        assertEquals(31, q.drainTo(batch, 31));
+        assertEquals(9, q.size());
+        batch.clear();
+        assertEquals(9, q.drainTo(batch, 31));
+        // FIFO within a priority
+        for (int i = 0; i < 9; i++) {
+            assertEquals(31 + i, batch.get(i).id);
+        }
+        assertEquals(0, q.size());
+    }
+}
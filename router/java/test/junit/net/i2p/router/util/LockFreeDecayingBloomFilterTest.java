@@ -0,0 +1,112 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.SipHashInline;
+import net.i2p.data.DataHelper;
+
+import org.junit.Test;
+
+/**
+ * Check duplicates, decay, and that concurrent adds don't lose entries.
+ */
+public class LockFreeDecayingBloomFilterTest {
+
+    private static LockFreeDecayingBloomFilter newFilter() {
+        // long duration, we call decay() directly
+        LockFreeDecayingBloomFilter rv = new LockFreeDecayingBloomFilter(I2PAppContext.getGlobalContext(),
+                                                                         60*60*1000 - 1, 16, "test", 20);
+        rv.stopDecaying();
+        return rv;
+    }
+
+    private static byte[] entry(int i) {
+        byte[] rv = new byte[16];
+        rv[3] = (byte) i;
+        rv[7] = (byte) (i >> 8);
+        rv[11] = (byte) (i >> 16);
+        return rv;
+    }
+
+    @Test
+    public void testDuplicates() {
+        LockFreeDecayingBloomFilter f = newFilter();
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(f.add(entry(i)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(f.add(entry(i)));
+        }
+        assertEquals(1000, f.getCurrentDuplicateCount());
+        assertFalse(f.isKnown(12345L));
+        assertFalse(f.add(12345L));
+        assertTrue(f.isKnown(12345L));
+    }
+
+    @Test
+    public void testDecay() {
+        LockFreeDecayingBloomFilter f = newFilter();
+        assertFalse(f.add(1L));
+        f.decay();
+        // still in the previous filter
+        assertTrue(f.isKnown(1L));
+        assertFalse(f.add(2L));
+        f.decay();
+        assertFalse(f.isKnown(1L));
+        assertTrue(f.isKnown(2L));
+        f.decay();
+        assertFalse(f.isKnown(2L));
+    }
+
+    @Test
+    public void testBadLength() {
+        LockFreeDecayingBloomFilter f = newFilter();
+        try {
+            f.add(new byte[8]);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final LockFreeDecayingBloomFilter f = newFilter();
+        final int threads = 4;
+        final int count = 20000;
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int base = i * count;
+            t[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        f.add((long) (base + j));
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            t[i].join();
+        }
+        for (int i = 0; i < threads * count; i++) {
+            assertTrue(f.isKnown((long) i));
+        }
+    }
+
+    @Test
+    public void testMix() {
+        Random r = new Random(1234);
+        byte[] buf = new byte[8];
+        for (int i = 0; i < 1000; i++) {
+            long k0 = r.nextLong();
+            long k1 = r.nextLong();
+            // toLong() does not allow negative values
+            long entry = r.nextLong() & Long.MAX_VALUE;
+            DataHelper.toLong(buf, 0, 8, entry);
+            assertEquals(SipHashInline.hash24(k0, k1, buf, 0, 8),
+                         LockFreeDecayingBloomFilter.mix(k0, k1, entry));
+        }
+    }
+}